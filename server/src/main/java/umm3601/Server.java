@@ -1,6 +1,8 @@
 package umm3601;
 
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.List;
 
 import com.mongodb.MongoClientSettings;
 import com.mongodb.ServerAddress;
@@ -11,18 +13,39 @@ import com.mongodb.client.MongoDatabase;
 import org.bson.UuidRepresentation;
 
 import io.javalin.Javalin;
+import io.javalin.core.compression.CompressionStrategy;
 import io.javalin.core.util.RouteOverviewPlugin;
 
 //import io.javalin.http.InternalServerErrorResponse;
+import umm3601.autocomplete.AutocompleteController;
+import umm3601.compression.GzipEncoder;
+import umm3601.compression.ResponseCompressor;
+import umm3601.events.ChangeBus;
+import umm3601.events.ChangeFeed;
+import umm3601.export.ExportController;
+import umm3601.indexes.IndexManager;
+import umm3601.metrics.RequestMetrics;
+import umm3601.user.User;
 import umm3601.user.UserController;
+import umm3601.pantry.Pantry;
 import umm3601.pantry.PantryController;
+import umm3601.product.Product;
 import umm3601.product.ProductController;
+import umm3601.shoppingList.ShoppingList;
 import umm3601.shoppingList.ShoppingListController;
+import umm3601.sync.ChangeLog;
+import umm3601.sync.SyncController;
 
 public class Server {
 
   private static final int SERVER_PORT = 4567;
 
+  // How often the shopping list is checked for what's running low.
+  private static final Duration LOW_STOCK_INTERVAL = Duration.ofMinutes(1);
+
+  // How often the change log behind `/api/sync` is compacted.
+  private static final Duration COMPACTION_INTERVAL = Duration.ofHours(1);
+
   public static void main(String[] args) {
 
     // Get the MongoDB address and database name from environment variables and
@@ -45,13 +68,35 @@ public class Server {
     // Get the database
     MongoDatabase database = mongoClient.getDatabase(databaseName);
 
-    // Initialize dependencies
-    UserController userController = new UserController(database);
-    ProductController productController = new ProductController(database);
-    PantryController pantryController = new PantryController(database);
-    ShoppingListController shoppingListController = new ShoppingListController(database);
-
-    Javalin server = Javalin.create(config -> config.registerPlugin(new RouteOverviewPlugin("/api")));
+    prepareDatabase(database);
+
+    // Initialize dependencies. The controllers announce their changes on
+    // `changes`, which keeps derived data like the autocomplete index fresh.
+    ChangeBus changes = new ChangeBus();
+    UserController userController = new UserController(database, changes);
+    ProductController productController = new ProductController(database, changes);
+    PantryController pantryController = new PantryController(database, changes);
+    ShoppingListController shoppingListController = new ShoppingListController(database, changes);
+    AutocompleteController autocompleteController = new AutocompleteController(database, changes);
+    ExportController exportController = new ExportController(database);
+    ChangeFeed changeFeed = new ChangeFeed(changes);
+    SyncController syncController = new SyncController(database, changes);
+    changeFeed.startHeartbeat();
+
+    // Compress API responses ourselves (see `ResponseCompressor`), rather
+    // than with Javalin's built-in compression, so that we can cache the
+    // compressed bodies and see what compression costs us.
+    ResponseCompressor compressor = new ResponseCompressor(List.of(new GzipEncoder()));
+
+    // Latency, request, error, and size metrics for every route, which
+    // are recorded once each response has been sent
+    RequestMetrics metrics = new RequestMetrics();
+
+    Javalin server = Javalin.create(config -> {
+      config.registerPlugin(new RouteOverviewPlugin("/api"));
+      config.compressionStrategy(CompressionStrategy.NONE);
+      config.requestLogger(metrics::finish);
+    });
     /*
      * We want to shut the `mongoClient` down if the server either
      * fails to start, or when it's shutting down for whatever reason.
@@ -62,48 +107,63 @@ public class Server {
     server.events(event -> {
       event.serverStartFailed(mongoClient::close);
       event.serverStopped(mongoClient::close);
+      event.handlerAdded(metrics::register);
     });
     Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
 
     server.start(SERVER_PORT);
 
-    // List users, filtered using query parameters
-    server.get("/api/users", userController::getUsers);
+    // Keep the shopping list topped up with what's running low
+    shoppingListController.generateLowStockItemsEvery(LOW_STOCK_INTERVAL);
+    syncController.compactEvery(COMPACTION_INTERVAL);
 
-    // Get the specified user
-    server.get("/api/users/{id}", userController::getUser);
+    server.before(metrics::start);
+    server.after("/api/*", compressor::compress);
 
-    // Delete the specified user
-    server.delete("/api/users/{id}", userController::deleteUser);
+    // Per-route metrics, for Prometheus to scrape
+    server.get("/api/metrics", metrics::getMetrics);
 
-    // Add new user with the user info being in the JSON body
-    // of the HTTP request
-    server.post("/api/users", userController::addNewUser);
+    // Report how much compression is saving, and what it costs, per route
+    server.get("/api/compression", ctx -> ctx.json(compressor.stats()));
 
-    server.get("/api/products", productController::getProducts);
+    addUserRoutes(server, userController, exportController);
 
-    server.get("/api/products/{id}", productController::getProduct);
+    // Every insert, update, and delete as it happens, as Server-Sent
+    // Events, so clients don't need to poll
+    server.sse("/api/changes", changeFeed::handle);
 
-    server.delete("/api/products/{id}", productController::deleteProduct);
+    // The changes since a client last synced, so it can catch up
+    // without downloading everything again
+    server.get("/api/sync", syncController::getChanges);
 
-    server.post("/api/products", productController::addNewProduct);
+    // Report how well the single-document caches are doing
+    server.get("/api/cache", ctx -> ctx.json(List.of(
+        userController.cacheStats(),
+        productController.cacheStats(),
+        pantryController.cacheStats(),
+        pantryController.productCacheStats(),
+        shoppingListController.cacheStats())));
 
-    server.get("/api/pantry", pantryController::getPantrys);
+    addProductRoutes(server, productController, autocompleteController, exportController);
 
-    server.get("/api/pantry/{id}", pantryController::getPantry);
-
-    server.delete("/api/pantry/{id}", pantryController::deletePantry);
-
-    server.post("/api/pantry", pantryController::addNewPantry);
+    addPantryRoutes(server, pantryController, exportController);
 
     server.post("/api/shoppingList", shoppingListController::addNewShoppingList);
 
+    // Put whatever the pantry is running low on onto the shopping list
+    server.post("/api/shoppingList/generate", shoppingListController::generateShoppingList);
+
     server.get("/api/shoppingList", shoppingListController::getShoppingLists);
 
+    server.get("/api/shoppingList/export",
+        exportController.exporter(ShoppingListController.COLLECTION_NAME, ShoppingList.class));
+
     server.get("/api/shoppingList/{id}", shoppingListController::getShoppingList);
 
     server.delete("/api/shoppingList", shoppingListController::deleteShoppingList);
 
+    server.patch("/api/shoppingList/{id}", shoppingListController::updateShoppingList);
+
 
     // This catches any uncaught exceptions thrown in the server
     // code and turns them into a 500 response ("Internal Server
@@ -118,4 +178,141 @@ public class Server {
     //   throw new InternalServerErrorResponse(e.toString());
     // });
   }
+
+  /**
+   * Register the `/api/users` routes.
+   *
+   * @param server the server to add the routes to
+   * @param userController handles the requests about users
+   * @param exportController handles exporting the users
+   */
+  private static void addUserRoutes(Javalin server, UserController userController,
+      ExportController exportController) {
+    // List users, filtered using query parameters
+    server.get("/api/users", userController::getUsers);
+
+    // Export every user as NDJSON or CSV
+    server.get("/api/users/export", exportController.exporter(UserController.COLLECTION_NAME, User.class));
+
+    // Get the specified user
+    server.get("/api/users/{id}", userController::getUser);
+
+    // Delete the specified user
+    server.delete("/api/users/{id}", userController::deleteUser);
+
+    // Change some of the fields of the specified user
+    server.patch("/api/users/{id}", userController::updateUser);
+
+    // Add new user with the user info being in the JSON body
+    // of the HTTP request
+    server.post("/api/users", userController::addNewUser);
+  }
+
+  /**
+   * Register the `/api/products` routes.
+   *
+   * @param server the server to add the routes to
+   * @param productController handles the requests about products
+   * @param autocompleteController suggests product names
+   * @param exportController handles exporting the products
+   */
+  private static void addProductRoutes(Javalin server, ProductController productController,
+      AutocompleteController autocompleteController, ExportController exportController) {
+    server.get("/api/products", productController::getProducts);
+
+    // Ranked full-text search over products. This has to be registered
+    // before `/api/products/{id}`, or "search" would be taken as an id.
+    server.get("/api/products/search", productController::searchProducts);
+
+    // Counts of the matching products in each category, store, and brand
+    server.get("/api/products/facets", productController::getProductFacets);
+
+    // Typeahead suggestions from product, pantry, and shopping list names
+    server.get("/api/products/autocomplete", autocompleteController::getCompletions);
+
+    // Export every product as NDJSON or CSV
+    server.get("/api/products/export",
+        exportController.exporter(ProductController.COLLECTION_NAME, Product.class));
+
+    server.get("/api/products/{id}", productController::getProduct);
+
+    server.delete("/api/products/{id}", productController::deleteProduct);
+
+    server.patch("/api/products/{id}", productController::updateProduct);
+
+    server.post("/api/products", productController::addNewProduct);
+
+    // Add many products at once from a JSON array, e.g., a supplier catalog
+    server.post("/api/products/bulk", productController::addNewProducts);
+  }
+
+  /**
+   * Register the `/api/pantry` and `/api/inventory` routes.
+   *
+   * @param server the server to add the routes to
+   * @param pantryController handles the requests about pantry items
+   * @param exportController handles exporting the pantry items
+   */
+  private static void addPantryRoutes(Javalin server, PantryController pantryController,
+      ExportController exportController) {
+    server.get("/api/pantry", pantryController::getPantrys);
+
+    server.get("/api/pantry/export", exportController.exporter(PantryController.COLLECTION_NAME, Pantry.class));
+
+    // Pantry items joined with their products, so clients don't need a
+    // request per item to show them
+    server.get("/api/pantry/expanded", pantryController::getExpandedPantrys);
+
+    // Pantry items that expire soon, soonest first
+    server.get("/api/pantry/expiring", pantryController::getExpiringPantrys);
+
+    server.get("/api/pantry/{id}", pantryController::getPantry);
+
+    server.delete("/api/pantry/{id}", pantryController::deletePantry);
+
+    server.patch("/api/pantry/{id}", pantryController::updatePantry);
+
+    server.post("/api/pantry", pantryController::addNewPantry);
+
+    // How many pantry items there are of each product
+    server.get("/api/inventory", pantryController::getInventory);
+
+    server.get("/api/inventory/{prodID}", pantryController::getInventoryCount);
+  }
+
+  /**
+   * Get the database ready for the controllers: fill in any derived
+   * fields that are missing, and make sure the indexes exist.
+   *
+   * @param database the database the server uses
+   */
+  private static void prepareDatabase(MongoDatabase database) {
+    // Fill in the normalized search fields for any documents that
+    // don't have them yet (e.g., the seed data), so name searches
+    // find everything.
+    UserController.backfillNormalizedFields(database);
+    ProductController.backfillNormalizedFields(database);
+    PantryController.backfillNormalizedFields(database);
+    ShoppingListController.backfillNormalizedFields(database);
+
+    // Pantry dates used to be stored as strings like "8/21/2021"
+    PantryController.migrateDates(database);
+    PantryController.backfillExpiryDates(database);
+    PantryController.rebuildInventory(database);
+    // The shopping list's unique (name, store) index can't be built
+    // while there are duplicate items, so merge any first.
+    ShoppingListController.mergeDuplicateItems(database);
+
+    // Make sure every index the controllers rely on exists. Missing
+    // unique indexes are built now, since controllers rely on them to
+    // refuse duplicates; the rest are built on a background thread so a
+    // large collection doesn't hold up server startup.
+    new IndexManager(database)
+        .declare(UserController.COLLECTION_NAME, UserController.INDEXES)
+        .declare(ProductController.COLLECTION_NAME, ProductController.INDEXES)
+        .declare(PantryController.COLLECTION_NAME, PantryController.INDEXES)
+        .declare(ShoppingListController.COLLECTION_NAME, ShoppingListController.INDEXES)
+        .declare(ChangeLog.COLLECTION_NAME, ChangeLog.INDEXES)
+        .ensureIndexesInBackground();
+  }
 }
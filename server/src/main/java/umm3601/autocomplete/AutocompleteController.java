@@ -0,0 +1,104 @@
+package umm3601.autocomplete;
+
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.Objects;
+
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.Document;
+
+import io.javalin.http.Context;
+import umm3601.events.ChangeBus;
+import umm3601.events.ChangeEvent;
+import umm3601.pantry.Pantry;
+import umm3601.pantry.PantryController;
+import umm3601.product.Product;
+import umm3601.product.ProductController;
+import umm3601.shoppingList.ShoppingList;
+import umm3601.shoppingList.ShoppingListController;
+import umm3601.streaming.JsonStreaming;
+
+/**
+ * Controller for typeahead suggestions as the user types an item name.
+ *
+ * Suggestions come from the names of products, pantry items, and
+ * shopping list items, all held in one in-memory `CompletionTrie`. A
+ * name is more popular (and suggested first) the more of those
+ * documents share it. The trie is loaded from the database when the
+ * controller is built and then kept up to date from the `ChangeBus`,
+ * so answering a keystroke never touches the database.
+ */
+public class AutocompleteController {
+
+  private static final String PREFIX_KEY = "prefix";
+  private static final String LIMIT_KEY = "limit";
+
+  // How many suggestions the trie keeps for each prefix, which is also
+  // the most a client can ask for.
+  static final int MAX_COMPLETIONS = 10;
+
+  private final CompletionTrie names = new CompletionTrie(MAX_COMPLETIONS);
+
+  /**
+   * Construct a controller for autocompletion, loading every name from
+   * the database.
+   *
+   * @param database the database containing the product, pantry, and
+   *  shopping list data
+   * @param changes where the other controllers announce their changes,
+   *  so we can keep up with new and deleted names
+   */
+  public AutocompleteController(MongoDatabase database, ChangeBus changes) {
+    // Products first, so that when a name is spelled differently in
+    // different places we show the product's spelling.
+    load(database, ProductController.COLLECTION_NAME, "productName");
+    load(database, PantryController.COLLECTION_NAME, "name");
+    load(database, ShoppingListController.COLLECTION_NAME, "productName");
+    // Subscribe only once everything is loaded; otherwise a name added
+    // while we load would be counted once from the database and again
+    // from its event. The bus only carries changes made through this
+    // server, which doesn't take requests until its controllers are built,
+    // so nothing is missed in between.
+    changes.subscribe(this::onChange);
+  }
+
+  /**
+   * Get the most popular names starting with the `prefix` query
+   * parameter, as a JSON list of `{name, count}` objects.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getCompletions(Context ctx) {
+    String prefix = Objects.requireNonNullElse(ctx.queryParam(PREFIX_KEY), "");
+    int limit = ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+        .check(it -> it > 0 && it <= MAX_COMPLETIONS,
+            "The limit must be between 1 and " + MAX_COMPLETIONS)
+        .getOrDefault(MAX_COMPLETIONS);
+    ctx.json(names.complete(prefix, limit));
+  }
+
+  private void load(MongoDatabase database, String collection, String nameField) {
+    database.getCollection(collection)
+        .find()
+        .projection(include(nameField))
+        .batchSize(JsonStreaming.BATCH_SIZE)
+        .forEach((Document doc) -> names.add(doc.getString(nameField)));
+  }
+
+  private void onChange(ChangeEvent event) {
+    names.remove(nameOf(event.getPrevious()));
+    names.add(nameOf(event.getDocument()));
+  }
+
+  private static String nameOf(Object document) {
+    if (document instanceof Product) {
+      return ((Product) document).productName;
+    } else if (document instanceof Pantry) {
+      return ((Pantry) document).name;
+    } else if (document instanceof ShoppingList) {
+      return ((ShoppingList) document).productName;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,367 @@
+package umm3601.autocomplete;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import umm3601.text.TextNormalizer;
+
+/**
+ * A radix trie of names, where every node knows the most popular
+ * names that start with its prefix.
+ *
+ * Names are stored by their normalized form (see `TextNormalizer`), so
+ * "Crème" and "creme" are the same name. A name's popularity is how
+ * many times it has been added (and not removed), e.g., how many
+ * products, pantry items, and shopping list items share it.
+ *
+ * In a radix trie each edge is labelled with a whole run of characters
+ * rather than a single one, so a chain of nodes with just one child
+ * each is stored as a single node. Each node also stores its top
+ * completions, worked out ahead of time whenever a name below it
+ * changes. Looking up a prefix is then just a walk down at most
+ * `prefix.length()` characters of edge labels, returning the array
+ * stored at the node we end up at, so nothing is sorted or searched
+ * per lookup. (A lookup still allocates a little: the normalized prefix
+ * and the list view over that array.)
+ *
+ * Lookups can run concurrently with each other; adds and removes wait
+ * for running lookups to finish.
+ */
+public class CompletionTrie {
+
+  /**
+   * One completion: a name (as it was first added) and how many times
+   * it has been added.
+   */
+  public static final class Completion {
+    private final String name;
+    private final int count;
+
+    Completion(String name, int count) {
+      this.name = name;
+      this.count = count;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getCount() {
+      return count;
+    }
+  }
+
+  // Most popular first, then alphabetically.
+  private static final Comparator<Completion> RANKING = Comparator
+      .comparingInt(Completion::getCount).reversed()
+      .thenComparing(Completion::getName);
+
+  private static final Node[] NO_CHILDREN = new Node[0];
+  private static final Completion[] NO_COMPLETIONS = new Completion[0];
+
+  private static final class Node {
+    // The characters on the edge from the parent to this node.
+    private String label;
+    // Sorted by the first character of their labels.
+    private Node[] children = NO_CHILDREN;
+    // How many times the name ending here has been added, and how to
+    // display it; `count` is zero (and `display` null) if no name ends here.
+    private int count;
+    private String display;
+    // The best names in this subtree, best first.
+    private Completion[] top = NO_COMPLETIONS;
+
+    Node(String label) {
+      this.label = label;
+    }
+  }
+
+  private final int maxCompletions;
+  private final Node root = new Node("");
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private int size;
+
+  /**
+   * Construct an empty trie.
+   *
+   * @param maxCompletions how many completions each node keeps, which
+   *  is the most that `complete()` can return
+   */
+  public CompletionTrie(int maxCompletions) {
+    this.maxCompletions = maxCompletions;
+  }
+
+  /**
+   * @return how many completions each node keeps
+   */
+  public int getMaxCompletions() {
+    return maxCompletions;
+  }
+
+  /**
+   * How many different names are in the trie.
+   *
+   * @return the number of distinct (normalized) names
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Add one occurrence of a name, making it more popular.
+   *
+   * @param name the name to add; blank names are ignored
+   */
+  public void add(String name) {
+    String key = TextNormalizer.normalize(name);
+    if (key == null || key.isEmpty()) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      List<Node> path = new ArrayList<>();
+      Node node = root;
+      path.add(node);
+      int matched = 0;
+      while (matched < key.length()) {
+        int index = childIndex(node, key.charAt(matched));
+        if (index < 0) {
+          Node leaf = new Node(key.substring(matched));
+          insertChild(node, -index - 1, leaf);
+          node = leaf;
+          path.add(node);
+          break;
+        }
+        Node child = node.children[index];
+        int common = commonPrefixLength(child.label, key, matched);
+        if (common < child.label.length()) {
+          child = split(node, index, common);
+        }
+        matched += common;
+        node = child;
+        path.add(node);
+      }
+      if (node.count == 0) {
+        node.display = name.trim();
+        size++;
+      }
+      node.count++;
+      updateTops(path);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove one occurrence of a name, making it less popular (and
+   * dropping it altogether once every occurrence has been removed).
+   *
+   * @param name the name to remove
+   * @return true if the name was in the trie
+   */
+  public boolean remove(String name) {
+    String key = TextNormalizer.normalize(name);
+    if (key == null || key.isEmpty()) {
+      return false;
+    }
+    lock.writeLock().lock();
+    try {
+      List<Node> path = new ArrayList<>();
+      Node node = root;
+      path.add(node);
+      int matched = 0;
+      while (matched < key.length()) {
+        int index = childIndex(node, key.charAt(matched));
+        if (index < 0) {
+          return false;
+        }
+        node = node.children[index];
+        if (!key.startsWith(node.label, matched)) {
+          return false;
+        }
+        matched += node.label.length();
+        path.add(node);
+      }
+      if (node.count == 0) {
+        return false;
+      }
+      node.count--;
+      if (node.count == 0) {
+        node.display = null;
+        size--;
+        prune(path);
+      }
+      updateTops(path);
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Find the most popular names starting with a prefix.
+   *
+   * @param prefix what the user has typed so far
+   * @param limit the most completions to return; at most
+   *  `getMaxCompletions()` are ever returned
+   * @return the completions, most popular first
+   */
+  public List<Completion> complete(String prefix, int limit) {
+    String key = TextNormalizer.normalize(prefix);
+    if (key == null) {
+      key = "";
+    }
+    lock.readLock().lock();
+    try {
+      Completion[] top = lookup(key);
+      return Arrays.asList(top).subList(0, Math.max(0, Math.min(limit, top.length)));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private Completion[] lookup(String key) {
+    Node node = root;
+    int matched = 0;
+    while (matched < key.length()) {
+      int index = childIndex(node, key.charAt(matched));
+      if (index < 0) {
+        return NO_COMPLETIONS;
+      }
+      node = node.children[index];
+      int common = commonPrefixLength(node.label, key, matched);
+      if (matched + common == key.length()) {
+        // The prefix ends here, possibly part way along this edge.
+        break;
+      }
+      if (common < node.label.length()) {
+        return NO_COMPLETIONS;
+      }
+      matched += common;
+    }
+    return node.top;
+  }
+
+  /**
+   * Split the edge to `parent.children[index]` after `at` characters,
+   * returning the new node in the middle.
+   */
+  private static Node split(Node parent, int index, int at) {
+    Node child = parent.children[index];
+    Node middle = new Node(child.label.substring(0, at));
+    child.label = child.label.substring(at);
+    middle.children = new Node[] {child};
+    middle.top = child.top;
+    parent.children[index] = middle;
+    return middle;
+  }
+
+  /**
+   * Tidy up after the name at the end of `path` has gone: remove nodes
+   * that no longer lead anywhere, and merge nodes with a single child
+   * into that child, so the trie stays compact.
+   */
+  private static void prune(List<Node> path) {
+    for (int depth = path.size() - 1; depth > 0; depth--) {
+      Node node = path.get(depth);
+      if (node.count > 0) {
+        return;
+      }
+      if (node.children.length == 0) {
+        removeChild(path.get(depth - 1), node);
+        path.remove(depth);
+      } else if (node.children.length == 1) {
+        Node only = node.children[0];
+        node.label = node.label + only.label;
+        node.children = only.children;
+        node.count = only.count;
+        node.display = only.display;
+        node.top = only.top;
+        return;
+      } else {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Recompute the top completions of every node on the path, deepest
+   * first, since each node's list is built from its children's.
+   */
+  private void updateTops(List<Node> path) {
+    List<Completion> candidates = new ArrayList<>();
+    for (int depth = path.size() - 1; depth >= 0; depth--) {
+      Node node = path.get(depth);
+      candidates.clear();
+      if (node.count > 0) {
+        candidates.add(new Completion(node.display, node.count));
+      }
+      for (Node child : node.children) {
+        candidates.addAll(Arrays.asList(child.top));
+      }
+      candidates.sort(RANKING);
+      node.top = candidates.subList(0, Math.min(maxCompletions, candidates.size())).toArray(NO_COMPLETIONS);
+    }
+  }
+
+  /**
+   * Find the child whose label starts with `c`, returning its index, or
+   * `-(insertion point) - 1` if there isn't one.
+   */
+  private static int childIndex(Node node, char c) {
+    int low = 0;
+    int high = node.children.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      char first = node.children[mid].label.charAt(0);
+      if (first < c) {
+        low = mid + 1;
+      } else if (first > c) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private static void insertChild(Node parent, int index, Node child) {
+    Node[] children = new Node[parent.children.length + 1];
+    System.arraycopy(parent.children, 0, children, 0, index);
+    children[index] = child;
+    System.arraycopy(parent.children, index, children, index + 1, parent.children.length - index);
+    parent.children = children;
+  }
+
+  private static void removeChild(Node parent, Node child) {
+    Node[] children = new Node[parent.children.length - 1];
+    int next = 0;
+    for (Node existing : parent.children) {
+      if (existing != child) {
+        children[next++] = existing;
+      }
+    }
+    parent.children = children;
+  }
+
+  /**
+   * How many characters of `label` match `key` starting at `offset`.
+   */
+  private static int commonPrefixLength(String label, String key, int offset) {
+    int length = Math.min(label.length(), key.length() - offset);
+    int common = 0;
+    while (common < length && label.charAt(common) == key.charAt(offset + common)) {
+      common++;
+    }
+    return common;
+  }
+}
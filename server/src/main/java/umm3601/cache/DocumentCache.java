@@ -0,0 +1,182 @@
+package umm3601.cache;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import org.bson.types.ObjectId;
+
+/**
+ * A bounded, in-process, read-through cache of documents keyed by
+ * their MongoDB `ObjectId`.
+ *
+ * This sits in front of a controller's `JacksonMongoCollection` so that
+ * repeated `GET /api/<things>/{id}` requests for the same (hot) item
+ * don't each need a round trip to the database. It is backed by
+ * Caffeine, which evicts using Window TinyLFU (roughly "keep what has
+ * been popular recently"), and:
+ *
+ *   - is bounded by the (estimated) number of bytes the cached documents
+ *     use, rather than by a count of documents, since documents vary a
+ *     lot in size (e.g., products with long `description`s);
+ *   - drops entries a fixed time after they were loaded, so changes made
+ *     to the database behind our back are eventually picked up;
+ *   - counts hits, misses, and evictions, so we can tell whether the
+ *     size is about right (see `stats()`).
+ *
+ * Controllers must call `invalidate()` whenever they change or delete
+ * a document. Lookups that find nothing are not cached, so adding a
+ * new document never leaves a stale entry behind.
+ *
+ * @param <T> the type of the cached documents
+ */
+public class DocumentCache<T> {
+
+  // Rough sizes (in bytes) used to estimate how much memory an entry
+  // takes. These don't have to be exact, just consistent.
+  private static final int OBJECT_OVERHEAD = 16;
+  private static final int STRING_OVERHEAD = 40;
+  private static final int REFERENCE_SIZE = 8;
+  private static final int ENTRY_OVERHEAD = 64;
+
+  /**
+   * How much memory (roughly) each cache may use unless told otherwise.
+   */
+  public static final long DEFAULT_MAXIMUM_BYTES = 16L * 1024 * 1024;
+
+  /**
+   * How long entries are kept unless told otherwise.
+   */
+  public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(10);
+
+  private final String name;
+  private final long maximumBytes;
+  private final Field[] fields;
+  private final Cache<ObjectId, T> cache;
+
+  /**
+   * Construct a cache for documents of the given type, using the
+   * default size and time-to-live.
+   *
+   * @param name a name for the cache, used when reporting statistics
+   * @param type the class of the cached documents
+   */
+  public DocumentCache(String name, Class<T> type) {
+    this(name, type, DEFAULT_MAXIMUM_BYTES, DEFAULT_TIME_TO_LIVE);
+  }
+
+  /**
+   * Construct a cache for documents of the given type.
+   *
+   * @param name a name for the cache, used when reporting statistics
+   * @param type the class of the cached documents
+   * @param maximumBytes roughly how much memory the cache may use
+   * @param timeToLive how long an entry is kept after being loaded
+   */
+  public DocumentCache(String name, Class<T> type, long maximumBytes, Duration timeToLive) {
+    this.name = name;
+    this.maximumBytes = maximumBytes;
+    this.fields = Arrays.stream(type.getFields())
+        .filter(field -> !Modifier.isStatic(field.getModifiers()))
+        .toArray(Field[]::new);
+    this.cache = Caffeine.newBuilder()
+        .maximumWeight(maximumBytes)
+        .weigher((ObjectId id, T document) -> estimateSize(document))
+        .expireAfterWrite(timeToLive)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Get the document with the given id, loading (and caching) it if
+   * it isn't already in the cache.
+   *
+   * @param id the id of the document we want
+   * @param loader looks the document up in the database; may return
+   *  `null` if there is no such document
+   * @return the document, or `null` if the loader couldn't find it
+   */
+  public T get(ObjectId id, Function<ObjectId, T> loader) {
+    return cache.get(id, loader);
+  }
+
+  /**
+   * Get the documents with the given ids, loading (and caching) all the
+   * ones that aren't already in the cache with one call to `loader`.
+   *
+   * @param ids the ids of the documents we want
+   * @param loader looks up the missing documents in the database, e.g.,
+   *  with one `$in` query; it leaves out ids it couldn't find
+   * @return the documents that were found, by id
+   */
+  public Map<ObjectId, T> getAll(Collection<ObjectId> ids, Function<Set<ObjectId>, Map<ObjectId, T>> loader) {
+    return cache.getAll(ids, missing -> loader.apply(Set.copyOf(missing)));
+  }
+
+  /**
+   * Forget the cached copy (if any) of the document with the given id.
+   *
+   * @param id the id of a document that has changed or been deleted
+   */
+  public void invalidate(ObjectId id) {
+    cache.invalidate(id);
+  }
+
+  /**
+   * Forget every cached document.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Report how well the cache is doing, for sizing it.
+   *
+   * @return the cache's size and its hit, miss, and eviction counts
+   */
+  public Map<String, Object> stats() {
+    // Run any pending evictions so the numbers are up to date.
+    cache.cleanUp();
+    CacheStats stats = cache.stats();
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("name", name);
+    report.put("entries", cache.estimatedSize());
+    report.put("bytes", cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L));
+    report.put("maximumBytes", maximumBytes);
+    report.put("hits", stats.hitCount());
+    report.put("misses", stats.missCount());
+    report.put("evictions", stats.evictionCount());
+    report.put("hitRate", stats.hitRate());
+    return report;
+  }
+
+  /**
+   * Estimate how many bytes of memory a cached document uses, based on
+   * its public fields.
+   */
+  int estimateSize(T document) {
+    long size = ENTRY_OVERHEAD + OBJECT_OVERHEAD;
+    for (Field field : fields) {
+      size += REFERENCE_SIZE;
+      try {
+        Object value = field.get(document);
+        if (value instanceof String) {
+          size += STRING_OVERHEAD + ((String) value).length();
+        }
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException("Field " + field.getName() + " isn't public", e);
+      }
+    }
+    return (int) Math.min(size, Integer.MAX_VALUE);
+  }
+}
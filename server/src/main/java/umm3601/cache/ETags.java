@@ -0,0 +1,172 @@
+package umm3601.cache;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+import io.javalin.core.util.Header;
+import io.javalin.http.Context;
+import io.javalin.http.HttpCode;
+import umm3601.events.ChangeBus;
+
+/**
+ * Conditional GETs (`ETag` / `If-None-Match`) for our collection
+ * endpoints, based on the per-collection versions the `ChangeBus` keeps.
+ *
+ * Every `GET` of a collection (or of one item in it) is tagged with the
+ * collection's current version. A client that polls sends the tag back
+ * in `If-None-Match`; if nothing has been written to the collection
+ * since, we answer `304 Not Modified` straight away, without querying
+ * MongoDB or serializing anything.
+ *
+ * The tag only changes when the collection changes, so different
+ * filters of the same collection share a tag. That's fine, since a
+ * client only ever sends a tag back to the URL it came from.
+ *
+ * Writes made directly to the database (rather than through the
+ * controllers) don't change the version, so clients won't see them
+ * until the next write through the server.
+ */
+public final class ETags {
+
+  // Separates an ETag from the encoding of a compressed response. Our
+  // own tags never contain it.
+  private static final String ENCODING_SEPARATOR = "+";
+
+  // Separates the versions of the collections in one tag. (Not `,`,
+  // which separates tags in `If-None-Match`.)
+  private static final String COLLECTION_SEPARATOR = ".";
+
+  // Where we remember the response's ETag, for `of()`, and whether it
+  // was a 304, for `isNotModified()`.
+  private static final String ETAG_ATTRIBUTE = ETags.class.getName() + ".etag";
+  private static final String NOT_MODIFIED_ATTRIBUTE = ETags.class.getName() + ".notModified";
+
+  private ETags() {
+  }
+
+  /**
+   * Tag the response with the collection's current version and check
+   * whether the client already has it.
+   *
+   * Call this first thing in a `GET` handler, before doing any work:
+   * if it returns true, the response is already a 304 and the handler
+   * should just return. Reading the version before running the query
+   * means a write that races with the query can only make the tag
+   * older than the data, which costs the client a refetch later but
+   * never hides a change from it.
+   *
+   * A response made from several collections (e.g., pantry items joined
+   * with their products) passes them all, and its tag changes when any
+   * of them does.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param changes the bus whose versions we use
+   * @param collections the names of the collections being read
+   * @return true if the client's copy is current and the response is a 304
+   */
+  public static boolean notModified(Context ctx, ChangeBus changes, String... collections) {
+    return notModified(ctx, versions(changes, collections));
+  }
+
+  /**
+   * Like `notModified(ctx, changes, collections)`, for a response that
+   * also depends on what day it is (e.g., which items expire within a
+   * week), so its tag changes at midnight (UTC) as well as when the
+   * data does.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param changes the bus whose versions we use
+   * @param collections the names of the collections being read
+   * @return true if the client's copy is current and the response is a 304
+   */
+  public static boolean notModifiedToday(Context ctx, ChangeBus changes, String... collections) {
+    return notModified(ctx, versions(changes, collections)
+        .append(COLLECTION_SEPARATOR).append(LocalDate.now(ZoneOffset.UTC)));
+  }
+
+  private static StringBuilder versions(ChangeBus changes, String... collections) {
+    StringBuilder versions = new StringBuilder();
+    for (String collection : collections) {
+      if (versions.length() > 0) {
+        versions.append(COLLECTION_SEPARATOR);
+      }
+      versions.append(collection).append('-').append(changes.versionTag(collection));
+    }
+    return versions;
+  }
+
+  private static boolean notModified(Context ctx, CharSequence versions) {
+    String etag = "\"" + versions + "\"";
+    ctx.header(Header.ETAG, etag);
+    ctx.attribute(ETAG_ATTRIBUTE, etag);
+    if (matches(ctx.header(Header.IF_NONE_MATCH), etag)) {
+      ctx.status(HttpCode.NOT_MODIFIED);
+      ctx.attribute(NOT_MODIFIED_ATTRIBUTE, true);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Does an `If-None-Match` header match the given tag? The header can
+   * list several tags, or be `*`; `If-None-Match` compares tags weakly,
+   * so we ignore any `W/` prefix.
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      String tag = withoutEncoding(candidate.trim());
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The ETag `notModified` gave the response, if any.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the response's ETag, or `null` if it doesn't have one
+   */
+  public static String of(Context ctx) {
+    return ctx.attribute(ETAG_ATTRIBUTE);
+  }
+
+  /**
+   * Whether `notModified` made the response a 304.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return true if the response is a 304 because the client's copy is current
+   */
+  public static boolean isNotModified(Context ctx) {
+    return Boolean.TRUE.equals(ctx.attribute(NOT_MODIFIED_ATTRIBUTE));
+  }
+
+  /**
+   * The ETag for a compressed version of a response, which has to be
+   * different from the uncompressed one's (e.g., `"products-x-3"`
+   * becomes `"products-x-3+gzip"`). `notModified` treats the two as
+   * matching, since they have the same content.
+   *
+   * @param etag the uncompressed response's ETag
+   * @param encoding the `Content-Encoding` of the compressed response
+   * @return the compressed response's ETag
+   */
+  public static String withEncoding(String etag, String encoding) {
+    if (!etag.endsWith("\"")) {
+      return etag;
+    }
+    return etag.substring(0, etag.length() - 1) + ENCODING_SEPARATOR + encoding + "\"";
+  }
+
+  private static String withoutEncoding(String tag) {
+    int separator = tag.lastIndexOf(ENCODING_SEPARATOR);
+    return separator < 0 ? tag : tag.substring(0, separator) + "\"";
+  }
+}
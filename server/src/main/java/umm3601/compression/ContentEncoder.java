@@ -0,0 +1,21 @@
+package umm3601.compression;
+
+/**
+ * One way of compressing response bodies, named by the token that goes
+ * in `Accept-Encoding` and `Content-Encoding` (e.g., `gzip`).
+ */
+public interface ContentEncoder {
+
+  /**
+   * @return the `Content-Encoding` token for this encoding
+   */
+  String name();
+
+  /**
+   * Compress a response body.
+   *
+   * @param body the uncompressed bytes
+   * @return the compressed bytes
+   */
+  byte[] encode(byte[] body);
+}
@@ -0,0 +1,52 @@
+package umm3601.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses response bodies with gzip.
+ */
+public class GzipEncoder implements ContentEncoder {
+
+  private final int level;
+
+  /**
+   * Construct a gzip encoder using the default compression level.
+   */
+  public GzipEncoder() {
+    this(Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Construct a gzip encoder.
+   *
+   * @param level the compression level, from 1 (fastest) to 9 (smallest)
+   */
+  public GzipEncoder(int level) {
+    this.level = level;
+  }
+
+  @Override
+  public String name() {
+    return "gzip";
+  }
+
+  @Override
+  public byte[] encode(byte[] body) {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed) {
+      {
+        def.setLevel(level);
+      }
+    }) {
+      out.write(body);
+    } catch (IOException e) {
+      // Can't happen when writing to memory.
+      throw new UncheckedIOException(e);
+    }
+    return compressed.toByteArray();
+  }
+}
@@ -0,0 +1,315 @@
+package umm3601.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.javalin.core.util.Header;
+import io.javalin.http.Context;
+import umm3601.cache.ETags;
+
+/**
+ * Compresses API responses, for clients that accept it.
+ *
+ * This runs as an `after` handler, once the endpoint has set its
+ * response body. It picks the first of its encoders that the client
+ * lists in `Accept-Encoding`, and compresses the body if it is text
+ * (JSON, CSV, ...) and at least `minimumSize` bytes; smaller bodies
+ * aren't worth the CPU time.
+ *
+ * Compressed bodies of `GET` responses are cached, keyed by URL and
+ * encoding, so a hot list that hasn't changed is compressed once rather
+ * than on every request. A cached body is only reused for a response
+ * with the same ETag (which changes whenever the data behind it does;
+ * see `ETags`) or, for responses without one, the very same bytes.
+ * (A checksum isn't enough: two different bodies can share one.)
+ *
+ * A `304 Not Modified` has no body, but it still gets the ETag (and
+ * `Vary`) that a compressed response would have had.
+ *
+ * Responses that endpoints write straight to the output stream (e.g.,
+ * `stream=true` lists and exports) aren't touched here; they handle
+ * their own compression, if any.
+ *
+ * For each route we count the bytes in and out and the CPU time spent
+ * compressing, which `stats()` reports so we can tell whether it's
+ * paying off.
+ */
+public class ResponseCompressor {
+
+  /**
+   * Bodies smaller than this (in bytes) aren't compressed unless told
+   * otherwise; about one network packet.
+   */
+  public static final int DEFAULT_MINIMUM_SIZE = 1024;
+
+  /**
+   * How much memory (roughly) the cache of compressed bodies may use
+   * unless told otherwise.
+   */
+  public static final long DEFAULT_CACHE_BYTES = 32L * 1024 * 1024;
+
+  private static final Pattern ZERO_QUALITY = Pattern.compile("0(\\.0*)?");
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  /**
+   * A compressed body, along with what it was compressed from: the
+   * response's ETag if it had one, and otherwise the uncompressed body.
+   */
+  private static final class Compressed {
+    private final String etag;
+    private final byte[] body;
+    private final byte[] bytes;
+
+    Compressed(String etag, byte[] body, byte[] bytes) {
+      this.etag = etag;
+      this.body = etag == null ? body : null;
+      this.bytes = bytes;
+    }
+
+    boolean isFor(String responseEtag, byte[] responseBody) {
+      return etag != null ? etag.equals(responseEtag) : responseEtag == null && Arrays.equals(body, responseBody);
+    }
+
+    int weight() {
+      return bytes.length + (body == null ? 0 : body.length);
+    }
+  }
+
+  /**
+   * Running totals for one route.
+   */
+  private static final class RouteStats {
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder cpuNanos = new LongAdder();
+  }
+
+  private final List<ContentEncoder> encoders;
+  private final int minimumSize;
+  private final Cache<String, Compressed> cache;
+  private final Map<String, RouteStats> routes = new ConcurrentHashMap<>();
+
+  /**
+   * Construct a compressor with the default size threshold and cache size.
+   *
+   * @param encoders the encodings we can use, most preferred first
+   */
+  public ResponseCompressor(List<ContentEncoder> encoders) {
+    this(encoders, DEFAULT_MINIMUM_SIZE, DEFAULT_CACHE_BYTES);
+  }
+
+  /**
+   * Construct a compressor.
+   *
+   * @param encoders the encodings we can use, most preferred first
+   * @param minimumSize the smallest body (in bytes) worth compressing
+   * @param cacheBytes roughly how much memory the cache of compressed
+   *  bodies may use
+   */
+  public ResponseCompressor(List<ContentEncoder> encoders, int minimumSize, long cacheBytes) {
+    this.encoders = List.copyOf(encoders);
+    this.minimumSize = minimumSize;
+    this.cache = Caffeine.newBuilder()
+        .maximumWeight(cacheBytes)
+        .weigher((String key, Compressed value) -> key.length() + value.weight())
+        .build();
+  }
+
+  /**
+   * Compress the response body, if the client accepts one of our
+   * encodings and the body is worth compressing. Register this as an
+   * `after` handler.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if reading the response body fails
+   */
+  public void compress(Context ctx) throws IOException {
+    InputStream result = ctx.resultStream();
+    if (result == null && ETags.isNotModified(ctx)) {
+      tagNotModified(ctx);
+      return;
+    }
+    if (result == null || ctx.res.containsHeader(Header.CONTENT_ENCODING) || !isText(ctx.res.getContentType())) {
+      return;
+    }
+    RouteStats stats = routes.computeIfAbsent(routeOf(ctx), route -> new RouteStats());
+    stats.responses.increment();
+
+    byte[] body = result.readAllBytes();
+    ContentEncoder encoder = negotiate(ctx.header(Header.ACCEPT_ENCODING));
+    if (encoder == null || body.length < minimumSize) {
+      ctx.result(body);
+      return;
+    }
+
+    // A cached body is only used if it was made from this one, so caching
+    // any GET response is safe; most of them are successful list reads.
+    boolean cacheable = "GET".equals(ctx.method());
+    String etag = ETags.of(ctx);
+    String key = encoder.name() + " " + ctx.path() + "?" + Objects.toString(ctx.queryString(), "");
+    Compressed compressed = cacheable ? cache.getIfPresent(key) : null;
+    if (compressed != null && compressed.isFor(etag, body)) {
+      stats.cacheHits.increment();
+    } else {
+      long start = cpuTime();
+      compressed = new Compressed(etag, body, encoder.encode(body));
+      stats.cpuNanos.add(cpuTime() - start);
+      if (cacheable) {
+        cache.put(key, compressed);
+      }
+    }
+    stats.compressed.increment();
+    stats.bytesIn.add(body.length);
+    stats.bytesOut.add(compressed.bytes.length);
+
+    ctx.header(Header.CONTENT_ENCODING, encoder.name());
+    ctx.header(Header.VARY, Header.ACCEPT_ENCODING);
+    if (etag != null) {
+      // A compressed body is a different representation, so it needs
+      // its own strong ETag.
+      ctx.header(Header.ETAG, ETags.withEncoding(etag, encoder.name()));
+    }
+    ctx.result(compressed.bytes);
+  }
+
+  /**
+   * Give a 304 the ETag that the response it stands for would have had
+   * (RFC 7232, section 4.1), i.e., that of the compressed body if the
+   * client accepts one of our encodings. We can't tell here whether that
+   * body would have been big enough to compress, but `ETags.notModified`
+   * treats the tags as matching either way.
+   */
+  private void tagNotModified(Context ctx) {
+    ctx.header(Header.VARY, Header.ACCEPT_ENCODING);
+    ContentEncoder encoder = negotiate(ctx.header(Header.ACCEPT_ENCODING));
+    String etag = ETags.of(ctx);
+    if (encoder != null && etag != null) {
+      ctx.header(Header.ETAG, ETags.withEncoding(etag, encoder.name()));
+    }
+  }
+
+  /**
+   * Report, for each route, how many responses we compressed, how much
+   * smaller they got, and how much CPU time it took.
+   *
+   * @return one map of statistics per route
+   */
+  public List<Map<String, Object>> stats() {
+    List<Map<String, Object>> report = new ArrayList<>();
+    routes.forEach((route, stats) -> {
+      long bytesIn = stats.bytesIn.sum();
+      long bytesOut = stats.bytesOut.sum();
+      long compressed = stats.compressed.sum();
+      long cacheHits = stats.cacheHits.sum();
+      long cpuNanos = stats.cpuNanos.sum();
+      long compressions = compressed - cacheHits;
+      Map<String, Object> routeReport = new LinkedHashMap<>();
+      routeReport.put("route", route);
+      routeReport.put("responses", stats.responses.sum());
+      routeReport.put("compressed", compressed);
+      routeReport.put("cacheHits", cacheHits);
+      routeReport.put("bytesIn", bytesIn);
+      routeReport.put("bytesOut", bytesOut);
+      routeReport.put("ratio", bytesIn == 0 ? 1.0 : (double) bytesOut / bytesIn);
+      routeReport.put("cpuMillis", TimeUnit.NANOSECONDS.toMillis(cpuNanos));
+      routeReport.put("cpuMicrosPerCompression",
+          compressions == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(cpuNanos / compressions));
+      report.add(routeReport);
+    });
+    return report;
+  }
+
+  /**
+   * Pick the first of our encoders the client accepts, or `null` if it
+   * accepts none of them (e.g., there's no `Accept-Encoding` at all).
+   */
+  ContentEncoder negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    Map<String, Boolean> accepted = parse(acceptEncoding);
+    for (ContentEncoder encoder : encoders) {
+      if (accepts(accepted, encoder.name())) {
+        return encoder;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Whether a client accepts an encoding, for endpoints that compress
+   * their own responses.
+   *
+   * @param acceptEncoding the request's `Accept-Encoding` header (or
+   *  `null` if there isn't one)
+   * @param coding the encoding, e.g., `gzip`
+   * @return true if the header lists the encoding (or `*`) without a
+   *  quality of zero
+   */
+  public static boolean accepts(String acceptEncoding, String coding) {
+    return acceptEncoding != null && accepts(parse(acceptEncoding), coding);
+  }
+
+  private static boolean accepts(Map<String, Boolean> accepted, String coding) {
+    return Boolean.TRUE.equals(accepted.getOrDefault(coding, accepted.get("*")));
+  }
+
+  /**
+   * Each coding in an `Accept-Encoding` header, and whether it's
+   * acceptable.
+   */
+  private static Map<String, Boolean> parse(String acceptEncoding) {
+    Map<String, Boolean> accepted = new LinkedHashMap<>();
+    for (String part : acceptEncoding.split(",")) {
+      String[] params = part.trim().split(";");
+      String coding = params[0].trim().toLowerCase(Locale.ROOT);
+      boolean refused = false;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].replace(" ", "");
+        // A quality of zero means "not acceptable".
+        if (param.startsWith("q=") && ZERO_QUALITY.matcher(param.substring(2)).matches()) {
+          refused = true;
+        }
+      }
+      accepted.put(coding, !refused);
+    }
+    return accepted;
+  }
+
+  private static boolean isText(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String type = contentType.toLowerCase(Locale.ROOT);
+    return type.startsWith("text/") || type.contains("json") || type.contains("xml") || type.contains("csv");
+  }
+
+  private static String routeOf(Context ctx) {
+    String route = ctx.endpointHandlerPath();
+    return ctx.method() + " " + (route == null || route.isEmpty() ? "(no route)" : route);
+  }
+
+  private static long cpuTime() {
+    return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+}
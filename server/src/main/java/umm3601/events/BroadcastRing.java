@@ -0,0 +1,107 @@
+package umm3601.events;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size ring of the most recent values, which any number of
+ * writers add to and any number of readers read from, without locks.
+ *
+ * Every value gets the next sequence number (0, 1, 2, ...). A writer
+ * claims its number with one atomic increment and then fills in its
+ * slot, so writers never wait for each other or for readers. Each
+ * reader keeps its own position, and reads at its own pace; a reader
+ * that falls more than `capacity()` values behind has lost the values
+ * it skipped, which `isLost()` tells it.
+ *
+ * @param <T> the type of the values
+ */
+public class BroadcastRing<T> {
+
+  /**
+   * A value and its sequence number, so that a reader can tell the
+   * value it wants from an older one that hasn't been replaced yet, or
+   * a newer one that replaced it.
+   */
+  private static final class Slot<T> {
+    private final long sequence;
+    private final T value;
+
+    Slot(long sequence, T value) {
+      this.sequence = sequence;
+      this.value = value;
+    }
+  }
+
+  private final AtomicReferenceArray<Slot<T>> slots;
+  private final int mask;
+  private final AtomicLong claimed = new AtomicLong();
+
+  /**
+   * Construct an empty ring.
+   *
+   * @param capacity how many of the most recent values to keep; a
+   *  power of two
+   */
+  public BroadcastRing(int capacity) {
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("The capacity must be a power of two, not " + capacity);
+    }
+    slots = new AtomicReferenceArray<>(capacity);
+    mask = capacity - 1;
+  }
+
+  /**
+   * Add a value, replacing the oldest one if the ring is full.
+   *
+   * @param value the value to add
+   * @return the value's sequence number
+   */
+  public long publish(T value) {
+    long sequence = claimed.getAndIncrement();
+    slots.set((int) (sequence & mask), new Slot<>(sequence, value));
+    return sequence;
+  }
+
+  /**
+   * Read the value with a given sequence number.
+   *
+   * @param sequence the value's sequence number
+   * @return the value, or `null` if it hasn't been published yet or has
+   *  been replaced (see `isLost()` to tell which)
+   */
+  public T read(long sequence) {
+    Slot<T> slot = slots.get((int) (sequence & mask));
+    return slot != null && slot.sequence == sequence ? slot.value : null;
+  }
+
+  /**
+   * Whether a value has been replaced by newer ones (so a reader that
+   * hadn't got to it yet never will).
+   *
+   * @param sequence the value's sequence number
+   * @return true if the value is gone
+   */
+  public boolean isLost(long sequence) {
+    return sequence < claimed.get() - slots.length();
+  }
+
+  /**
+   * The sequence number the next value will get; a reader that starts
+   * here sees only values published from now on.
+   *
+   * @return the next sequence number
+   */
+  public long next() {
+    return claimed.get();
+  }
+
+  /**
+   * How many values the ring keeps.
+   *
+   * @return the capacity
+   */
+  public int capacity() {
+    return slots.length();
+  }
+}
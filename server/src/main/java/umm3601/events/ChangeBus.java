@@ -0,0 +1,104 @@
+package umm3601.events;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tells interested parts of the server about every document the
+ * controllers insert, update, or delete.
+ *
+ * Controllers `publish()` a `ChangeEvent` right after each successful
+ * write, and anything that keeps data derived from the collections
+ * (e.g., the autocomplete index) `subscribe()`s to keep itself up to
+ * date, instead of every controller having to know about every such
+ * consumer.
+ *
+ * The bus also keeps a version number for each collection, which goes
+ * up with every change published for it. These make cheap validators
+ * for HTTP caching (see `ETags`): if the version hasn't moved, nothing
+ * in the collection has changed through this server. Versions start
+ * over when the server restarts, so `versionTag()` includes a per-bus
+ * "epoch" to keep tags from one run from matching those of another.
+ *
+ * Listeners run synchronously, on the request thread, in the order they
+ * subscribed, so they should be quick. A listener that throws is
+ * logged and skipped; it never fails the write that caused the event.
+ */
+public class ChangeBus {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChangeBus.class);
+
+  private final List<Consumer<ChangeEvent>> listeners = new CopyOnWriteArrayList<>();
+  private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+  private final String epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+  /**
+   * Call the given listener for every future change.
+   *
+   * @param listener what to call
+   */
+  public void subscribe(Consumer<ChangeEvent> listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Tell every listener about a change.
+   *
+   * @param event the change that just happened
+   */
+  public void publish(ChangeEvent event) {
+    counter(event.getCollection()).incrementAndGet();
+    for (Consumer<ChangeEvent> listener : listeners) {
+      try {
+        listener.accept(event);
+      } catch (RuntimeException e) {
+        LOGGER.error("Change listener failed on {} {} in {}",
+            event.getType(), event.getId(), event.getCollection(), e);
+      }
+    }
+  }
+
+  /**
+   * Move a collection's version on without an event, for writes whose
+   * changed documents can't be announced one by one (e.g., an update
+   * that raced with the read of what it would change). That keeps
+   * ETags honest even when no listener can be told.
+   *
+   * @param collection the name of the collection that changed
+   */
+  public void touch(String collection) {
+    counter(collection).incrementAndGet();
+  }
+
+  /**
+   * How many changes have been published for a collection.
+   *
+   * @param collection the name of a collection
+   * @return the collection's current version
+   */
+  public long version(String collection) {
+    return counter(collection).get();
+  }
+
+  /**
+   * A string that changes whenever the collection does (and whenever
+   * the server restarts), for use in ETags.
+   *
+   * @param collection the name of a collection
+   * @return the collection's current version, tagged with this bus's epoch
+   */
+  public String versionTag(String collection) {
+    return epoch + "-" + version(collection);
+  }
+
+  private AtomicLong counter(String collection) {
+    return versions.computeIfAbsent(collection, name -> new AtomicLong());
+  }
+}
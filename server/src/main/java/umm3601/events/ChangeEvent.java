@@ -0,0 +1,98 @@
+package umm3601.events;
+
+/**
+ * Something that happened to one document: it was inserted, updated,
+ * or deleted.
+ *
+ * Events carry the document as it was before the change (`previous`,
+ * `null` for inserts) and after it (`document`, `null` for deletes),
+ * so listeners that keep derived data (search indexes, counts, and so
+ * on) can take the old version out and put the new one in without
+ * going back to the database.
+ */
+public final class ChangeEvent {
+
+  /**
+   * The kinds of change.
+   */
+  public enum Type {
+    INSERTED, UPDATED, DELETED
+  }
+
+  private final String collection;
+  private final Type type;
+  private final String id;
+  private final Object previous;
+  private final Object document;
+
+  private ChangeEvent(String collection, Type type, String id, Object previous, Object document) {
+    this.collection = collection;
+    this.type = type;
+    this.id = id;
+    this.previous = previous;
+    this.document = document;
+  }
+
+  /**
+   * A document was added.
+   *
+   * @param collection the name of the collection it was added to
+   * @param id the new document's id
+   * @param document the document that was added
+   * @return the event
+   */
+  public static ChangeEvent inserted(String collection, String id, Object document) {
+    return new ChangeEvent(collection, Type.INSERTED, id, null, document);
+  }
+
+  /**
+   * A document was changed.
+   *
+   * @param collection the name of the collection holding it
+   * @param id the document's id
+   * @param previous the document before the change
+   * @param document the document after the change
+   * @return the event
+   */
+  public static ChangeEvent updated(String collection, String id, Object previous, Object document) {
+    return new ChangeEvent(collection, Type.UPDATED, id, previous, document);
+  }
+
+  /**
+   * A document was removed.
+   *
+   * @param collection the name of the collection it was removed from
+   * @param id the removed document's id
+   * @param previous the document that was removed
+   * @return the event
+   */
+  public static ChangeEvent deleted(String collection, String id, Object previous) {
+    return new ChangeEvent(collection, Type.DELETED, id, previous, null);
+  }
+
+  public String getCollection() {
+    return collection;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return the document before the change, or `null` for an insert
+   */
+  public Object getPrevious() {
+    return previous;
+  }
+
+  /**
+   * @return the document after the change, or `null` for a delete
+   */
+  public Object getDocument() {
+    return document;
+  }
+}
@@ -0,0 +1,374 @@
+package umm3601.events;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.http.sse.SseClient;
+import io.javalin.plugin.json.JavalinJackson;
+
+/**
+ * Pushes the changes published on a `ChangeBus` to clients as they
+ * happen, as Server-Sent Events, so they don't have to poll.
+ *
+ * Each change goes into a `BroadcastRing` of the most recent changes,
+ * and every subscriber reads the ring from its own position, on a
+ * thread of its own while it has anything to send. Publishing is
+ * therefore an atomic increment and a few non-blocking hand-offs,
+ * however many clients there are, or however slow they are. A client
+ * that falls more than a ring's worth of changes behind is cut off
+ * rather than slowing anyone down; when it reconnects it's told to
+ * `reset` (reload what it shows), since it has missed changes.
+ *
+ * Each event is a `change` with the ring sequence number as its id
+ * and a JSON body with the `collection`, `type`, `id`, and `document`
+ * (the document after the change, `null` for deletes). Browsers'
+ * `EventSource` send the last id back when they reconnect, which lets
+ * a client that was only briefly away pick up where it left off.
+ */
+public class ChangeFeed {
+
+  /**
+   * How many recent changes the feed keeps, and so how far behind a
+   * client can fall before it's cut off.
+   */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  // How often idle connections get a comment, so proxies don't close
+  // them and we notice clients that have gone away.
+  private static final long HEARTBEAT_SECONDS = 15;
+
+  private static final String COLLECTIONS_KEY = "collections";
+  private static final String LAST_EVENT_ID_HEADER = "Last-Event-ID";
+
+  private static final ObjectMapper MAPPER = JavalinJackson.Companion.defaultMapper();
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChangeFeed.class);
+
+  /**
+   * Where a subscriber's events go; for the server that's an
+   * `SseClient`. Calls for one subscriber never overlap.
+   */
+  public interface Sink {
+    /**
+     * Send one event.
+     *
+     * @param event the event's name
+     * @param data the event's body
+     * @param id the event's id, or `null`
+     */
+    void send(String event, String data, String id);
+
+    /**
+     * Send a comment, which clients ignore.
+     *
+     * @param comment the text of the comment
+     */
+    void comment(String comment);
+
+    /**
+     * End the connection.
+     */
+    void close();
+  }
+
+  /**
+   * A change in the ring. The JSON is made by the first subscriber to
+   * send it, rather than by the writer that published it.
+   */
+  private static final class Entry {
+    private final ChangeEvent event;
+    private volatile String json;
+
+    Entry(ChangeEvent event) {
+      this.event = event;
+    }
+
+    String json() {
+      if (json == null) {
+        try {
+          json = MAPPER.writeValueAsString(new Body(event));
+        } catch (JsonProcessingException e) {
+          throw new IllegalStateException("Couldn't write a change to " + event.getCollection(), e);
+        }
+      }
+      return json;
+    }
+  }
+
+  /**
+   * The JSON body of a `change` event.
+   */
+  @SuppressWarnings({"VisibilityModifier"})
+  static final class Body {
+    public final String collection;
+    public final String type;
+    public final String id;
+    public final Object document;
+
+    Body(ChangeEvent event) {
+      collection = event.getCollection();
+      type = event.getType().name().toLowerCase();
+      id = event.getId();
+      document = event.getDocument();
+    }
+  }
+
+  /**
+   * One connected client, and how far through the ring it's got.
+   */
+  private final class Subscriber {
+    private final Sink sink;
+    private final Set<String> collections;
+    // Only the thread draining this subscriber (there's only ever one,
+    // thanks to `scheduled`) changes this, but publishers read it to
+    // see how far behind we are.
+    private volatile long position;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean heartbeatDue;
+    private volatile boolean closed;
+
+    Subscriber(Sink sink, Set<String> collections, long position) {
+      this.sink = sink;
+      this.collections = collections;
+      this.position = position;
+    }
+
+    void schedule() {
+      if (!closed && scheduled.compareAndSet(false, true)) {
+        sender.execute(this::drain);
+      }
+    }
+
+    private void drain() {
+      try {
+        while (!closed) {
+          Entry entry = ring.read(position);
+          if (entry == null) {
+            if (ring.isLost(position)) {
+              drop("fell more than " + ring.capacity() + " changes behind");
+            }
+            break;
+          }
+          if (collections == null || collections.contains(entry.event.getCollection())) {
+            sink.send("change", entry.json(), epoch + "-" + position);
+          }
+          position++;
+        }
+        if (heartbeatDue && !closed) {
+          heartbeatDue = false;
+          sink.comment("heartbeat");
+        }
+      } catch (RuntimeException e) {
+        drop(e.toString());
+      } finally {
+        scheduled.set(false);
+      }
+      // Something may have been published after we last looked but
+      // before we cleared `scheduled`, in which case its publisher
+      // couldn't schedule us.
+      if (!closed && (ring.read(position) != null || heartbeatDue)) {
+        schedule();
+      }
+    }
+
+    void drop(String reason) {
+      closed = true;
+      if (subscribers.remove(this)) {
+        LOGGER.info("Dropping change feed client: {}", reason);
+        // Closing could wait on the network, and this may be a
+        // publisher's thread.
+        sender.execute(sink::close);
+      }
+    }
+  }
+
+  private final BroadcastRing<Entry> ring;
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  private final ExecutorService sender = Executors.newCachedThreadPool(daemon("change-feed"));
+  private final String epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+  /**
+   * Construct a feed of the changes published on a bus, keeping the
+   * last `DEFAULT_CAPACITY` of them.
+   *
+   * @param changes the bus to follow
+   */
+  public ChangeFeed(ChangeBus changes) {
+    this(changes, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Construct a feed of the changes published on a bus.
+   *
+   * @param changes the bus to follow
+   * @param capacity how many recent changes to keep (a power of two)
+   */
+  public ChangeFeed(ChangeBus changes, int capacity) {
+    ring = new BroadcastRing<>(capacity);
+    changes.subscribe(this::publish);
+  }
+
+  private void publish(ChangeEvent event) {
+    long sequence = ring.publish(new Entry(event));
+    for (Subscriber subscriber : subscribers) {
+      if (sequence - subscriber.position >= ring.capacity()) {
+        // Closing the connection also unblocks the sender thread, if
+        // it's stuck writing to a client that isn't reading.
+        subscriber.drop("fell more than " + ring.capacity() + " changes behind");
+      } else {
+        subscriber.schedule();
+      }
+    }
+  }
+
+  /**
+   * Start sending changes to a subscriber.
+   *
+   * @param sink where to send them
+   * @param collections the collections whose changes to send, or `null`
+   *  for all of them
+   * @param lastEventId the id of the last event the subscriber saw
+   *  before it reconnected, or `null` if it's new
+   */
+  public void subscribe(Sink sink, Set<String> collections, String lastEventId) {
+    long position = ring.next();
+    if (lastEventId != null) {
+      long resumeAt = resumePosition(lastEventId);
+      if (resumeAt < 0) {
+        sink.send("reset", "{}", null);
+      } else {
+        position = resumeAt;
+      }
+    }
+    Subscriber subscriber = new Subscriber(sink, collections, position);
+    subscribers.add(subscriber);
+    subscriber.schedule();
+  }
+
+  /**
+   * Where a client that last saw the given event should carry on from,
+   * or -1 if it can't (it's from before a restart, or too long ago).
+   */
+  private long resumePosition(String lastEventId) {
+    String prefix = epoch + "-";
+    if (!lastEventId.startsWith(prefix)) {
+      return -1;
+    }
+    try {
+      long next = Long.parseLong(lastEventId.substring(prefix.length())) + 1;
+      return next <= ring.next() && !ring.isLost(next) ? next : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * How many clients are subscribed.
+   *
+   * @return the number of subscribers
+   */
+  public int subscriberCount() {
+    return subscribers.size();
+  }
+
+  /**
+   * Send every subscriber a comment every so often, on a background
+   * (daemon) thread.
+   *
+   * @return the executor sending them, so it can be shut down
+   */
+  public ScheduledExecutorService startHeartbeat() {
+    ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(daemon("change-feed-heartbeat"));
+    heartbeat.scheduleAtFixedRate(() -> {
+      for (Subscriber subscriber : subscribers) {
+        subscriber.heartbeatDue = true;
+        subscriber.schedule();
+      }
+    }, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    return heartbeat;
+  }
+
+  /**
+   * Handle a `GET /api/changes` Server-Sent Events connection. The
+   * optional `collections` parameter (e.g., `collections=pantry,shoppingList`)
+   * limits the changes to those collections.
+   *
+   * @param client the connecting client
+   */
+  public void handle(SseClient client) {
+    String only = client.ctx.queryParam(COLLECTIONS_KEY);
+    Set<String> collections = only == null ? null
+        : Arrays.stream(only.split(",")).map(String::trim).collect(Collectors.toSet());
+    SseSink sink = new SseSink(client);
+    client.onClose(sink::closed);
+    subscribe(sink, collections, client.ctx.header(LAST_EVENT_ID_HEADER));
+  }
+
+  /**
+   * Sends a subscriber's events to a Javalin SSE client.
+   */
+  private final class SseSink implements Sink {
+    private final SseClient client;
+
+    SseSink(SseClient client) {
+      this.client = client;
+    }
+
+    @Override
+    public void send(String event, String data, String id) {
+      if (id == null) {
+        client.sendEvent(event, data);
+      } else {
+        client.sendEvent(event, data, id);
+      }
+    }
+
+    @Override
+    public void comment(String comment) {
+      client.sendComment(comment);
+    }
+
+    @Override
+    public void close() {
+      try {
+        client.ctx.req.getAsyncContext().complete();
+      } catch (IllegalStateException e) {
+        // It's already closed.
+      }
+    }
+
+    /**
+     * The client went away.
+     */
+    void closed() {
+      subscribers.removeIf(subscriber -> {
+        if (subscriber.sink == this) {
+          subscriber.closed = true;
+          return true;
+        }
+        return false;
+      });
+    }
+  }
+
+  private static ThreadFactory daemon(String name) {
+    return task -> {
+      Thread thread = new Thread(task, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
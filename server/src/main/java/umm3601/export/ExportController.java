@@ -0,0 +1,200 @@
+package umm3601.export;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+import io.javalin.core.util.Header;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import umm3601.compression.ResponseCompressor;
+import umm3601.streaming.JsonStreaming;
+
+/**
+ * Controller for exporting whole collections, e.g., for backups or to
+ * load into a spreadsheet or analytics tool.
+ *
+ * `GET /api/<collection>/export?format=ndjson|csv` writes every document
+ * in the collection, one per line, straight from the database cursor to
+ * the response:
+ *
+ *   - `ndjson` (the default) is one MongoDB Extended JSON (relaxed)
+ *     document per line, which `mongoimport` can read back in.
+ *   - `csv` has a header row naming the collection's fields, then one
+ *     row per document.
+ *
+ * Documents are read as `RawBsonDocument`s and converted straight to
+ * text, skipping the usual trip through our POJOs, and are written out
+ * a batch at a time, so the server's memory use stays flat no matter
+ * how big the collection is. If the client accepts gzip, the response
+ * is compressed as it is written.
+ */
+public class ExportController {
+
+  private static final String FORMAT_KEY = "format";
+  private static final String NDJSON = "ndjson";
+  private static final String CSV = "csv";
+  private static final String GZIP = "gzip";
+
+  // How much output we buffer before writing to the client.
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder()
+      .outputMode(JsonMode.RELAXED)
+      .build();
+
+  private final MongoDatabase database;
+
+  /**
+   * Construct a controller for exports.
+   *
+   * @param database the database containing the collections to export
+   */
+  public ExportController(MongoDatabase database) {
+    this.database = database;
+  }
+
+  /**
+   * Make a handler that exports one collection.
+   *
+   * @param collection the name of the collection to export
+   * @param type the POJO class for the collection's documents, whose
+   *  public fields are the columns of a CSV export
+   * @return the handler for that collection's `/export` route
+   */
+  public Handler exporter(String collection, Class<?> type) {
+    List<String> columns = Arrays.stream(type.getFields())
+        .filter(field -> !Modifier.isStatic(field.getModifiers()))
+        .map(Field::getName)
+        .collect(Collectors.toList());
+    return ctx -> export(ctx, collection, columns);
+  }
+
+  private void export(Context ctx, String collection, List<String> columns) {
+    String format = Objects.requireNonNullElse(ctx.queryParam(FORMAT_KEY), NDJSON);
+    if (!format.equals(NDJSON) && !format.equals(CSV)) {
+      throw new BadRequestResponse("The export format must be `ndjson` or `csv`");
+    }
+    boolean gzip = ResponseCompressor.accepts(ctx.header(Header.ACCEPT_ENCODING), GZIP);
+
+    ctx.contentType(format.equals(CSV) ? "text/csv; charset=utf-8" : "application/x-ndjson");
+    ctx.header(Header.CONTENT_DISPOSITION, "attachment; filename=\"" + collection + "." + format + "\"");
+    // Whether it's compressed depends on Accept-Encoding, either way.
+    ctx.header(Header.VARY, Header.ACCEPT_ENCODING);
+    if (gzip) {
+      ctx.header(Header.CONTENT_ENCODING, GZIP);
+    }
+
+    try {
+      OutputStream out = gzip
+          ? new GZIPOutputStream(ctx.res.getOutputStream(), BUFFER_SIZE)
+          : ctx.res.getOutputStream();
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+      try (MongoCursor<RawBsonDocument> cursor = database
+          .getCollection(collection, RawBsonDocument.class)
+          .find()
+          .batchSize(JsonStreaming.BATCH_SIZE)
+          .iterator()) {
+        if (format.equals(CSV)) {
+          writeCsvRow(writer, columns);
+        }
+        int written = 0;
+        while (cursor.hasNext()) {
+          RawBsonDocument document = cursor.next();
+          if (format.equals(CSV)) {
+            writeCsvRow(writer, columns.stream().map(column -> csvValue(document.get(column)))
+                .collect(Collectors.toList()));
+          } else {
+            writer.write(document.toJson(JSON_SETTINGS));
+            writer.write('\n');
+          }
+          written++;
+          if (written % JsonStreaming.BATCH_SIZE == 0) {
+            writer.flush();
+          }
+        }
+      }
+      writer.flush();
+      if (gzip) {
+        // Writes the gzip trailer without closing the servlet's stream.
+        ((GZIPOutputStream) out).finish();
+      }
+      out.flush();
+    } catch (IOException e) {
+      // Almost always the client going away in the middle of the export.
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Turn one BSON value into the text of a CSV cell.
+   */
+  static String csvValue(BsonValue value) {
+    if (value == null || value.isNull()) {
+      return "";
+    }
+    switch (value.getBsonType()) {
+      case STRING:
+        return value.asString().getValue();
+      case OBJECT_ID:
+        return value.asObjectId().getValue().toHexString();
+      case INT32:
+        return Integer.toString(value.asInt32().getValue());
+      case INT64:
+        return Long.toString(value.asInt64().getValue());
+      case DOUBLE:
+        return Double.toString(value.asDouble().getValue());
+      case DECIMAL128:
+        return value.asDecimal128().getValue().toString();
+      case BOOLEAN:
+        return Boolean.toString(value.asBoolean().getValue());
+      case DATE_TIME:
+        return Instant.ofEpochMilli(value.asDateTime().getValue()).toString();
+      case DOCUMENT:
+        return value.asDocument().toJson(JSON_SETTINGS);
+      default:
+        return value.toString();
+    }
+  }
+
+  /**
+   * Write one row of CSV, quoting any cells that need it (RFC 4180).
+   */
+  static void writeCsvRow(Writer writer, List<String> cells) throws IOException {
+    for (int i = 0; i < cells.size(); i++) {
+      if (i > 0) {
+        writer.write(',');
+      }
+      String cell = cells.get(i);
+      if (cell.indexOf(',') >= 0 || cell.indexOf('"') >= 0 || cell.indexOf('\n') >= 0 || cell.indexOf('\r') >= 0) {
+        writer.write('"');
+        writer.write(cell.replace("\"", "\"\""));
+        writer.write('"');
+      } else {
+        writer.write(cell);
+      }
+    }
+    writer.write("\r\n");
+  }
+}
@@ -0,0 +1,307 @@
+package umm3601.indexes;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes sure the indexes our controllers rely on actually exist.
+ *
+ * Each controller declares the indexes its queries need (see, e.g.,
+ * `ProductController.INDEXES`), and `Server.main` registers those
+ * declarations here at startup. The manager then compares them with
+ * what is already in the database:
+ *
+ *   - Declared indexes that are missing are created, one at a time,
+ *     logging progress as each one is built.
+ *   - Indexes that exist but that nobody declared are logged as a
+ *     warning (we don't drop them, since someone may have added them
+ *     by hand for a good reason).
+ *
+ * Indexes are compared by their key pattern and whether they're
+ * unique, not their name, so an index created by hand in the mongo
+ * shell with the same keys counts as "already there". An existing index
+ * with the right keys that is (or isn't) unique when it shouldn't be is
+ * dropped and rebuilt, since MongoDB can't have both.
+ *
+ * Unique indexes aren't just there for speed: the controllers rely on
+ * them to refuse duplicates. So `ensureIndexesInBackground()` builds
+ * those before it returns, and only leaves the rest to the background.
+ */
+public class IndexManager {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IndexManager.class);
+
+  // Every collection has this index, and it can't be dropped, so
+  // it never needs to be declared.
+  private static final String ID_INDEX_NAME = "_id_";
+
+  private final MongoDatabase database;
+  private final Map<String, List<IndexModel>> declared = new LinkedHashMap<>();
+
+  /**
+   * Construct an index manager for the given database.
+   *
+   * @param database the database whose collections we manage indexes for
+   */
+  public IndexManager(MongoDatabase database) {
+    this.database = database;
+  }
+
+  /**
+   * Declare the indexes that a collection should have.
+   *
+   * @param collectionName the name of the collection
+   * @param indexes the indexes that collection should have
+   * @return this manager, so calls can be chained
+   */
+  public IndexManager declare(String collectionName, List<IndexModel> indexes) {
+    declared.computeIfAbsent(collectionName, name -> new ArrayList<>()).addAll(indexes);
+    return this;
+  }
+
+  /**
+   * Build any missing unique indexes, and then run `ensureIndexes()` on
+   * a background (daemon) thread, so that the server can start
+   * answering requests while the other indexes build.
+   *
+   * @return the thread that is building the other indexes
+   * @throws IllegalStateException if a unique index couldn't be built
+   *  (e.g., because of duplicates)
+   */
+  public Thread ensureIndexesInBackground() {
+    Map<String, List<IndexModel>> unique = findMissingIndexes();
+    unique.values().forEach(indexes -> indexes.removeIf(index -> !isUnique(index)));
+    unique.values().removeIf(List::isEmpty);
+    build(unique, true);
+
+    Thread builder = new Thread(this::ensureIndexes, "index-bootstrap");
+    builder.setDaemon(true);
+    builder.start();
+    return builder;
+  }
+
+  /**
+   * Create every declared index that doesn't already exist, and log
+   * any existing index that wasn't declared.
+   *
+   * @return the names of the indexes that were created
+   */
+  public List<String> ensureIndexes() {
+    findUndeclaredIndexes();
+
+    Map<String, List<IndexModel>> missing = findMissingIndexes();
+    int total = missing.values().stream().mapToInt(List::size).sum();
+    if (total == 0) {
+      LOGGER.info("All {} declared indexes already exist", declaredCount());
+      return List.of();
+    }
+
+    return build(missing, false);
+  }
+
+  /**
+   * Build the given indexes, dropping any existing index with the same
+   * keys first (which can only differ in whether it's unique).
+   *
+   * @param required whether to give up on the first index that fails,
+   *  rather than log it and carry on
+   */
+  private List<String> build(Map<String, List<IndexModel>> missing, boolean required) {
+    int total = missing.values().stream().mapToInt(List::size).sum();
+    if (total == 0) {
+      return List.of();
+    }
+    LOGGER.info("Building {} missing {}indexes", total, required ? "unique " : "");
+    List<String> created = new ArrayList<>();
+    int built = 0;
+    for (Map.Entry<String, List<IndexModel>> entry : missing.entrySet()) {
+      MongoCollection<Document> collection = database.getCollection(entry.getKey());
+      for (IndexModel index : entry.getValue()) {
+        built++;
+        String description = entry.getKey() + "." + describe(index);
+        LOGGER.info("[{}/{}] Building index {}", built, total, description);
+        long start = System.nanoTime();
+        try {
+          String conflicting = sameKeys(collection, index);
+          if (conflicting != null) {
+            LOGGER.warn("[{}/{}] Dropping index {}.{}, which has the same keys but the wrong uniqueness",
+                built, total, entry.getKey(), conflicting);
+            collection.dropIndex(conflicting);
+          }
+          created.add(collection.createIndex(index.getKeys(), backgroundOptions(index)));
+          LOGGER.info("[{}/{}] Built index {} in {} ms",
+              built, total, description, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (MongoException e) {
+          if (required) {
+            throw new IllegalStateException("Failed to build index " + description, e);
+          }
+          LOGGER.error("[{}/{}] Failed to build index {}: {}", built, total, description, e.getMessage());
+        }
+      }
+    }
+    return created;
+  }
+
+  /**
+   * The name of an existing index with the same keys as the given one,
+   * if there is one.
+   */
+  private static String sameKeys(MongoCollection<Document> collection, IndexModel index) {
+    String keys = keySignature(toBsonDocument(index), false);
+    for (Document existing : collection.listIndexes()) {
+      if (keys.equals(keySignature(existingKeys(existing), false))) {
+        return existing.getString("name");
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Find (and log) every index that exists in one of our collections
+   * but that wasn't declared for that collection.
+   *
+   * @return the undeclared indexes, as `collection.indexName` strings
+   */
+  public List<String> findUndeclaredIndexes() {
+    List<String> undeclared = new ArrayList<>();
+    for (Map.Entry<String, List<IndexModel>> entry : declared.entrySet()) {
+      Set<String> wanted = entry.getValue().stream()
+          .map(IndexManager::signature)
+          .collect(Collectors.toSet());
+      for (Document existing : database.getCollection(entry.getKey()).listIndexes()) {
+        String name = existing.getString("name");
+        if (!ID_INDEX_NAME.equals(name) && !wanted.contains(signature(existing))) {
+          LOGGER.warn("Index {}.{} exists but is not declared by any controller", entry.getKey(), name);
+          undeclared.add(entry.getKey() + "." + name);
+        }
+      }
+    }
+    return undeclared;
+  }
+
+  private Map<String, List<IndexModel>> findMissingIndexes() {
+    Map<String, List<IndexModel>> missing = new LinkedHashMap<>();
+    for (Map.Entry<String, List<IndexModel>> entry : declared.entrySet()) {
+      Set<String> existing = new HashSet<>();
+      for (Document index : database.getCollection(entry.getKey()).listIndexes()) {
+        existing.add(signature(index));
+      }
+      List<IndexModel> toBuild = entry.getValue().stream()
+          .filter(index -> !existing.contains(signature(index)))
+          .collect(Collectors.toList());
+      if (!toBuild.isEmpty()) {
+        missing.put(entry.getKey(), toBuild);
+      }
+    }
+    return missing;
+  }
+
+  private int declaredCount() {
+    return declared.values().stream().mapToInt(List::size).sum();
+  }
+
+  private static boolean isUnique(IndexModel index) {
+    return index.getOptions().isUnique();
+  }
+
+  /**
+   * A copy of an index's options, to build it in the background. Servers
+   * before 4.2 otherwise lock the collection for the whole build; newer
+   * servers ignore this and always build "hybrid" indexes. (It's a copy
+   * because the `IndexModel`s are the controllers' shared constants.)
+   */
+  private static IndexOptions backgroundOptions(IndexModel index) {
+    IndexOptions options = index.getOptions();
+    Long expireAfterSeconds = options.getExpireAfter(TimeUnit.SECONDS);
+    IndexOptions copy = new IndexOptions()
+        .background(true)
+        .unique(options.isUnique())
+        .name(options.getName())
+        .sparse(options.isSparse())
+        .version(options.getVersion())
+        .weights(options.getWeights())
+        .defaultLanguage(options.getDefaultLanguage())
+        .languageOverride(options.getLanguageOverride())
+        .textVersion(options.getTextVersion())
+        .sphereVersion(options.getSphereVersion())
+        .bits(options.getBits())
+        .min(options.getMin())
+        .max(options.getMax())
+        .storageEngine(options.getStorageEngine())
+        .partialFilterExpression(options.getPartialFilterExpression())
+        .collation(options.getCollation())
+        .wildcardProjection(options.getWildcardProjection())
+        .hidden(options.isHidden());
+    if (expireAfterSeconds != null) {
+      copy.expireAfter(expireAfterSeconds, TimeUnit.SECONDS);
+    }
+    return copy;
+  }
+
+  private static String describe(IndexModel index) {
+    String name = index.getOptions().getName();
+    return name != null ? name : toBsonDocument(index).toJson();
+  }
+
+  private static BsonDocument toBsonDocument(IndexModel index) {
+    return index.getKeys().toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+  }
+
+  private static String signature(IndexModel index) {
+    return keySignature(toBsonDocument(index), isUnique(index));
+  }
+
+  private static String signature(Document existing) {
+    return keySignature(existingKeys(existing), Boolean.TRUE.equals(existing.get("unique")));
+  }
+
+  private static BsonDocument existingKeys(Document index) {
+    return index.get("key", Document.class)
+        .toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+  }
+
+  /**
+   * Turn an index key pattern into a string that is the same for
+   * "equivalent" patterns. The mongo shell stores `{ age: 1 }` with a
+   * double `1.0`, while the Java driver uses an int `1`, so we can't
+   * just compare the documents directly. Field order matters for
+   * compound indexes, so that is kept. A unique index's signature is
+   * different from a plain one's with the same keys.
+   */
+  private static String keySignature(BsonDocument keys, boolean unique) {
+    StringBuilder signature = new StringBuilder();
+    for (Map.Entry<String, BsonValue> key : keys.entrySet()) {
+      BsonValue direction = key.getValue();
+      signature.append(key.getKey()).append(':');
+      if (direction.isNumber()) {
+        signature.append(direction.asNumber().doubleValue() < 0 ? "-1" : "1");
+      } else {
+        signature.append(direction.asString().getValue());
+      }
+      signature.append(',');
+    }
+    if (unique) {
+      signature.append("unique");
+    }
+    return signature.toString();
+  }
+}
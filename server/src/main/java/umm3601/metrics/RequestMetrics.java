@@ -0,0 +1,296 @@
+package umm3601.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.eclipse.jetty.server.Request;
+
+import io.javalin.core.event.HandlerMetaInfo;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+
+/**
+ * Per-route request metrics, reported at `/api/metrics` in Prometheus'
+ * text format: how long requests take (the 50th, 90th, 99th and 99.9th
+ * percentiles, from an HdrHistogram), how many there are (by status
+ * class) and how many fail, and how big the responses are.
+ *
+ * Recording is on every request's path, so it mustn't change what it
+ * measures: it takes no locks, and allocates nothing once a route has
+ * been seen. A request's route is found with two map lookups, its
+ * counters are `LongAdder`s, and its latency and size go into
+ * HdrHistogram `Recorder`s, whose writers are wait-free. Only a scrape
+ * does any real work, folding what has been recorded since the last
+ * one into each route's running totals.
+ *
+ * Register `start` as a `before` handler, `finish` as the request
+ * logger, and `register` as a `handlerAdded` listener; routes are set
+ * up as they're added, so even ones that haven't been used yet are
+ * reported, and a request is only put down to a route that was added.
+ */
+public class RequestMetrics {
+
+  /**
+   * The content type of Prometheus' text format.
+   */
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  // The route of requests that didn't match one, e.g., 404s.
+  private static final String NO_ROUTE = "(no route)";
+
+  // Latencies are recorded in microseconds, up to a minute, and sizes
+  // in bytes, up to a gigabyte, both to within 1%.
+  private static final long MAX_MICROS = TimeUnit.MINUTES.toMicros(1);
+  private static final long MAX_BYTES = 1024L * 1024 * 1024;
+  private static final int SIGNIFICANT_DIGITS = 2;
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+  private static final double PERCENT = 100;
+  private static final double MICROS_PER_SECOND = 1e6;
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final int HTTP_STATUS_CLASS = 100;
+  private static final int HTTP_SERVER_ERROR = 500;
+
+  /**
+   * When the current thread's request started.
+   */
+  private static final class Timing {
+    private Object request;
+    private long start;
+  }
+
+  /**
+   * A latency or size distribution: a recorder for the request threads,
+   * and the running total a scrape adds what they recorded to.
+   */
+  private static final class Distribution {
+    private final long max;
+    private final Recorder recorder;
+    private final LongAdder sum = new LongAdder();
+    // Guarded by `this`; only scrapes touch these.
+    private final Histogram total;
+    private Histogram interval;
+
+    Distribution(long max) {
+      this.max = max;
+      recorder = new Recorder(max, SIGNIFICANT_DIGITS);
+      total = new Histogram(max, SIGNIFICANT_DIGITS);
+    }
+
+    void record(long value, long sumValue) {
+      recorder.recordValue(Math.max(0, Math.min(value, max)));
+      sum.add(sumValue);
+    }
+
+    synchronized Histogram snapshot() {
+      interval = recorder.getIntervalHistogram(interval);
+      total.add(interval);
+      return total;
+    }
+  }
+
+  /**
+   * Everything we know about one route.
+   */
+  private static final class RouteMetrics {
+    private final String labels;
+    private final LongAdder[] statuses = new LongAdder[STATUS_CLASSES.length];
+    private final LongAdder errors = new LongAdder();
+    // Latency in microseconds, with the sum in nanoseconds.
+    private final Distribution latency = new Distribution(MAX_MICROS);
+    // Response size in bytes.
+    private final Distribution size = new Distribution(MAX_BYTES);
+
+    RouteMetrics(String method, String route) {
+      labels = "method=\"" + escape(method) + "\",route=\"" + escape(route) + "\"";
+      for (int i = 0; i < statuses.length; i++) {
+        statuses[i] = new LongAdder();
+      }
+    }
+  }
+
+  // Route, then method.
+  private final Map<String, Map<String, RouteMetrics>> routes = new ConcurrentHashMap<>();
+  private final ThreadLocal<Timing> timings = ThreadLocal.withInitial(Timing::new);
+
+  /**
+   * Start reporting on a route. Register this as a `handlerAdded`
+   * listener, so every route is reported from the start.
+   *
+   * @param handler the route that was added
+   */
+  public void register(HandlerMetaInfo handler) {
+    if (handler.getHttpMethod().isHttpMethod()) {
+      route(handler.getHttpMethod().name(), handler.getPath());
+    }
+  }
+
+  /**
+   * Note when a request starts. Register this as a `before` handler.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void start(Context ctx) {
+    Timing timing = timings.get();
+    timing.request = ctx.req;
+    timing.start = System.nanoTime();
+  }
+
+  /**
+   * Record a finished request. Register this as the request logger,
+   * which Javalin calls once the response has been written.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param executionTimeMs how long Javalin says the request took, in
+   *  milliseconds; only used if `start` wasn't called on this thread
+   */
+  public void finish(Context ctx, Float executionTimeMs) {
+    Timing timing = timings.get();
+    long nanos;
+    if (timing.request == ctx.req) {
+      nanos = System.nanoTime() - timing.start;
+    } else {
+      // E.g., an asynchronous request that finished on another thread.
+      nanos = (long) (executionTimeMs * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    timing.request = null;
+    record(ctx.method(), routeOf(ctx), ctx.status(), nanos, bytesWritten(ctx));
+  }
+
+  /**
+   * The route a finished request matched, or `null` if it didn't match
+   * one. Javalin's idea of the "endpoint" path is just the last handler
+   * that wasn't an `after` handler, so for a request that no route
+   * matched it's the `before` handler's `*` (and if that was the last
+   * handler of all, asking for it throws). So we only believe it if
+   * it's one of the routes `register` was told about.
+   */
+  private String routeOf(Context ctx) {
+    if (ctx.handlerType() == HandlerType.BEFORE) {
+      return null;
+    }
+    String path = ctx.endpointHandlerPath();
+    Map<String, RouteMetrics> methods = path == null ? null : routes.get(path);
+    return methods != null && methods.containsKey(ctx.method()) ? path : null;
+  }
+
+  /**
+   * Record a finished request.
+   *
+   * @param method the request's HTTP method
+   * @param route the path of the route it matched, e.g.,
+   *  `/api/products/{id}` (`null` or empty if it didn't match one)
+   * @param status the response status
+   * @param nanos how long it took, in nanoseconds
+   * @param bytes how big the response body was
+   */
+  void record(String method, String route, int status, long nanos, long bytes) {
+    RouteMetrics metrics = route(method, route == null || route.isEmpty() ? NO_ROUTE : route);
+    int statusClass = Math.min(Math.max(status / HTTP_STATUS_CLASS, 1), STATUS_CLASSES.length);
+    metrics.statuses[statusClass - 1].increment();
+    if (status >= HTTP_SERVER_ERROR) {
+      metrics.errors.increment();
+    }
+    metrics.latency.record(TimeUnit.NANOSECONDS.toMicros(nanos), nanos);
+    metrics.size.record(bytes, bytes);
+  }
+
+  private RouteMetrics route(String method, String route) {
+    Map<String, RouteMetrics> methods = routes.get(route);
+    RouteMetrics metrics = methods == null ? null : methods.get(method);
+    if (metrics == null) {
+      metrics = routes.computeIfAbsent(route, key -> new ConcurrentHashMap<>())
+          .computeIfAbsent(method, key -> new RouteMetrics(method, route));
+    }
+    return metrics;
+  }
+
+  private static long bytesWritten(Context ctx) {
+    Request request = Request.getBaseRequest(ctx.req);
+    return request == null ? 0 : request.getResponse().getHttpOutput().getWritten();
+  }
+
+  /**
+   * Respond with every route's metrics, in Prometheus' text format.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getMetrics(Context ctx) {
+    ctx.contentType(CONTENT_TYPE);
+    ctx.result(scrape());
+  }
+
+  /**
+   * Every route's metrics, in Prometheus' text format.
+   *
+   * @return the metrics
+   */
+  public String scrape() {
+    // Sorted, so each scrape lists the routes in the same order.
+    Map<String, RouteMetrics> sorted = new TreeMap<>();
+    routes.forEach((route, methods) -> methods.forEach((method, metrics) -> {
+      sorted.put(route + " " + method, metrics);
+    }));
+
+    StringBuilder out = new StringBuilder();
+    header(out, "http_request_duration_seconds", "summary", "How long requests take to handle.");
+    for (RouteMetrics metrics : sorted.values()) {
+      Histogram latency = metrics.latency.snapshot();
+      for (double quantile : QUANTILES) {
+        sample(out, "http_request_duration_seconds", metrics.labels + ",quantile=\"" + quantile + "\"",
+            latency.getValueAtPercentile(quantile * PERCENT) / MICROS_PER_SECOND);
+      }
+      sample(out, "http_request_duration_seconds_sum", metrics.labels, metrics.latency.sum.sum() / NANOS_PER_SECOND);
+      sample(out, "http_request_duration_seconds_count", metrics.labels, latency.getTotalCount());
+    }
+
+    header(out, "http_requests_total", "counter", "Requests handled, by status class.");
+    for (RouteMetrics metrics : sorted.values()) {
+      for (int i = 0; i < STATUS_CLASSES.length; i++) {
+        sample(out, "http_requests_total", metrics.labels + ",status=\"" + STATUS_CLASSES[i] + "\"",
+            metrics.statuses[i].sum());
+      }
+    }
+
+    header(out, "http_request_errors_total", "counter", "Requests that failed with a server error (5xx).");
+    for (RouteMetrics metrics : sorted.values()) {
+      sample(out, "http_request_errors_total", metrics.labels, metrics.errors.sum());
+    }
+
+    header(out, "http_response_size_bytes", "summary", "How big response bodies are, as sent.");
+    for (RouteMetrics metrics : sorted.values()) {
+      Histogram size = metrics.size.snapshot();
+      for (double quantile : QUANTILES) {
+        sample(out, "http_response_size_bytes", metrics.labels + ",quantile=\"" + quantile + "\"",
+            size.getValueAtPercentile(quantile * PERCENT));
+      }
+      sample(out, "http_response_size_bytes_sum", metrics.labels, metrics.size.sum.sum());
+      sample(out, "http_response_size_bytes_count", metrics.labels, size.getTotalCount());
+    }
+    return out.toString();
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, double value) {
+    out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, long value) {
+    out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,122 @@
+package umm3601.paging;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.or;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonParseException;
+import org.bson.types.ObjectId;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * An opaque keyset ("seek") pagination cursor.
+ *
+ * A cursor remembers the sort key value and the `_id` of the last
+ * document on a page. The next page is then everything that sorts
+ * strictly after that (value, `_id`) pair, which MongoDB can answer
+ * with a single range scan over a `(sortField, _id)` index instead of
+ * skipping over all of the earlier pages.
+ *
+ * Clients should treat the encoded form as an opaque string and just
+ * hand it back in the `after` query parameter.
+ */
+public final class PageCursor {
+
+  private static final String VALUE_KEY = "v";
+  private static final String ID_KEY = "id";
+  private static final String ID_FIELD = "_id";
+
+  private final Object sortValue;
+  private final ObjectId id;
+
+  /**
+   * Create a cursor positioned just after the given document.
+   *
+   * @param sortValue the value of the sort field in the last document
+   *  on the page (may be `null` if the document doesn't have that field)
+   * @param id the `_id` of the last document on the page
+   */
+  public PageCursor(Object sortValue, ObjectId id) {
+    this.sortValue = sortValue;
+    this.id = id;
+  }
+
+  /**
+   * Decode a cursor that was previously produced by `encode()`.
+   *
+   * @param token the opaque cursor string from the client
+   * @return the decoded cursor
+   * @throws BadRequestResponse if the token isn't a cursor we produced
+   */
+  public static PageCursor decode(String token) {
+    try {
+      String json = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+      Document doc = Document.parse(json);
+      ObjectId id = doc.getObjectId(ID_KEY);
+      if (id == null) {
+        throw new BadRequestResponse("The `after` cursor is missing its document id.");
+      }
+      return new PageCursor(doc.get(VALUE_KEY), id);
+    } catch (IllegalArgumentException | JsonParseException | ClassCastException e) {
+      throw new BadRequestResponse("The `after` cursor wasn't a legal page cursor.");
+    }
+  }
+
+  /**
+   * Encode this cursor as a URL-safe opaque string.
+   *
+   * @return the encoded cursor
+   */
+  public String encode() {
+    String json = new Document(VALUE_KEY, sortValue).append(ID_KEY, id).toJson();
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Build the filter that selects every document that sorts strictly
+   * after this cursor, when sorting by `sortField` and then by `_id`
+   * in the same direction.
+   *
+   * MongoDB sorts `null`/missing values before everything else, so they
+   * come first in an ascending sort and last in a descending one, and
+   * range operators like `$lt` never match them. Both a cursor whose
+   * sort value is `null` and a descending one that hasn't reached the
+   * `null`s yet have to handle that case themselves.
+   *
+   * @param sortField the name of the field the page is sorted by
+   * @param descending whether the page is sorted in descending order
+   * @return a filter for the documents after this cursor
+   */
+  public Bson after(String sortField, boolean descending) {
+    Bson idAfter = descending ? lt(ID_FIELD, id) : gt(ID_FIELD, id);
+    if (ID_FIELD.equals(sortField)) {
+      return idAfter;
+    }
+    if (sortValue == null) {
+      Bson sameKey = and(eq(sortField, null), idAfter);
+      return descending ? sameKey : or(sameKey, ne(sortField, null));
+    }
+    Bson sameKey = and(eq(sortField, sortValue), idAfter);
+    if (descending) {
+      return or(lt(sortField, sortValue), sameKey, eq(sortField, null));
+    }
+    return or(gt(sortField, sortValue), sameKey);
+  }
+
+  public Object getSortValue() {
+    return sortValue;
+  }
+
+  public ObjectId getId() {
+    return id;
+  }
+}
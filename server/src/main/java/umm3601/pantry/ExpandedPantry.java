@@ -0,0 +1,16 @@
+package umm3601.pantry;
+
+import umm3601.product.Product;
+
+/**
+ * A pantry item together with the product it is an instance of, as
+ * returned by `/api/pantry/expanded`.
+ */
+// The fields need to be public for Jackson (see `Pantry`).
+@SuppressWarnings({"VisibilityModifier"})
+public class ExpandedPantry extends Pantry {
+
+  // The product whose `_id` is this item's `prodID`, or `null` if there
+  // is no such product (e.g., it has been deleted).
+  public Product product;
+}
@@ -0,0 +1,171 @@
+package umm3601.pantry;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.type;
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * When pantry items expire: the day they were bought plus the lifespan
+ * (in days) of their product.
+ *
+ * Each pantry item stores this as `expiresAt`, so that finding the
+ * items that expire soon is a range scan of the `expiresAt` index,
+ * whose cost depends on how many items it finds rather than on the
+ * size of the pantry. Items without a purchase date, or whose product
+ * is missing or has no lifespan (a lifespan of 0), never expire and
+ * have a `null` `expiresAt`.
+ *
+ * The stored dates have to be kept up to date as things change: when an
+ * item is added or its date or product changes (see `PantryController`),
+ * and when a product's lifespan changes (`updateForProduct()`).
+ */
+public final class ExpiryDates {
+
+  /**
+   * The field of a pantry item holding when it expires.
+   */
+  public static final String EXPIRES_AT_KEY = "expiresAt";
+
+  /**
+   * How many items `backfill()` updates at a time.
+   */
+  public static final int BATCH_SIZE = 1000;
+
+  private static final String DATE_KEY = "date";
+  private static final String PROD_KEY = "prodID";
+  private static final String LIFESPAN_KEY = "lifespan";
+
+  private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ExpiryDates.class);
+
+  private ExpiryDates() {
+  }
+
+  /**
+   * When an item bought on the given day expires.
+   *
+   * @param bought when the item was bought (may be `null`)
+   * @param lifespan how many days the product keeps (may be `null`, if
+   *  there's no such product)
+   * @return when the item expires, or `null` if it never does
+   */
+  public static Date expiresAt(Date bought, Integer lifespan) {
+    if (bought == null || lifespan == null || lifespan <= 0) {
+      return null;
+    }
+    return new Date(bought.getTime() + lifespan * DAY_MILLIS);
+  }
+
+  /**
+   * Recompute `expiresAt` for every item of a product whose lifespan has
+   * changed (or which has been added or deleted), with a single update
+   * that does the date arithmetic in the database.
+   *
+   * @param pantry the pantry collection
+   * @param prodID the product's id
+   * @param lifespan the product's new lifespan, or `null` if it was deleted
+   * @return how many items changed
+   */
+  public static long updateForProduct(MongoCollection<Document> pantry, String prodID, Integer lifespan) {
+    if (lifespan == null || lifespan <= 0) {
+      return pantry.updateMany(eq(PROD_KEY, prodID), Updates.set(EXPIRES_AT_KEY, null)).getModifiedCount();
+    }
+    // `$add`ing milliseconds to a date gives a date; items without a
+    // date are left alone, since they never expire anyway.
+    return pantry.updateMany(
+        and(eq(PROD_KEY, prodID), type(DATE_KEY, BsonType.DATE_TIME)),
+        List.of(Updates.set(EXPIRES_AT_KEY,
+            new Document("$add", List.of("$" + DATE_KEY, lifespan * DAY_MILLIS)))))
+        .getModifiedCount();
+  }
+
+  /**
+   * Fill in `expiresAt` for every pantry item that doesn't have it yet
+   * (e.g., the seed data, or items from before we stored it).
+   *
+   * The items are read with only `date` and `prodID` projected, in
+   * batches; the products of each batch are looked up with one `$in`
+   * query, and the updates are sent as one unordered bulk write. Once
+   * every item has the field (even if only `null`) the query finds
+   * nothing, so this is cheap to run at every startup.
+   *
+   * This needs real dates, so run it after `PurchaseDates.migrate()`.
+   *
+   * @param pantry the pantry collection
+   * @param products the products collection
+   * @return how many items were updated
+   */
+  public static long backfill(MongoCollection<Document> pantry, MongoCollection<Document> products) {
+    long updated = 0;
+    List<Document> batch = new ArrayList<>(BATCH_SIZE);
+    try (MongoCursor<Document> cursor = pantry
+        .find(exists(EXPIRES_AT_KEY, false))
+        .projection(include(DATE_KEY, PROD_KEY))
+        .batchSize(BATCH_SIZE)
+        .iterator()) {
+      while (cursor.hasNext()) {
+        batch.add(cursor.next());
+        if (batch.size() == BATCH_SIZE) {
+          updated += backfillBatch(pantry, products, batch);
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      updated += backfillBatch(pantry, products, batch);
+    }
+    if (updated > 0) {
+      LOGGER.info("Filled in {} for {} pantry items", EXPIRES_AT_KEY, updated);
+    }
+    return updated;
+  }
+
+  private static long backfillBatch(MongoCollection<Document> pantry, MongoCollection<Document> products,
+      List<Document> batch) {
+    Set<ObjectId> productIds = new HashSet<>();
+    for (Document item : batch) {
+      String prodID = item.getString(PROD_KEY);
+      if (prodID != null && ObjectId.isValid(prodID)) {
+        productIds.add(new ObjectId(prodID));
+      }
+    }
+    Map<String, Integer> lifespans = new HashMap<>();
+    for (Document product : products.find(in("_id", productIds)).projection(include(LIFESPAN_KEY))) {
+      lifespans.put(product.getObjectId("_id").toHexString(), product.getInteger(LIFESPAN_KEY));
+    }
+
+    List<WriteModel<Document>> writes = new ArrayList<>(batch.size());
+    for (Document item : batch) {
+      Object date = item.get(DATE_KEY);
+      Date expiresAt = expiresAt(date instanceof Date ? (Date) date : null, lifespans.get(item.getString(PROD_KEY)));
+      writes.add(new UpdateOneModel<>(eq("_id", item.get("_id")), Updates.set(EXPIRES_AT_KEY, expiresAt)));
+    }
+    batch.clear();
+    return pantry.bulkWrite(writes, new BulkWriteOptions().ordered(false)).getModifiedCount();
+  }
+}
@@ -0,0 +1,132 @@
+package umm3601.pantry;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.type;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+
+import org.bson.BsonType;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How many pantry items there are of each product, kept in a collection
+ * of its own (one document per `prodID`, `{_id: prodID, count: n}`) so
+ * that reading a product's count is a lookup by `_id` rather than a
+ * count over the whole pantry.
+ *
+ * `PantryController` adjusts the counts right after each insert, delete,
+ * or change of product, with a single `$inc`. The database applies
+ * those atomically, so concurrent adds and deletes can't lose each
+ * other's updates the way read-modify-write would. Counts that reach
+ * zero are removed, so the collection only lists products we have.
+ *
+ * The count and the item are two separate writes, so a crash between
+ * them could leave a count off by one; `rebuild()` recomputes every
+ * count from the pantry, and runs at startup.
+ */
+public class InventoryCounts {
+
+  /**
+   * The name of the MongoDB collection holding the counts.
+   */
+  public static final String COLLECTION_NAME = "inventory";
+
+  private static final String PROD_KEY = "prodID";
+  private static final String COUNT_KEY = "count";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(InventoryCounts.class);
+
+  private final MongoCollection<Document> counts;
+
+  /**
+   * Construct the counts kept in the given database.
+   *
+   * @param database the database containing the counts
+   */
+  public InventoryCounts(MongoDatabase database) {
+    counts = database.getCollection(COLLECTION_NAME);
+  }
+
+  /**
+   * Change the count for a product.
+   *
+   * @param prodID the product's id (nothing happens if this is `null`)
+   * @param delta how many items were added (or, if negative, removed)
+   */
+  public void add(String prodID, int delta) {
+    if (prodID == null || delta == 0) {
+      return;
+    }
+    Document count = counts.findOneAndUpdate(eq("_id", prodID), Updates.inc(COUNT_KEY, delta),
+        new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+    if (toCount(count) == 0) {
+      // Only removes the count if no one has changed it since. A count
+      // can dip below zero for a moment (an item deleted before the
+      // count for its insert arrives), so we remove exactly zero, never
+      // "zero or less", which would throw the pending decrement away.
+      counts.deleteOne(and(eq("_id", prodID), eq(COUNT_KEY, 0)));
+    }
+  }
+
+  /**
+   * How many items of a product there are.
+   *
+   * @param prodID the product's id
+   * @return the count (0 if there are none)
+   */
+  public long count(String prodID) {
+    Document count = counts.find(eq("_id", prodID)).first();
+    return count == null ? 0 : Math.max(0, toCount(count));
+  }
+
+  /**
+   * Every product we have any of, and how many.
+   *
+   * @return a `{prodID, count}` map for each product, in `prodID` order
+   */
+  public List<Map<String, Object>> all() {
+    List<Map<String, Object>> all = new ArrayList<>();
+    for (Document count : counts.find(gt(COUNT_KEY, 0)).sort(Sorts.ascending("_id"))) {
+      all.add(Map.of(PROD_KEY, count.getString("_id"), COUNT_KEY, toCount(count)));
+    }
+    return all;
+  }
+
+  private static long toCount(Document count) {
+    return ((Number) count.get(COUNT_KEY)).longValue();
+  }
+
+  /**
+   * Recompute every count from the pantry, replacing the old counts in
+   * one step (with `$out`). Don't run this while the pantry is changing;
+   * it's meant for startup.
+   *
+   * @param database the database containing the pantry and the counts
+   * @return how many products have items
+   */
+  public static long rebuild(MongoDatabase database) {
+    database.getCollection(PantryController.COLLECTION_NAME).aggregate(List.of(
+        Aggregates.match(type(PROD_KEY, BsonType.STRING)),
+        Aggregates.group("$" + PROD_KEY, Accumulators.sum(COUNT_KEY, 1)),
+        Aggregates.out(COLLECTION_NAME)))
+        .toCollection();
+    long products = database.getCollection(COLLECTION_NAME).countDocuments();
+    LOGGER.info("Counted the pantry items of {} products", products);
+    return products;
+  }
+}
@@ -1,5 +1,11 @@
 package umm3601.pantry;
 
+import java.util.Date;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
 import org.mongojack.Id;
 import org.mongojack.ObjectId;
 
@@ -30,6 +36,30 @@ public class Pantry {
 
   public String prodID;
   public String name;
-  public String date;
+
+  // The normalized (lowercase, unaccented) form of `name`, which
+  // searches by name use; see `TextNormalizer`. The server fills
+  // this in, so clients never need to send it.
+  public String nameNormalized;
+
+  // When the item was bought. This is a BSON date in the database (so
+  // it can be range-queried and sorted; see `PurchaseDates`), and a
+  // `yyyy-MM-dd` string in JSON.
+  @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd", timezone = "UTC")
+  @JsonDeserialize(using = PurchaseDates.Deserializer.class)
+  public Date date;
+
   public String notes;
+
+  // When the item expires: `date` plus the lifespan of its product, or
+  // `null` if it never does. The server fills this in and keeps it up to
+  // date; see `ExpiryDates`.
+  @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd", timezone = "UTC")
+  public Date expiresAt;
+
+  // A purchase date that couldn't be read when dates were converted
+  // from strings, kept as it was so it can be fixed by hand; see
+  // `PurchaseDates.migrate()`. Left out of the JSON when there isn't one.
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public String dateLegacy;
 }
@@ -2,17 +2,28 @@ package umm3601.pantry;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Filters.regex;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
 
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.regex.Pattern;
+import java.util.Set;
 
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.Sorts;
-import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.model.Updates;
 
 import org.bson.Document;
 import org.bson.UuidRepresentation;
@@ -24,6 +35,20 @@ import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
+import umm3601.cache.DocumentCache;
+import umm3601.cache.ETags;
+import umm3601.events.ChangeBus;
+import umm3601.events.ChangeEvent;
+import umm3601.patch.PartialUpdate;
+import umm3601.patch.PatchRules;
+import umm3601.product.Product;
+import umm3601.product.ProductController;
+import umm3601.projection.FieldSelection;
+import umm3601.sorting.SortPlanner;
+import umm3601.streaming.JsonStreaming;
+import umm3601.text.NormalizedFieldMigration;
+import umm3601.text.TextNormalizer;
+import umm3601.validation.BodySchema;
 
 /**
  * Controller that manages requests for info about pantrys.
@@ -33,21 +58,239 @@ public class PantryController {
   private static final String DATE_KEY = "date";
   private static final String NOTES_KEY = "notes";
   private static final String NAME_KEY = "name";
+  private static final String NAME_NORMALIZED_KEY = "nameNormalized";
   private static final String PROD_KEY = "prodID";
+  private static final String LIMIT_KEY = "limit";
+  private static final String FROM_KEY = "from";
+  private static final String TO_KEY = "to";
+  private static final String WITHIN_DAYS_KEY = "withinDays";
+  private static final String INCLUDE_EXPIRED_KEY = "includeExpired";
+
+  // How far ahead `/api/pantry/expiring` looks, unless told otherwise,
+  // and how far it can be told to.
+  private static final int DEFAULT_WITHIN_DAYS = 7;
+  private static final int MAX_WITHIN_DAYS = 3650;
+
+  // The most items `/api/pantry/expanded` returns at once, and how many
+  // items' products it looks up with each query.
+  private static final int MAX_EXPANDED_LIMIT = 1000;
+  private static final int EXPAND_BATCH_SIZE = 500;
+
+  /**
+   * The name of the MongoDB collection holding the pantry items.
+   */
+  public static final String COLLECTION_NAME = "pantry";
+
+  /**
+   * The indexes that the queries in this controller rely on. `Server.main`
+   * hands these to an `IndexManager`, which creates any that are missing.
+   */
+  public static final List<IndexModel> INDEXES = List.of(
+      // These serve sorting (see `SORTS`), with `_id` to break ties, as
+      // well as name searches and `from`/`to` date ranges.
+      new IndexModel(Indexes.ascending(NAME_NORMALIZED_KEY, "_id")),
+      new IndexModel(Indexes.ascending(DATE_KEY, "_id")),
+      new IndexModel(Indexes.ascending(ExpiryDates.EXPIRES_AT_KEY, "_id")),
+      new IndexModel(Indexes.ascending(NAME_KEY, "_id")),
+      // These serve filtering by `prodID`, by itself (sorted by name) or
+      // with a date range.
+      new IndexModel(Indexes.ascending(PROD_KEY, NAME_KEY, "_id")),
+      new IndexModel(Indexes.ascending(PROD_KEY, DATE_KEY, "_id")));
+
+  // What lists of pantry items can be sorted by, given their filters.
+  private static final SortPlanner SORTS = new SortPlanner(INDEXES, NAME_KEY, DATE_KEY, ExpiryDates.EXPIRES_AT_KEY)
+      .searchedBy(NAME_KEY, NAME_NORMALIZED_KEY);
+
+  // The fields a client can pick with `fields=`. These documents are
+  // all small, so the list summary is just every field.
+  private static final FieldSelection FIELDS = FieldSelection.of(Pantry.class);
+
+  // What a new pantry item has to look like.
+  private static final BodySchema<Pantry> SCHEMA = BodySchema.of(Pantry.class)
+      .text(NAME_KEY, item -> item.name, "Pantry must have a non-empty pantry name")
+      .text(PROD_KEY, item -> item.prodID, "Pantry must have a non-empty product id");
+
+  // What `PATCH /api/pantry/{id}` may change, and the rules the new
+  // values must follow (the same as for a new pantry item).
+  private static final PatchRules PATCH_RULES = new PatchRules()
+      .text(NAME_KEY, name -> name.length() > 0, "Pantry must have a non-empty pantry name")
+      .derive(NAME_KEY, NAME_NORMALIZED_KEY, name -> TextNormalizer.normalize((String) name))
+      .text(PROD_KEY, prodID -> prodID.length() > 0, "Pantry must have a non-empty product id")
+      .optionalDate(DATE_KEY, PurchaseDates::parse)
+      .optionalText(NOTES_KEY, "Pantry's notes must not be empty");
 
   private final JacksonMongoCollection<Pantry> pantryCollection;
 
+  // The same collection, for updates to `expiresAt` (see `ExpiryDates`).
+  private final MongoCollection<Document> pantryDocuments;
+
+  // The same collection, read as items that have room for their product.
+  private final JacksonMongoCollection<ExpandedPantry> expandedPantryCollection;
+
+  // Where we announce every insert and delete; its per-collection
+  // versions are also what our ETags are made from.
+  private final ChangeBus changes;
+
+  // Single-pantry lookups (without `fields=`) are served from here when we can.
+  private final DocumentCache<Pantry> pantryCache =
+      new DocumentCache<>(COLLECTION_NAME, Pantry.class);
+
+  // The products that pantry items refer to, for `/api/pantry/expanded`.
+  // Entries are dropped when the product changes; see `onChange`.
+  private final JacksonMongoCollection<Product> productCollection;
+  private final DocumentCache<Product> productCache =
+      new DocumentCache<>("pantryProducts", Product.class);
+
+  // How many items of each product there are, for `/api/inventory`.
+  // Every write here that adds, removes, or moves an item updates it.
+  private final InventoryCounts inventory;
+
   /**
    * Construct a controller for pantrys.
    *
    * @param database the database containing pantry data
    */
   public PantryController(MongoDatabase database) {
+    this(database, new ChangeBus());
+  }
+
+  /**
+   * Construct a controller for pantrys that announces its changes.
+   *
+   * @param database the database containing pantry data
+   * @param changes where to publish every insert and delete
+   */
+  public PantryController(MongoDatabase database, ChangeBus changes) {
+    this.changes = changes;
     pantryCollection = JacksonMongoCollection.builder().build(
         database,
-        "pantry",
+        COLLECTION_NAME,
         Pantry.class,
         UuidRepresentation.STANDARD);
+    pantryDocuments = database.getCollection(COLLECTION_NAME);
+    expandedPantryCollection = JacksonMongoCollection.builder().build(
+        database,
+        COLLECTION_NAME,
+        ExpandedPantry.class,
+        UuidRepresentation.STANDARD);
+    productCollection = JacksonMongoCollection.builder().build(
+        database,
+        ProductController.COLLECTION_NAME,
+        Product.class,
+        UuidRepresentation.STANDARD);
+    inventory = new InventoryCounts(database);
+    changes.subscribe(this::onChange);
+  }
+
+  private void onChange(ChangeEvent event) {
+    if (!event.getCollection().equals(ProductController.COLLECTION_NAME)) {
+      return;
+    }
+    if (event.getType() != ChangeEvent.Type.INSERTED) {
+      productCache.invalidate(new ObjectId(event.getId()));
+    }
+    // The items of a product that's been added, deleted, or given a new
+    // lifespan now expire at a different time (or not at all).
+    Integer before = lifespanOf((Product) event.getPrevious());
+    Integer after = lifespanOf((Product) event.getDocument());
+    if (!Objects.equals(before, after)) {
+      updateExpiryDates(event.getId(), after);
+    }
+  }
+
+  /**
+   * Recompute `expiresAt` for a product's items, and announce each item
+   * that changed, so that `/api/changes` and `/api/sync` clients see the
+   * new dates too. A product rarely has many items, so reading them
+   * before and after the update is cheap.
+   */
+  private void updateExpiryDates(String prodID, Integer lifespan) {
+    Map<String, Pantry> before = new HashMap<>();
+    for (Pantry item : pantryCollection.find(eq(PROD_KEY, prodID))) {
+      before.put(item._id, item);
+    }
+    if (ExpiryDates.updateForProduct(pantryDocuments, prodID, lifespan) == 0) {
+      return;
+    }
+    // Cached items have the old `expiresAt`.
+    pantryCache.invalidateAll();
+    boolean announced = false;
+    for (Pantry item : pantryCollection.find(eq(PROD_KEY, prodID))) {
+      Pantry previous = before.get(item._id);
+      if (previous != null && !Objects.equals(previous.expiresAt, item.expiresAt)) {
+        changes.publish(ChangeEvent.updated(COLLECTION_NAME, item._id, previous, item));
+        announced = true;
+      }
+    }
+    // If the items changed under us (e.g., one was added between the
+    // reads), there may be nothing to announce, but the ETags still
+    // have to change.
+    if (!announced) {
+      changes.touch(COLLECTION_NAME);
+    }
+  }
+
+  private static Integer lifespanOf(Product product) {
+    return product == null ? null : product.lifespan;
+  }
+
+  /**
+   * When an item bought on `date` of the product `prodID` expires.
+   */
+  private Date expiresAt(Date date, String prodID) {
+    if (date == null || prodID == null || !ObjectId.isValid(prodID)) {
+      return null;
+    }
+    Product product = productCache.get(new ObjectId(prodID),
+        key -> productCollection.find(eq("_id", key)).first());
+    return ExpiryDates.expiresAt(date, lifespanOf(product));
+  }
+
+  /**
+   * Fill in `nameNormalized` for any pantry items that don't have it yet (e.g.,
+   * ones loaded straight into the database, like the seed data), so
+   * that searches by name find them.
+   *
+   * @param database the database containing pantry data
+   * @return how many documents were updated
+   */
+  public static long backfillNormalizedFields(MongoDatabase database) {
+    return NormalizedFieldMigration.backfill(
+        database.getCollection(COLLECTION_NAME), NAME_KEY, NAME_NORMALIZED_KEY);
+  }
+
+  /**
+   * Convert the dates of any pantry items that still store them as
+   * strings (e.g., the seed data) into real dates; see `PurchaseDates`.
+   *
+   * @param database the database containing pantry data
+   * @return how many documents were updated
+   */
+  public static long migrateDates(MongoDatabase database) {
+    return PurchaseDates.migrate(database.getCollection(COLLECTION_NAME));
+  }
+
+  /**
+   * Fill in `expiresAt` for any pantry items that don't have it yet; see
+   * `ExpiryDates`. Run this after `migrateDates()`.
+   *
+   * @param database the database containing pantry and product data
+   * @return how many documents were updated
+   */
+  public static long backfillExpiryDates(MongoDatabase database) {
+    return ExpiryDates.backfill(database.getCollection(COLLECTION_NAME),
+        database.getCollection(ProductController.COLLECTION_NAME));
+  }
+
+  /**
+   * Recount how many pantry items there are of each product; see
+   * `InventoryCounts`.
+   *
+   * @param database the database containing pantry data
+   * @return how many products have items
+   */
+  public static long rebuildInventory(MongoDatabase database) {
+    return InventoryCounts.rebuild(database);
   }
 
   /**
@@ -56,11 +299,23 @@ public class PantryController {
    * @param ctx a Javalin HTTP context
    */
   public void getPantry(Context ctx) {
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME)) {
+      return;
+    }
     String id = ctx.pathParam("id");
     Pantry pantry;
 
     try {
-      pantry = pantryCollection.find(eq("_id", new ObjectId(id))).first();
+      ObjectId objectId = new ObjectId(id);
+      if (FieldSelection.requested(ctx)) {
+        pantry = pantryCollection
+            .find(eq("_id", objectId))
+            .projection(FIELDS.forItem(ctx))
+            .first();
+      } else {
+        pantry = pantryCache.get(objectId,
+            key -> pantryCollection.find(eq("_id", key)).first());
+      }
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested pantry id wasn't a legal Mongo Object ID.");
     }
@@ -77,31 +332,161 @@ public class PantryController {
    * @param ctx a Javalin HTTP context
    */
   public void getPantrys(Context ctx) {
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME)) {
+      return;
+    }
     Bson combinedFilter = constructFilter(ctx);
-    Bson sortingOrder = constructSortingOrder(ctx);
+    Bson sortingOrder = SORTS.plan(ctx, combinedFilter);
+
+    FindIterable<Pantry> results = pantryCollection
+        .find(combinedFilter)
+        .projection(FIELDS.forList(ctx))
+        .sort(sortingOrder);
+
+    // With `stream=true` we write the results out as they come back from
+    // the database, rather than collecting them all into a list first.
+    if (JsonStreaming.requested(ctx)) {
+      JsonStreaming.streamArray(ctx, results);
+      return;
+    }
 
     // All three of the find, sort, and into steps happen "in parallel" inside the
     // database system. So MongoDB is going to find the pantrys with the specified
     // properties, return those sorted in the specified manner, and put the
     // results into an initially empty ArrayList.
-    ArrayList<Pantry> matchingPantrys = pantryCollection
-        .find(combinedFilter)
-        .sort(sortingOrder)
-        .into(new ArrayList<>());
+    ArrayList<Pantry> matchingPantrys = results.into(new ArrayList<>());
 
     // Set the JSON body of the response to be the list of pantrys returned by
     // the database.
     ctx.json(matchingPantrys);
   }
 
+  /**
+   * Get a JSON response with a list of the pantry items, each joined with
+   * the `product` its `prodID` refers to (or `null`, if there's no such
+   * product). This takes the same filters and sorting as `getPantrys`,
+   * plus an optional `limit`.
+   *
+   * Rather than one product lookup per item, the products for each batch
+   * of items are fetched together: from a cache of recently used products,
+   * and then with one `$in` query for the rest. A page of items therefore
+   * costs at most two round trips, however many items it has.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getExpandedPantrys(Context ctx) {
+    // The joined products are part of the response, so its tag has to
+    // change when they do as well.
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME, ProductController.COLLECTION_NAME)) {
+      return;
+    }
+    Bson filter = constructFilter(ctx);
+    FindIterable<ExpandedPantry> results = expandedPantryCollection
+        .find(filter)
+        .sort(SORTS.plan(ctx, filter))
+        .batchSize(EXPAND_BATCH_SIZE);
+    if (ctx.queryParamMap().containsKey(LIMIT_KEY)) {
+      results.limit(ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+          .check(l -> l > 0 && l <= MAX_EXPANDED_LIMIT, "Limit must be between 1 and " + MAX_EXPANDED_LIMIT)
+          .get());
+    }
+
+    List<ExpandedPantry> expanded = new ArrayList<>();
+    List<ExpandedPantry> batch = new ArrayList<>(EXPAND_BATCH_SIZE);
+    for (ExpandedPantry item : results) {
+      batch.add(item);
+      if (batch.size() == EXPAND_BATCH_SIZE) {
+        addProducts(batch);
+        expanded.addAll(batch);
+        batch.clear();
+      }
+    }
+    addProducts(batch);
+    expanded.addAll(batch);
+
+    ctx.json(expanded);
+  }
+
+  /**
+   * Fill in the `product` of each of the items, looking up all of the
+   * products we don't have cached with a single query.
+   */
+  private void addProducts(List<ExpandedPantry> items) {
+    Set<ObjectId> productIds = new HashSet<>();
+    for (ExpandedPantry item : items) {
+      // Items whose `prodID` isn't an `ObjectId` can't refer to a product.
+      if (item.prodID != null && ObjectId.isValid(item.prodID)) {
+        productIds.add(new ObjectId(item.prodID));
+      }
+    }
+    if (productIds.isEmpty()) {
+      return;
+    }
+    Map<ObjectId, Product> products = productCache.getAll(productIds, missing -> {
+      Map<ObjectId, Product> found = new HashMap<>();
+      for (Product product : productCollection.find(in("_id", missing))) {
+        found.put(new ObjectId(product._id), product);
+      }
+      return found;
+    });
+    for (ExpandedPantry item : items) {
+      if (item.prodID != null && ObjectId.isValid(item.prodID)) {
+        item.product = products.get(new ObjectId(item.prodID));
+      }
+    }
+  }
+
+  /**
+   * Get a JSON response with a list of the pantry items that expire
+   * within the next `withinDays` days (default 7), soonest first. Items
+   * that have already expired are left out unless `includeExpired=true`.
+   *
+   * This is a range scan of the index on `expiresAt`, so it reads only
+   * the items it returns.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getExpiringPantrys(Context ctx) {
+    // Expiry dates depend on products' lifespans as well, and which items
+    // are in the window depends on what day it is.
+    if (ETags.notModifiedToday(ctx, changes, COLLECTION_NAME, ProductController.COLLECTION_NAME)) {
+      return;
+    }
+    int withinDays = ctx.queryParamAsClass(WITHIN_DAYS_KEY, Integer.class)
+        .check(days -> days >= 0 && days <= MAX_WITHIN_DAYS, "withinDays must be between 0 and " + MAX_WITHIN_DAYS)
+        .getOrDefault(DEFAULT_WITHIN_DAYS);
+    boolean includeExpired = ctx.queryParamAsClass(INCLUDE_EXPIRED_KEY, Boolean.class).getOrDefault(false);
+
+    Instant now = Instant.now();
+    Bson filter = lt(ExpiryDates.EXPIRES_AT_KEY, Date.from(now.plus(withinDays, ChronoUnit.DAYS)));
+    if (!includeExpired) {
+      filter = and(gte(ExpiryDates.EXPIRES_AT_KEY, Date.from(now)), filter);
+    }
+    ArrayList<Pantry> expiring = pantryCollection
+        .find(filter)
+        .sort(Sorts.ascending(ExpiryDates.EXPIRES_AT_KEY, "_id"))
+        .into(new ArrayList<>());
+    ctx.json(expiring);
+  }
+
   private Bson constructFilter(Context ctx) {
     List<Bson> filters = new ArrayList<>(); // start with a blank document
     if (ctx.queryParamMap().containsKey(NAME_KEY)) {
-      filters.add(regex(NAME_KEY, Pattern.quote(ctx.queryParam(NAME_KEY)), "?i"));
+      filters.add(TextNormalizer.prefixFilter(NAME_NORMALIZED_KEY, ctx.queryParam(NAME_KEY)));
     }
     if (ctx.queryParamMap().containsKey(PROD_KEY)) {
       filters.add(eq(PROD_KEY, ctx.queryParam(PROD_KEY)));
     }
+    // Items bought between `from` and `to` (both `yyyy-MM-dd`, and both
+    // included). Dates are stored at midnight, so "on or before `to`"
+    // is "before the day after `to`".
+    if (ctx.queryParamMap().containsKey(FROM_KEY)) {
+      filters.add(gte(DATE_KEY, dateParam(ctx, FROM_KEY)));
+    }
+    if (ctx.queryParamMap().containsKey(TO_KEY)) {
+      Date to = dateParam(ctx, TO_KEY);
+      filters.add(lt(DATE_KEY, Date.from(to.toInstant().plus(1, ChronoUnit.DAYS))));
+    }
 
     // Combine the list of filters into a single filtering document.
     Bson combinedFilter = filters.isEmpty() ? new Document() : and(filters);
@@ -109,14 +494,12 @@ public class PantryController {
     return combinedFilter;
   }
 
-  private Bson constructSortingOrder(Context ctx) {
-    // Sort the results. Use the `sortby` query param (default "name")
-    // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
-    Bson sortingOrder = sortOrder.equals("desc") ? Sorts.descending(sortBy) : Sorts.ascending(sortBy);
-    return sortingOrder;
+  private static Date dateParam(Context ctx, String key) {
+    try {
+      return PurchaseDates.parse(ctx.queryParam(key));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The `" + key + "` date must look like 2022-01-20");
+    }
   }
 
   /**
@@ -126,24 +509,18 @@ public class PantryController {
    */
   public void addNewPantry(Context ctx) {
     /*
-     * The follow chain of statements uses the Javalin validator system
-     * to verify that instance of `Pantry` provided in this context is
-     * a "legal" pantry. It checks the following things (in order):
-     * - The pantry has a value for the name (`usr.name != null`)
-     * - The pantry name is not blank (`usr.name.length > 0`)
-     * - The provided email is valid (matches EMAIL_REGEX)
-     * - The provided age is > 0
-     * - The provided role is valid (one of "admin", "editor", or "viewer")
-     * - A non-blank company is provided
+     * Read the new pantry item and check that it's "legal" (see
+     * `SCHEMA`): it has a non-empty name and product id. Every rule it
+     * breaks is reported, not just the first.
      */
-    Pantry newPantry = ctx.bodyValidator(Pantry.class)
-        .check(usr -> usr.name != null && usr.name.length() > 0,
-            "Pantry must have a non-empty pantry name")
-        .check(usr -> usr.prodID != null && usr.prodID.length() > 0,
-            "Pantry must have a non-empty pantry name")
-        .get();
+    Pantry newPantry = SCHEMA.read(ctx);
+
+    newPantry.nameNormalized = TextNormalizer.normalize(newPantry.name);
+    newPantry.expiresAt = expiresAt(newPantry.date, newPantry.prodID);
 
     pantryCollection.insertOne(newPantry);
+    inventory.add(newPantry.prodID, 1);
+    changes.publish(ChangeEvent.inserted(COLLECTION_NAME, newPantry._id, newPantry));
 
     // 201 is the HTTP code for when we successfully
     // create a new resource (a pantry in this case).
@@ -153,6 +530,34 @@ public class PantryController {
     ctx.json(Map.of("id", newPantry._id));
   }
 
+  /**
+   * Change some of the fields of the pantry item specified by the `id`
+   * parameter in the request; see `PatchRules` for the form of the body.
+   * Only the changed fields are checked and sent to the database, and
+   * the response is the whole item after the change.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void updatePantry(Context ctx) {
+    String id = ctx.pathParam("id");
+    PartialUpdate update = PATCH_RULES.parse(ctx);
+    Pantry before = update.updateOne(pantryCollection, id, "pantry item");
+    Pantry after = update.applyTo(before, Pantry.class);
+    if (!Objects.equals(before.prodID, after.prodID)) {
+      inventory.add(before.prodID, -1);
+      inventory.add(after.prodID, 1);
+    }
+    // A new date or product means a new expiry date.
+    Date expiresAt = expiresAt(after.date, after.prodID);
+    if (!Objects.equals(expiresAt, after.expiresAt)) {
+      pantryCollection.updateOne(eq("_id", new ObjectId(id)), Updates.set(ExpiryDates.EXPIRES_AT_KEY, expiresAt));
+      after.expiresAt = expiresAt;
+    }
+    pantryCache.invalidate(new ObjectId(id));
+    changes.publish(ChangeEvent.updated(COLLECTION_NAME, id, before, after));
+    ctx.json(after);
+  }
+
   /**
    * Delete the pantry specified by the `id` parameter in the request.
    *
@@ -160,12 +565,63 @@ public class PantryController {
    */
   public void deletePantry(Context ctx) {
     String id = ctx.pathParam("id");
-    DeleteResult deleteResult = pantryCollection.deleteOne(eq("_id", new ObjectId(id)));
-    if (deleteResult.getDeletedCount() != 1) {
+    Pantry deleted = pantryCollection.findOneAndDelete(eq("_id", new ObjectId(id)));
+    pantryCache.invalidate(new ObjectId(id));
+    if (deleted == null) {
       throw new NotFoundResponse(
           "Was unable to delete ID "
               + id
               + "; perhaps illegal ID or an ID for an item not in the system?");
     }
+    inventory.add(deleted.prodID, -1);
+    changes.publish(ChangeEvent.deleted(COLLECTION_NAME, id, deleted));
+  }
+
+  /**
+   * Get a JSON response with how many pantry items there are of each
+   * product, as a list of `{prodID, count}` objects. Products we have
+   * none of are left out.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getInventory(Context ctx) {
+    // The counts only change when the pantry does.
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME)) {
+      return;
+    }
+    ctx.json(inventory.all());
+  }
+
+  /**
+   * Get a JSON response with how many pantry items there are of the
+   * product specified by the `prodID` parameter in the request (0 if
+   * there are none), as a `{prodID, count}` object.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getInventoryCount(Context ctx) {
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME)) {
+      return;
+    }
+    String prodID = ctx.pathParam(PROD_KEY);
+    ctx.json(Map.of(PROD_KEY, prodID, "count", inventory.count(prodID)));
+  }
+
+  /**
+   * Report how well the single-pantry cache is doing.
+   *
+   * @return the cache's size and its hit, miss, and eviction counts
+   */
+  public Map<String, Object> cacheStats() {
+    return pantryCache.stats();
+  }
+
+  /**
+   * Report how well the cache of products for `/api/pantry/expanded` is doing.
+   *
+   * @return the cache's size and its hit, miss, and eviction counts
+   */
+  public Map<String, Object> productCacheStats() {
+    return productCache.stats();
   }
 }
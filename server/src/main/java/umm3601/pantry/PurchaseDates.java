@@ -0,0 +1,167 @@
+package umm3601.pantry;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.type;
+import static com.mongodb.client.model.Projections.include;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Purchase dates of pantry items.
+ *
+ * These are stored as BSON dates (at midnight UTC), so they can be
+ * range-queried, sorted, and indexed. In JSON they are written as
+ * `yyyy-MM-dd`. Pantry items used to store them as free-form strings
+ * like `"8/21/2021"`; `migrate()` converts those.
+ */
+public final class PurchaseDates {
+
+  /**
+   * How many updates `migrate()` sends to the database at a time.
+   */
+  public static final int BATCH_SIZE = 1000;
+
+  private static final String DATE_KEY = "date";
+
+  /**
+   * Where `migrate()` keeps a string date it couldn't read.
+   */
+  public static final String LEGACY_DATE_KEY = "dateLegacy";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PurchaseDates.class);
+
+  // The US-style dates the string dates were written in, e.g., "8/21/2021".
+  private static final DateTimeFormatter LEGACY_FORMAT = DateTimeFormatter.ofPattern("M/d/uuuu");
+
+  private PurchaseDates() {
+  }
+
+  /**
+   * Reads a purchase date from JSON (`yyyy-MM-dd`, or the old `M/d/yyyy`)
+   * or from the database (a BSON date), so both clients that haven't
+   * caught up and documents that are already dates can be read.
+   */
+  public static final class Deserializer extends JsonDeserializer<Date> {
+    @Override
+    public Date deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+      switch (parser.currentToken()) {
+        case VALUE_STRING:
+          try {
+            return parse(parser.getText());
+          } catch (IllegalArgumentException e) {
+            return (Date) context.handleWeirdStringValue(Date.class, parser.getText(),
+                "expected a date like 2022-01-20");
+          }
+        case VALUE_NUMBER_INT:
+          return new Date(parser.getLongValue());
+        case VALUE_EMBEDDED_OBJECT:
+          Object embedded = parser.getEmbeddedObject();
+          if (embedded instanceof Date) {
+            return (Date) embedded;
+          }
+          return (Date) context.handleUnexpectedToken(Date.class, parser);
+        default:
+          return (Date) context.handleUnexpectedToken(Date.class, parser);
+      }
+    }
+  }
+
+  /**
+   * Read a date, either as `yyyy-MM-dd` or in the old `M/d/yyyy` form.
+   *
+   * @param text the date
+   * @return that day, at midnight UTC
+   * @throws IllegalArgumentException if `text` isn't a date in either form
+   */
+  public static Date parse(String text) {
+    String trimmed = text.trim();
+    try {
+      LocalDate day = trimmed.contains("/")
+          ? LocalDate.parse(trimmed, LEGACY_FORMAT)
+          : LocalDate.parse(trimmed);
+      return Date.from(day.atStartOfDay(ZoneOffset.UTC).toInstant());
+    } catch (DateTimeParseException e) {
+      throw new IllegalArgumentException("Not a date: " + text, e);
+    }
+  }
+
+  /**
+   * Convert every pantry item whose `date` is still a string into a
+   * BSON date. Strings that aren't dates are moved, as they were, to
+   * `dateLegacy` (and logged and counted), so nothing is lost and
+   * someone can fix them by hand; the item is then left without a date.
+   *
+   * The documents are read with only `date` projected, and the updates
+   * are sent in batches of unordered bulk writes. Once a collection has
+   * been converted the query finds nothing, so this is cheap to run at
+   * every startup.
+   *
+   * @param collection the pantry collection
+   * @return how many documents were converted
+   */
+  public static long migrate(MongoCollection<Document> collection) {
+    long updated = 0;
+    long unreadable = 0;
+    List<WriteModel<Document>> batch = new ArrayList<>(BATCH_SIZE);
+    try (MongoCursor<Document> cursor = collection
+        .find(type(DATE_KEY, BsonType.STRING))
+        .projection(include(DATE_KEY))
+        .batchSize(BATCH_SIZE)
+        .iterator()) {
+      while (cursor.hasNext()) {
+        Document document = cursor.next();
+        String text = document.getString(DATE_KEY);
+        Bson update;
+        try {
+          update = Updates.set(DATE_KEY, parse(text));
+        } catch (IllegalArgumentException e) {
+          LOGGER.warn("Pantry item {} has a date we can't read, which we've moved to {}: {}",
+              document.get("_id"), LEGACY_DATE_KEY, text);
+          unreadable++;
+          update = Updates.combine(Updates.set(LEGACY_DATE_KEY, text), Updates.unset(DATE_KEY));
+        }
+        batch.add(new UpdateOneModel<>(eq("_id", document.get("_id")), update));
+        if (batch.size() == BATCH_SIZE) {
+          updated += write(collection, batch);
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      updated += write(collection, batch);
+    }
+    if (updated > 0) {
+      LOGGER.info("Converted {} pantry dates from strings ({} unreadable, kept in {})",
+          updated, unreadable, LEGACY_DATE_KEY);
+    }
+    return updated;
+  }
+
+  private static long write(MongoCollection<Document> collection, List<WriteModel<Document>> batch) {
+    long modified = collection.bulkWrite(batch, new BulkWriteOptions().ordered(false)).getModifiedCount();
+    batch.clear();
+    return modified;
+  }
+}
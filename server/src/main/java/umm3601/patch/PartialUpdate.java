@@ -0,0 +1,179 @@
+package umm3601.patch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonMongoCollection;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.plugin.json.JavalinJackson;
+
+/**
+ * The changes a (checked) `PATCH` request makes to one document: fields
+ * to set, remove, and increment. `PatchRules.parse()` builds these.
+ */
+public final class PartialUpdate {
+
+  // MongoDB's error code for a write that breaks a unique index.
+  private static final int DUPLICATE_KEY_ERROR = 11000;
+
+  private static final ObjectMapper MAPPER = JavalinJackson.Companion.defaultMapper();
+
+  private final Map<String, Object> sets = new LinkedHashMap<>();
+  private final Set<String> unsets = new LinkedHashSet<>();
+  private final Map<String, Integer> increments = new LinkedHashMap<>();
+  private final List<Bson> guards = new ArrayList<>();
+
+  void set(String field, Object value) {
+    sets.put(field, value);
+  }
+
+  void unset(String field) {
+    unsets.add(field);
+  }
+
+  void increment(String field, int delta, int minimum) {
+    increments.put(field, delta);
+    if (delta < 0) {
+      // Only match the document if the decrement leaves it at or above
+      // the minimum, so the check and the change happen atomically.
+      guards.add(Filters.gte(field, minimum - delta));
+    }
+  }
+
+  boolean changes(String field) {
+    return sets.containsKey(field) || unsets.contains(field) || increments.containsKey(field);
+  }
+
+  boolean isEmpty() {
+    return sets.isEmpty() && unsets.isEmpty() && increments.isEmpty();
+  }
+
+  /**
+   * Does this update have conditions (beyond which document) that
+   * `getFilter()` adds?
+   *
+   * @return true if some increment could take a field below its minimum
+   */
+  public boolean isGuarded() {
+    return !guards.isEmpty();
+  }
+
+  /**
+   * The filter for the document to update.
+   *
+   * @param id the filter picking out the document, e.g., by `_id`
+   * @return that filter, plus any conditions the update needs (e.g.,
+   *  that a decrement won't take a field below its minimum)
+   */
+  public Bson getFilter(Bson id) {
+    if (guards.isEmpty()) {
+      return id;
+    }
+    List<Bson> filters = new ArrayList<>(guards);
+    filters.add(0, id);
+    return Filters.and(filters);
+  }
+
+  /**
+   * The MongoDB update document: one `$set`, `$unset`, and `$inc`.
+   *
+   * @return the update
+   */
+  public Bson getUpdate() {
+    List<Bson> updates = new ArrayList<>();
+    if (!sets.isEmpty()) {
+      updates.add(new Document("$set", new Document(sets)));
+    }
+    if (!unsets.isEmpty()) {
+      Document fields = new Document();
+      unsets.forEach(field -> fields.append(field, ""));
+      updates.add(new Document("$unset", fields));
+    }
+    if (!increments.isEmpty()) {
+      updates.add(new Document("$inc", new Document(new LinkedHashMap<>(increments))));
+    }
+    return Updates.combine(updates);
+  }
+
+  /**
+   * Make this update to one document, atomically.
+   *
+   * @param <T> the type of the document
+   * @param collection the collection holding the document
+   * @param id the document's `_id`
+   * @param noun what the document is (e.g., "product"), for error messages
+   * @return the document as it was *before* the update; see `applyTo()`
+   * @throws BadRequestResponse if `id` isn't a legal id, or if an
+   *  increment would take a field below its minimum
+   * @throws NotFoundResponse if there is no such document
+   * @throws ConflictResponse if the change would break a unique index
+   */
+  public <T> T updateOne(JacksonMongoCollection<T> collection, String id, String noun) {
+    ObjectId objectId;
+    try {
+      objectId = new ObjectId(id);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested " + noun + " id wasn't a legal Mongo Object ID.");
+    }
+    T before;
+    try {
+      before = collection.findOneAndUpdate(getFilter(Filters.eq("_id", objectId)), getUpdate(),
+          new FindOneAndUpdateOptions().returnDocument(ReturnDocument.BEFORE));
+    } catch (MongoCommandException e) {
+      if (e.getErrorCode() != DUPLICATE_KEY_ERROR) {
+        throw e;
+      }
+      throw new ConflictResponse("The " + noun + " wasn't changed, since it would then be the same as another "
+          + noun + " that must be unique");
+    }
+    if (before == null) {
+      // Either there's no such document, or one of the guards failed.
+      if (isGuarded() && collection.find(Filters.eq("_id", objectId)).first() != null) {
+        throw new BadRequestResponse("The " + noun + " wasn't changed, since an increment would have taken "
+            + String.join(" or ", increments.keySet()) + " below its minimum");
+      }
+      throw new NotFoundResponse("The requested " + noun + " was not found");
+    }
+    return before;
+  }
+
+  /**
+   * Work out what a document looks like after this update, from what
+   * it looked like before (e.g., as returned by `findOneAndUpdate`).
+   *
+   * @param <T> the type of the document
+   * @param before the document before the update
+   * @param type the class of the document
+   * @return a new copy of the document with the update applied
+   */
+  public <T> T applyTo(T before, Class<T> type) {
+    ObjectNode document = MAPPER.valueToTree(before);
+    sets.forEach((field, value) -> document.set(field, MAPPER.valueToTree(value)));
+    unsets.forEach(document::remove);
+    increments.forEach((field, delta) -> document.put(field, document.path(field).asInt() + delta));
+    try {
+      return MAPPER.treeToValue(document, type);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Couldn't apply an update to a " + type.getSimpleName(), e);
+    }
+  }
+}
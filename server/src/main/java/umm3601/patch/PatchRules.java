@@ -0,0 +1,289 @@
+package umm3601.patch;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.javalin.core.validation.ValidationError;
+import io.javalin.core.validation.ValidationException;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.plugin.json.JavalinJackson;
+
+/**
+ * The fields of one kind of document that a `PATCH` request may change,
+ * and the rules their new values have to follow.
+ *
+ * A `PATCH` body is a JSON object whose keys are the fields to change
+ * and whose values are their new values, e.g., `{"threshold": 5}`. A
+ * number field can instead be changed relative to its current value by
+ * listing it under `"$inc"`, e.g., `{"$inc": {"quantity": -1}}`. An
+ * optional field can be removed by setting it to `null`.
+ *
+ * Only the fields in the request are checked, and `parse()` reports
+ * every problem at once (in the same form as Javalin's own validators)
+ * rather than stopping at the first. Fields the server works out for
+ * itself (e.g., normalized names) can't be patched directly; they are
+ * recomputed whenever the field they come from changes.
+ */
+public final class PatchRules {
+
+  /**
+   * The key in a `PATCH` body that holds the fields to increment.
+   */
+  public static final String INC_KEY = "$inc";
+
+  // The types of field, for error messages.
+  private static final String TEXT = "text";
+  private static final String WHOLE_NUMBER = "a whole number";
+  private static final String DATE = "a date like 2022-01-20";
+
+  private static final ObjectMapper MAPPER = JavalinJackson.Companion.defaultMapper();
+
+  /**
+   * How to read and check one field.
+   */
+  private static final class FieldRule {
+    // Reads the JSON value, or returns `null` if it's the wrong type.
+    private final Function<JsonNode, Object> reader;
+    // What the right type is, for error messages.
+    private final String type;
+    private final Predicate<Object> rule;
+    private final String message;
+    private final boolean optional;
+    // The smallest value a number field may hold, or `null` if the
+    // field can't be incremented.
+    private final Integer minimum;
+
+    FieldRule(Function<JsonNode, Object> reader, String type, Predicate<Object> rule, String message,
+        boolean optional, Integer minimum) {
+      this.reader = reader;
+      this.type = type;
+      this.rule = rule;
+      this.message = message;
+      this.optional = optional;
+      this.minimum = minimum;
+    }
+  }
+
+  /**
+   * A field the server fills in from another field.
+   */
+  private static final class Derivation {
+    private final String target;
+    private final Function<Object, Object> derive;
+
+    Derivation(String target, Function<Object, Object> derive) {
+      this.target = target;
+      this.derive = derive;
+    }
+  }
+
+  private final Map<String, FieldRule> fields = new LinkedHashMap<>();
+  private final Map<String, List<Derivation>> derivations = new LinkedHashMap<>();
+
+  /**
+   * A required text field; it can be changed but not removed.
+   *
+   * @param name the field's name
+   * @param rule what a legal value looks like
+   * @param message the error if the new value breaks the rule
+   * @return these rules, for chaining
+   */
+  public PatchRules text(String name, Predicate<String> rule, String message) {
+    fields.put(name, new FieldRule(PatchRules::readText, TEXT, value -> rule.test((String) value), message,
+        false, null));
+    return this;
+  }
+
+  /**
+   * An optional text field, which must not be empty if it's there.
+   * Setting it to `null` removes it.
+   *
+   * @param name the field's name
+   * @param message the error if the new value is empty
+   * @return these rules, for chaining
+   */
+  public PatchRules optionalText(String name, String message) {
+    fields.put(name, new FieldRule(PatchRules::readText, TEXT, value -> !((String) value).isEmpty(), message,
+        true, null));
+    return this;
+  }
+
+  /**
+   * A whole number field with a smallest legal value. It can be set or
+   * incremented; an increment that would take it below the minimum is
+   * refused (see `PartialUpdate.getFilter()`).
+   *
+   * @param name the field's name
+   * @param minimum the smallest legal value
+   * @param message the error if the new value is too small
+   * @return these rules, for chaining
+   */
+  public PatchRules number(String name, int minimum, String message) {
+    fields.put(name, new FieldRule(PatchRules::readInt, WHOLE_NUMBER, value -> (Integer) value >= minimum, message,
+        false, minimum));
+    return this;
+  }
+
+  /**
+   * An optional date field, stored as a BSON date. Setting it to `null`
+   * removes it.
+   *
+   * @param name the field's name
+   * @param parse reads a date from its JSON text, throwing an
+   *  `IllegalArgumentException` if the text isn't a date
+   * @return these rules, for chaining
+   */
+  public PatchRules optionalDate(String name, Function<String, Date> parse) {
+    Function<JsonNode, Object> reader = json -> {
+      try {
+        return json.isTextual() ? parse.apply(json.asText()) : null;
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    };
+    fields.put(name, new FieldRule(reader, DATE, value -> true, null, true, null));
+    return this;
+  }
+
+  /**
+   * Recompute a derived field whenever the field it comes from is set.
+   *
+   * @param source the field the server works it out from
+   * @param target the derived field
+   * @param derive works out the derived value from the source value
+   * @return these rules, for chaining
+   */
+  public PatchRules derive(String source, String target, Function<Object, Object> derive) {
+    derivations.computeIfAbsent(source, key -> new ArrayList<>()).add(new Derivation(target, derive));
+    return this;
+  }
+
+  /**
+   * Read and check the `PATCH` body in the request.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the update to make
+   * @throws BadRequestResponse if the body isn't a JSON object, or
+   *  names fields that can't be patched
+   * @throws ValidationException if any of the new values break the rules
+   */
+  public PartialUpdate parse(Context ctx) {
+    ObjectNode body;
+    try {
+      JsonNode json = MAPPER.readTree(ctx.body());
+      if (json == null || !json.isObject()) {
+        throw new BadRequestResponse("The body of a PATCH must be a JSON object of the fields to change");
+      }
+      body = (ObjectNode) json;
+    } catch (JsonProcessingException e) {
+      throw new BadRequestResponse("The body of a PATCH must be legal JSON: " + e.getOriginalMessage());
+    }
+
+    PartialUpdate update = new PartialUpdate();
+    Map<String, List<ValidationError<Object>>> errors = new LinkedHashMap<>();
+    for (Iterator<Map.Entry<String, JsonNode>> it = body.fields(); it.hasNext();) {
+      Map.Entry<String, JsonNode> entry = it.next();
+      if (entry.getKey().equals(INC_KEY)) {
+        parseIncrements(entry.getValue(), update, errors);
+      } else {
+        parseSet(entry.getKey(), entry.getValue(), update, errors);
+      }
+    }
+    if (!errors.isEmpty()) {
+      throw new ValidationException(errors);
+    }
+    if (update.isEmpty()) {
+      throw new BadRequestResponse("The PATCH doesn't change anything");
+    }
+    return update;
+  }
+
+  private void parseSet(String name, JsonNode json, PartialUpdate update,
+      Map<String, List<ValidationError<Object>>> errors) {
+    FieldRule field = rule(name);
+    // The `$inc` may come first in the body; the other way round is
+    // caught in `parseIncrements`.
+    if (update.changes(name)) {
+      addError(errors, name, name + " can't be both set and incremented", null);
+      return;
+    }
+    if (json.isNull()) {
+      if (!field.optional) {
+        addError(errors, name, name + " can't be removed", null);
+      } else {
+        update.unset(name);
+        for (Derivation derivation : derivations.getOrDefault(name, List.of())) {
+          update.unset(derivation.target);
+        }
+      }
+      return;
+    }
+    Object value = field.reader.apply(json);
+    if (value == null) {
+      addError(errors, name, name + " must be " + field.type, json.toString());
+    } else if (!field.rule.test(value)) {
+      addError(errors, name, field.message, value);
+    } else {
+      update.set(name, value);
+      for (Derivation derivation : derivations.getOrDefault(name, List.of())) {
+        update.set(derivation.target, derivation.derive.apply(value));
+      }
+    }
+  }
+
+  private void parseIncrements(JsonNode increments, PartialUpdate update,
+      Map<String, List<ValidationError<Object>>> errors) {
+    if (!increments.isObject()) {
+      throw new BadRequestResponse(INC_KEY + " must be an object of the fields to increment");
+    }
+    for (Iterator<Map.Entry<String, JsonNode>> it = increments.fields(); it.hasNext();) {
+      Map.Entry<String, JsonNode> entry = it.next();
+      String name = entry.getKey();
+      FieldRule field = rule(name);
+      Integer delta = (Integer) readInt(entry.getValue());
+      if (field.minimum == null) {
+        addError(errors, name, name + " isn't a number, so it can't be incremented", null);
+      } else if (delta == null) {
+        addError(errors, name, "The increment of " + name + " must be a whole number", entry.getValue().toString());
+      } else if (update.changes(name)) {
+        addError(errors, name, name + " can't be both set and incremented", delta);
+      } else {
+        update.increment(name, delta, field.minimum);
+      }
+    }
+  }
+
+  private FieldRule rule(String name) {
+    FieldRule field = fields.get(name);
+    if (field == null) {
+      throw new BadRequestResponse("The field `" + name + "` can't be changed; the fields that can are "
+          + String.join(", ", fields.keySet()));
+    }
+    return field;
+  }
+
+  private static void addError(Map<String, List<ValidationError<Object>>> errors,
+      String field, String message, Object value) {
+    errors.computeIfAbsent(field, key -> new ArrayList<>()).add(new ValidationError<>(message, Map.of(), value));
+  }
+
+  private static Object readText(JsonNode json) {
+    return json.isTextual() ? json.asText() : null;
+  }
+
+  private static Object readInt(JsonNode json) {
+    return json.isIntegralNumber() && json.canConvertToInt() ? json.asInt() : null;
+  }
+}
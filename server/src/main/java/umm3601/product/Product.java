@@ -1,5 +1,7 @@
 package umm3601.product;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import org.mongojack.Id;
 import org.mongojack.ObjectId;
 
@@ -29,12 +31,25 @@ public class Product {
   public String _id;
 
   public String productName;
+
+  // The normalized (lowercase, unaccented) form of `productName`, which
+  // searches by productName use; see `TextNormalizer`. The server fills
+  // this in, so clients never need to send it.
+  public String productNameNormalized;
+
   public String description;
   public String brand;
   public String category;
   public String location;
   public String notes;
-  public int lifespan;
-  public int threshold;
+
+  // Numbers are `Integer`s rather than `int`s, and left out of the JSON
+  // when they're `null`, so a field a projection left out (see
+  // `FieldSelection`) is missing from the response rather than a 0.
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Integer lifespan;
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Integer threshold;
+
   public String store;
 }
@@ -2,18 +2,38 @@ package umm3601.product;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Filters.regex;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
 
+import java.io.IOException;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Sorts;
-import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Facet;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
 
+import org.bson.BsonDocument;
 import org.bson.Document;
 import org.bson.UuidRepresentation;
 import org.bson.conversions.Bson;
@@ -24,6 +44,20 @@ import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.cache.DocumentCache;
+import umm3601.cache.ETags;
+import umm3601.events.ChangeBus;
+import umm3601.events.ChangeEvent;
+import umm3601.paging.PageCursor;
+import umm3601.patch.PartialUpdate;
+import umm3601.patch.PatchRules;
+import umm3601.projection.FieldSelection;
+import umm3601.sorting.SortPlanner;
+import umm3601.streaming.JsonStreaming;
+import umm3601.text.NormalizedFieldMigration;
+import umm3601.text.TextNormalizer;
+import umm3601.validation.BodySchema;
 
 /**
  * Controller that manages requests for info about products.
@@ -32,6 +66,7 @@ public class ProductController {
 
   private static final String THRESHOLD_KEY = "threshold";
   private static final String PRD_NAME_KEY = "productName";
+  private static final String PRD_NAME_NORMALIZED_KEY = "productNameNormalized";
   private static final String STORE_KEY = "store";
   private static final String DESC_KEY = "description";
   private static final String BRAND_KEY = "brand";
@@ -39,20 +74,164 @@ public class ProductController {
   private static final String LOCATION_KEY = "location";
   private static final String NOTES_KEY = "notes";
   private static final String LIFESPAN_KEY = "lifespan";
+  private static final String LIMIT_KEY = "limit";
+  private static final String AFTER_KEY = "after";
+  private static final String QUERY_KEY = "q";
+  private static final String BATCH_SIZE_KEY = "batchSize";
+
+  /**
+   * The name of the MongoDB collection holding the products.
+   */
+  public static final String COLLECTION_NAME = "products";
+
+  /**
+   * The indexes that the queries in this controller rely on. `Server.main`
+   * hands these to an `IndexManager`, which creates any that are missing.
+   */
+  public static final List<IndexModel> INDEXES = List.of(
+      // These serve sorting (see `SORTS`), with `_id` to break ties, and
+      // name searches, which are sorted by the normalized name.
+      new IndexModel(Indexes.ascending(PRD_NAME_NORMALIZED_KEY, "_id")),
+      new IndexModel(Indexes.ascending(THRESHOLD_KEY, "_id")),
+      new IndexModel(Indexes.ascending(PRD_NAME_KEY, "_id")),
+      // These serve filtering by store or threshold, with the filtered
+      // field first so that the results still come out sorted.
+      new IndexModel(Indexes.ascending(STORE_KEY, PRD_NAME_KEY, "_id")),
+      new IndexModel(Indexes.ascending(STORE_KEY, THRESHOLD_KEY, "_id")),
+      new IndexModel(Indexes.ascending(THRESHOLD_KEY, PRD_NAME_KEY, "_id")),
+      new IndexModel(Indexes.ascending(THRESHOLD_KEY, PRD_NAME_NORMALIZED_KEY, "_id")));
+
+  // What lists (and pages) of products can be sorted by, given their
+  // filters; each combination needs one of the indexes above.
+  private static final SortPlanner SORTS = new SortPlanner(INDEXES, PRD_NAME_KEY, THRESHOLD_KEY)
+      .searchedBy(PRD_NAME_KEY, PRD_NAME_NORMALIZED_KEY);
+
+  // The largest page a client can ask for with `limit`.
+  static final int MAX_PAGE_SIZE = 1000;
+
+  // How many search results we return if the client doesn't say.
+  static final int DEFAULT_SEARCH_LIMIT = 20;
+
+  // How many products `addNewProducts` writes to the database at a
+  // time, unless the client asks for a different `batchSize`.
+  static final int DEFAULT_BULK_BATCH_SIZE = 500;
+  static final int MAX_BULK_BATCH_SIZE = 10_000;
+
+  // The stores a product can come from.
+  private static final Set<String> STORES = Set.of("willies", "coop");
+
+  /*
+   * The rules that decide whether a new product is "legal", shared by
+   * `addNewProduct` and `addNewProducts` so both accept exactly the
+   * same products. In order:
+   * - The product has a non-empty name
+   * - The threshold is >= 0
+   * - The store is one of "willies" or "coop"
+   * - The optional text fields, if given, aren't empty
+   * - The lifespan is >= 0
+   */
+  private static final BodySchema<Product> SCHEMA = BodySchema.of(Product.class)
+      .text(PRD_NAME_KEY, prd -> prd.productName, "Product must have a non-empty product name")
+      .number(THRESHOLD_KEY, prd -> prd.threshold, 0, "Product's threshold must be greater than or equal to zero")
+      .oneOf(STORE_KEY, prd -> prd.store, STORES, "Product must have a legal store")
+      .optionalText(DESC_KEY, prd -> prd.description, "Product's description must not be empty")
+      .optionalText(BRAND_KEY, prd -> prd.brand, "Product's brand must not be empty")
+      .optionalText(CATEGORY_KEY, prd -> prd.category, "Product's category must not be empty")
+      .optionalText(NOTES_KEY, prd -> prd.notes, "Product's notes must not be empty")
+      .number(LIFESPAN_KEY, prd -> prd.lifespan, 0, "Product's lifespan must be greater than or equal to zero")
+      .optionalText(LOCATION_KEY, prd -> prd.location, "Product's location must not be empty");
+
+  // What `PATCH /api/products/{id}` may change; the same rules as
+  // `SCHEMA`, but applied only to the fields a request changes.
+  private static final PatchRules PATCH_RULES = new PatchRules()
+      .text(PRD_NAME_KEY, name -> name.length() > 0, "Product must have a non-empty product name")
+      .derive(PRD_NAME_KEY, PRD_NAME_NORMALIZED_KEY, name -> TextNormalizer.normalize((String) name))
+      .number(THRESHOLD_KEY, 0, "Product's threshold must be greater than or equal to zero")
+      .number(LIFESPAN_KEY, 0, "Product's lifespan must be greater than or equal to zero")
+      .text(STORE_KEY, STORES::contains, "Product must have a legal store")
+      .optionalText(DESC_KEY, "Product's description must not be empty")
+      .optionalText(BRAND_KEY, "Product's brand must not be empty")
+      .optionalText(CATEGORY_KEY, "Product's category must not be empty")
+      .optionalText(LOCATION_KEY, "Product's location must not be empty")
+      .optionalText(NOTES_KEY, "Product's notes must not be empty");
+
+  // The fields `/api/products/facets` counts values of.
+  private static final List<String> FACET_KEYS = List.of(CATEGORY_KEY, STORE_KEY, BRAND_KEY);
+
+  // How many different filters' facet counts we remember.
+  static final int FACET_CACHE_SIZE = 256;
+
+  // Reads the items of a bulk upload; the same mapper `SCHEMA` uses.
+  private static final ObjectMapper MAPPER = JavalinJackson.Companion.defaultMapper();
+
+  // The fields a client can pick with `fields=`. The list view only
+  // needs this compact summary, which leaves out the long free-text
+  // `description` and `notes`.
+  private static final FieldSelection FIELDS = FieldSelection.of(Product.class,
+      PRD_NAME_KEY, BRAND_KEY, CATEGORY_KEY, STORE_KEY, LOCATION_KEY, LIFESPAN_KEY, THRESHOLD_KEY);
 
   private final JacksonMongoCollection<Product> productCollection;
 
+  // Where we announce every insert and delete; its per-collection
+  // versions are also what our ETags are made from.
+  private final ChangeBus changes;
+
+  // Single-product lookups (without `fields=`) are served from here when we can.
+  private final DocumentCache<Product> productCache =
+      new DocumentCache<>(COLLECTION_NAME, Product.class);
+
+  // Answers `/api/products/search`; kept up to date as products are
+  // added and deleted.
+  private final ProductSearchIndex searchIndex = new ProductSearchIndex();
+
+  // Facet counts we've already worked out, keyed by the collection
+  // version and the filter; see `getProductFacets`.
+  private final Cache<String, Map<String, List<Map<String, Object>>>> facetCache = Caffeine.newBuilder()
+      .maximumSize(FACET_CACHE_SIZE)
+      .build();
+
   /**
    * Construct a controller for products.
    *
    * @param database the database containing product data
    */
   public ProductController(MongoDatabase database) {
+    this(database, new ChangeBus());
+  }
+
+  /**
+   * Construct a controller for products that announces its changes.
+   *
+   * @param database the database containing product data
+   * @param changes where to publish every insert and delete
+   */
+  public ProductController(MongoDatabase database, ChangeBus changes) {
+    this.changes = changes;
     productCollection = JacksonMongoCollection.builder().build(
         database,
-        "products",
+        COLLECTION_NAME,
         Product.class,
         UuidRepresentation.STANDARD);
+
+    // Load every product's searchable text into the search index.
+    productCollection
+        .find()
+        .projection(include(PRD_NAME_KEY, BRAND_KEY, CATEGORY_KEY, DESC_KEY, NOTES_KEY))
+        .batchSize(JsonStreaming.BATCH_SIZE)
+        .forEach(searchIndex::add);
+  }
+
+  /**
+   * Fill in `productNameNormalized` for any products that don't have it yet (e.g.,
+   * ones loaded straight into the database, like the seed data), so
+   * that searches by productName find them.
+   *
+   * @param database the database containing product data
+   * @return how many documents were updated
+   */
+  public static long backfillNormalizedFields(MongoDatabase database) {
+    return NormalizedFieldMigration.backfill(
+        database.getCollection(COLLECTION_NAME), PRD_NAME_KEY, PRD_NAME_NORMALIZED_KEY);
   }
 
   /**
@@ -61,11 +240,23 @@ public class ProductController {
    * @param ctx a Javalin HTTP context
    */
   public void getProduct(Context ctx) {
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME)) {
+      return;
+    }
     String id = ctx.pathParam("id");
     Product product;
 
     try {
-      product = productCollection.find(eq("_id", new ObjectId(id))).first();
+      ObjectId objectId = new ObjectId(id);
+      if (FieldSelection.requested(ctx)) {
+        product = productCollection
+            .find(eq("_id", objectId))
+            .projection(FIELDS.forItem(ctx))
+            .first();
+      } else {
+        product = productCache.get(objectId,
+            key -> productCollection.find(eq("_id", key)).first());
+      }
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested product id wasn't a legal Mongo Object ID.");
     }
@@ -82,26 +273,204 @@ public class ProductController {
    * @param ctx a Javalin HTTP context
    */
   public void getProducts(Context ctx) {
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME)) {
+      return;
+    }
     Bson combinedFilter = constructFilter(ctx);
-    Bson sortingOrder = constructSortingOrder(ctx);
+
+    if (ctx.queryParamMap().containsKey(LIMIT_KEY)) {
+      getProductPage(ctx, combinedFilter);
+      return;
+    }
+
+    Bson sortingOrder = SORTS.plan(ctx, combinedFilter);
+
+    FindIterable<Product> results = productCollection
+        .find(combinedFilter)
+        .projection(FIELDS.forList(ctx))
+        .sort(sortingOrder);
+
+    // With `stream=true` we write the results out as they come back from
+    // the database, rather than collecting them all into a list first.
+    if (JsonStreaming.requested(ctx)) {
+      JsonStreaming.streamArray(ctx, results);
+      return;
+    }
 
     // All three of the find, sort, and into steps happen "in parallel" inside the
     // database system. So MongoDB is going to find the products with the specified
     // properties, return those sorted in the specified manner, and put the
     // results into an initially empty ArrayList.
-    ArrayList<Product> matchingProducts = productCollection
-        .find(combinedFilter)
-        .sort(sortingOrder)
-        .into(new ArrayList<>());
+    ArrayList<Product> matchingProducts = results.into(new ArrayList<>());
 
     // Set the JSON body of the response toshow collections
     ctx.json(matchingProducts);
   }
 
+  /**
+   * Respond with a single page of products, using keyset pagination.
+   *
+   * The page is sorted by the `sortby` field (default `productName`, or
+   * `productNameNormalized` for a name search; see `SORTS`) and then by
+   * `_id`, so every product has a unique position.
+   * The response is an object holding the `products` on this page and a
+   * `next` cursor, which is `null` on the last page. Passing that cursor
+   * back as `after` continues from where this page stopped without
+   * re-reading (or skipping over) any of the earlier pages.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param filter the filter built from the other query parameters
+   */
+  private void getProductPage(Context ctx, Bson filter) {
+    int limit = ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+        .check(l -> l > 0 && l <= MAX_PAGE_SIZE, "Limit must be between 1 and " + MAX_PAGE_SIZE)
+        .get();
+    String sortBy = SORTS.field(ctx, filter);
+    boolean descending = SORTS.descending(ctx);
+    Field sortField = pageableField(sortBy);
+
+    Bson pageFilter = filter;
+    if (ctx.queryParamMap().containsKey(AFTER_KEY)) {
+      pageFilter = and(filter, PageCursor.decode(ctx.queryParam(AFTER_KEY)).after(sortBy, descending));
+    }
+    Bson pageOrder = SortPlanner.sort(sortBy, descending);
+
+    // Ask for one more than we need; if it comes back we know there's
+    // another page after this one.
+    ArrayList<Product> page = productCollection
+        .find(pageFilter)
+        .projection(FIELDS.forList(ctx, sortBy))
+        .sort(pageOrder)
+        .limit(limit + 1)
+        .into(new ArrayList<>());
+
+    String next = null;
+    if (page.size() > limit) {
+      page.remove(limit);
+      Product last = page.get(limit - 1);
+      next = new PageCursor(readField(sortField, last), new ObjectId(last._id)).encode();
+    }
+
+    // `Map.of` doesn't allow `null` values, and `next` is `null` on the last page.
+    Map<String, Object> body = new HashMap<>();
+    body.put("products", page);
+    body.put("next", next);
+    ctx.json(body);
+  }
+
+  private Field pageableField(String name) {
+    try {
+      return Product.class.getField(name);
+    } catch (NoSuchFieldException e) {
+      throw new BadRequestResponse("Products can't be paged by the field `" + name + "`.");
+    }
+  }
+
+  private Object readField(Field field, Product product) {
+    if (field.getName().equals("_id")) {
+      return null;
+    }
+    try {
+      return field.get(product);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Product field " + field.getName() + " isn't public", e);
+    }
+  }
+
+  /**
+   * Get a JSON response with the products that best match the search
+   * query `q`, most relevant first. The words in `q` are looked up in
+   * the product names, brands, categories, descriptions, and notes.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void searchProducts(Context ctx) {
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME)) {
+      return;
+    }
+    String query = ctx.queryParamAsClass(QUERY_KEY, String.class)
+        .check(q -> !q.isBlank(), "Search must have a non-empty query")
+        .get();
+    int limit = ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+        .check(l -> l > 0 && l <= MAX_PAGE_SIZE, "Limit must be between 1 and " + MAX_PAGE_SIZE)
+        .getOrDefault(DEFAULT_SEARCH_LIMIT);
+
+    List<ProductSearchIndex.Hit> hits = searchIndex.search(query, limit);
+    if (hits.isEmpty()) {
+      ctx.json(List.of());
+      return;
+    }
+
+    // Fetch all the matching products in one query, and then put them
+    // back into the order of the search results.
+    List<ObjectId> ids = new ArrayList<>();
+    for (ProductSearchIndex.Hit hit : hits) {
+      ids.add(new ObjectId(hit.getId()));
+    }
+    Map<String, Product> found = new HashMap<>();
+    for (Product product : productCollection.find(in("_id", ids)).projection(FIELDS.forList(ctx))) {
+      found.put(product._id, product);
+    }
+    List<Product> ranked = new ArrayList<>();
+    for (ProductSearchIndex.Hit hit : hits) {
+      Product product = found.get(hit.getId());
+      if (product != null) {
+        ranked.add(product);
+      }
+    }
+    ctx.json(ranked);
+  }
+
+  /**
+   * Get how many of the products matching the request's filter (the
+   * same filter `getProducts` uses) fall in each category, store, and
+   * brand, most common first, as
+   * `{"category": [{"value": ..., "count": ...}, ...], "store": [...], "brand": [...]}`.
+   *
+   * All three are counted in one `$facet` aggregation. The counts are
+   * then remembered until the product collection next changes, so
+   * the same view requested again doesn't need an aggregation at all.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getProductFacets(Context ctx) {
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME)) {
+      return;
+    }
+    Bson filter = constructFilter(ctx);
+    // Read the version before aggregating, for the same reason as in `ETags`.
+    String key = changes.version(COLLECTION_NAME) + " "
+        + filter.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()).toJson();
+    ctx.json(facetCache.get(key, k -> countFacets(filter)));
+  }
+
+  private Map<String, List<Map<String, Object>>> countFacets(Bson filter) {
+    List<Facet> facets = new ArrayList<>();
+    for (String field : FACET_KEYS) {
+      facets.add(new Facet(field, Aggregates.sortByCount("$" + field)));
+    }
+    Document counted = productCollection
+        .aggregate(List.of(Aggregates.match(filter), Aggregates.facet(facets)), Document.class)
+        .first();
+
+    Map<String, List<Map<String, Object>>> result = new LinkedHashMap<>();
+    for (String field : FACET_KEYS) {
+      List<Map<String, Object>> counts = new ArrayList<>();
+      for (Document bucket : counted.getList(field, Document.class)) {
+        Map<String, Object> count = new LinkedHashMap<>();
+        count.put("value", bucket.get("_id"));
+        count.put("count", bucket.get("count"));
+        counts.add(count);
+      }
+      result.put(field, counts);
+    }
+    return result;
+  }
+
   private Bson constructFilter(Context ctx) {
     List<Bson> filters = new ArrayList<>(); // start with a blank document
     if (ctx.queryParamMap().containsKey(PRD_NAME_KEY)) {
-      filters.add(regex(PRD_NAME_KEY, Pattern.quote(ctx.queryParam(PRD_NAME_KEY)), "?i"));
+      filters.add(TextNormalizer.prefixFilter(PRD_NAME_NORMALIZED_KEY, ctx.queryParam(PRD_NAME_KEY)));
     }
     if (ctx.queryParamMap().containsKey(STORE_KEY)) {
       filters.add(eq(STORE_KEY, ctx.queryParam(STORE_KEY)));
@@ -110,6 +479,12 @@ public class ProductController {
       int targetThreshold = ctx.queryParamAsClass(THRESHOLD_KEY, Integer.class).get();
       filters.add(eq(THRESHOLD_KEY, targetThreshold));
     }
+    if (ctx.queryParamMap().containsKey(CATEGORY_KEY)) {
+      filters.add(eq(CATEGORY_KEY, ctx.queryParam(CATEGORY_KEY)));
+    }
+    if (ctx.queryParamMap().containsKey(BRAND_KEY)) {
+      filters.add(eq(BRAND_KEY, ctx.queryParam(BRAND_KEY)));
+    }
 
     // Combine the list of filters into a single filtering document.
     Bson combinedFilter = filters.isEmpty() ? new Document() : and(filters);
@@ -117,52 +492,20 @@ public class ProductController {
     return combinedFilter;
   }
 
-  private Bson constructSortingOrder(Context ctx) {
-    // Sort the results. Use the `sortby` query param (default "name")
-    // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
-    Bson sortingOrder = sortOrder.equals("desc") ? Sorts.descending(sortBy) : Sorts.ascending(sortBy);
-    return sortingOrder;
-  }
-
   /**
    * Get a JSON response with a list of all the products.
    *
    * @param ctx a Javalin HTTP context
    */
   public void addNewProduct(Context ctx) {
-    /*
-     * The follow chain of statements uses the Javalin validator system
-     * to verify that instance of `Product` provided in this context is
-     * a "legal" product. It checks the following things (in order):
-     * - The product has a value for the name (`usr.name != null`)
-     * - The product name is not blank (`usr.name.length > 0`)
-     * - The provided email is valid (matches EMAIL_REGEX)
-     * - The provided age is > 0
-     * - The provided role is valid (one of "admin", "editor", or "viewer")
-     * - A non-blank company is provided
-     */
-    Product newProduct = ctx.bodyValidator(Product.class)
-        .check(usr -> usr.productName != null && usr.productName.length() > 0,
-            "Product must have a non-empty product name")
-        .check(usr -> usr.threshold >= 0, "Product's threshold must be greater than or equal to zero")
-        .check(usr -> usr.store.matches("^(willies|coop)$"), "Product must have a legal store")
-        .check(usr -> usr.description == null || usr.description.length() > 0,
-            "validating for error?")
-        .check(usr -> usr.brand == null || usr.brand.length() > 0,
-            "validating for error?")
-        .check(usr -> usr.category == null || usr.category.length() > 0,
-            "validating for error?")
-        .check(usr -> usr.notes == null || usr.notes.length() > 0,
-            "validating for error?")
-        .check(usr -> usr.lifespan >= 0, "Product's threshold must be greater than or equal to zero")
-        .check(usr -> usr.location == null || usr.location.length() > 0,
-            "validating for error?")
-        .get();
+    // Read the new `Product`, and check that it's "legal"; see `SCHEMA`.
+    Product newProduct = SCHEMA.read(ctx);
+
+    newProduct.productNameNormalized = TextNormalizer.normalize(newProduct.productName);
 
     productCollection.insertOne(newProduct);
+    searchIndex.add(newProduct);
+    changes.publish(ChangeEvent.inserted(COLLECTION_NAME, newProduct._id, newProduct));
 
     // 201 is the HTTP code for when we successfully
     // create a new resource (a product in this case).
@@ -172,6 +515,152 @@ public class ProductController {
     ctx.json(Map.of("id", newProduct._id));
   }
 
+  /**
+   * Add many products at once, from a JSON array of products in the
+   * request body.
+   *
+   * The array is read one product at a time as it arrives, rather than
+   * all at once, so even a very large upload only needs memory for one
+   * batch. Each product gets the same checks as in `addNewProduct`; the
+   * ones that pass are written with unordered `insertMany`s of
+   * `batchSize` (default `DEFAULT_BULK_BATCH_SIZE`) products each.
+   *
+   * The response has a result for every item, in order (either its new
+   * `id` or its `errors`), along with counts and timings for the whole
+   * upload.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void addNewProducts(Context ctx) {
+    int batchSize = ctx.queryParamAsClass(BATCH_SIZE_KEY, Integer.class)
+        .check(size -> size > 0 && size <= MAX_BULK_BATCH_SIZE,
+            "The batchSize must be between 1 and " + MAX_BULK_BATCH_SIZE)
+        .getOrDefault(DEFAULT_BULK_BATCH_SIZE);
+    long start = System.nanoTime();
+
+    List<Map<String, Object>> results = new ArrayList<>();
+    List<Product> batch = new ArrayList<>(batchSize);
+    List<Map<String, Object>> batchResults = new ArrayList<>(batchSize);
+    int batches = 0;
+
+    try (JsonParser parser = MAPPER.getFactory().createParser(ctx.req.getInputStream())) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new BadRequestResponse("The body must be a JSON array of products");
+      }
+      for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+        if (token == null) {
+          throw new BadRequestResponse("The JSON array of products ended early");
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("index", results.size());
+        results.add(result);
+
+        // Reading each item as a tree first means a bad item can't
+        // leave the parser part way through it.
+        JsonNode item = parser.readValueAsTree();
+        Product product;
+        try {
+          product = MAPPER.treeToValue(item, Product.class);
+        } catch (JsonProcessingException e) {
+          result.put("errors", List.of("Couldn't read a product: " + e.getOriginalMessage()));
+          continue;
+        }
+        List<String> errors = SCHEMA.violations(product);
+        if (!errors.isEmpty()) {
+          result.put("errors", errors);
+          continue;
+        }
+
+        product.productNameNormalized = TextNormalizer.normalize(product.productName);
+        batch.add(product);
+        batchResults.add(result);
+        if (batch.size() == batchSize) {
+          insertBatch(batch, batchResults);
+          batches++;
+        }
+      }
+    } catch (IOException e) {
+      // Any batches already written stay written; the client can tell
+      // which from the message and retry the rest.
+      throw new BadRequestResponse("The body isn't a legal JSON array of products ("
+          + countInserted(results) + " were added before the error): " + e.getMessage());
+    }
+    if (!batch.isEmpty()) {
+      insertBatch(batch, batchResults);
+      batches++;
+    }
+
+    long elapsedNanos = System.nanoTime() - start;
+    double elapsedSeconds = (double) elapsedNanos / TimeUnit.SECONDS.toNanos(1);
+    long inserted = countInserted(results);
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("items", results.size());
+    stats.put("inserted", inserted);
+    stats.put("failed", results.size() - inserted);
+    stats.put("batches", batches);
+    stats.put("batchSize", batchSize);
+    stats.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+    stats.put("itemsPerSecond", results.size() / elapsedSeconds);
+
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("stats", stats);
+    response.put("results", results);
+    ctx.json(response);
+  }
+
+  private static long countInserted(List<Map<String, Object>> results) {
+    return results.stream().filter(result -> result.containsKey("id")).count();
+  }
+
+  /**
+   * Insert a batch of (valid) products in one unordered `insertMany`,
+   * recording each one's id or error in its result, and then empty the
+   * batch.
+   */
+  private void insertBatch(List<Product> batch, List<Map<String, Object>> batchResults) {
+    Map<Integer, String> failures = new HashMap<>();
+    try {
+      // Unordered, so one bad product (e.g., a duplicate id) doesn't stop
+      // the rest of the batch from being written.
+      productCollection.insertMany(batch, new InsertManyOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      for (BulkWriteError error : e.getWriteErrors()) {
+        failures.put(error.getIndex(), error.getMessage());
+      }
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      Product product = batch.get(i);
+      if (failures.containsKey(i)) {
+        batchResults.get(i).put("errors", List.of(failures.get(i)));
+      } else {
+        batchResults.get(i).put("id", product._id);
+        searchIndex.add(product);
+        changes.publish(ChangeEvent.inserted(COLLECTION_NAME, product._id, product));
+      }
+    }
+    batch.clear();
+    batchResults.clear();
+  }
+
+  /**
+   * Change some of the fields of the product specified by the `id`
+   * parameter in the request; see `PatchRules` for the form of the body.
+   * Only the changed fields are checked and sent to the database, and
+   * the response is the whole product after the change.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void updateProduct(Context ctx) {
+    String id = ctx.pathParam("id");
+    PartialUpdate update = PATCH_RULES.parse(ctx);
+    Product before = update.updateOne(productCollection, id, "product");
+    Product after = update.applyTo(before, Product.class);
+    productCache.invalidate(new ObjectId(id));
+    searchIndex.update(before, after);
+    changes.publish(ChangeEvent.updated(COLLECTION_NAME, id, before, after));
+    ctx.json(after);
+  }
+
   /**
    * Delete the product specified by the `id` parameter in the request.
    *
@@ -179,12 +668,24 @@ public class ProductController {
    */
   public void deleteProduct(Context ctx) {
     String id = ctx.pathParam("id");
-    DeleteResult deleteResult = productCollection.deleteOne(eq("_id", new ObjectId(id)));
-    if (deleteResult.getDeletedCount() != 1) {
+    Product deleted = productCollection.findOneAndDelete(eq("_id", new ObjectId(id)));
+    productCache.invalidate(new ObjectId(id));
+    searchIndex.remove(id);
+    if (deleted == null) {
       throw new NotFoundResponse(
           "Was unable to delete ID "
               + id
               + "; perhaps illegal ID or an ID for an item not in the system?");
     }
+    changes.publish(ChangeEvent.deleted(COLLECTION_NAME, id, deleted));
+  }
+
+  /**
+   * Report how well the single-product cache is doing.
+   *
+   * @return the cache's size and its hit, miss, and eviction counts
+   */
+  public Map<String, Object> cacheStats() {
+    return productCache.stats();
   }
 }
@@ -0,0 +1,388 @@
+package umm3601.product;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import umm3601.text.TextNormalizer;
+
+/**
+ * An in-memory inverted index for ranked full-text search over
+ * products.
+ *
+ * For every term (normalized word) we keep a "posting list" of the
+ * products containing it, and how often. A search looks up the posting
+ * lists of the query's terms and ranks the products they contain with
+ * BM25, the standard relevance formula used by most search engines.
+ * Words in the product name count more than words in the description.
+ *
+ * Posting lists are pairs of growable `int[]` arrays (product numbers
+ * and weighted term counts), so a million products take a few tens of
+ * megabytes and a search touches only the products that contain one
+ * of the query terms.
+ *
+ * Products are numbered in the order they are added, so posting lists
+ * stay sorted for free. Removing a product just marks its number as
+ * deleted, and so does replacing one, which adds it again under a new
+ * number; once enough of the index is deleted we rebuild the posting
+ * lists without the dead entries.
+ *
+ * Searches can run concurrently with each other; adds and removes
+ * wait for running searches to finish.
+ */
+public class ProductSearchIndex {
+
+  // The usual BM25 tuning constants: how quickly repeated terms stop
+  // adding to the score, and how much to penalize long documents.
+  private static final float K1 = 1.2f;
+  private static final float B = 0.75f;
+  // Keeps the IDF of a term that is in every product from going negative.
+  private static final double IDF_SMOOTHING = 0.5;
+
+  // How much a match in each field counts.
+  private static final int NAME_WEIGHT = 3;
+  private static final int BRAND_WEIGHT = 2;
+  private static final int CATEGORY_WEIGHT = 2;
+  private static final int TEXT_WEIGHT = 1;
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+  /**
+   * One search result: a product id and its relevance score.
+   */
+  public static final class Hit {
+    private final String id;
+    private final float score;
+
+    Hit(String id, float score) {
+      this.id = id;
+      this.score = score;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public float getScore() {
+      return score;
+    }
+  }
+
+  /**
+   * The products containing one term, in increasing product number order.
+   */
+  private static final class Postings {
+    private int[] docs = new int[2];
+    private int[] freqs = new int[2];
+    private int size;
+
+    void add(int doc, int freq) {
+      if (size == docs.length) {
+        docs = Arrays.copyOf(docs, size * 2);
+        freqs = Arrays.copyOf(freqs, size * 2);
+      }
+      docs[size] = doc;
+      freqs[size] = freq;
+      size++;
+    }
+  }
+
+  /**
+   * Per-thread scratch space for adding up scores, reused between
+   * searches so that a search doesn't allocate an array the size of
+   * the whole index.
+   */
+  private static final class Accumulator {
+    private float[] scores = new float[INITIAL_CAPACITY];
+    private int[] touched = new int[INITIAL_CAPACITY];
+    private int touchedCount;
+
+    void ensureCapacity(int docs) {
+      if (scores.length < docs) {
+        scores = new float[Math.max(docs, scores.length * 2)];
+      }
+    }
+
+    void add(int doc, float score) {
+      if (scores[doc] == 0) {
+        if (touchedCount == touched.length) {
+          touched = Arrays.copyOf(touched, touchedCount * 2);
+        }
+        touched[touchedCount++] = doc;
+      }
+      scores[doc] += score;
+    }
+
+    void clear() {
+      for (int i = 0; i < touchedCount; i++) {
+        scores[touched[i]] = 0;
+      }
+      touchedCount = 0;
+    }
+  }
+
+  private final ThreadLocal<Accumulator> accumulators = ThreadLocal.withInitial(Accumulator::new);
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final Map<String, Postings> terms = new HashMap<>();
+  private final Map<String, Integer> docNumbers = new HashMap<>();
+  private String[] ids = new String[INITIAL_CAPACITY];
+  private int[] lengths = new int[INITIAL_CAPACITY];
+  private final BitSet deleted = new BitSet();
+  private int docCount;
+  private int liveCount;
+  private long totalLength;
+
+  /**
+   * Add a product to the index (replacing it, if it's already there).
+   *
+   * @param product the product to add; it must have an `_id`
+   */
+  public void add(Product product) {
+    Map<String, Integer> counts = termCounts(product);
+    lock.writeLock().lock();
+    try {
+      if (removeLocked(product._id)) {
+        compactIfSparse();
+      }
+      int doc = docCount++;
+      if (doc == ids.length) {
+        ids = Arrays.copyOf(ids, doc * 2);
+        lengths = Arrays.copyOf(lengths, doc * 2);
+      }
+      ids[doc] = product._id;
+      docNumbers.put(product._id, doc);
+      int length = 0;
+      for (Map.Entry<String, Integer> count : counts.entrySet()) {
+        terms.computeIfAbsent(count.getKey(), term -> new Postings()).add(doc, count.getValue());
+        length += count.getValue();
+      }
+      lengths[doc] = length;
+      totalLength += length;
+      liveCount++;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replace a product that has changed, unless none of the text we
+   * index has; most edits (e.g., of the threshold) don't touch it.
+   *
+   * @param before the product before the change
+   * @param after the product after the change
+   */
+  public void update(Product before, Product after) {
+    if (before != null && before._id.equals(after._id) && termCounts(before).equals(termCounts(after))) {
+      return;
+    }
+    add(after);
+  }
+
+  /**
+   * Remove a product from the index.
+   *
+   * @param id the id of the product to remove
+   * @return true if the product was in the index
+   */
+  public boolean remove(String id) {
+    lock.writeLock().lock();
+    try {
+      boolean removed = removeLocked(id);
+      if (removed) {
+        compactIfSparse();
+      }
+      return removed;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * How many product numbers are in use, deleted or not.
+   */
+  int slots() {
+    lock.readLock().lock();
+    try {
+      return docCount;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * How many products are in the index.
+   *
+   * @return the number of (not deleted) products
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return liveCount;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Find the products most relevant to a query.
+   *
+   * @param query the words to search for
+   * @param limit the most results to return
+   * @return the best matching products, most relevant first
+   */
+  public List<Hit> search(String query, int limit) {
+    String[] queryTerms = tokenize(query).stream().distinct().toArray(String[]::new);
+    if (queryTerms.length == 0 || limit <= 0) {
+      return List.of();
+    }
+    Accumulator accumulator = accumulators.get();
+    lock.readLock().lock();
+    try {
+      accumulator.ensureCapacity(docCount);
+      float averageLength = liveCount == 0 ? 1 : (float) totalLength / liveCount;
+      for (String term : queryTerms) {
+        Postings postings = terms.get(term);
+        if (postings != null) {
+          score(postings, averageLength, accumulator);
+        }
+      }
+      return topHits(accumulator, limit);
+    } finally {
+      accumulator.clear();
+      lock.readLock().unlock();
+    }
+  }
+
+  private void score(Postings postings, float averageLength, Accumulator accumulator) {
+    // Deleted products stay in posting lists until we compact, so the
+    // list can be a little longer than the number of products left.
+    int docFrequency = Math.min(postings.size, liveCount);
+    float idf = (float) Math.log(1 + (liveCount - docFrequency + IDF_SMOOTHING) / (docFrequency + IDF_SMOOTHING));
+    for (int i = 0; i < postings.size; i++) {
+      int doc = postings.docs[i];
+      if (!deleted.get(doc)) {
+        float tf = postings.freqs[i];
+        float norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+        accumulator.add(doc, idf * tf * (K1 + 1) / (tf + norm));
+      }
+    }
+  }
+
+  private List<Hit> topHits(Accumulator accumulator, int limit) {
+    // A min-heap of the best `limit` documents seen so far.
+    PriorityQueue<Hit> best = new PriorityQueue<>(limit, (a, b) -> Float.compare(a.score, b.score));
+    for (int i = 0; i < accumulator.touchedCount; i++) {
+      int doc = accumulator.touched[i];
+      float score = accumulator.scores[doc];
+      if (best.size() < limit) {
+        best.add(new Hit(ids[doc], score));
+      } else if (score > best.peek().score) {
+        best.poll();
+        best.add(new Hit(ids[doc], score));
+      }
+    }
+    List<Hit> hits = new ArrayList<>(best);
+    hits.sort((a, b) -> Float.compare(b.score, a.score));
+    return hits;
+  }
+
+  private boolean removeLocked(String id) {
+    Integer doc = docNumbers.remove(id);
+    if (doc == null) {
+      return false;
+    }
+    deleted.set(doc);
+    totalLength -= lengths[doc];
+    liveCount--;
+    return true;
+  }
+
+  private void compactIfSparse() {
+    if (deleted.cardinality() > liveCount) {
+      compact();
+    }
+  }
+
+  /**
+   * Rebuild the index without the deleted products, renumbering the
+   * rest (in the same order, so posting lists stay sorted).
+   */
+  private void compact() {
+    int[] renumber = new int[docCount];
+    int next = 0;
+    for (int doc = 0; doc < docCount; doc++) {
+      if (deleted.get(doc)) {
+        renumber[doc] = -1;
+      } else {
+        renumber[doc] = next;
+        ids[next] = ids[doc];
+        lengths[next] = lengths[doc];
+        docNumbers.put(ids[next], next);
+        next++;
+      }
+    }
+    Arrays.fill(ids, next, docCount, null);
+    terms.values().removeIf(postings -> {
+      int kept = 0;
+      for (int i = 0; i < postings.size; i++) {
+        int doc = renumber[postings.docs[i]];
+        if (doc >= 0) {
+          postings.docs[kept] = doc;
+          postings.freqs[kept] = postings.freqs[i];
+          kept++;
+        }
+      }
+      postings.size = kept;
+      return kept == 0;
+    });
+    docCount = next;
+    deleted.clear();
+  }
+
+  private static Map<String, Integer> termCounts(Product product) {
+    Map<String, Integer> counts = new LinkedHashMap<>();
+    addTerms(counts, product.productName, NAME_WEIGHT);
+    addTerms(counts, product.brand, BRAND_WEIGHT);
+    addTerms(counts, product.category, CATEGORY_WEIGHT);
+    addTerms(counts, product.description, TEXT_WEIGHT);
+    addTerms(counts, product.notes, TEXT_WEIGHT);
+    return counts;
+  }
+
+  private static void addTerms(Map<String, Integer> counts, String text, int weight) {
+    for (String term : tokenize(text)) {
+      counts.merge(term, weight, Integer::sum);
+    }
+  }
+
+  /**
+   * Split text into normalized search terms.
+   *
+   * @param text the text to split (may be `null`)
+   * @return the terms, in order (with repeats)
+   */
+  static List<String> tokenize(String text) {
+    String normalized = TextNormalizer.normalize(text);
+    if (normalized == null || normalized.isEmpty()) {
+      return List.of();
+    }
+    List<String> tokens = new ArrayList<>();
+    for (String token : NON_WORD.split(normalized)) {
+      if (!token.isEmpty()) {
+        tokens.add(token);
+      }
+    }
+    return tokens;
+  }
+}
@@ -0,0 +1,140 @@
+package umm3601.projection;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.mongodb.client.model.Projections;
+
+import org.bson.conversions.Bson;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+
+/**
+ * Turns the `fields` query parameter into a MongoDB projection, so
+ * fields the client didn't ask for never leave the database (and never
+ * get deserialized into our POJOs or serialized into the response).
+ *
+ * `fields` can be:
+ *
+ *   - a comma-separated list of field names, e.g. `fields=productName,store`
+ *   - `summary`, the compact set of fields the list views need
+ *   - `all`, every field
+ *
+ * List requests default to `summary` and single-item requests default
+ * to `all`. `_id` is always included.
+ */
+public final class FieldSelection {
+
+  private static final String FIELDS_KEY = "fields";
+  private static final String ALL = "all";
+  private static final String SUMMARY = "summary";
+
+  private final Set<String> selectable;
+  private final List<String> summary;
+
+  private FieldSelection(Set<String> selectable, List<String> summary) {
+    this.selectable = selectable;
+    this.summary = summary;
+  }
+
+  /**
+   * Build a field selection for the given MongoJack POJO class. Every
+   * public instance field of the class may be selected.
+   *
+   * @param type the POJO class whose documents are being projected
+   * @param summary the fields in the `summary` projection; if this is
+   *  empty then `summary` means every field
+   * @return a field selection for that class
+   */
+  public static FieldSelection of(Class<?> type, String... summary) {
+    Set<String> selectable = Arrays.stream(type.getFields())
+        .filter(field -> !Modifier.isStatic(field.getModifiers()))
+        .map(Field::getName)
+        .collect(Collectors.toCollection(LinkedHashSet::new));
+    for (String field : summary) {
+      if (!selectable.contains(field)) {
+        throw new IllegalArgumentException(type.getSimpleName() + " has no field " + field);
+      }
+    }
+    return new FieldSelection(selectable, List.of(summary));
+  }
+
+  /**
+   * The projection for a list request, which defaults to `summary`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param required fields that must be included whatever the client
+   *  asked for (e.g., the field a page is sorted by)
+   * @return the projection, or `null` to return every field
+   */
+  public Bson forList(Context ctx, String... required) {
+    return projection(ctx, SUMMARY, required);
+  }
+
+  /**
+   * The projection for a single-item request, which defaults to `all`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the projection, or `null` to return every field
+   */
+  public Bson forItem(Context ctx) {
+    return projection(ctx, ALL);
+  }
+
+  /**
+   * Did the client pick the fields, rather than getting the default?
+   *
+   * @param ctx a Javalin HTTP context
+   * @return true if the request has a `fields` query parameter
+   */
+  public static boolean requested(Context ctx) {
+    return ctx.queryParamMap().containsKey(FIELDS_KEY);
+  }
+
+  private Bson projection(Context ctx, String defaultFields, String... required) {
+    String requested = ctx.queryParamMap().containsKey(FIELDS_KEY) ? ctx.queryParam(FIELDS_KEY) : defaultFields;
+    List<String> fields;
+    if (ALL.equals(requested)) {
+      return null;
+    } else if (SUMMARY.equals(requested)) {
+      if (summary.isEmpty()) {
+        return null;
+      }
+      fields = new ArrayList<>(summary);
+    } else {
+      fields = parse(requested);
+    }
+    for (String field : required) {
+      if (!fields.contains(field)) {
+        fields.add(field);
+      }
+    }
+    return Projections.include(fields);
+  }
+
+  private List<String> parse(String requested) {
+    List<String> fields = new ArrayList<>();
+    for (String field : requested.split(",")) {
+      String name = field.trim();
+      if (name.isEmpty()) {
+        continue;
+      }
+      if (!selectable.contains(name)) {
+        throw new BadRequestResponse("Unknown field `" + name + "`; fields can be `all`, `summary`, or any of "
+            + String.join(", ", selectable));
+      }
+      fields.add(name);
+    }
+    if (fields.isEmpty()) {
+      throw new BadRequestResponse("The `fields` parameter must name at least one field");
+    }
+    return fields;
+  }
+}
@@ -0,0 +1,323 @@
+package umm3601.shoppingList;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import umm3601.events.ChangeEvent;
+import umm3601.pantry.InventoryCounts;
+import umm3601.product.ProductController;
+import umm3601.text.TextNormalizer;
+
+/**
+ * Puts products we're running low on onto the shopping list.
+ *
+ * A product is low when the pantry has fewer of it (see
+ * `InventoryCounts`) than its `threshold`, and then we want the
+ * difference on the shopping list, at the product's store. Running
+ * this sets each such item's quantity to *at least* that difference
+ * (with `$max`), rather than adding to it, so running it again changes
+ * nothing, and it never takes away anything someone added by hand.
+ * Products that share a name and store share one item, which gets the
+ * largest of their shortfalls.
+ *
+ * The products with a threshold are read in batches (by the index on
+ * `threshold`). For each batch their counts and their existing shopping
+ * list items are each fetched with one `$in` query, and only the items
+ * that need to change are written, in one unordered bulk write. When
+ * nothing is low, a run is just those reads.
+ */
+public class LowStockItems {
+
+  /**
+   * How many products each pass looks at.
+   */
+  public static final int BATCH_SIZE = 1000;
+
+  private static final String PRODUCTNAME_KEY = "productName";
+  private static final String PRODUCTNAME_NORMALIZED_KEY = "productNameNormalized";
+  private static final String STORE_KEY = "store";
+  private static final String QUANTITY_KEY = "quantity";
+  private static final String THRESHOLD_KEY = "threshold";
+  private static final String COUNT_KEY = "count";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LowStockItems.class);
+
+  /**
+   * What one run did: how many products it checked, and how many items
+   * it added to or raised the quantity of at each store.
+   */
+  public static final class Result {
+    private int checked;
+    private final List<ChangeEvent> changes = new ArrayList<>();
+    private final Map<String, Map<String, Integer>> stores = new LinkedHashMap<>();
+
+    /**
+     * The changes made to the shopping list, so the controller can
+     * announce them.
+     *
+     * @return an event for each item added or changed
+     */
+    public List<ChangeEvent> getChanges() {
+      return changes;
+    }
+
+    /**
+     * A summary for the response to `POST /api/shoppingList/generate`.
+     *
+     * @return the number of products checked, items added and raised,
+     *  and those numbers for each store
+     */
+    public Map<String, Object> summary() {
+      int added = 0;
+      int raised = 0;
+      for (Map<String, Integer> store : stores.values()) {
+        added += store.get("added");
+        raised += store.get("raised");
+      }
+      return Map.of("checked", checked, "added", added, "raised", raised, "stores", stores);
+    }
+
+    private void record(String store, String what) {
+      stores.computeIfAbsent(store, name -> new LinkedHashMap<>(Map.of("added", 0, "raised", 0)))
+          .merge(what, 1, Integer::sum);
+    }
+  }
+
+  /**
+   * One shopping list item we want: a name and store, and how many.
+   */
+  private static final class Want {
+    private final String productName;
+    private final String normalizedName;
+    private final String store;
+    private int quantity;
+
+    Want(String productName, String normalizedName, String store, int quantity) {
+      this.productName = productName;
+      this.normalizedName = normalizedName;
+      this.store = store;
+      this.quantity = quantity;
+    }
+  }
+
+  private final MongoCollection<Document> products;
+  private final MongoCollection<Document> inventory;
+  private final MongoCollection<Document> shoppingList;
+
+  /**
+   * Construct a generator for the shopping list in the given database.
+   *
+   * @param database the database containing the products, their
+   *  pantry counts, and the shopping list
+   */
+  public LowStockItems(MongoDatabase database) {
+    products = database.getCollection(ProductController.COLLECTION_NAME);
+    inventory = database.getCollection(InventoryCounts.COLLECTION_NAME);
+    shoppingList = database.getCollection(ShoppingListController.COLLECTION_NAME);
+  }
+
+  /**
+   * Bring the shopping list up to date with what's running low. Runs
+   * don't overlap; a second caller waits for the first to finish.
+   *
+   * @return what changed
+   */
+  public synchronized Result generate() {
+    Result result = new Result();
+    List<Document> batch = new ArrayList<>(BATCH_SIZE);
+    try (MongoCursor<Document> cursor = products
+        .find(gt(THRESHOLD_KEY, 0))
+        .projection(include(PRODUCTNAME_KEY, STORE_KEY, THRESHOLD_KEY))
+        .batchSize(BATCH_SIZE)
+        .iterator()) {
+      while (cursor.hasNext()) {
+        batch.add(cursor.next());
+        if (batch.size() == BATCH_SIZE) {
+          generateBatch(batch, result);
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      generateBatch(batch, result);
+    }
+    if (!result.changes.isEmpty()) {
+      LOGGER.info("Put {} low-stock items on the shopping list", result.changes.size());
+    }
+    return result;
+  }
+
+  private void generateBatch(List<Document> batch, Result result) {
+    result.checked += batch.size();
+    List<String> ids = new ArrayList<>(batch.size());
+    for (Document product : batch) {
+      ids.add(product.get("_id").toString());
+    }
+    Map<String, Integer> counts = new HashMap<>();
+    for (Document count : inventory.find(in("_id", ids))) {
+      counts.put(count.getString("_id"), ((Number) count.get(COUNT_KEY)).intValue());
+    }
+
+    Map<String, Want> wants = new LinkedHashMap<>();
+    for (Document product : batch) {
+      String name = product.getString(PRODUCTNAME_KEY);
+      String store = product.getString(STORE_KEY);
+      if (name == null || name.isEmpty() || store == null || store.isEmpty()) {
+        continue;
+      }
+      int shortfall = ((Number) product.get(THRESHOLD_KEY)).intValue()
+          - counts.getOrDefault(product.get("_id").toString(), 0);
+      if (shortfall > 0) {
+        String normalized = TextNormalizer.normalize(name);
+        Want want = wants.computeIfAbsent(normalized + "\n" + store,
+            key -> new Want(name, normalized, store, 0));
+        want.quantity = Math.max(want.quantity, shortfall);
+      }
+    }
+    batch.clear();
+    if (wants.isEmpty()) {
+      return;
+    }
+
+    Map<String, Document> existing = new HashMap<>();
+    List<String> names = wants.values().stream().map(want -> want.normalizedName).distinct()
+        .collect(Collectors.toList());
+    for (Document item : shoppingList.find(in(PRODUCTNAME_NORMALIZED_KEY, names))) {
+      existing.put(item.getString(PRODUCTNAME_NORMALIZED_KEY) + "\n" + item.getString(STORE_KEY), item);
+    }
+
+    List<WriteModel<Document>> writes = new ArrayList<>();
+    List<ChangeEvent> changes = new ArrayList<>();
+    List<Want> written = new ArrayList<>();
+    for (Map.Entry<String, Want> entry : wants.entrySet()) {
+      Want want = entry.getValue();
+      Document item = existing.get(entry.getKey());
+      if (item == null) {
+        // Upsert rather than insert, in case someone adds the same item
+        // meanwhile; then we just make sure it's enough.
+        ObjectId id = new ObjectId();
+        writes.add(new UpdateOneModel<>(
+            and(eq(PRODUCTNAME_NORMALIZED_KEY, want.normalizedName), eq(STORE_KEY, want.store)),
+            Updates.combine(
+                Updates.max(QUANTITY_KEY, want.quantity),
+                Updates.setOnInsert("_id", id),
+                Updates.setOnInsert(PRODUCTNAME_KEY, want.productName),
+                Updates.setOnInsert(PRODUCTNAME_NORMALIZED_KEY, want.normalizedName),
+                Updates.setOnInsert(STORE_KEY, want.store)),
+            new UpdateOptions().upsert(true)));
+        changes.add(ChangeEvent.inserted(ShoppingListController.COLLECTION_NAME, id.toHexString(),
+            toShoppingList(id.toHexString(), want.productName, want.normalizedName, want.store, want.quantity)));
+        written.add(want);
+      } else if (quantityOf(item) < want.quantity) {
+        String id = item.getObjectId("_id").toHexString();
+        writes.add(new UpdateOneModel<>(eq("_id", item.get("_id")), Updates.max(QUANTITY_KEY, want.quantity)));
+        ShoppingList before = toShoppingList(id, item.getString(PRODUCTNAME_KEY),
+            item.getString(PRODUCTNAME_NORMALIZED_KEY), want.store, quantityOf(item));
+        ShoppingList after = toShoppingList(id, before.productName, before.productNameNormalized,
+            want.store, want.quantity);
+        changes.add(ChangeEvent.updated(ShoppingListController.COLLECTION_NAME, id, before, after));
+        written.add(want);
+      }
+    }
+    if (writes.isEmpty()) {
+      return;
+    }
+
+    Set<Integer> failed = new HashSet<>();
+    BulkWriteResult bulkResult;
+    try {
+      bulkResult = shoppingList.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      // E.g., an upsert racing someone else's add of the same item. The
+      // rest went through, and the next run will catch these up.
+      e.getWriteErrors().forEach(error -> failed.add(error.getIndex()));
+      LOGGER.warn("{} low-stock shopping list writes failed: {}", failed.size(), e.getMessage());
+      bulkResult = e.getWriteResult();
+    }
+    Set<Integer> inserted = bulkResult.getUpserts().stream()
+        .map(BulkWriteUpsert::getIndex)
+        .collect(Collectors.toSet());
+    for (int i = 0; i < changes.size(); i++) {
+      if (failed.contains(i)) {
+        continue;
+      }
+      ChangeEvent change = changes.get(i);
+      if (change.getType() == ChangeEvent.Type.INSERTED && !inserted.contains(i)) {
+        // The upsert found an item someone added since we looked, so our
+        // `_id` was never used; report the change to theirs instead.
+        change = raisedByUpsert(written.get(i));
+        if (change == null) {
+          continue;
+        }
+      }
+      result.changes.add(change);
+      result.record(written.get(i).store, change.getType() == ChangeEvent.Type.INSERTED ? "added" : "raised");
+    }
+  }
+
+  /**
+   * The change to an item that an upsert updated rather than inserted.
+   * We don't know what its quantity was before, so the event's before
+   * and after are both the item as it is now; that's enough for
+   * listeners to know it changed.
+   */
+  private ChangeEvent raisedByUpsert(Want want) {
+    Document item = shoppingList
+        .find(and(eq(PRODUCTNAME_NORMALIZED_KEY, want.normalizedName), eq(STORE_KEY, want.store)))
+        .first();
+    if (item == null) {
+      return null;
+    }
+    String id = item.getObjectId("_id").toHexString();
+    ShoppingList now = toShoppingList(id, item.getString(PRODUCTNAME_KEY),
+        item.getString(PRODUCTNAME_NORMALIZED_KEY), want.store, quantityOf(item));
+    return ChangeEvent.updated(ShoppingListController.COLLECTION_NAME, id, now, now);
+  }
+
+  /**
+   * An item's quantity, or 0 if it doesn't have one.
+   */
+  private static int quantityOf(Document item) {
+    Number quantity = (Number) item.get(QUANTITY_KEY);
+    return quantity == null ? 0 : quantity.intValue();
+  }
+
+  private static ShoppingList toShoppingList(String id, String productName, String normalizedName,
+      String store, int quantity) {
+    ShoppingList item = new ShoppingList();
+    item._id = id;
+    item.productName = productName;
+    item.productNameNormalized = normalizedName;
+    item.store = store;
+    item.quantity = quantity;
+    return item;
+  }
+}
@@ -1,5 +1,7 @@
 package umm3601.shoppingList;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import org.mongojack.Id;
 import org.mongojack.ObjectId;
 
@@ -29,6 +31,16 @@ public class ShoppingList {
   public String _id;
 
   public String productName;
+
+  // The normalized (lowercase, unaccented) form of `productName`, which
+  // searches by productName use; see `TextNormalizer`. The server fills
+  // this in, so clients never need to send it.
+  public String productNameNormalized;
+
   public String store;
-  public int quantity;
+
+  // `null`, and left out of the JSON, when a projection left it out (see
+  // `FieldSelection`), rather than a 0.
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Integer quantity;
 }
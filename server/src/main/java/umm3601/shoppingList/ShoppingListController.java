@@ -2,28 +2,60 @@ package umm3601.shoppingList;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Filters.regex;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.Sorts;
-import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 
 import org.bson.Document;
 import org.bson.UuidRepresentation;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
+import umm3601.cache.DocumentCache;
+import umm3601.cache.ETags;
+import umm3601.events.ChangeBus;
+import umm3601.events.ChangeEvent;
+import umm3601.patch.PartialUpdate;
+import umm3601.patch.PatchRules;
+import umm3601.projection.FieldSelection;
+import umm3601.sorting.SortPlanner;
+import umm3601.streaming.JsonStreaming;
+import umm3601.text.NormalizedFieldMigration;
+import umm3601.text.TextNormalizer;
+import umm3601.validation.BodySchema;
 
 /**
  * Controller that manages requests for info about shoppingLists.
@@ -32,21 +64,114 @@ public class ShoppingListController {
 
   private static final String QUANTITY_KEY = "quantity";
   private static final String PRODUCTNAME_KEY = "productName";
+  private static final String PRODUCTNAME_NORMALIZED_KEY = "productNameNormalized";
   private static final String STORE_KEY = "store";
+  private static final String MERGE_KEY = "merge";
+
+  // MongoDB's error code for a write that breaks a unique index.
+  private static final int DUPLICATE_KEY_ERROR = 11000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ShoppingListController.class);
+
+  /**
+   * The name of the MongoDB collection holding the shopping list items.
+   */
+  public static final String COLLECTION_NAME = "shoppingList";
+
+  /**
+   * The indexes that the queries in this controller rely on. `Server.main`
+   * hands these to an `IndexManager`, which creates any that are missing.
+   */
+  public static final List<IndexModel> INDEXES = List.of(
+      // There's only ever one item per (normalized) product name and
+      // store, so that merging adds (`?merge=true`) can safely upsert;
+      // see `mergeDuplicateItems()`.
+      new IndexModel(Indexes.ascending(PRODUCTNAME_NORMALIZED_KEY, STORE_KEY), new IndexOptions().unique(true)),
+      // These serve sorting (see `SORTS`), with `_id` to break ties, as
+      // well as name searches.
+      new IndexModel(Indexes.ascending(PRODUCTNAME_NORMALIZED_KEY, "_id")),
+      new IndexModel(Indexes.ascending(STORE_KEY, "_id")),
+      new IndexModel(Indexes.ascending(QUANTITY_KEY, "_id")),
+      new IndexModel(Indexes.ascending(PRODUCTNAME_KEY, "_id")),
+      // These serve filtering by store or quantity, sorted by name.
+      new IndexModel(Indexes.ascending(STORE_KEY, PRODUCTNAME_KEY, "_id")),
+      new IndexModel(Indexes.ascending(QUANTITY_KEY, PRODUCTNAME_KEY, "_id")));
+
+  // What lists of items can be sorted by, given their filters.
+  private static final SortPlanner SORTS = new SortPlanner(INDEXES, PRODUCTNAME_KEY, STORE_KEY, QUANTITY_KEY)
+      .searchedBy(PRODUCTNAME_KEY, PRODUCTNAME_NORMALIZED_KEY);
+
+  // The fields a client can pick with `fields=`. These documents are
+  // all small, so the list summary is just every field.
+  private static final FieldSelection FIELDS = FieldSelection.of(ShoppingList.class);
+
+  // The stores an item can be bought at.
+  private static final Set<String> STORES = Set.of("willies", "coop");
+
+  // What a new item has to look like.
+  private static final BodySchema<ShoppingList> SCHEMA = BodySchema.of(ShoppingList.class)
+      .text(PRODUCTNAME_KEY, item -> item.productName, "ShoppingList must have a non-empty shoppingList name")
+      .oneOf(STORE_KEY, item -> item.store, STORES, "Item must have a legal store")
+      .number(QUANTITY_KEY, item -> item.quantity, 1, "ShoppingList Quantity must be greater than zero");
+
+  // What `PATCH /api/shoppingList/{id}` may change, and the rules the
+  // new values must follow (the same as for a new item). `quantity` can
+  // also be incremented, e.g., `{"$inc": {"quantity": -1}}`.
+  private static final PatchRules PATCH_RULES = new PatchRules()
+      .text(PRODUCTNAME_KEY, name -> name.length() > 0, "ShoppingList must have a non-empty shoppingList name")
+      .derive(PRODUCTNAME_KEY, PRODUCTNAME_NORMALIZED_KEY, name -> TextNormalizer.normalize((String) name))
+      .text(STORE_KEY, STORES::contains, "Item must have a legal store")
+      .number(QUANTITY_KEY, 1, "ShoppingList Quantity must be greater than zero");
 
   private final JacksonMongoCollection<ShoppingList> shoppingListCollection;
 
+  // Where we announce every insert and delete; its per-collection
+  // versions are also what our ETags are made from.
+  private final ChangeBus changes;
+
+  // Single-shoppingList lookups (without `fields=`) are served from here when we can.
+  private final DocumentCache<ShoppingList> shoppingListCache =
+      new DocumentCache<>(COLLECTION_NAME, ShoppingList.class);
+
+  // Adds what we're running low on; see `generateLowStockItems()`.
+  private final LowStockItems lowStockItems;
+
   /**
    * Construct a controller for shoppingLists.
    *
    * @param database the database containing shoppingList data
    */
   public ShoppingListController(MongoDatabase database) {
+    this(database, new ChangeBus());
+  }
+
+  /**
+   * Construct a controller for shoppingLists that announces its changes.
+   *
+   * @param database the database containing shoppingList data
+   * @param changes where to publish every insert and delete
+   */
+  public ShoppingListController(MongoDatabase database, ChangeBus changes) {
+    this.changes = changes;
     shoppingListCollection = JacksonMongoCollection.builder().build(
         database,
-        "shoppingList",
+        COLLECTION_NAME,
         ShoppingList.class,
         UuidRepresentation.STANDARD);
+    lowStockItems = new LowStockItems(database);
+  }
+
+  /**
+   * Fill in `productNameNormalized` for any shopping list items that don't have it yet (e.g.,
+   * ones loaded straight into the database, like the seed data), so
+   * that searches by productName find them.
+   *
+   * @param database the database containing shoppingList data
+   * @return how many documents were updated
+   */
+  public static long backfillNormalizedFields(MongoDatabase database) {
+    return NormalizedFieldMigration.backfill(
+        database.getCollection(COLLECTION_NAME), PRODUCTNAME_KEY, PRODUCTNAME_NORMALIZED_KEY);
   }
 
   /**
@@ -55,11 +180,23 @@ public class ShoppingListController {
    * @param ctx a Javalin HTTP context
    */
   public void getShoppingList(Context ctx) {
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME)) {
+      return;
+    }
     String id = ctx.pathParam("id");
     ShoppingList shoppingList;
 
     try {
-      shoppingList = shoppingListCollection.find(eq("_id", new ObjectId(id))).first();
+      ObjectId objectId = new ObjectId(id);
+      if (FieldSelection.requested(ctx)) {
+        shoppingList = shoppingListCollection
+            .find(eq("_id", objectId))
+            .projection(FIELDS.forItem(ctx))
+            .first();
+      } else {
+        shoppingList = shoppingListCache.get(objectId,
+            key -> shoppingListCollection.find(eq("_id", key)).first());
+      }
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested shoppingList id wasn't a legal Mongo Object ID.");
     }
@@ -76,17 +213,29 @@ public class ShoppingListController {
    * @param ctx a Javalin HTTP context
    */
   public void getShoppingLists(Context ctx) {
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME)) {
+      return;
+    }
     Bson combinedFilter = constructFilter(ctx);
-    Bson sortingOrder = constructSortingOrder(ctx);
+    Bson sortingOrder = SORTS.plan(ctx, combinedFilter);
+
+    FindIterable<ShoppingList> results = shoppingListCollection
+        .find(combinedFilter)
+        .projection(FIELDS.forList(ctx))
+        .sort(sortingOrder);
+
+    // With `stream=true` we write the results out as they come back from
+    // the database, rather than collecting them all into a list first.
+    if (JsonStreaming.requested(ctx)) {
+      JsonStreaming.streamArray(ctx, results);
+      return;
+    }
 
     // All three of the find, sort, and into steps happen "in parallel" inside the
     // database system. So MongoDB is going to find the shoppingLists with the specified
     // properties, return those sorted in the specified manner, and put the
     // results into an initially empty ArrayList.
-    ArrayList<ShoppingList> matchingShoppingLists = shoppingListCollection
-        .find(combinedFilter)
-        .sort(sortingOrder)
-        .into(new ArrayList<>());
+    ArrayList<ShoppingList> matchingShoppingLists = results.into(new ArrayList<>());
 
     // Set the JSON body of the response to be the list of shoppingLists returned by
     // the database.
@@ -96,7 +245,7 @@ public class ShoppingListController {
   private Bson constructFilter(Context ctx) {
     List<Bson> filters = new ArrayList<>(); // start with a blank document
     if (ctx.queryParamMap().containsKey(PRODUCTNAME_KEY)) {
-      filters.add(regex(PRODUCTNAME_KEY, Pattern.quote(ctx.queryParam(PRODUCTNAME_KEY)), "?i"));
+      filters.add(TextNormalizer.prefixFilter(PRODUCTNAME_NORMALIZED_KEY, ctx.queryParam(PRODUCTNAME_KEY)));
     }
     if (ctx.queryParamMap().containsKey(STORE_KEY)) {
       filters.add(eq(STORE_KEY, ctx.queryParam(STORE_KEY)));
@@ -112,16 +261,6 @@ public class ShoppingListController {
     return combinedFilter;
   }
 
-  private Bson constructSortingOrder(Context ctx) {
-    // Sort the results. Use the `sortby` query param (default "name")
-    // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
-    Bson sortingOrder = sortOrder.equals("desc") ? Sorts.descending(sortBy) : Sorts.ascending(sortBy);
-    return sortingOrder;
-  }
-
   /**
    * Get a JSON response with a list of all the shoppingLists.
    *
@@ -129,26 +268,33 @@ public class ShoppingListController {
    */
   public void addNewShoppingList(Context ctx) {
     /*
-     * The follow chain of statements uses the Javalin validator system
-     * to verify that instance of `ShoppingList` provided in this context is
-     * a "legal" shoppingList. It checks the following things (in order):
-     * - The shoppingList has a value for the name (`usr.name != null`)
-     * - The shoppingList name is not blank (`usr.name.length > 0`)
-     * - The provided email is valid (matches EMAIL_REGEX)
-     * - The provided age is > 0
-     * - The provided role is valid (one of "admin", "editor", or "viewer")
-     * - A non-blank company is provided
+     * Read the new item and check that it's "legal" (see `SCHEMA`):
+     * - The item has a non-empty product name
+     * - The store is one of "willies" or "coop"
+     * - The quantity is > 0
+     * Every rule it breaks is reported, not just the first.
      */
-    ShoppingList newShoppingList = ctx.bodyValidator(ShoppingList.class)
-        .check(usr -> usr.productName != null && usr.productName.length() > 0,
-            "ShoppingList must have a non-empty shoppingList name")
-        .check(usr -> usr.store != null && usr.store.matches("^(willies|coop)$"),
-         "Item must have a legal store")
-        .check(usr -> usr.quantity > 0,
-            "ShoppingList Quantity must be greater than zero")
-        .get();
+    ShoppingList newShoppingList = SCHEMA.read(ctx);
+
+    newShoppingList.productNameNormalized = TextNormalizer.normalize(newShoppingList.productName);
 
-    shoppingListCollection.insertOne(newShoppingList);
+    // With `merge=true`, adding something that's already on the list
+    // adds to its quantity instead of making a second copy.
+    if (ctx.queryParamAsClass(MERGE_KEY, Boolean.class).getOrDefault(false)) {
+      mergeShoppingList(ctx, newShoppingList);
+      return;
+    }
+
+    try {
+      shoppingListCollection.insertOne(newShoppingList);
+    } catch (MongoWriteException e) {
+      if (e.getError().getCode() != DUPLICATE_KEY_ERROR) {
+        throw e;
+      }
+      throw new ConflictResponse("There is already a shoppingList item for " + newShoppingList.productName
+          + " at " + newShoppingList.store + "; add it with merge=true to add to its quantity");
+    }
+    changes.publish(ChangeEvent.inserted(COLLECTION_NAME, newShoppingList._id, newShoppingList));
 
     // 201 is the HTTP code for when we successfully
     // create a new resource (a shoppingList in this case).
@@ -158,6 +304,125 @@ public class ShoppingListController {
     ctx.json(Map.of("id", newShoppingList._id));
   }
 
+  /**
+   * Add a (checked) item to the shopping list, or if there's already an
+   * item with the same normalized product name and store, add to its
+   * quantity. This is a single atomic upsert, so concurrent adds of the
+   * same item never make duplicates or lose quantities.
+   *
+   * The response is 201 with the new item's id if the item was added,
+   * or 200 with the existing item's id if it was merged; either way it
+   * also has the item's new `quantity`.
+   */
+  private void mergeShoppingList(Context ctx, ShoppingList item) {
+    // We pick the id ourselves (rather than letting the database do it
+    // on insert), so we know it without asking for the item after.
+    ObjectId newId = new ObjectId();
+    Bson filter = and(
+        eq(PRODUCTNAME_NORMALIZED_KEY, item.productNameNormalized),
+        eq(STORE_KEY, item.store));
+    Bson update = Updates.combine(
+        Updates.inc(QUANTITY_KEY, item.quantity),
+        Updates.setOnInsert("_id", newId),
+        Updates.setOnInsert(PRODUCTNAME_KEY, item.productName),
+        Updates.setOnInsert(PRODUCTNAME_NORMALIZED_KEY, item.productNameNormalized),
+        Updates.setOnInsert(STORE_KEY, item.store));
+    FindOneAndUpdateOptions options = new FindOneAndUpdateOptions()
+        .upsert(true)
+        .returnDocument(ReturnDocument.BEFORE);
+
+    ShoppingList before;
+    try {
+      before = shoppingListCollection.findOneAndUpdate(filter, update, options);
+    } catch (MongoCommandException e) {
+      // Two upserts of a new item can race to insert it; the unique index
+      // makes the loser fail, and trying again finds the winner's item.
+      if (e.getErrorCode() != DUPLICATE_KEY_ERROR) {
+        throw e;
+      }
+      before = shoppingListCollection.findOneAndUpdate(filter, update, options);
+    }
+
+    if (before == null) {
+      item._id = newId.toHexString();
+      changes.publish(ChangeEvent.inserted(COLLECTION_NAME, item._id, item));
+      ctx.status(HttpCode.CREATED);
+      ctx.json(Map.of("id", item._id, QUANTITY_KEY, item.quantity, "merged", false));
+    } else {
+      ShoppingList after = new ShoppingList();
+      after._id = before._id;
+      after.productName = before.productName;
+      after.productNameNormalized = before.productNameNormalized;
+      after.store = before.store;
+      after.quantity = (before.quantity == null ? 0 : before.quantity) + item.quantity;
+      shoppingListCache.invalidate(new ObjectId(before._id));
+      changes.publish(ChangeEvent.updated(COLLECTION_NAME, before._id, before, after));
+      ctx.json(Map.of("id", after._id, QUANTITY_KEY, after.quantity, "merged", true));
+    }
+  }
+
+  /**
+   * Merge shopping list items with the same normalized product name and
+   * store into one (adding up their quantities), so that the unique index
+   * in `INDEXES` can be built. Lists that were built up before there was
+   * a merge mode can have such duplicates; once they're gone this finds
+   * nothing, so it's cheap to run at every startup.
+   *
+   * This needs `productNameNormalized`, so run it after
+   * `backfillNormalizedFields()`.
+   *
+   * @param database the database containing shoppingList data
+   * @return how many duplicate items were merged away
+   */
+  public static long mergeDuplicateItems(MongoDatabase database) {
+    MongoCollection<Document> collection = database.getCollection(COLLECTION_NAME);
+    List<Document> duplicates = collection.aggregate(List.of(
+        Aggregates.sort(Sorts.ascending("_id")),
+        Aggregates.group(
+            new Document(PRODUCTNAME_NORMALIZED_KEY, "$" + PRODUCTNAME_NORMALIZED_KEY)
+                .append(STORE_KEY, "$" + STORE_KEY),
+            Accumulators.push("ids", "$_id"),
+            Accumulators.sum(QUANTITY_KEY, "$" + QUANTITY_KEY),
+            Accumulators.sum("count", 1)),
+        Aggregates.match(Filters.gt("count", 1))))
+        .allowDiskUse(true)
+        .into(new ArrayList<>());
+
+    long merged = 0;
+    List<WriteModel<Document>> writes = new ArrayList<>();
+    for (Document duplicate : duplicates) {
+      // Keep the oldest item, with the total quantity.
+      List<Object> ids = duplicate.getList("ids", Object.class);
+      writes.add(new UpdateOneModel<>(eq("_id", ids.get(0)),
+          Updates.set(QUANTITY_KEY, duplicate.get(QUANTITY_KEY))));
+      writes.add(new DeleteManyModel<>(Filters.in("_id", ids.subList(1, ids.size()))));
+      merged += ids.size() - 1;
+    }
+    if (!writes.isEmpty()) {
+      collection.bulkWrite(writes);
+      LOGGER.info("Merged {} duplicate shopping list items", merged);
+    }
+    return merged;
+  }
+
+  /**
+   * Change some of the fields of the shoppingList item specified by the
+   * `id` parameter in the request; see `PatchRules` for the form of the
+   * body. Only the changed fields are checked and sent to the database,
+   * and the response is the whole item after the change.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void updateShoppingList(Context ctx) {
+    String id = ctx.pathParam("id");
+    PartialUpdate update = PATCH_RULES.parse(ctx);
+    ShoppingList before = update.updateOne(shoppingListCollection, id, "shoppingList item");
+    ShoppingList after = update.applyTo(before, ShoppingList.class);
+    shoppingListCache.invalidate(new ObjectId(id));
+    changes.publish(ChangeEvent.updated(COLLECTION_NAME, id, before, after));
+    ctx.json(after);
+  }
+
   /**
    * Delete the shoppingList specified by the `id` parameter in the request.
    *
@@ -165,12 +430,78 @@ public class ShoppingListController {
    */
   public void deleteShoppingList(Context ctx) {
     String id = ctx.pathParam("id");
-    DeleteResult deleteResult = shoppingListCollection.deleteOne(eq("_id", new ObjectId(id)));
-    if (deleteResult.getDeletedCount() != 1) {
+    ShoppingList deleted = shoppingListCollection.findOneAndDelete(eq("_id", new ObjectId(id)));
+    shoppingListCache.invalidate(new ObjectId(id));
+    if (deleted == null) {
       throw new NotFoundResponse(
           "Was unable to delete ID "
               + id
               + "; perhaps illegal ID or an ID for an item not in the system?");
     }
+    changes.publish(ChangeEvent.deleted(COLLECTION_NAME, id, deleted));
+  }
+
+  /**
+   * Put every product the pantry has fewer of than its `threshold` on
+   * the shopping list, at its store, with (at least) the difference as
+   * the quantity; see `LowStockItems`. Running this again without
+   * anything changing changes nothing.
+   *
+   * @return the number of products checked, and of items added and
+   *  raised, in total and by store
+   */
+  public Map<String, Object> generateLowStockItems() {
+    LowStockItems.Result result = lowStockItems.generate();
+    for (ChangeEvent change : result.getChanges()) {
+      if (change.getType() == ChangeEvent.Type.UPDATED) {
+        shoppingListCache.invalidate(new ObjectId(change.getId()));
+      }
+      changes.publish(change);
+    }
+    return result.summary();
+  }
+
+  /**
+   * Generate the low-stock items now, rather than waiting for the next
+   * scheduled run; see `generateLowStockItems()`. The response says what
+   * changed.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void generateShoppingList(Context ctx) {
+    ctx.json(generateLowStockItems());
+  }
+
+  /**
+   * Run `generateLowStockItems()` every so often, on a background
+   * (daemon) thread. A run that fails is logged, and the next one
+   * goes ahead as usual.
+   *
+   * @param interval how long to wait between runs
+   * @return the executor running the job, so it can be shut down
+   */
+  public ScheduledExecutorService generateLowStockItemsEvery(Duration interval) {
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "low-stock-items");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(() -> {
+      try {
+        generateLowStockItems();
+      } catch (RuntimeException e) {
+        LOGGER.error("Generating low-stock shopping list items failed", e);
+      }
+    }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    return executor;
+  }
+
+  /**
+   * Report how well the single-shoppingList cache is doing.
+   *
+   * @return the cache's size and its hit, miss, and eviction counts
+   */
+  public Map<String, Object> cacheStats() {
+    return shoppingListCache.stats();
   }
 }
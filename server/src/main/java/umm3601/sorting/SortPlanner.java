@@ -0,0 +1,369 @@
+package umm3601.sorting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+
+/**
+ * Works out the sort order for a list endpoint from its `sortby` and
+ * `sortorder` query parameters and its filter, and makes sure the
+ * database can sort that way without sorting in memory.
+ *
+ * Each controller declares the fields a list may be sorted by. Every
+ * sort ends with `_id`, so documents with the same value in the sort
+ * field always come back in the same order (which paging relies on),
+ * and so every sortable field needs an index on `(field, _id)`, which
+ * MongoDB can read in either direction. The planner checks that the
+ * controller's `INDEXES` has one for each field when it's built, so a
+ * sortable field can't be declared without its index. Without one,
+ * MongoDB would have to read every matching document and sort them in
+ * memory, which fails outright once they come to more than 32MB.
+ *
+ * That index only helps an unfiltered list, though. Given a filter,
+ * MongoDB will happily use an index on a filtered field instead, and
+ * then sort whatever that finds in memory. So the planner also checks
+ * the filter: every filtered field that some index starts with has to
+ * be matched exactly, and the sort needs an index on those fields (in
+ * any order), then the sort field, then `_id`. A range (like a name
+ * search) is only allowed on the sort field itself. Fields that no
+ * index starts with are just checked as documents are read, so they
+ * don't matter.
+ *
+ * A search on a normalized field (see `searchedBy`) sorts by that
+ * field, rather than the field it shadows. A list without a `sortby`
+ * is sorted by the default field if the filter allows, and otherwise
+ * by whatever order an index that fits the filter gives (see
+ * `defaultFieldFor`); it's never refused. But a `sortby` that isn't
+ * declared, or can't be served with the filter, is refused with a 400,
+ * rather than passed on to the database.
+ */
+public final class SortPlanner {
+
+  /**
+   * The query parameter naming the field to sort by.
+   */
+  public static final String SORT_BY_KEY = "sortby";
+
+  /**
+   * The query parameter giving the direction, `asc` (the default) or `desc`.
+   */
+  public static final String SORT_ORDER_KEY = "sortorder";
+
+  private static final String ASCENDING = "asc";
+  private static final String DESCENDING = "desc";
+  private static final String ID = "_id";
+
+  private final List<List<String>> indexKeys = new ArrayList<>();
+  private final List<IndexModel> indexes;
+  private final String defaultField;
+  private final Set<String> fields = new LinkedHashSet<>();
+  // Each searchable field's normalized shadow (see `searchedBy`).
+  private final Map<String, String> searches = new HashMap<>();
+
+  /**
+   * Construct a planner for a collection.
+   *
+   * @param indexes the collection's declared indexes
+   * @param defaultField the field to sort by when there's no `sortby`
+   * @param otherFields the other fields a client may sort by (`_id` can
+   *  always be sorted by)
+   * @throws IllegalArgumentException if one of the fields doesn't have
+   *  an index on `(field, _id)`
+   */
+  public SortPlanner(List<IndexModel> indexes, String defaultField, String... otherFields) {
+    this.indexes = indexes;
+    this.defaultField = defaultField;
+    fields.add(defaultField);
+    fields.addAll(List.of(otherFields));
+    fields.add(ID);
+    for (String field : fields) {
+      requireSortIndex(field);
+    }
+    for (IndexModel index : indexes) {
+      indexKeys.add(List.copyOf(keys(index).keySet()));
+    }
+  }
+
+  /**
+   * Declare that `field` is searched by a prefix of its normalized
+   * shadow `normalizedField` (see `TextNormalizer.prefixFilter`). Lists
+   * filtered that way are sorted by `normalizedField` in place of
+   * `field`, since that's the only order the search's index can give.
+   *
+   * @param field the field the client sorts and searches by
+   * @param normalizedField its normalized shadow
+   * @return this planner, so calls can be chained
+   * @throws IllegalArgumentException if there's no index on
+   *  `(normalizedField, _id)`
+   */
+  public SortPlanner searchedBy(String field, String normalizedField) {
+    requireSortIndex(normalizedField);
+    searches.put(field, normalizedField);
+    return this;
+  }
+
+  private void requireSortIndex(String field) {
+    if (!field.equals(ID) && indexes.stream().noneMatch(index -> leadsWith(index, field))) {
+      throw new IllegalArgumentException("Sorting by `" + field + "` needs an index on (" + field + ", _id)");
+    }
+  }
+
+  private static BsonDocument keys(IndexModel index) {
+    return index.getKeys().toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+  }
+
+  /**
+   * Whether an index's keys start with the field and then `_id`, in the
+   * same direction as each other.
+   */
+  private static boolean leadsWith(IndexModel index, String field) {
+    Iterator<Map.Entry<String, BsonValue>> it = keys(index).entrySet().iterator();
+    if (!it.hasNext()) {
+      return false;
+    }
+    Map.Entry<String, BsonValue> first = it.next();
+    if (!first.getKey().equals(field) || !first.getValue().isNumber() || !it.hasNext()) {
+      return false;
+    }
+    Map.Entry<String, BsonValue> second = it.next();
+    return second.getKey().equals(ID) && second.getValue().isNumber()
+        && Integer.signum(first.getValue().asNumber().intValue())
+            == Integer.signum(second.getValue().asNumber().intValue());
+  }
+
+  /**
+   * The fields that lists may be sorted by.
+   *
+   * @return the sortable fields, the default first
+   */
+  public Set<String> fields() {
+    return fields;
+  }
+
+  /**
+   * The field to sort a filtered list by: the one the request asks for,
+   * or for a search, that field's normalized shadow.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param filter the filter the list will be read with
+   * @return the field
+   * @throws BadRequestResponse if lists can't be sorted by that field,
+   *  or can't be with that filter
+   */
+  public String field(Context ctx, Bson filter) {
+    Map<String, Boolean> filtered = new LinkedHashMap<>();
+    collectFields(filter.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()),
+        filtered);
+    Set<String> ranges = new LinkedHashSet<>();
+    Set<String> equalities = new LinkedHashSet<>();
+    for (Map.Entry<String, Boolean> entry : filtered.entrySet()) {
+      String name = entry.getKey();
+      if (indexKeys.stream().anyMatch(keys -> keys.get(0).equals(name))) {
+        if (entry.getValue()) {
+          ranges.add(name);
+        } else {
+          equalities.add(name);
+        }
+      }
+    }
+
+    String field = requestedField(ctx);
+    if (field == null) {
+      return defaultFieldFor(equalities, ranges);
+    }
+    if (ranges.contains(searches.get(field))) {
+      field = searches.get(field);
+    }
+
+    for (String range : ranges) {
+      if (!range.equals(field)) {
+        throw new BadRequestResponse("Can't sort by `" + field + "` while filtering by a range of `" + range + "`");
+      }
+    }
+    Set<String> prefix = new LinkedHashSet<>(equalities);
+    prefix.remove(field);
+    if (!hasIndex(prefix, field)) {
+      List<String> needed = new ArrayList<>(prefix);
+      needed.add(field);
+      if (!field.equals(ID)) {
+        needed.add(ID);
+      }
+      throw new BadRequestResponse("Can't sort by `" + field + "` while filtering by `"
+          + String.join("`, `", prefix) + "`; that needs an index on (" + String.join(", ", needed) + ")");
+    }
+    return field;
+  }
+
+  /**
+   * The field to sort by when the request doesn't say. That's the
+   * default field, if the filter allows; otherwise the field of a
+   * searched range, if there is one, or of any index that does fit the
+   * filter. If none does, we fall back to a filtered field's own
+   * `(field, _id)` index. That leaves the other filtered fields to be
+   * checked as documents are read, but never sorts in memory, and a
+   * list without a `sortby` is never refused.
+   */
+  private String defaultFieldFor(Set<String> equalities, Set<String> ranges) {
+    List<String> candidates = new ArrayList<>();
+    candidates.add(defaultField);
+    candidates.addAll(ranges);
+    for (List<String> keys : indexKeys) {
+      for (int i = 0; i + 1 < keys.size(); i++) {
+        if (keys.get(i + 1).equals(ID)) {
+          candidates.add(keys.get(i));
+        }
+      }
+    }
+    for (String candidate : candidates) {
+      Set<String> prefix = new LinkedHashSet<>(equalities);
+      prefix.remove(candidate);
+      if (ranges.stream().allMatch(candidate::equals) && hasIndex(prefix, candidate)) {
+        return candidate;
+      }
+    }
+
+    List<String> filtered = new ArrayList<>(equalities);
+    filtered.addAll(ranges);
+    for (String field : filtered) {
+      if (hasIndex(Set.of(), field)) {
+        return field;
+      }
+    }
+    return ID;
+  }
+
+  private String requestedField(Context ctx) {
+    String field = ctx.queryParam(SORT_BY_KEY);
+    if (field != null && !fields.contains(field)) {
+      throw new BadRequestResponse("Can't sort by `" + field + "`; the fields you can sort by are "
+          + String.join(", ", fields));
+    }
+    return field;
+  }
+
+  /**
+   * Record each field the filter tests, and whether it's tested for a
+   * range (or pattern) rather than for one exact value. Operators other
+   * than `$and` (like `$or`) are left out, since an index on one of their
+   * fields can't narrow down the whole filter.
+   */
+  private static void collectFields(BsonDocument filter, Map<String, Boolean> filtered) {
+    for (Map.Entry<String, BsonValue> condition : filter.entrySet()) {
+      String key = condition.getKey();
+      BsonValue value = condition.getValue();
+      if (key.equals("$and")) {
+        for (BsonValue clause : value.asArray()) {
+          collectFields(clause.asDocument(), filtered);
+        }
+      } else if (!key.startsWith("$")) {
+        filtered.merge(key, isRange(value), Boolean::logicalOr);
+      }
+    }
+  }
+
+  private static boolean isRange(BsonValue value) {
+    if (value.isRegularExpression()) {
+      return true;
+    }
+    if (!value.isDocument() || value.asDocument().isEmpty()) {
+      return false;
+    }
+    BsonDocument operators = value.asDocument();
+    return operators.getFirstKey().startsWith("$") && !(operators.size() == 1 && operators.containsKey("$eq"));
+  }
+
+  /**
+   * Whether there's an index on the equality fields (in any order), then
+   * the sort field, and then `_id` (unless the sort field is `_id`).
+   */
+  private boolean hasIndex(Set<String> equalities, String field) {
+    List<String> tail = field.equals(ID) ? List.of(ID) : List.of(field, ID);
+    for (int i = 0; i < indexKeys.size(); i++) {
+      List<String> keys = indexKeys.get(i);
+      int prefix = equalities.size();
+      if (keys.size() >= prefix + tail.size()
+          && Set.copyOf(keys.subList(0, prefix)).equals(equalities)
+          && keys.subList(prefix, prefix + tail.size()).equals(tail)
+          && sameDirection(indexes.get(i), field, ID)) {
+        return true;
+      }
+    }
+    // Every collection has an index on `_id` alone.
+    return equalities.isEmpty() && field.equals(ID);
+  }
+
+  /**
+   * Whether the index reads both keys in the same direction, so that it
+   * can give the sort in either direction.
+   */
+  private static boolean sameDirection(IndexModel index, String first, String second) {
+    BsonDocument keys = keys(index);
+    BsonValue a = keys.get(first);
+    BsonValue b = keys.get(second);
+    return a.isNumber() && b.isNumber()
+        && Integer.signum(a.asNumber().intValue()) == Integer.signum(b.asNumber().intValue());
+  }
+
+  /**
+   * Whether the request asks for a descending sort.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return true for `sortorder=desc`, false for `asc` (or no `sortorder`)
+   * @throws BadRequestResponse if `sortorder` is something else
+   */
+  public boolean descending(Context ctx) {
+    String order = ctx.queryParam(SORT_ORDER_KEY);
+    if (order == null || order.equals(ASCENDING)) {
+      return false;
+    }
+    if (order.equals(DESCENDING)) {
+      return true;
+    }
+    throw new BadRequestResponse("The sortorder must be `" + ASCENDING + "` or `" + DESCENDING + "`");
+  }
+
+  /**
+   * The sort order for a filtered list, with `_id` last.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param filter the filter the list will be read with
+   * @return the sort
+   * @throws BadRequestResponse if the request asks for a sort we don't
+   *  allow, or one that can't be used with that filter
+   */
+  public Bson plan(Context ctx, Bson filter) {
+    return sort(field(ctx, filter), descending(ctx));
+  }
+
+  /**
+   * A sort by a field and then `_id`, both in the same direction.
+   *
+   * @param field the field to sort by
+   * @param descending whether to sort largest first
+   * @return the sort
+   */
+  public static Bson sort(String field, boolean descending) {
+    List<String> keys = new ArrayList<>(2);
+    keys.add(field);
+    if (!field.equals(ID)) {
+      keys.add(ID);
+    }
+    return descending ? Sorts.descending(keys) : Sorts.ascending(keys);
+  }
+}
@@ -0,0 +1,96 @@
+package umm3601.streaming;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+
+import io.javalin.http.Context;
+import io.javalin.plugin.json.JavalinJackson;
+
+/**
+ * Writes query results to the response as a JSON array while they are
+ * still coming back from MongoDB.
+ *
+ * `ctx.json(list)` needs the whole result set in memory twice: once as
+ * a list of POJOs, and again as the serialized response body. Here we
+ * instead pull documents from the cursor a batch at a time and write
+ * each one straight to the response's output stream with a Jackson
+ * `JsonGenerator`, so memory use stays constant no matter how many
+ * documents match, and the client starts receiving data as soon as the
+ * first batch arrives.
+ *
+ * Clients opt in with the `stream=true` query parameter; the JSON they
+ * get back is exactly the same array they'd get without it.
+ */
+public final class JsonStreaming {
+
+  /**
+   * How many documents to ask MongoDB for at a time. We also flush the
+   * response after each batch so the client sees steady progress.
+   */
+  public static final int BATCH_SIZE = 500;
+
+  private static final String STREAM_KEY = "stream";
+
+  // Use the same mapper that `ctx.json()` uses so streamed and
+  // non-streamed responses serialize identically. We turn off the
+  // flush after every value, since we flush once per batch instead.
+  private static final ObjectMapper MAPPER = JavalinJackson.Companion.defaultMapper();
+  private static final ObjectWriter WRITER = MAPPER.writer()
+      .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+  private JsonStreaming() {
+  }
+
+  /**
+   * Did the client ask for a streamed response?
+   *
+   * @param ctx a Javalin HTTP context
+   * @return true if the request has `stream=true`
+   */
+  public static boolean requested(Context ctx) {
+    return "true".equalsIgnoreCase(ctx.queryParam(STREAM_KEY));
+  }
+
+  /**
+   * Write every result of the given query to the response as a JSON
+   * array, reading from the database in batches of `BATCH_SIZE`.
+   *
+   * @param <T> the type of the documents being returned
+   * @param ctx a Javalin HTTP context
+   * @param results the (not yet executed) query whose results we send
+   */
+  public static <T> void streamArray(Context ctx, FindIterable<T> results) {
+    ctx.contentType("application/json");
+    try {
+      OutputStream out = ctx.res.getOutputStream();
+      try (JsonGenerator generator = MAPPER.getFactory().createGenerator(out, JsonEncoding.UTF8);
+          MongoCursor<T> cursor = results.batchSize(BATCH_SIZE).iterator()) {
+        // Javalin owns the servlet stream; we just flush what we wrote.
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.writeStartArray();
+        int written = 0;
+        while (cursor.hasNext()) {
+          WRITER.writeValue(generator, cursor.next());
+          written++;
+          if (written % BATCH_SIZE == 0) {
+            generator.flush();
+          }
+        }
+        generator.writeEndArray();
+      }
+      out.flush();
+    } catch (IOException e) {
+      // Almost always the client going away in the middle of the response.
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,310 @@
+package umm3601.sync;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.events.ChangeBus;
+import umm3601.events.ChangeEvent;
+
+/**
+ * A log of every change the controllers make, in order, so that a
+ * client can catch up on what changed since it last looked without
+ * downloading whole collections again.
+ *
+ * Each change published on the `ChangeBus` is appended as one entry,
+ * whose `_id` is the next number in a sequence: the collection and id
+ * of the document, the kind of change, and the document as it is now
+ * (nothing, for a delete; that entry is the deleted document's
+ * "tombstone"). Reading the changes after a given number is a range
+ * scan of `_id`, so it costs as much as the changes it returns.
+ *
+ * Numbers are handed out in this server, and a reader is never shown
+ * an entry while one with a smaller number is still being written, so
+ * a client that has seen entry N can never later miss one before it.
+ * (That's also why this, like the `ChangeBus`, assumes one server.)
+ * An entry that fails to be written leaves a hole that no one can fill,
+ * so the floor (see below) is raised past it before anyone can read
+ * beyond it, and clients from before the hole start over.
+ *
+ * `compact()` keeps the log from growing forever. For a document that
+ * has changed more than once, only its latest entry matters to anyone
+ * catching up, however far back they are, so the older entries go
+ * (incrementally, a segment of the log at a time). Tombstones are kept
+ * for a while longer and then dropped too; a client that hasn't synced
+ * since before the newest dropped tombstone might have missed a delete,
+ * so it has to start over (see `floor()`).
+ */
+public class ChangeLog {
+
+  /**
+   * The name of the MongoDB collection holding the log.
+   */
+  public static final String COLLECTION_NAME = "changeLog";
+
+  // Where we remember how far compaction has got, and the floor.
+  private static final String STATE_COLLECTION_NAME = "changeLogState";
+  private static final String STATE_ID = "compaction";
+
+  private static final String AT_KEY = "at";
+  private static final String COLLECTION_KEY = "collection";
+  private static final String TYPE_KEY = "type";
+  private static final String DOC_ID_KEY = "docId";
+  private static final String DOCUMENT_KEY = "document";
+  private static final String FLOOR_KEY = "floor";
+  private static final String COMPACTED_KEY = "compactedThrough";
+  private static final String DELETED = "deleted";
+
+  /**
+   * How many entries a compaction pass looks at at a time.
+   */
+  public static final int BATCH_SIZE = 1000;
+
+  /**
+   * The indexes that the log's queries rely on.
+   */
+  public static final List<IndexModel> INDEXES = List.of(
+      // Finding a document's older entries when compacting
+      new IndexModel(Indexes.ascending(COLLECTION_KEY, DOC_ID_KEY, "_id")),
+      new IndexModel(Indexes.ascending(AT_KEY)));
+
+  private static final ObjectMapper MAPPER = JavalinJackson.Companion.defaultMapper();
+  private static final TypeReference<Map<String, Object>> AS_MAP = new TypeReference<>() { };
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChangeLog.class);
+
+  private final MongoCollection<Document> log;
+  private final MongoCollection<Document> state;
+
+  // The last number handed out, and the numbers whose entries are
+  // still being written; both guarded by `inFlight`.
+  private long last;
+  private final NavigableSet<Long> inFlight = new ConcurrentSkipListSet<>();
+
+  // See `floor()`; `compact()` and failed appends raise it.
+  private final AtomicLong floor = new AtomicLong();
+
+  /**
+   * Construct the log kept in the given database, appending every
+   * change published on a bus.
+   *
+   * @param database the database to keep the log in
+   * @param changes the bus to follow
+   */
+  public ChangeLog(MongoDatabase database, ChangeBus changes) {
+    log = database.getCollection(COLLECTION_NAME);
+    state = database.getCollection(STATE_COLLECTION_NAME);
+    Document compaction = state.find(eq("_id", STATE_ID)).first();
+    floor.set(compaction == null ? 0 : ((Number) compaction.get(FLOOR_KEY)).longValue());
+    Document newest = log.find().sort(Sorts.descending("_id")).projection(Projections.include("_id")).first();
+    last = Math.max(newest == null ? 0 : ((Number) newest.get("_id")).longValue(), floor.get());
+    changes.subscribe(this::append);
+  }
+
+  /**
+   * Add a change to the end of the log. If it can't be written, the
+   * floor is raised to its number before readers are let past it, so
+   * that no one is told they're up to date when they've missed it.
+   *
+   * @param event the change
+   */
+  public void append(ChangeEvent event) {
+    long sequence;
+    synchronized (inFlight) {
+      sequence = ++last;
+      inFlight.add(sequence);
+    }
+    try {
+      log.insertOne(new Document("_id", sequence)
+          .append(AT_KEY, new Date())
+          .append(COLLECTION_KEY, event.getCollection())
+          .append(TYPE_KEY, event.getType().name().toLowerCase())
+          .append(DOC_ID_KEY, event.getId())
+          .append(DOCUMENT_KEY, event.getDocument() == null ? null
+              : new Document(MAPPER.convertValue(event.getDocument(), AS_MAP))));
+    } catch (RuntimeException e) {
+      raiseFloor(sequence);
+      throw e;
+    } finally {
+      inFlight.remove(sequence);
+    }
+  }
+
+  /**
+   * Raise the floor past the hole a failed append left, remembering it
+   * for the next server too if the database will let us.
+   */
+  private void raiseFloor(long sequence) {
+    floor.accumulateAndGet(sequence, Math::max);
+    try {
+      state.updateOne(eq("_id", STATE_ID),
+          Updates.combine(Updates.max(FLOOR_KEY, sequence), Updates.setOnInsert(COMPACTED_KEY, 0L)),
+          new UpdateOptions().upsert(true));
+    } catch (RuntimeException e) {
+      LOGGER.error("Couldn't save the change log's floor of {}", sequence, e);
+    }
+  }
+
+  /**
+   * The last number that readers may see: every entry up to here has
+   * been written (or has failed to be, and never will be).
+   *
+   * @return the newest safe sequence number
+   */
+  public long visibleThrough() {
+    synchronized (inFlight) {
+      return inFlight.isEmpty() ? last : inFlight.first() - 1;
+    }
+  }
+
+  /**
+   * The oldest point a client can catch up from. Changes at or before
+   * this may have been compacted away, or never written, without a
+   * trace.
+   *
+   * @return the floor's sequence number
+   */
+  public long floor() {
+    return floor.get();
+  }
+
+  /**
+   * Read the entries after a given one, oldest first.
+   *
+   * @param since the sequence number of the last entry already seen
+   * @param through the sequence number of the last entry to read
+   * @param collections only read changes to these collections (all of
+   *  them if `null`)
+   * @param limit the most entries to read
+   * @return the entries, each with its `seq`, `collection`, `type`,
+   *  `id`, and `document`
+   */
+  public List<Map<String, Object>> read(long since, long through, Collection<String> collections, int limit) {
+    Bson range = and(gt("_id", since), lte("_id", through));
+    Bson filter = collections == null ? range : and(range, in(COLLECTION_KEY, collections));
+    List<Map<String, Object>> entries = new ArrayList<>();
+    for (Document entry : log.find(filter).sort(Sorts.ascending("_id")).limit(limit)) {
+      Map<String, Object> change = new LinkedHashMap<>();
+      change.put("seq", ((Number) entry.get("_id")).longValue());
+      change.put(COLLECTION_KEY, entry.getString(COLLECTION_KEY));
+      change.put(TYPE_KEY, entry.getString(TYPE_KEY));
+      change.put("id", entry.getString(DOC_ID_KEY));
+      change.put(DOCUMENT_KEY, entry.get(DOCUMENT_KEY));
+      entries.add(change);
+    }
+    return entries;
+  }
+
+  /**
+   * Compact the log: drop the entries written before `before` that a
+   * newer entry for the same document has superseded, and the
+   * tombstones written before `tombstonesBefore`. Each run carries on
+   * from where the last one got to, so it only reads the part of the
+   * log written since.
+   *
+   * @param before compact the entries written before this
+   * @param tombstonesBefore drop the tombstones written before this
+   * @return how many entries were dropped
+   */
+  public synchronized long compact(Instant before, Instant tombstonesBefore) {
+    Document compaction = state.find(eq("_id", STATE_ID)).first();
+    long from = compaction == null ? 0 : ((Number) compaction.get(COMPACTED_KEY)).longValue();
+    Document newest = log.find(lt(AT_KEY, Date.from(before)))
+        .sort(Sorts.descending(AT_KEY)).projection(Projections.include("_id")).first();
+    long through = newest == null ? from : Math.min(((Number) newest.get("_id")).longValue(), visibleThrough());
+
+    long dropped = 0;
+    List<Document> batch = new ArrayList<>(BATCH_SIZE);
+    try (MongoCursor<Document> cursor = log.find(and(gt("_id", from), lte("_id", through)))
+        .sort(Sorts.ascending("_id"))
+        .projection(Projections.include(COLLECTION_KEY, DOC_ID_KEY))
+        .batchSize(BATCH_SIZE)
+        .iterator()) {
+      while (cursor.hasNext()) {
+        batch.add(cursor.next());
+        if (batch.size() == BATCH_SIZE) {
+          dropped += dropSuperseded(batch);
+        }
+      }
+    }
+    dropped += dropSuperseded(batch);
+
+    // Raise the floor past the tombstones we're about to drop first, so
+    // that no one is ever told they're up to date when they've missed one.
+    Bson oldTombstones = and(eq(TYPE_KEY, DELETED), lt(AT_KEY, Date.from(tombstonesBefore)), lte("_id", through));
+    Document newestTombstone = log.find(oldTombstones)
+        .sort(Sorts.descending("_id")).projection(Projections.include("_id")).first();
+    if (newestTombstone != null) {
+      floor.accumulateAndGet(((Number) newestTombstone.get("_id")).longValue(), Math::max);
+    }
+    state.updateOne(eq("_id", STATE_ID),
+        Updates.combine(Updates.set(COMPACTED_KEY, through), Updates.max(FLOOR_KEY, floor.get())),
+        new UpdateOptions().upsert(true));
+    if (newestTombstone != null) {
+      dropped += log.deleteMany(oldTombstones).getDeletedCount();
+    }
+
+    if (dropped > 0) {
+      LOGGER.info("Compacted the change log through {}, dropping {} entries", through, dropped);
+    }
+    return dropped;
+  }
+
+  /**
+   * Drop every entry older than the newest entry in the batch for the
+   * same document.
+   */
+  private long dropSuperseded(List<Document> batch) {
+    Map<List<String>, Long> newest = new LinkedHashMap<>();
+    for (Document entry : batch) {
+      newest.put(List.of(entry.getString(COLLECTION_KEY), entry.getString(DOC_ID_KEY)),
+          ((Number) entry.get("_id")).longValue());
+    }
+    batch.clear();
+    if (newest.isEmpty()) {
+      return 0;
+    }
+    List<WriteModel<Document>> deletes = new ArrayList<>(newest.size());
+    for (Map.Entry<List<String>, Long> entry : newest.entrySet()) {
+      deletes.add(new DeleteManyModel<>(and(
+          eq(COLLECTION_KEY, entry.getKey().get(0)),
+          eq(DOC_ID_KEY, entry.getKey().get(1)),
+          lt("_id", entry.getValue()))));
+    }
+    return log.bulkWrite(deletes, new BulkWriteOptions().ordered(false)).getDeletedCount();
+  }
+}
@@ -0,0 +1,152 @@
+package umm3601.sync;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.mongodb.client.MongoDatabase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.http.Context;
+import umm3601.events.ChangeBus;
+
+/**
+ * Controller for `/api/sync`, which lets clients that keep their own
+ * copies of the collections (e.g., offline-capable ones) catch up on
+ * what changed since they last synced; see `ChangeLog`.
+ */
+public class SyncController {
+
+  private static final String SINCE_KEY = "since";
+  private static final String LIMIT_KEY = "limit";
+  private static final String COLLECTIONS_KEY = "collections";
+
+  // How many changes one response has, unless the client says, and the
+  // most it can ask for.
+  private static final int DEFAULT_LIMIT = 1000;
+  private static final int MAX_LIMIT = 10000;
+
+  // Changes are compacted once they're a day old, and tombstones are
+  // dropped after 30 days, so a client that syncs at least that often
+  // never has to start over.
+  private static final Duration COMPACT_AFTER = Duration.ofDays(1);
+  private static final Duration KEEP_TOMBSTONES_FOR = Duration.ofDays(30);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SyncController.class);
+
+  private final ChangeLog changeLog;
+
+  /**
+   * Construct a controller for syncing, which logs every change
+   * published on the bus from now on.
+   *
+   * @param database the database to keep the change log in
+   * @param changes the bus the other controllers publish their changes on
+   */
+  public SyncController(MongoDatabase database, ChangeBus changes) {
+    this(new ChangeLog(database, changes));
+  }
+
+  /**
+   * Construct a controller for syncing from the given log.
+   *
+   * @param changeLog the log of changes
+   */
+  SyncController(ChangeLog changeLog) {
+    this.changeLog = changeLog;
+  }
+
+  /**
+   * Get a JSON response with the changes made since the `since` token
+   * (from an earlier response), oldest first, as
+   * `{token, reset, more, changes}`:
+   *
+   * - `changes` has a `{seq, collection, type, id, document}` for each
+   *   insert, update, or delete (`document` is the document as it is
+   *   now, or `null` if it was deleted). A document that changed more
+   *   than once may only show up once, as it is now.
+   * - `token` is what to send as `since` next time.
+   * - `more` says there are more changes than `limit` (default 1000),
+   *   so the client should ask again straight away.
+   * - `reset` says the client is too far behind to catch up this way
+   *   (or has never synced), so it has to download the collections
+   *   again, and then sync from `token`.
+   *
+   * `collections` (e.g., `collections=pantry,shoppingList`) limits the
+   * changes to those collections.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getChanges(Context ctx) {
+    int limit = ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+        .check(l -> l > 0 && l <= MAX_LIMIT, "Limit must be between 1 and " + MAX_LIMIT)
+        .getOrDefault(DEFAULT_LIMIT);
+    String only = ctx.queryParam(COLLECTIONS_KEY);
+    Set<String> collections = only == null ? null
+        : Arrays.stream(only.split(",")).map(String::trim).collect(Collectors.toSet());
+
+    long through = changeLog.visibleThrough();
+    Long since = ctx.queryParamAsClass(SINCE_KEY, Long.class).allowNullable().get();
+    Map<String, Object> response = new LinkedHashMap<>();
+    // Tokens from before the floor may have missed a dropped tombstone
+    // or a change that never made it into the log, and ones after the
+    // end are from some other database.
+    if (since == null || since < changeLog.floor() || since > through) {
+      response.put("token", Long.toString(through));
+      response.put("reset", true);
+      response.put("more", false);
+      response.put("changes", List.of());
+      ctx.json(response);
+      return;
+    }
+
+    // One extra, to tell whether there are more.
+    List<Map<String, Object>> changes = changeLog.read(since, through, collections, limit + 1);
+    boolean more = changes.size() > limit;
+    if (more) {
+      changes = changes.subList(0, limit);
+    }
+    // With no more to come, the client is caught up through `through`,
+    // even if some of those changes were to other collections.
+    long token = more ? (Long) changes.get(changes.size() - 1).get("seq") : through;
+    response.put("token", Long.toString(token));
+    response.put("reset", false);
+    response.put("more", more);
+    response.put("changes", changes);
+    ctx.json(response);
+  }
+
+  /**
+   * Compact the change log every so often, on a background (daemon)
+   * thread; see `ChangeLog.compact()`.
+   *
+   * @param interval how long to wait between compactions
+   * @return the executor running them, so it can be shut down
+   */
+  public ScheduledExecutorService compactEvery(Duration interval) {
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "change-log-compaction");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(() -> {
+      try {
+        Instant now = Instant.now();
+        changeLog.compact(now.minus(COMPACT_AFTER), now.minus(KEEP_TOMBSTONES_FOR));
+      } catch (RuntimeException e) {
+        LOGGER.error("Compacting the change log failed", e);
+      }
+    }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    return executor;
+  }
+}
@@ -0,0 +1,89 @@
+package umm3601.text;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fills in a normalized shadow field (see `TextNormalizer`) for every
+ * document that doesn't have one yet, e.g., documents that were added
+ * before we started storing it, or that were loaded straight into the
+ * database (like the seed data).
+ *
+ * The documents are read with only the source field projected, and the
+ * updates are sent in batches of unordered bulk writes, so this is
+ * cheap to run at every startup: once a collection has been migrated
+ * the query finds nothing (and can use the index on the shadow field).
+ */
+public final class NormalizedFieldMigration {
+
+  /**
+   * How many updates to send to the database at a time.
+   */
+  public static final int BATCH_SIZE = 1000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(NormalizedFieldMigration.class);
+
+  private NormalizedFieldMigration() {
+  }
+
+  /**
+   * Set `normalizedField` to the normalized form of `sourceField` in
+   * every document of the collection that doesn't have it yet.
+   *
+   * @param collection the collection to migrate
+   * @param sourceField the field holding the original text
+   * @param normalizedField the shadow field to fill in
+   * @return how many documents were updated
+   */
+  public static long backfill(MongoCollection<Document> collection, String sourceField, String normalizedField) {
+    long updated = 0;
+    List<WriteModel<Document>> batch = new ArrayList<>(BATCH_SIZE);
+    try (MongoCursor<Document> cursor = collection
+        .find(exists(normalizedField, false))
+        .projection(include(sourceField))
+        .batchSize(BATCH_SIZE)
+        .iterator()) {
+      while (cursor.hasNext()) {
+        Document document = cursor.next();
+        // Documents without the source field get an explicit `null`, so
+        // we don't keep finding them every time we start up.
+        String normalized = TextNormalizer.normalize(document.getString(sourceField));
+        batch.add(new UpdateOneModel<>(
+            eq("_id", document.get("_id")),
+            Updates.set(normalizedField, normalized)));
+        if (batch.size() == BATCH_SIZE) {
+          updated += write(collection, batch);
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      updated += write(collection, batch);
+    }
+    if (updated > 0) {
+      LOGGER.info("Backfilled {} for {} documents in {}",
+          normalizedField, updated, collection.getNamespace().getCollectionName());
+    }
+    return updated;
+  }
+
+  private static long write(MongoCollection<Document> collection, List<WriteModel<Document>> batch) {
+    long modified = collection.bulkWrite(batch, new BulkWriteOptions().ordered(false)).getModifiedCount();
+    batch.clear();
+    return modified;
+  }
+}
@@ -0,0 +1,96 @@
+package umm3601.text;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+/**
+ * Normalizes text for searching, and builds index-friendly prefix
+ * searches over normalized text.
+ *
+ * A case-insensitive, unanchored regular expression (which is what we
+ * used to use for name searches) can't use an index, so MongoDB has to
+ * look at every document. Instead we store a normalized "shadow" copy
+ * of each searchable field (lowercased, accents stripped, whitespace
+ * collapsed) alongside the original, index that, and turn a search
+ * for names starting with "Crème" into the range query
+ * `"creme" <= nameNormalized < "cremf"`, which is a single index scan.
+ */
+public final class TextNormalizer {
+
+  // Combining marks (accents, etc.), which are split off from the
+  // letters they decorate by Unicode NFD normalization.
+  private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  private TextNormalizer() {
+  }
+
+  /**
+   * Normalize text so that searches ignore case, accents, and extra
+   * whitespace: "  Crème   BRÛLÉE " becomes "creme brulee".
+   *
+   * @param text the text to normalize (may be `null`)
+   * @return the normalized text, or `null` if `text` was `null`
+   */
+  public static String normalize(String text) {
+    if (text == null) {
+      return null;
+    }
+    String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+    String unaccented = COMBINING_MARKS.matcher(decomposed).replaceAll("");
+    return WHITESPACE.matcher(unaccented.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+  }
+
+  /**
+   * Build a filter matching documents whose normalized field starts
+   * with (the normalized form of) the given prefix. This is a range
+   * query, so it can use an index on `normalizedField`.
+   *
+   * @param normalizedField the name of the normalized shadow field
+   * @param prefix the (not yet normalized) prefix to search for
+   * @return a filter for the matching documents
+   */
+  public static Bson prefixFilter(String normalizedField, String prefix) {
+    String lower = normalize(prefix);
+    if (lower == null || lower.isEmpty()) {
+      // Every string starts with the empty string.
+      return new Document();
+    }
+    String upper = prefixUpperBound(lower);
+    return upper == null ? gte(normalizedField, lower) : and(gte(normalizedField, lower), lt(normalizedField, upper));
+  }
+
+  /**
+   * The smallest string that is greater than every string starting
+   * with `prefix`, found by "incrementing" its last code point. MongoDB
+   * compares strings by their UTF-8 bytes, which orders them by code
+   * point, so we work in code points rather than Java `char`s.
+   *
+   * @param prefix a non-empty prefix
+   * @return the exclusive upper bound, or `null` if there isn't one
+   */
+  static String prefixUpperBound(String prefix) {
+    int end = prefix.length();
+    while (end > 0) {
+      int last = prefix.codePointBefore(end);
+      int start = end - Character.charCount(last);
+      int next = last + 1;
+      if (next >= Character.MIN_SURROGATE && next <= Character.MAX_SURROGATE) {
+        next = Character.MAX_SURROGATE + 1;
+      }
+      if (next <= Character.MAX_CODE_POINT) {
+        return prefix.substring(0, start) + new String(Character.toChars(next));
+      }
+      end = start;
+    }
+    return null;
+  }
+}
@@ -1,5 +1,7 @@
 package umm3601.user;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import org.mongojack.Id;
 import org.mongojack.ObjectId;
 
@@ -29,8 +31,19 @@ public class User {
   public String _id;
 
   public String name;
-  public int age;
+
+  // `null`, and left out of the JSON, when a projection left it out (see
+  // `FieldSelection`), rather than a 0.
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Integer age;
+
   public String company;
+
+  // The normalized (lowercase, unaccented) form of `company`, which
+  // searches by company use; see `TextNormalizer`. The server fills
+  // this in, so clients never need to send it.
+  public String companyNormalized;
+
   public String email;
   public String avatar;
   public String role;
@@ -2,7 +2,6 @@ package umm3601.user;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Filters.regex;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
@@ -10,12 +9,13 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Set;
 import java.util.regex.Pattern;
 
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Sorts;
-import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.Indexes;
 
 import org.bson.Document;
 import org.bson.UuidRepresentation;
@@ -27,44 +27,156 @@ import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
+import umm3601.cache.DocumentCache;
+import umm3601.cache.ETags;
+import umm3601.events.ChangeBus;
+import umm3601.events.ChangeEvent;
+import umm3601.patch.PartialUpdate;
+import umm3601.patch.PatchRules;
+import umm3601.projection.FieldSelection;
+import umm3601.sorting.SortPlanner;
+import umm3601.streaming.JsonStreaming;
+import umm3601.text.NormalizedFieldMigration;
+import umm3601.text.TextNormalizer;
+import umm3601.validation.BodySchema;
 
 /**
  * Controller that manages requests for info about users.
  */
 public class UserController {
 
+  private static final String NAME_KEY = "name";
   private static final String AGE_KEY = "age";
   private static final String COMPANY_KEY = "company";
+  private static final String COMPANY_NORMALIZED_KEY = "companyNormalized";
   private static final String ROLE_KEY = "role";
 
   public static final String EMAIL_REGEX = "^[a-zA-Z0-9_!#$%&'*+/=?`{|}~^.-]+@[a-zA-Z0-9.-]+$";
 
+  // Compiled once, rather than by every `String.matches()`.
+  private static final Pattern EMAIL_PATTERN = Pattern.compile(EMAIL_REGEX);
+  private static final Set<String> ROLES = Set.of("admin", "editor", "viewer");
+
+  // What a new user has to look like.
+  private static final BodySchema<User> SCHEMA = BodySchema.of(User.class)
+      .text(NAME_KEY, usr -> usr.name, "User must have a non-empty user name")
+      .text("email", usr -> usr.email, EMAIL_PATTERN, "User must have a legal email")
+      .number(AGE_KEY, usr -> usr.age, 1, "User's age must be greater than zero")
+      .oneOf(ROLE_KEY, usr -> usr.role, ROLES, "User must have a legal user role")
+      .text(COMPANY_KEY, usr -> usr.company, "User must have a non-empty company name");
+
+  /**
+   * The name of the MongoDB collection holding the users.
+   */
+  public static final String COLLECTION_NAME = "users";
+
+  /**
+   * The indexes that the queries in this controller rely on. `Server.main`
+   * hands these to an `IndexManager`, which creates any that are missing.
+   */
+  public static final List<IndexModel> INDEXES = List.of(
+      // These serve sorting (see `SORTS`), with `_id` to break ties, as
+      // well as company searches.
+      new IndexModel(Indexes.ascending(COMPANY_NORMALIZED_KEY, "_id")),
+      new IndexModel(Indexes.ascending(NAME_KEY, "_id")),
+      new IndexModel(Indexes.ascending(AGE_KEY, "_id")),
+      new IndexModel(Indexes.ascending(ROLE_KEY, "_id")),
+      // These serve filtering by age or role, sorted by name (or, for a
+      // company search, by company).
+      new IndexModel(Indexes.ascending(AGE_KEY, NAME_KEY, "_id")),
+      new IndexModel(Indexes.ascending(AGE_KEY, COMPANY_NORMALIZED_KEY, "_id")),
+      new IndexModel(Indexes.ascending(ROLE_KEY, NAME_KEY, "_id")));
+
+  // What lists of users can be sorted by, given their filters.
+  private static final SortPlanner SORTS = new SortPlanner(INDEXES, NAME_KEY, AGE_KEY, ROLE_KEY)
+      .searchedBy(COMPANY_KEY, COMPANY_NORMALIZED_KEY);
+
+  // The fields a client can pick with `fields=`. These documents are
+  // all small, so the list summary is just every field.
+  private static final FieldSelection FIELDS = FieldSelection.of(User.class);
+
   private final JacksonMongoCollection<User> userCollection;
 
+  // What `PATCH /api/users/{id}` may change, and the rules the new values
+  // must follow (the same as for a new user). This isn't static since a
+  // new email means a new avatar, which `generateAvatar` works out.
+  private final PatchRules patchRules = new PatchRules()
+      .text(NAME_KEY, name -> name.length() > 0, "User must have a non-empty user name")
+      .text("email", email -> EMAIL_PATTERN.matcher(email).matches(), "User must have a legal email")
+      .derive("email", "avatar", email -> generateAvatar((String) email))
+      .number(AGE_KEY, 1, "User's age must be greater than zero")
+      .text(ROLE_KEY, ROLES::contains, "User must have a legal user role")
+      .text(COMPANY_KEY, company -> company.length() > 0, "User must have a non-empty company name")
+      .derive(COMPANY_KEY, COMPANY_NORMALIZED_KEY, company -> TextNormalizer.normalize((String) company));
+
+  // Where we announce every insert and delete; its per-collection
+  // versions are also what our ETags are made from.
+  private final ChangeBus changes;
+
+  // Single-user lookups (without `fields=`) are served from here when we can.
+  private final DocumentCache<User> userCache =
+      new DocumentCache<>(COLLECTION_NAME, User.class);
+
   /**
    * Construct a controller for users.
    *
    * @param database the database containing user data
    */
   public UserController(MongoDatabase database) {
+    this(database, new ChangeBus());
+  }
+
+  /**
+   * Construct a controller for users that announces its changes.
+   *
+   * @param database the database containing user data
+   * @param changes where to publish every insert and delete
+   */
+  public UserController(MongoDatabase database, ChangeBus changes) {
+    this.changes = changes;
     userCollection = JacksonMongoCollection.builder().build(
         database,
-        "users",
+        COLLECTION_NAME,
         User.class,
         UuidRepresentation.STANDARD);
   }
 
+  /**
+   * Fill in `companyNormalized` for any users that don't have it yet (e.g.,
+   * ones loaded straight into the database, like the seed data), so
+   * that searches by company find them.
+   *
+   * @param database the database containing user data
+   * @return how many documents were updated
+   */
+  public static long backfillNormalizedFields(MongoDatabase database) {
+    return NormalizedFieldMigration.backfill(
+        database.getCollection(COLLECTION_NAME), COMPANY_KEY, COMPANY_NORMALIZED_KEY);
+  }
+
   /**
    * Get the single user specified by the `id` parameter in the request.
    *
    * @param ctx a Javalin HTTP context
    */
   public void getUser(Context ctx) {
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME)) {
+      return;
+    }
     String id = ctx.pathParam("id");
     User user;
 
     try {
-      user = userCollection.find(eq("_id", new ObjectId(id))).first();
+      ObjectId objectId = new ObjectId(id);
+      if (FieldSelection.requested(ctx)) {
+        user = userCollection
+            .find(eq("_id", objectId))
+            .projection(FIELDS.forItem(ctx))
+            .first();
+      } else {
+        user = userCache.get(objectId,
+            key -> userCollection.find(eq("_id", key)).first());
+      }
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
     }
@@ -81,17 +193,29 @@ public class UserController {
    * @param ctx a Javalin HTTP context
    */
   public void getUsers(Context ctx) {
+    if (ETags.notModified(ctx, changes, COLLECTION_NAME)) {
+      return;
+    }
     Bson combinedFilter = constructFilter(ctx);
-    Bson sortingOrder = constructSortingOrder(ctx);
+    Bson sortingOrder = SORTS.plan(ctx, combinedFilter);
+
+    FindIterable<User> results = userCollection
+      .find(combinedFilter)
+      .projection(FIELDS.forList(ctx))
+      .sort(sortingOrder);
+
+    // With `stream=true` we write the results out as they come back from
+    // the database, rather than collecting them all into a list first.
+    if (JsonStreaming.requested(ctx)) {
+      JsonStreaming.streamArray(ctx, results);
+      return;
+    }
 
     // All three of the find, sort, and into steps happen "in parallel" inside the
     // database system. So MongoDB is going to find the users with the specified
     // properties, return those sorted in the specified manner, and put the
     // results into an initially empty ArrayList.
-    ArrayList<User> matchingUsers = userCollection
-      .find(combinedFilter)
-      .sort(sortingOrder)
-      .into(new ArrayList<>());
+    ArrayList<User> matchingUsers = results.into(new ArrayList<>());
 
     // Set the JSON body of the response to be the list of users returned by
     // the database.
@@ -106,7 +230,7 @@ public class UserController {
         filters.add(eq(AGE_KEY, targetAge));
     }
     if (ctx.queryParamMap().containsKey(COMPANY_KEY)) {
-      filters.add(regex(COMPANY_KEY,  Pattern.quote(ctx.queryParam(COMPANY_KEY)), "i"));
+      filters.add(TextNormalizer.prefixFilter(COMPANY_NORMALIZED_KEY, ctx.queryParam(COMPANY_KEY)));
     }
     if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
       filters.add(eq(ROLE_KEY, ctx.queryParam(ROLE_KEY)));
@@ -118,16 +242,6 @@ public class UserController {
     return combinedFilter;
   }
 
-  private Bson constructSortingOrder(Context ctx) {
-    // Sort the results. Use the `sortby` query param (default "name")
-    // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
-    Bson sortingOrder = sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
-    return sortingOrder;
-  }
-
   /**
    * Get a JSON response with a list of all the users.
    *
@@ -135,28 +249,23 @@ public class UserController {
    */
   public void addNewUser(Context ctx) {
     /*
-     * The follow chain of statements uses the Javalin validator system
-     * to verify that instance of `User` provided in this context is
-     * a "legal" user. It checks the following things (in order):
-     *    - The user has a value for the name (`usr.name != null`)
-     *    - The user name is not blank (`usr.name.length > 0`)
+     * Read the new user and check that it's "legal" (see `SCHEMA`):
+     *    - The user has a non-empty name
      *    - The provided email is valid (matches EMAIL_REGEX)
      *    - The provided age is > 0
      *    - The provided role is valid (one of "admin", "editor", or "viewer")
      *    - A non-blank company is provided
+     * Every rule the user breaks is reported, not just the first.
      */
-    User newUser = ctx.bodyValidator(User.class)
-      .check(usr -> usr.name != null && usr.name.length() > 0, "User must have a non-empty user name")
-      .check(usr -> usr.email.matches(EMAIL_REGEX), "User must have a legal email")
-      .check(usr -> usr.age > 0, "User's age must be greater than zero")
-      .check(usr -> usr.role.matches("^(admin|editor|viewer)$"), "User must have a legal user role")
-      .check(usr -> usr.company != null && usr.company.length() > 0, "User must have a non-empty company name")
-      .get();
+    User newUser = SCHEMA.read(ctx);
 
     // Generate a user avatar (you won't need this part for todos)
     newUser.avatar = generateAvatar(newUser.email);
 
+    newUser.companyNormalized = TextNormalizer.normalize(newUser.company);
+
     userCollection.insertOne(newUser);
+    changes.publish(ChangeEvent.inserted(COLLECTION_NAME, newUser._id, newUser));
 
     // 201 is the HTTP code for when we successfully
     // create a new resource (a user in this case).
@@ -166,6 +275,24 @@ public class UserController {
     ctx.json(Map.of("id", newUser._id));
   }
 
+  /**
+   * Change some of the fields of the user specified by the `id`
+   * parameter in the request; see `PatchRules` for the form of the body.
+   * Only the changed fields are checked and sent to the database, and
+   * the response is the whole user after the change.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void updateUser(Context ctx) {
+    String id = ctx.pathParam("id");
+    PartialUpdate update = patchRules.parse(ctx);
+    User before = update.updateOne(userCollection, id, "user");
+    User after = update.applyTo(before, User.class);
+    userCache.invalidate(new ObjectId(id));
+    changes.publish(ChangeEvent.updated(COLLECTION_NAME, id, before, after));
+    ctx.json(after);
+  }
+
   /**
    * Delete the user specified by the `id` parameter in the request.
    *
@@ -173,13 +300,24 @@ public class UserController {
    */
   public void deleteUser(Context ctx) {
     String id = ctx.pathParam("id");
-    DeleteResult deleteResult = userCollection.deleteOne(eq("_id", new ObjectId(id)));
-    if (deleteResult.getDeletedCount() != 1) {
+    User deleted = userCollection.findOneAndDelete(eq("_id", new ObjectId(id)));
+    userCache.invalidate(new ObjectId(id));
+    if (deleted == null) {
       throw new NotFoundResponse(
         "Was unable to delete ID "
           + id
           + "; perhaps illegal ID or an ID for an item not in the system?");
     }
+    changes.publish(ChangeEvent.deleted(COLLECTION_NAME, id, deleted));
+  }
+
+  /**
+   * Report how well the single-user cache is doing.
+   *
+   * @return the cache's size and its hit, miss, and eviction counts
+   */
+  public Map<String, Object> cacheStats() {
+    return userCache.stats();
   }
 
   /**
@@ -0,0 +1,257 @@
+package umm3601.validation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.core.validation.ValidationError;
+import io.javalin.core.validation.ValidationException;
+import io.javalin.http.Context;
+import io.javalin.plugin.json.JavalinJackson;
+
+/**
+ * The rules a new document of one kind has to follow, e.g., the body
+ * of a `POST /api/products`.
+ *
+ * A schema is built once (typically as a `static final` next to the
+ * controller that uses it) rather than for every request, the way a
+ * `bodyValidator` chain is. Patterns are compiled when the schema is
+ * built, and a check is one pass over the rules that only allocates
+ * anything when a rule is broken. Every broken rule is reported at
+ * once, keyed by the field it's about (in the same form as Javalin's
+ * own validators, and `PatchRules`), rather than just the first.
+ *
+ * @param <T> the class of the documents
+ */
+public final class BodySchema<T> {
+
+  /**
+   * The key errors about the body as a whole (e.g., that it isn't legal
+   * JSON) are reported under; the same one Javalin uses.
+   */
+  public static final String REQUEST_BODY = "REQUEST_BODY";
+
+  private static final ObjectMapper MAPPER = JavalinJackson.Companion.defaultMapper();
+
+  /**
+   * What a legal value of one field looks like.
+   */
+  private interface Check<T> {
+    /**
+     * Whether a document follows the rule.
+     *
+     * @param body the document
+     * @return true if it does
+     */
+    boolean passes(T body);
+  }
+
+  /**
+   * One rule, and the error to report if a document breaks it.
+   */
+  private static final class Rule<T> {
+    private final String field;
+    private final Check<T> check;
+    private final String message;
+
+    Rule(String field, Check<T> check, String message) {
+      this.field = field;
+      this.check = check;
+      this.message = message;
+    }
+  }
+
+  private final Class<T> type;
+  // Only ever added to while the schema is being built, and then read
+  // by index, so checking doesn't even need an iterator.
+  private final List<Rule<T>> rules = new ArrayList<>();
+
+  private BodySchema(Class<T> type) {
+    this.type = type;
+  }
+
+  /**
+   * Start the schema for a class of documents.
+   *
+   * @param <T> the class of the documents
+   * @param type the class of the documents
+   * @return a schema with no rules yet
+   */
+  public static <T> BodySchema<T> of(Class<T> type) {
+    return new BodySchema<>(type);
+  }
+
+  /**
+   * A required text field, which must not be empty.
+   *
+   * @param field the field's name
+   * @param getter reads the field from a document
+   * @param message the error if it's missing or empty
+   * @return this schema, for chaining
+   */
+  public BodySchema<T> text(String field, Function<T, String> getter, String message) {
+    return add(field, body -> {
+      String value = getter.apply(body);
+      return value != null && !value.isEmpty();
+    }, message);
+  }
+
+  /**
+   * A required text field, which must match a pattern.
+   *
+   * @param field the field's name
+   * @param getter reads the field from a document
+   * @param pattern what a legal value looks like (all of it)
+   * @param message the error if it's missing or doesn't match
+   * @return this schema, for chaining
+   */
+  public BodySchema<T> text(String field, Function<T, String> getter, Pattern pattern, String message) {
+    return add(field, body -> {
+      String value = getter.apply(body);
+      return value != null && pattern.matcher(value).matches();
+    }, message);
+  }
+
+  /**
+   * A required text field, which must be one of a few values. This is
+   * a hash lookup, so it's cheaper than a pattern of alternatives.
+   *
+   * @param field the field's name
+   * @param getter reads the field from a document
+   * @param values the legal values
+   * @param message the error if it's missing or not one of them
+   * @return this schema, for chaining
+   */
+  public BodySchema<T> oneOf(String field, Function<T, String> getter, Set<String> values, String message) {
+    return add(field, body -> {
+      String value = getter.apply(body);
+      return value != null && values.contains(value);
+    }, message);
+  }
+
+  /**
+   * An optional text field, which must not be empty if it's there.
+   *
+   * @param field the field's name
+   * @param getter reads the field from a document
+   * @param message the error if it's empty
+   * @return this schema, for chaining
+   */
+  public BodySchema<T> optionalText(String field, Function<T, String> getter, String message) {
+    return add(field, body -> {
+      String value = getter.apply(body);
+      return value == null || !value.isEmpty();
+    }, message);
+  }
+
+  /**
+   * A whole number field with a smallest legal value. A missing number
+   * counts as 0.
+   *
+   * @param field the field's name
+   * @param getter reads the field from a document
+   * @param minimum the smallest legal value
+   * @param message the error if it's too small
+   * @return this schema, for chaining
+   */
+  public BodySchema<T> number(String field, Function<T, Integer> getter, int minimum, String message) {
+    return add(field, body -> {
+      Integer value = getter.apply(body);
+      return (value == null ? 0 : value) >= minimum;
+    }, message);
+  }
+
+  private BodySchema<T> add(String field, Check<T> check, String message) {
+    rules.add(new Rule<>(field, check, message));
+    return this;
+  }
+
+  /**
+   * Read a document from the body of a request, and check it.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the document
+   * @throws ValidationException if the body isn't a document of this
+   *  kind, or the document breaks any of the rules
+   */
+  public T read(Context ctx) {
+    return read(ctx.body());
+  }
+
+  /**
+   * Read a document from JSON, and check it.
+   *
+   * @param json the document's JSON
+   * @return the document
+   * @throws ValidationException if the JSON isn't a document of this
+   *  kind, or the document breaks any of the rules
+   */
+  public T read(String json) {
+    T body;
+    try {
+      body = MAPPER.readValue(json, type);
+    } catch (JsonProcessingException e) {
+      throw new ValidationException(Map.of(REQUEST_BODY, List.of(new ValidationError<>(
+          "Couldn't read a " + type.getSimpleName() + ": " + e.getOriginalMessage(), Map.of(), null))));
+    }
+    if (body == null) {
+      throw new ValidationException(Map.of(REQUEST_BODY, List.of(new ValidationError<>(
+          "The body must be a " + type.getSimpleName(), Map.of(), null))));
+    }
+    check(body);
+    return body;
+  }
+
+  /**
+   * Check a document.
+   *
+   * @param body the document
+   * @throws ValidationException if it breaks any of the rules, with
+   *  an error for each one it breaks
+   */
+  public void check(T body) {
+    Map<String, List<ValidationError<Object>>> errors = null;
+    for (int i = 0; i < rules.size(); i++) {
+      Rule<T> rule = rules.get(i);
+      if (!rule.check.passes(body)) {
+        if (errors == null) {
+          errors = new LinkedHashMap<>();
+        }
+        errors.computeIfAbsent(rule.field, key -> new ArrayList<>())
+            .add(new ValidationError<>(rule.message, Map.of(), null));
+      }
+    }
+    if (errors != null) {
+      throw new ValidationException(errors);
+    }
+  }
+
+  /**
+   * Check a document, returning the errors rather than throwing them
+   * (e.g., for one item of a bulk upload).
+   *
+   * @param body the document
+   * @return the errors for the rules it breaks, in order (or an empty
+   *  list if it breaks none)
+   */
+  public List<String> violations(T body) {
+    List<String> messages = List.of();
+    for (int i = 0; i < rules.size(); i++) {
+      Rule<T> rule = rules.get(i);
+      if (!rule.check.passes(body)) {
+        if (messages.isEmpty()) {
+          messages = new ArrayList<>();
+        }
+        messages.add(rule.message);
+      }
+    }
+    return messages;
+  }
+}
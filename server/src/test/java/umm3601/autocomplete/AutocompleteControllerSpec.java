@@ -0,0 +1,164 @@
+package umm3601.autocomplete;
+
+import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
+import static java.util.Map.entry;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.core.validation.ValidationException;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.events.ChangeBus;
+import umm3601.pantry.PantryController;
+import umm3601.product.ProductController;
+
+/**
+ * Tests the AutocompleteController, including that it keeps up with
+ * changes made through the other controllers.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class AutocompleteControllerSpec {
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+
+  private ChangeBus changes;
+  private AutocompleteController autocompleteController;
+  private ObjectId applesId;
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private static JavalinJackson javalinJackson = new JavalinJackson();
+
+  @BeforeAll
+  public static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build()
+    );
+    db = mongoClient.getDatabase("test");
+  }
+
+  @AfterAll
+  public static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  public void setupEach() throws IOException {
+    mockReq.resetAll();
+    mockRes.resetAll();
+
+    applesId = new ObjectId();
+    db.getCollection("products").drop();
+    db.getCollection("products").insertMany(List.of(
+        new Document("_id", applesId).append("productName", "Apples").append("store", "coop"),
+        new Document("productName", "Apple juice").append("store", "coop"),
+        new Document("productName", "Bananas").append("store", "willies")));
+    db.getCollection("pantry").drop();
+    db.getCollection("pantry").insertMany(List.of(
+        new Document("name", "Apples").append("prodID", applesId.toHexString()),
+        new Document("name", "Applesauce").append("prodID", "123")));
+    db.getCollection("shoppingList").drop();
+    db.getCollection("shoppingList").insertOne(
+        new Document("productName", "apples").append("store", "coop").append("quantity", 4));
+
+    changes = new ChangeBus();
+    autocompleteController = new AutocompleteController(db, changes);
+  }
+
+  private Context mockContext(String path) {
+    return ContextUtil.init(
+        mockReq, mockRes,
+        path,
+        Collections.emptyMap(),
+        HandlerType.INVALID,
+        Map.ofEntries(
+          entry(JSON_MAPPER_KEY, javalinJackson),
+          entry(ContextUtil.maxRequestSizeKey,
+                new JavalinConfig().maxRequestSize
+          )
+        )
+      );
+  }
+
+  private List<String> complete(String queryString) {
+    mockRes.resetAll();
+    mockReq.setQueryString(queryString);
+    Context ctx = mockContext("api/products/autocomplete");
+    autocompleteController.getCompletions(ctx);
+    ObjectNode[] completions = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode[].class);
+    return Arrays.stream(completions)
+        .map(completion -> completion.get("name").asText() + ":" + completion.get("count").asInt())
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void completesNamesFromEveryCollection() {
+    // "Apples" is a product, a pantry item, and on the shopping list.
+    assertEquals(List.of("Apples:3", "Apple juice:1", "Applesauce:1"), complete("prefix=app"));
+    assertEquals(List.of("Bananas:1"), complete("prefix=BAN"));
+  }
+
+  @Test
+  public void respectsTheLimit() {
+    assertEquals(List.of("Apples:3"), complete("prefix=app&limit=1"));
+  }
+
+  @Test
+  public void rejectsIllegalLimits() {
+    mockReq.setQueryString("prefix=app&limit=" + (AutocompleteController.MAX_COMPLETIONS + 1));
+    Context ctx = mockContext("api/products/autocomplete");
+
+    assertThrows(ValidationException.class, () -> {
+      autocompleteController.getCompletions(ctx);
+    });
+  }
+
+  @Test
+  public void keepsUpWithNewAndDeletedItems() {
+    PantryController pantryController = new PantryController(db, changes);
+    mockReq.setBodyContent("{\"name\": \"Apricots\", \"prodID\": \"456\", \"date\": \"1/1/2022\"}");
+    mockReq.setMethod("POST");
+    pantryController.addNewPantry(mockContext("api/pantry"));
+    mockReq.resetAll();
+
+    ProductController productController = new ProductController(db, changes);
+    productController.deleteProduct(ContextUtil.init(
+        mockReq, mockRes, "api/products/{id}", Map.of("id", applesId.toHexString()), HandlerType.INVALID,
+        Map.of(JSON_MAPPER_KEY, javalinJackson)));
+
+    assertEquals(List.of("Apples:2", "Apple juice:1", "Applesauce:1", "Apricots:1"), complete("prefix=ap"));
+  }
+}
@@ -0,0 +1,117 @@
+package umm3601.autocomplete;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the completion trie on its own, without a database.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class CompletionTrieSpec {
+
+  private CompletionTrie trie;
+
+  private List<String> names(List<CompletionTrie.Completion> completions) {
+    return completions.stream().map(CompletionTrie.Completion::getName).collect(Collectors.toList());
+  }
+
+  @BeforeEach
+  public void setupEach() {
+    trie = new CompletionTrie(3);
+    trie.add("Apple");
+    trie.add("Apple juice");
+    trie.add("apple juice");
+    trie.add("Applesauce");
+    trie.add("Apricot");
+    trie.add("Banana");
+  }
+
+  @Test
+  public void completesAPrefixMostPopularFirst() {
+    List<CompletionTrie.Completion> completions = trie.complete("ap", 10);
+
+    // Only the top 3 are kept; ties are alphabetical.
+    assertEquals(List.of("Apple juice", "Apple", "Applesauce"), names(completions));
+    assertEquals(2, completions.get(0).getCount());
+  }
+
+  @Test
+  public void matchesPrefixesEndingPartWayAlongAnEdge() {
+    assertEquals(List.of("Apple juice", "Apple", "Applesauce"), names(trie.complete("appl", 10)));
+    assertEquals(List.of("Applesauce"), names(trie.complete("apples", 10)));
+    assertEquals(List.of("Apricot"), names(trie.complete("apr", 10)));
+  }
+
+  @Test
+  public void ignoresCaseAndAccents() {
+    trie.add("Crème fraîche");
+
+    assertEquals(List.of("Crème fraîche"), names(trie.complete("CREME F", 10)));
+  }
+
+  @Test
+  public void findsNothingForUnknownPrefixes() {
+    assertEquals(0, trie.complete("cherry", 10).size());
+    assertEquals(0, trie.complete("applex", 10).size());
+    assertEquals(0, trie.complete("bananas", 10).size());
+  }
+
+  @Test
+  public void anEmptyPrefixGivesTheMostPopularOverall() {
+    assertEquals(List.of("Apple juice", "Apple", "Applesauce"), names(trie.complete("", 10)));
+  }
+
+  @Test
+  public void respectsTheLimit() {
+    assertEquals(List.of("Apple juice"), names(trie.complete("a", 1)));
+    assertEquals(0, trie.complete("a", 0).size());
+  }
+
+  @Test
+  public void lookupsReturnPrecomputedCompletions() {
+    assertSame(trie.complete("app", 3).get(0), trie.complete("apple", 3).get(0));
+  }
+
+  @Test
+  public void removingMakesANameLessPopular() {
+    assertTrue(trie.remove("APPLE JUICE"));
+
+    assertEquals(List.of("Apple", "Apple juice", "Applesauce"), names(trie.complete("apple", 10)));
+  }
+
+  @Test
+  public void removingTheLastOccurrenceDropsAName() {
+    assertTrue(trie.remove("Applesauce"));
+    assertFalse(trie.remove("Applesauce"));
+    assertTrue(trie.remove("Apple"));
+
+    assertEquals(List.of("Apple juice", "Apricot"), names(trie.complete("ap", 10)));
+    assertEquals(List.of("Apple juice"), names(trie.complete("apple", 10)));
+    assertEquals(0, trie.complete("apples", 10).size());
+    assertEquals(3, trie.size());
+  }
+
+  @Test
+  public void removingUnknownNamesDoesNothing() {
+    assertFalse(trie.remove("Appl"));
+    assertFalse(trie.remove("Cherry"));
+    assertFalse(trie.remove(null));
+    assertEquals(5, trie.size());
+  }
+
+  @Test
+  public void ignoresBlankNames() {
+    trie.add("   ");
+    trie.add(null);
+
+    assertEquals(5, trie.size());
+  }
+}
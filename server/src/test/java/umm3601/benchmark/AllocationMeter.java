@@ -0,0 +1,55 @@
+package umm3601.benchmark;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures roughly how many bytes a piece of code allocates per call,
+ * for the allocation benchmarks (the tests tagged `benchmark`, which
+ * `./gradlew benchmark` runs and `./gradlew test` leaves out).
+ *
+ * This relies on the HotSpot-specific `com.sun.management.ThreadMXBean`;
+ * on a JVM without it, the benchmark is skipped rather than failed.
+ * The numbers depend on the JIT and the garbage collector, so they're
+ * for comparing alternatives on one machine, not for hard limits.
+ */
+public final class AllocationMeter {
+
+  /**
+   * The name of the JUnit tag the benchmarks carry.
+   */
+  public static final String TAG = "benchmark";
+
+  private static final int ITERATIONS = 20_000;
+
+  private AllocationMeter() {
+  }
+
+  /**
+   * How many bytes a call allocates, on average, once the JIT has had a
+   * chance to compile it.
+   *
+   * @param call the code to measure
+   * @return the average bytes allocated per call
+   */
+  public static long bytesPerCall(Runnable call) {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "This JVM can't count allocated bytes");
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(),
+        "This JVM can't count allocated bytes");
+
+    long threadId = Thread.currentThread().getId();
+    // Warm up, so we measure the JIT-compiled code.
+    for (int i = 0; i < ITERATIONS; i++) {
+      call.run();
+    }
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < ITERATIONS; i++) {
+      call.run();
+    }
+    return (threads.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+  }
+}
@@ -0,0 +1,146 @@
+package umm3601.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the DocumentCache on its own, without a database; the "loader"
+ * in each test just counts how often it is called.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class DocumentCacheSpec {
+
+  /**
+   * A tiny stand-in for one of our MongoJack POJOs.
+   */
+  @SuppressWarnings({"VisibilityModifier"})
+  public static class Widget {
+    public String name;
+    public int size;
+
+    Widget(String name, int size) {
+      this.name = name;
+      this.size = size;
+    }
+  }
+
+  private DocumentCache<Widget> cache;
+  private AtomicInteger loads;
+
+  @BeforeEach
+  public void setupEach() {
+    cache = new DocumentCache<>("widgets", Widget.class);
+    loads = new AtomicInteger();
+  }
+
+  private Widget load(ObjectId id) {
+    loads.incrementAndGet();
+    return new Widget("widget " + id, 3);
+  }
+
+  @Test
+  public void onlyLoadsEachDocumentOnce() {
+    ObjectId id = new ObjectId();
+
+    Widget first = cache.get(id, this::load);
+    Widget second = cache.get(id, this::load);
+
+    assertSame(first, second);
+    assertEquals(1, loads.get());
+
+    Map<String, Object> stats = cache.stats();
+    assertEquals("widgets", stats.get("name"));
+    assertEquals(1L, stats.get("hits"));
+    assertEquals(1L, stats.get("misses"));
+    assertEquals(1L, stats.get("entries"));
+    assertTrue((Long) stats.get("bytes") > 0);
+  }
+
+  @Test
+  public void loadsAllTheMissingDocumentsAtOnce() {
+    ObjectId cached = new ObjectId();
+    ObjectId missing = new ObjectId();
+    ObjectId absent = new ObjectId();
+    Widget first = cache.get(cached, this::load);
+    AtomicInteger batches = new AtomicInteger();
+
+    Map<ObjectId, Widget> found = cache.getAll(List.of(cached, missing, absent), ids -> {
+      batches.incrementAndGet();
+      assertEquals(Set.of(missing, absent), ids);
+      return Map.of(missing, load(missing));
+    });
+
+    assertEquals(1, batches.get());
+    assertEquals(2, found.size());
+    assertSame(first, found.get(cached));
+    assertNull(found.get(absent));
+    // The one that was found is cached now; the absent one isn't
+    assertSame(found.get(missing), cache.get(missing, this::load));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void doesNotCacheMissingDocuments() {
+    ObjectId id = new ObjectId();
+
+    assertNull(cache.get(id, key -> null));
+    cache.get(id, this::load);
+
+    assertEquals(1, loads.get());
+    assertEquals(2L, cache.stats().get("misses"));
+  }
+
+  @Test
+  public void invalidateForcesAReload() {
+    ObjectId id = new ObjectId();
+
+    cache.get(id, this::load);
+    cache.invalidate(id);
+    cache.get(id, this::load);
+
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void invalidateAllForgetsEverything() {
+    cache.get(new ObjectId(), this::load);
+    cache.get(new ObjectId(), this::load);
+    cache.invalidateAll();
+
+    assertEquals(0L, cache.stats().get("entries"));
+  }
+
+  @Test
+  public void evictsWhenOverItsSizeLimit() {
+    DocumentCache<Widget> tiny = new DocumentCache<>("tiny", Widget.class, 1000, Duration.ofMinutes(1));
+    String longName = "x".repeat(400);
+
+    for (int i = 0; i < 10; i++) {
+      tiny.get(new ObjectId(), id -> new Widget(longName, 1));
+    }
+
+    Map<String, Object> stats = tiny.stats();
+    assertTrue((Long) stats.get("evictions") > 0);
+    assertTrue((Long) stats.get("bytes") <= 1000);
+  }
+
+  @Test
+  public void estimatesLongerDocumentsAsBigger() {
+    int small = cache.estimateSize(new Widget("a", 1));
+    int large = cache.estimateSize(new Widget("a".repeat(1000), 1));
+
+    assertEquals(999, large - small);
+  }
+}
@@ -0,0 +1,141 @@
+package umm3601.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.HttpURLConnection;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Map;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import umm3601.events.ChangeBus;
+import umm3601.events.ChangeEvent;
+
+/**
+ * Tests ETags and the ChangeBus versions behind them, without a database.
+ */
+public class ETagsSpec {
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+  private ChangeBus changes;
+
+  @BeforeEach
+  public void setupEach() {
+    mockReq.resetAll();
+    mockRes.resetAll();
+    changes = new ChangeBus();
+  }
+
+  private Context mockContext() {
+    return ContextUtil.init(mockReq, mockRes, "api/widgets", Collections.emptyMap(),
+        HandlerType.INVALID, Map.of());
+  }
+
+  private String etag() {
+    assertFalse(ETags.notModified(mockContext(), changes, "widgets"));
+    String etag = mockRes.getHeader("ETag");
+    mockRes.resetAll();
+    return etag;
+  }
+
+  @Test
+  public void tagsResponsesWithTheCollectionVersion() {
+    String etag = etag();
+
+    assertTrue(etag.startsWith("\"widgets-"));
+    assertEquals(etag, etag());
+  }
+
+  @Test
+  public void answersNotModifiedWhenTheTagMatches() {
+    mockReq.addHeader("If-None-Match", etag());
+
+    assertTrue(ETags.notModified(mockContext(), changes, "widgets"));
+    assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, mockRes.getStatusCode());
+  }
+
+  @Test
+  public void changesTheTagWhenTheCollectionChanges() {
+    String before = etag();
+    changes.publish(ChangeEvent.inserted("gadgets", "1", null));
+    assertEquals(before, etag());
+
+    changes.publish(ChangeEvent.inserted("widgets", "1", null));
+    String after = etag();
+
+    assertNotEquals(before, after);
+    assertEquals(1, changes.version("widgets"));
+    mockReq.addHeader("If-None-Match", before);
+    assertFalse(ETags.notModified(mockContext(), changes, "widgets"));
+  }
+
+  @Test
+  public void joinedResponsesChangeWithEitherCollection() {
+    assertFalse(ETags.notModified(mockContext(), changes, "widgets", "gadgets"));
+    String before = mockRes.getHeader("ETag");
+    mockRes.resetAll();
+
+    changes.publish(ChangeEvent.inserted("gadgets", "1", null));
+    assertFalse(ETags.notModified(mockContext(), changes, "widgets", "gadgets"));
+    String after = mockRes.getHeader("ETag");
+
+    assertTrue(before.startsWith("\"widgets-"));
+    assertTrue(before.contains(".gadgets-"));
+    assertNotEquals(before, after);
+  }
+
+  @Test
+  public void dayDependentResponsesAreTaggedWithTheDay() {
+    String plain = etag();
+    mockRes.resetAll();
+    assertFalse(ETags.notModifiedToday(mockContext(), changes, "widgets"));
+    String today = mockRes.getHeader("ETag");
+
+    assertNotEquals(plain, today);
+    assertTrue(today.endsWith("." + LocalDate.now(ZoneOffset.UTC) + "\""));
+    // Yesterday's copy is stale even though the widgets haven't changed.
+    mockReq.addHeader("If-None-Match", plain.substring(0, plain.length() - 1) + "."
+        + LocalDate.now(ZoneOffset.UTC).minusDays(1) + "\"");
+    assertFalse(ETags.notModifiedToday(mockContext(), changes, "widgets"));
+  }
+
+  @Test
+  public void differentServersUseDifferentTags() throws InterruptedException {
+    String first = etag();
+    Thread.sleep(2);
+    changes = new ChangeBus();
+
+    assertNotEquals(first, etag());
+  }
+
+  @Test
+  public void matchesListsWeakTagsAndWildcards() {
+    assertTrue(ETags.matches("\"a\", \"b\"", "\"b\""));
+    assertTrue(ETags.matches("W/\"b\"", "\"b\""));
+    assertTrue(ETags.matches("*", "\"b\""));
+    assertFalse(ETags.matches("\"a\"", "\"b\""));
+    assertFalse(ETags.matches(null, "\"b\""));
+  }
+
+  @Test
+  public void compressedTagsMatchTheirUncompressedTag() {
+    String compressed = ETags.withEncoding("\"b\"", "gzip");
+
+    assertEquals("\"b+gzip\"", compressed);
+    assertTrue(ETags.matches(compressed, "\"b\""));
+    assertTrue(ETags.matches("W/" + compressed, "\"b\""));
+  }
+}
@@ -0,0 +1,221 @@
+package umm3601.compression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import umm3601.cache.ETags;
+import umm3601.events.ChangeBus;
+
+/**
+ * Tests the ResponseCompressor on hand-made responses, without a database.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ResponseCompressorSpec {
+
+  private static final String BIG_JSON = "[" + "{\"description\": \"a long description\"},".repeat(200) + "{}]";
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+  private ResponseCompressor compressor;
+
+  @BeforeEach
+  public void setupEach() {
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setMethod("GET");
+    mockReq.setRequestURI("/api/products");
+    compressor = new ResponseCompressor(List.of(new GzipEncoder()), 1024, 1024 * 1024);
+  }
+
+  private Context respond(String body) {
+    mockRes.resetAll();
+    Context ctx = ContextUtil.init(mockReq, mockRes, "api/products", Collections.emptyMap(),
+        HandlerType.INVALID, Map.of());
+    ctx.contentType("application/json");
+    ctx.result(body);
+    return ctx;
+  }
+
+  private static String gunzip(byte[] bytes) throws IOException {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  public void compressesLargeResponses() throws IOException {
+    mockReq.addHeader("Accept-Encoding", "gzip, deflate, br");
+    Context ctx = respond(BIG_JSON);
+
+    compressor.compress(ctx);
+
+    assertEquals("gzip", mockRes.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", mockRes.getHeader("Vary"));
+    byte[] compressed = ctx.resultStream().readAllBytes();
+    assertTrue(compressed.length < BIG_JSON.length() / 4);
+    assertEquals(BIG_JSON, gunzip(compressed));
+  }
+
+  @Test
+  public void leavesSmallResponsesAlone() throws IOException {
+    mockReq.addHeader("Accept-Encoding", "gzip");
+    Context ctx = respond("[]");
+
+    compressor.compress(ctx);
+
+    assertNull(mockRes.getHeader("Content-Encoding"));
+    assertEquals("[]", ctx.resultString());
+  }
+
+  @Test
+  public void onlyCompressesForClientsThatAcceptIt() throws IOException {
+    Context ctx = respond(BIG_JSON);
+    compressor.compress(ctx);
+    assertNull(mockRes.getHeader("Content-Encoding"));
+    assertEquals(BIG_JSON, ctx.resultString());
+
+    mockReq.addHeader("Accept-Encoding", "gzip;q=0, identity");
+    ctx = respond(BIG_JSON);
+    compressor.compress(ctx);
+    assertNull(mockRes.getHeader("Content-Encoding"));
+  }
+
+  @Test
+  public void reusesCompressedBodiesUntilTheyChange() throws IOException {
+    mockReq.addHeader("Accept-Encoding", "gzip");
+    compressor.compress(respond(BIG_JSON));
+    Context again = respond(BIG_JSON);
+    compressor.compress(again);
+    Context changed = respond(BIG_JSON.replace("long", "LONG"));
+    compressor.compress(changed);
+
+    Map<String, Object> stats = compressor.stats().get(0);
+    assertEquals(3L, stats.get("responses"));
+    assertEquals(3L, stats.get("compressed"));
+    assertEquals(1L, stats.get("cacheHits"));
+    assertTrue((Double) stats.get("ratio") < 0.25);
+    assertEquals(BIG_JSON.replace("long", "LONG"), gunzip(changed.resultStream().readAllBytes()));
+  }
+
+  @Test
+  public void reusesCompressedBodiesOnlyForTheSameETag() throws IOException {
+    mockReq.addHeader("Accept-Encoding", "gzip");
+    ChangeBus changes = new ChangeBus();
+    Context first = respond(BIG_JSON);
+    ETags.notModified(first, changes, "products");
+    compressor.compress(first);
+    Context again = respond(BIG_JSON);
+    ETags.notModified(again, changes, "products");
+    compressor.compress(again);
+    // Same length, and it could have had the same checksum; only the
+    // new ETag says it's different.
+    Context changed = respond(BIG_JSON.replace("long", "LONG"));
+    ETags.notModified(changed, new ChangeBus(), "products");
+    compressor.compress(changed);
+
+    assertEquals(1L, compressor.stats().get(0).get("cacheHits"));
+    assertEquals(BIG_JSON.replace("long", "LONG"), gunzip(changed.resultStream().readAllBytes()));
+  }
+
+  @Test
+  public void givesCompressedResponsesTheirOwnETag() throws IOException {
+    mockReq.addHeader("Accept-Encoding", "gzip");
+    Context ctx = respond(BIG_JSON);
+    ETags.notModified(ctx, new ChangeBus(), "products");
+    String etag = mockRes.getHeader("ETag");
+
+    compressor.compress(ctx);
+
+    assertEquals(ETags.withEncoding(etag, "gzip"), mockRes.getHeader("ETag"));
+    assertTrue(mockRes.getHeader("ETag").endsWith("+gzip\""));
+  }
+
+  @Test
+  public void notModifiedResponsesGetTheCompressedETag() throws IOException {
+    mockReq.addHeader("Accept-Encoding", "gzip");
+    mockReq.addHeader("If-None-Match", "*");
+    Context ctx = ContextUtil.init(mockReq, mockRes, "api/products", Collections.emptyMap(),
+        HandlerType.INVALID, Map.of());
+    assertTrue(ETags.notModified(ctx, new ChangeBus(), "products"));
+    String etag = mockRes.getHeader("ETag");
+
+    compressor.compress(ctx);
+
+    assertEquals(ETags.withEncoding(etag, "gzip"), mockRes.getHeader("ETag"));
+    assertEquals("Accept-Encoding", mockRes.getHeader("Vary"));
+    assertNull(ctx.resultStream());
+  }
+
+  @Test
+  public void notModifiedResponsesKeepTheirETagForClientsThatDontCompress() throws IOException {
+    mockReq.addHeader("If-None-Match", "*");
+    Context ctx = ContextUtil.init(mockReq, mockRes, "api/products", Collections.emptyMap(),
+        HandlerType.INVALID, Map.of());
+    assertTrue(ETags.notModified(ctx, new ChangeBus(), "products"));
+    String etag = mockRes.getHeader("ETag");
+
+    compressor.compress(ctx);
+
+    assertEquals(etag, mockRes.getHeader("ETag"));
+    assertEquals("Accept-Encoding", mockRes.getHeader("Vary"));
+  }
+
+  @Test
+  public void negotiatesTheFirstAcceptableEncoding() {
+    GzipEncoder gzip = new GzipEncoder();
+    ResponseCompressor both = new ResponseCompressor(List.of(new ContentEncoder() {
+      @Override
+      public String name() {
+        return "br";
+      }
+
+      @Override
+      public byte[] encode(byte[] body) {
+        return body;
+      }
+    }, gzip));
+
+    assertEquals("br", both.negotiate("gzip, br").name());
+    assertEquals(gzip, both.negotiate("gzip, br;q=0"));
+    assertEquals("br", both.negotiate("*").name());
+    assertNull(both.negotiate("identity"));
+    assertNull(both.negotiate(null));
+  }
+
+  @Test
+  public void aQualityOfZeroRefusesAnEncoding() {
+    assertTrue(ResponseCompressor.accepts("deflate, gzip;q=0.5", "gzip"));
+    assertFalse(ResponseCompressor.accepts("gzip;q=0", "gzip"));
+    assertFalse(ResponseCompressor.accepts("*, gzip;q=0.0", "gzip"));
+    assertTrue(ResponseCompressor.accepts("*", "gzip"));
+    assertFalse(ResponseCompressor.accepts("x-gzip", "gzip"));
+    assertFalse(ResponseCompressor.accepts(null, "gzip"));
+  }
+
+  @Test
+  public void gzipRoundTrips() throws IOException {
+    byte[] body = BIG_JSON.getBytes(StandardCharsets.UTF_8);
+
+    assertArrayEquals(body, gunzip(new GzipEncoder(1).encode(body)).getBytes(StandardCharsets.UTF_8));
+  }
+}
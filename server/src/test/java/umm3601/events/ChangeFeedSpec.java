@@ -0,0 +1,151 @@
+package umm3601.events;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the change feed and the ring buffer behind it, with stand-ins
+ * for the SSE clients.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class ChangeFeedSpec {
+
+  /**
+   * A client that records what it's sent, and can be made to hang.
+   */
+  private static class RecordingSink implements ChangeFeed.Sink {
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private final CountDownLatch stuck;
+
+    RecordingSink(boolean stuck) {
+      this.stuck = new CountDownLatch(stuck ? 1 : 0);
+    }
+
+    @Override
+    public void send(String event, String data, String id) {
+      try {
+        stuck.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      received.add(event + " " + data + " " + id);
+    }
+
+    @Override
+    public void comment(String comment) {
+      received.add(": " + comment);
+    }
+
+    @Override
+    public void close() {
+      closed.countDown();
+      stuck.countDown();
+    }
+
+    String next() throws InterruptedException {
+      return received.poll(5, TimeUnit.SECONDS);
+    }
+  }
+
+  private ChangeBus changes;
+  private ChangeFeed feed;
+
+  @BeforeEach
+  public void setupEach() {
+    changes = new ChangeBus();
+    feed = new ChangeFeed(changes, 8);
+  }
+
+  @Test
+  public void ringKeepsTheMostRecentValues() {
+    BroadcastRing<String> ring = new BroadcastRing<>(4);
+    for (int i = 0; i < 6; i++) {
+      assertEquals(i, ring.publish("v" + i));
+    }
+    assertEquals(6, ring.next());
+    assertNull(ring.read(1));
+    assertTrue(ring.isLost(1));
+    assertEquals("v2", ring.read(2));
+    assertFalse(ring.isLost(2));
+    assertEquals("v5", ring.read(5));
+    assertNull(ring.read(6));
+    assertFalse(ring.isLost(6));
+
+    assertThrows(IllegalArgumentException.class, () -> new BroadcastRing<String>(6));
+  }
+
+  @Test
+  public void subscribersGetChangesInOrder() throws InterruptedException {
+    RecordingSink all = new RecordingSink(false);
+    RecordingSink pantryOnly = new RecordingSink(false);
+    feed.subscribe(all, null, null);
+    feed.subscribe(pantryOnly, Set.of("pantry"), null);
+
+    changes.publish(ChangeEvent.inserted("pantry", "p1", null));
+    changes.publish(ChangeEvent.deleted("users", "u1", null));
+    changes.publish(ChangeEvent.deleted("pantry", "p1", null));
+
+    String first = all.next();
+    assertTrue(first.startsWith("change {\"collection\":\"pantry\",\"type\":\"inserted\",\"id\":\"p1\""), first);
+    assertTrue(all.next().contains("\"users\""));
+    assertTrue(all.next().contains("\"deleted\""));
+    assertTrue(pantryOnly.next().contains("\"inserted\""));
+    assertTrue(pantryOnly.next().contains("\"deleted\""));
+    assertNull(pantryOnly.received.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void slowSubscribersAreDroppedWithoutBlockingWriters() throws InterruptedException {
+    RecordingSink slow = new RecordingSink(true);
+    RecordingSink fast = new RecordingSink(false);
+    feed.subscribe(slow, null, null);
+    feed.subscribe(fast, null, null);
+
+    // Publishing never waits for the stuck client, and the one that
+    // keeps up gets everything
+    for (int i = 0; i < 20; i++) {
+      changes.publish(ChangeEvent.inserted("pantry", "p" + i, null));
+      assertTrue(fast.next().contains("\"p" + i + "\""));
+    }
+
+    assertTrue(slow.closed.await(5, TimeUnit.SECONDS));
+    assertEquals(1, fast.closed.getCount());
+    assertEquals(1, feed.subscriberCount());
+  }
+
+  @Test
+  public void reconnectingClientsCarryOn() throws InterruptedException {
+    RecordingSink first = new RecordingSink(false);
+    feed.subscribe(first, null, null);
+    changes.publish(ChangeEvent.inserted("pantry", "p1", null));
+    changes.publish(ChangeEvent.inserted("pantry", "p2", null));
+    String seen = first.next();
+    String lastId = seen.substring(seen.lastIndexOf(' ') + 1);
+
+    RecordingSink again = new RecordingSink(false);
+    feed.subscribe(again, null, lastId);
+    assertTrue(again.next().contains("\"p2\""));
+
+    // An id from another run (or too long ago) means starting over
+    RecordingSink stranger = new RecordingSink(false);
+    feed.subscribe(stranger, null, "0-1");
+    assertEquals("reset {} null", stranger.next());
+    changes.publish(ChangeEvent.inserted("pantry", "p3", null));
+    assertTrue(stranger.next().contains("\"p3\""));
+    assertEquals(List.of(), List.copyOf(stranger.received));
+  }
+}
@@ -0,0 +1,164 @@
+package umm3601.export;
+
+import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
+import static java.util.Map.entry;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.pantry.Pantry;
+
+/**
+ * Tests the ExportController, using the pantry collection.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ExportControllerSpec {
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+
+  private Handler pantryExporter;
+  private ObjectId samsId;
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private static JavalinJackson javalinJackson = new JavalinJackson();
+
+  @BeforeAll
+  public static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build()
+    );
+    db = mongoClient.getDatabase("test");
+  }
+
+  @AfterAll
+  public static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  public void setupEach() {
+    mockReq.resetAll();
+    mockRes.resetAll();
+
+    samsId = new ObjectId();
+    db.getCollection("pantry").drop();
+    db.getCollection("pantry").insertMany(List.of(
+        new Document("_id", samsId)
+            .append("prodID", "588935f5")
+            .append("name", "apple")
+            .append("date", "1/20/2022")
+            .append("notes", "crisp, \"honeycrisp\""),
+        new Document("prodID", "6f992bf")
+            .append("name", "Banana")
+            .append("date", "2/20/2022")));
+
+    pantryExporter = new ExportController(db).exporter("pantry", Pantry.class);
+  }
+
+  private Context mockContext(String path) {
+    return ContextUtil.init(
+        mockReq, mockRes,
+        path,
+        Collections.emptyMap(),
+        HandlerType.INVALID,
+        Map.ofEntries(
+          entry(JSON_MAPPER_KEY, javalinJackson),
+          entry(ContextUtil.maxRequestSizeKey,
+                new JavalinConfig().maxRequestSize
+          )
+        )
+      );
+  }
+
+  private String[] exportedLines() {
+    return new String(mockRes.getOutputStreamBinaryContent(), StandardCharsets.UTF_8).split("\r?\n");
+  }
+
+  @Test
+  public void exportsNdjsonByDefault() throws Exception {
+    pantryExporter.handle(mockContext("api/pantry/export"));
+
+    assertEquals("application/x-ndjson", mockRes.getContentType());
+    String[] lines = exportedLines();
+    assertEquals(2, lines.length);
+    Document first = Document.parse(lines[0]);
+    assertEquals(samsId, first.getObjectId("_id"));
+    assertEquals("apple", first.getString("name"));
+    assertEquals("Banana", Document.parse(lines[1]).getString("name"));
+  }
+
+  @Test
+  public void exportsCsvWithAHeader() throws Exception {
+    mockReq.setQueryString("format=csv");
+    pantryExporter.handle(mockContext("api/pantry/export"));
+
+    assertTrue(mockRes.getContentType().startsWith("text/csv"));
+    String[] lines = exportedLines();
+    assertEquals(3, lines.length);
+    assertEquals("_id,prodID,name,nameNormalized,date,notes", lines[0]);
+    assertEquals(samsId.toHexString() + ",588935f5,apple,,1/20/2022,\"crisp, \"\"honeycrisp\"\"\"", lines[1]);
+    assertTrue(lines[2].endsWith(",6f992bf,Banana,,2/20/2022,"));
+  }
+
+  @Test
+  public void gzipsWhenTheClientAcceptsIt() throws Exception {
+    mockReq.addHeader("Accept-Encoding", "gzip, deflate");
+    pantryExporter.handle(mockContext("api/pantry/export"));
+
+    assertEquals("gzip", mockRes.getHeader("Content-Encoding"));
+    byte[] unzipped;
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(mockRes.getOutputStreamBinaryContent()))) {
+      unzipped = in.readAllBytes();
+    }
+    assertEquals(2, new String(unzipped, StandardCharsets.UTF_8).split("\n").length);
+  }
+
+  @Test
+  public void rejectsUnknownFormats() throws IOException {
+    mockReq.setQueryString("format=xml");
+    Context ctx = mockContext("api/pantry/export");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      pantryExporter.handle(ctx);
+    });
+  }
+}
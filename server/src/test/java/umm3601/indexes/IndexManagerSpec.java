@@ -0,0 +1,167 @@
+package umm3601.indexes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the IndexManager creates missing indexes, leaves existing
+ * ones alone, and notices indexes that nobody declared.
+ */
+public class IndexManagerSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private MongoCollection<Document> widgets;
+
+  @BeforeAll
+  public static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build()
+    );
+    db = mongoClient.getDatabase("test");
+  }
+
+  @AfterAll
+  public static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  public void setupEach() {
+    widgets = db.getCollection("widgets");
+    widgets.drop();
+    widgets.insertOne(new Document("name", "sprocket").append("size", 2));
+  }
+
+  private List<String> indexNames() {
+    List<String> names = new ArrayList<>();
+    for (Document index : widgets.listIndexes()) {
+      names.add(index.getString("name"));
+    }
+    return names;
+  }
+
+  @Test
+  public void createsMissingIndexes() {
+    List<String> created = new IndexManager(db)
+        .declare("widgets", List.of(
+            new IndexModel(Indexes.ascending("name")),
+            new IndexModel(Indexes.descending("size", "_id"))))
+        .ensureIndexes();
+
+    assertEquals(List.of("name_1", "size_-1__id_-1"), created);
+    assertTrue(indexNames().containsAll(created));
+  }
+
+  @Test
+  public void leavesExistingIndexesAlone() {
+    // Created "by hand" with a different name than the driver would pick.
+    widgets.createIndex(Indexes.ascending("name"), new IndexOptions().name("byName"));
+
+    List<String> created = new IndexManager(db)
+        .declare("widgets", List.of(new IndexModel(Indexes.ascending("name"))))
+        .ensureIndexes();
+
+    assertEquals(List.of(), created);
+    assertEquals(List.of("_id_", "byName"), indexNames());
+  }
+
+  @Test
+  public void reportsUndeclaredIndexes() {
+    widgets.createIndex(Indexes.ascending("size"));
+
+    IndexManager manager = new IndexManager(db)
+        .declare("widgets", List.of(new IndexModel(Indexes.ascending("name"))));
+
+    assertEquals(List.of("widgets.size_1"), manager.findUndeclaredIndexes());
+  }
+
+  @Test
+  public void keyOrderMattersForCompoundIndexes() {
+    widgets.createIndex(Indexes.ascending("size", "name"));
+
+    List<String> created = new IndexManager(db)
+        .declare("widgets", List.of(new IndexModel(Indexes.ascending("name", "size"))))
+        .ensureIndexes();
+
+    assertEquals(List.of("name_1_size_1"), created);
+  }
+
+  @Test
+  public void uniquenessMatters() {
+    widgets.createIndex(Indexes.ascending("name"));
+    IndexModel unique = new IndexModel(Indexes.ascending("name"), new IndexOptions().unique(true));
+
+    List<String> created = new IndexManager(db)
+        .declare("widgets", List.of(unique))
+        .ensureIndexes();
+
+    assertEquals(List.of("name_1"), created);
+    for (Document index : widgets.listIndexes()) {
+      if (index.getString("name").equals("name_1")) {
+        assertEquals(true, index.getBoolean("unique"));
+      }
+    }
+    // The declared options are left as they were.
+    assertFalse(unique.getOptions().isBackground());
+  }
+
+  @Test
+  public void uniqueIndexesAreBuiltBeforeStartingTheBackgroundThread() throws InterruptedException {
+    Thread builder = new IndexManager(db)
+        .declare("widgets", List.of(new IndexModel(Indexes.ascending("name"), new IndexOptions().unique(true))))
+        .ensureIndexesInBackground();
+
+    assertTrue(indexNames().contains("name_1"));
+    builder.join();
+  }
+
+  @Test
+  public void failingToBuildAUniqueIndexStopsStartup() {
+    widgets.insertOne(new Document("name", "sprocket"));
+
+    assertThrows(IllegalStateException.class, () -> {
+      new IndexManager(db)
+          .declare("widgets", List.of(new IndexModel(Indexes.ascending("name"), new IndexOptions().unique(true))))
+          .ensureIndexesInBackground();
+    });
+  }
+
+  @Test
+  public void canBuildIndexesInTheBackground() throws InterruptedException {
+    Thread builder = new IndexManager(db)
+        .declare("widgets", List.of(new IndexModel(Indexes.ascending("name"))))
+        .ensureIndexesInBackground();
+    builder.join();
+
+    assertTrue(indexNames().contains("name_1"));
+  }
+}
@@ -0,0 +1,29 @@
+package umm3601.metrics;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import umm3601.benchmark.AllocationMeter;
+
+/**
+ * A (rough) benchmark of the bytes allocated per recorded request, once
+ * its route has been seen, which should be next to nothing. Run it with
+ * `./gradlew benchmark`; it isn't part of the unit tests.
+ */
+@Tag(AllocationMeter.TAG)
+@SuppressWarnings({"MagicNumber"})
+public class RequestMetricsBenchmark {
+
+  @Test
+  public void recordingARequest(TestReporter reporter) {
+    RequestMetrics metrics = new RequestMetrics();
+    metrics.record("GET", "/api/products", 200, 1000, 100);
+
+    long record = AllocationMeter.bytesPerCall(() -> metrics.record("GET", "/api/products", 200, 1000, 100));
+
+    reporter.publishEntry(Map.of("recordBytes", Long.toString(record)));
+  }
+}
@@ -0,0 +1,154 @@
+package umm3601.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.Javalin;
+import io.javalin.core.event.HandlerMetaInfo;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+
+/**
+ * Tests the per-route request metrics and their Prometheus output.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class RequestMetricsSpec {
+
+  private static final String PRODUCTS = "method=\"GET\",route=\"/api/products\"";
+
+  private RequestMetrics metrics;
+
+  @BeforeEach
+  public void setupEach() {
+    metrics = new RequestMetrics();
+  }
+
+  /**
+   * The value of the sample with the given name and labels.
+   */
+  private static double sample(String scrape, String name, String labels) {
+    String prefix = name + "{" + labels + "} ";
+    for (String line : scrape.split("\n")) {
+      if (line.startsWith(prefix)) {
+        return Double.parseDouble(line.substring(prefix.length()));
+      }
+    }
+    throw new AssertionError("No sample " + prefix + "in\n" + scrape);
+  }
+
+  @Test
+  public void reportsLatencyCountsAndSizesPerRoute() {
+    for (int millis = 1; millis <= 100; millis++) {
+      metrics.record("GET", "/api/products", 200, TimeUnit.MILLISECONDS.toNanos(millis), 1000);
+    }
+    metrics.record("GET", "/api/products", 500, TimeUnit.MILLISECONDS.toNanos(100), 10);
+    metrics.record("GET", "/api/products", 404, TimeUnit.MILLISECONDS.toNanos(1), 10);
+    metrics.record("POST", "/api/products", 201, TimeUnit.MILLISECONDS.toNanos(5), 20);
+
+    String scrape = metrics.scrape();
+
+    assertTrue(scrape.contains("# TYPE http_request_duration_seconds summary\n"));
+    assertEquals(102, sample(scrape, "http_request_duration_seconds_count", PRODUCTS));
+    assertEquals(0.05, sample(scrape, "http_request_duration_seconds", PRODUCTS + ",quantile=\"0.5\""), 0.001);
+    assertEquals(0.1, sample(scrape, "http_request_duration_seconds", PRODUCTS + ",quantile=\"0.999\""), 0.001);
+    assertEquals(5.151, sample(scrape, "http_request_duration_seconds_sum", PRODUCTS), 1e-9);
+    assertEquals(100, sample(scrape, "http_requests_total", PRODUCTS + ",status=\"2xx\""));
+    assertEquals(1, sample(scrape, "http_requests_total", PRODUCTS + ",status=\"4xx\""));
+    assertEquals(1, sample(scrape, "http_requests_total", PRODUCTS + ",status=\"5xx\""));
+    assertEquals(1, sample(scrape, "http_request_errors_total", PRODUCTS));
+    assertEquals(1000, sample(scrape, "http_response_size_bytes", PRODUCTS + ",quantile=\"0.5\""), 10);
+    assertEquals(100_020, sample(scrape, "http_response_size_bytes_sum", PRODUCTS));
+    assertEquals(1, sample(scrape, "http_requests_total", "method=\"POST\",route=\"/api/products\",status=\"2xx\""));
+
+    // Scrapes are cumulative
+    metrics.record("GET", "/api/products", 200, TimeUnit.MILLISECONDS.toNanos(1), 10);
+    assertEquals(103, sample(metrics.scrape(), "http_request_duration_seconds_count", PRODUCTS));
+  }
+
+  @Test
+  public void routesAreReportedBeforeTheyreUsed() {
+    Handler handler = ctx -> { };
+    metrics.register(new HandlerMetaInfo(HandlerType.GET, "/api/users/{id}", handler, Set.of()));
+    metrics.register(new HandlerMetaInfo(HandlerType.BEFORE, "*", handler, Set.of()));
+
+    String scrape = metrics.scrape();
+
+    assertEquals(0, sample(scrape, "http_request_duration_seconds_count", "method=\"GET\",route=\"/api/users/{id}\""));
+    assertTrue(!scrape.contains("BEFORE"));
+  }
+
+  @Test
+  public void unmatchedRequestsShareARoute() {
+    metrics.record("GET", "", 404, 1000, 0);
+    metrics.record("GET", null, 404, 1000, 0);
+
+    assertEquals(2, sample(metrics.scrape(), "http_requests_total",
+        "method=\"GET\",route=\"(no route)\",status=\"4xx\""));
+  }
+
+  @Test
+  public void requestsThroughJavalinAreRecordedByRoute() throws IOException, InterruptedException {
+    Javalin app = Javalin.create(config -> config.requestLogger(metrics::finish));
+    app.events(event -> event.handlerAdded(metrics::register));
+    app.before(metrics::start);
+    app.after("/api/*", ctx -> { });
+    app.get("/api/products/{id}", ctx -> ctx.result("a product"));
+    app.start(0);
+    try {
+      HttpClient client = HttpClient.newHttpClient();
+      for (String path : List.of("/api/products/1", "/api/products/2", "/api/nowhere", "/nowhere")) {
+        client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + app.port() + path)).build(),
+            HttpResponse.BodyHandlers.discarding());
+      }
+    } finally {
+      app.stop();
+    }
+
+    // Javalin calls the request logger once the response is sent, and
+    // stopping the server waits for those requests to finish.
+    String scrape = metrics.scrape();
+    assertEquals(2, sample(scrape, "http_requests_total",
+        "method=\"GET\",route=\"/api/products/{id}\",status=\"2xx\""));
+    // Neither a 404 under `/api` (which the `after` handler sees) nor
+    // one outside it (which only the `before` handler sees) matched a route.
+    assertEquals(2, sample(scrape, "http_requests_total", "method=\"GET\",route=\"(no route)\",status=\"4xx\""));
+    assertFalse(scrape.contains("route=\"*\""));
+  }
+
+  @Test
+  public void concurrentRequestsAreAllCounted() throws InterruptedException {
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < 10_000; i++) {
+          metrics.record("GET", "/api/products", 200, 1000 * i, i);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    // Scraping while they're recording doesn't lose anything either
+    metrics.scrape();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    String scrape = metrics.scrape();
+    assertEquals(40_000, sample(scrape, "http_request_duration_seconds_count", PRODUCTS));
+    assertEquals(40_000, sample(scrape, "http_requests_total", PRODUCTS + ",status=\"2xx\""));
+  }
+}
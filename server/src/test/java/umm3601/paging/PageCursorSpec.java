@@ -0,0 +1,37 @@
+package umm3601.paging;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.mongodb.MongoClientSettings;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the filters page cursors build for the next page.
+ */
+public class PageCursorSpec {
+
+  private static final ObjectId ID = new ObjectId("5f5a1a0e1c9d440000a1b2c3");
+
+  private static String json(Bson filter) {
+    return filter.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()).toJson();
+  }
+
+  @Test
+  public void descendingPagesReachTheNulls() {
+    String filter = json(new PageCursor("milk", ID).after("productName", true));
+    assertEquals("{\"$or\": [{\"productName\": {\"$lt\": \"milk\"}}, "
+        + "{\"$and\": [{\"productName\": \"milk\"}, {\"_id\": {\"$lt\": {\"$oid\": \"" + ID + "\"}}}]}, "
+        + "{\"productName\": null}]}", filter);
+  }
+
+  @Test
+  public void ascendingPagesHaveAlreadyPassedTheNulls() {
+    String filter = json(new PageCursor("milk", ID).after("productName", false));
+    assertEquals("{\"$or\": [{\"productName\": {\"$gt\": \"milk\"}}, "
+        + "{\"$and\": [{\"productName\": \"milk\"}, {\"_id\": {\"$gt\": {\"$oid\": \"" + ID + "\"}}}]}]}", filter);
+  }
+}
@@ -6,16 +6,24 @@ import static java.util.Map.entry;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.mockrunner.mock.web.MockHttpServletRequest;
@@ -26,6 +34,7 @@ import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Updates;
 
 import org.bson.Document;
 import org.bson.types.ObjectId;
@@ -43,6 +52,9 @@ import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
 import io.javalin.http.util.ContextUtil;
 import io.javalin.plugin.json.JavalinJackson;
+import umm3601.events.ChangeBus;
+import umm3601.events.ChangeEvent;
+import umm3601.product.Product;
 
 /**
  * Tests the logic of the PantryController
@@ -148,6 +160,10 @@ public class PantryControllerSpec {
     pantryDocuments.insertMany(testPantry);
     pantryDocuments.insertOne(sam);
 
+    PantryController.backfillNormalizedFields(db);
+    PantryController.migrateDates(db);
+    PantryController.rebuildInventory(db);
+
     pantryController = new PantryController(db);
   }
 
@@ -237,6 +253,21 @@ public class PantryControllerSpec {
     );
   }
 
+  @Test
+  public void canStreamAllPantryItems() throws IOException {
+    mockReq.setQueryString("stream=true");
+    Context ctx = mockContext("api/pantry");
+
+    pantryController.getPantrys(ctx);
+    Pantry[] streamedPantry = javalinJackson.fromJsonString(mockRes.getOutputStreamContent(), Pantry[].class);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    assertEquals(
+      db.getCollection("pantry").countDocuments(),
+      streamedPantry.length
+    );
+  }
+
   @Test
   public void canGetPantryItemsByName() throws IOException {
     mockReq.setQueryString("name=pork loin");
@@ -335,7 +366,8 @@ public class PantryControllerSpec {
     assertEquals("chips", addedPantry.getString("name"));
     assertEquals("8733g5", addedPantry.getString("prodID"));
     assertEquals("hey", addedPantry.getString("notes"));
-    assertEquals("1/1/2011", addedPantry.getString("date"));
+    // Dates are stored as real dates, whichever form they're sent in
+    assertEquals(PurchaseDates.parse("2011-01-01"), addedPantry.getDate("date"));
 
 
   }
@@ -429,4 +461,375 @@ public class PantryControllerSpec {
     assertEquals(0, db.getCollection("pantry").countDocuments(eq("_id", new ObjectId(testID))));
   }
 
+
+  private ObjectId addProduct(String name, String brand) {
+    ObjectId id = new ObjectId();
+    db.getCollection("products").insertOne(new Document()
+        .append("_id", id)
+        .append("productName", name)
+        .append("brand", brand)
+        .append("category", "produce")
+        .append("lifespan", 14)
+        .append("store", "coop"));
+    return id;
+  }
+
+  private ExpandedPantry[] returnedExpandedPantry(Context ctx) {
+    return javalinJackson.fromJsonString(ctx.resultString(), ExpandedPantry[].class);
+  }
+
+  @Test
+  public void canGetPantryJoinedWithProducts() throws IOException {
+    db.getCollection("products").drop();
+    ObjectId cornFlakes = addProduct("Corn Flakes", "Kellogg's");
+    db.getCollection("pantry").insertOne(new Document()
+        .append("prodID", cornFlakes.toHexString())
+        .append("name", "Corn flakes")
+        .append("nameNormalized", "corn flakes")
+        .append("date", "5/21/2020"));
+    mockReq.setQueryString("name=corn");
+    Context ctx = mockContext("api/pantry/expanded");
+
+    pantryController.getExpandedPantrys(ctx);
+
+    assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+    ExpandedPantry[] items = returnedExpandedPantry(ctx);
+    assertEquals(2, items.length);
+    for (ExpandedPantry item : items) {
+      if (item.prodID.equals(cornFlakes.toHexString())) {
+        assertEquals("Corn Flakes", item.product.productName);
+        assertEquals("Kellogg's", item.product.brand);
+        assertEquals(14, item.product.lifespan);
+      } else {
+        // Sam's `prodID` isn't a product id at all
+        assertNull(item.product);
+      }
+    }
+  }
+
+  @Test
+  public void expandedPantryNoticesProductChanges() throws IOException {
+    db.getCollection("products").drop();
+    ChangeBus changes = new ChangeBus();
+    pantryController = new PantryController(db, changes);
+    ObjectId apple = addProduct("Apple", "Honeycrisp");
+    db.getCollection("pantry").updateOne(eq("name", "apple"), Updates.set("prodID", apple.toHexString()));
+    mockReq.setQueryString("name=apple");
+
+    Context ctx = mockContext("api/pantry/expanded");
+    pantryController.getExpandedPantrys(ctx);
+    assertEquals("Honeycrisp", returnedExpandedPantry(ctx)[0].product.brand);
+
+    db.getCollection("products").updateOne(eq("_id", apple), Updates.set("brand", "Gala"));
+    changes.publish(ChangeEvent.updated("products", apple.toHexString(), null, null));
+    mockRes.resetAll();
+    Context again = mockContext("api/pantry/expanded");
+    pantryController.getExpandedPantrys(again);
+    assertEquals("Gala", returnedExpandedPantry(again)[0].product.brand);
+
+    db.getCollection("products").deleteOne(eq("_id", apple));
+    changes.publish(ChangeEvent.deleted("products", apple.toHexString(), null));
+    mockRes.resetAll();
+    Context afterDelete = mockContext("api/pantry/expanded");
+    pantryController.getExpandedPantrys(afterDelete);
+    assertNull(returnedExpandedPantry(afterDelete)[0].product);
+  }
+
+  @Test
+  public void expandedPantryCanBeLimited() throws IOException {
+    mockReq.setQueryString("limit=2");
+    Context ctx = mockContext("api/pantry/expanded");
+    pantryController.getExpandedPantrys(ctx);
+    assertEquals(2, returnedExpandedPantry(ctx).length);
+
+    mockReq.setQueryString("limit=0");
+    Context badCtx = mockContext("api/pantry/expanded");
+    assertThrows(ValidationException.class, () -> {
+      pantryController.getExpandedPantrys(badCtx);
+    });
+  }
+
+  @Test
+  public void migrationConvertsStringDates() {
+    MongoCollection<Document> pantry = db.getCollection("pantry");
+    Document sam = pantry.find(eq("_id", samsId)).first();
+    assertEquals(Date.from(Instant.parse("2020-05-20T00:00:00Z")), sam.getDate("date"));
+
+    ObjectId oddId = new ObjectId();
+    pantry.insertOne(new Document("_id", oddId).append("name", "odd").append("prodID", "1").append("date", "soon"));
+    assertEquals(1, PantryController.migrateDates(db));
+    Document odd = pantry.find(eq("_id", oddId)).first();
+    assertNull(odd.get("date"));
+    assertEquals("soon", odd.getString("dateLegacy"));
+    assertEquals(0, PantryController.migrateDates(db));
+  }
+
+  @Test
+  public void datesAreWrittenAsDays() throws IOException {
+    Context ctx = mockContext("api/pantry/{id}", Map.of("id", samsId.toHexString()));
+    pantryController.getPantry(ctx);
+
+    assertEquals("2020-05-20", javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class)
+        .get("date").asText());
+  }
+
+  @Test
+  public void canGetPantryBoughtBetweenDates() throws IOException {
+    mockReq.setQueryString("from=2022-01-20&to=2022-01-30&sortby=date");
+    Context ctx = mockContext("api/pantry");
+
+    pantryController.getPantrys(ctx);
+
+    Pantry[] resultPantry = returnedPantry(ctx);
+    assertEquals(2, resultPantry.length);
+    assertEquals("apple", resultPantry[0].name);
+    assertEquals("PORK LOIN", resultPantry[1].name);
+  }
+
+  @Test
+  public void canGetPantryByNameAndProduct() throws IOException {
+    mockReq.setQueryString("name=b&prodID=6f992bf");
+    Context ctx = mockContext("api/pantry");
+
+    pantryController.getPantrys(ctx);
+
+    Pantry[] resultPantry = returnedPantry(ctx);
+    assertEquals(1, resultPantry.length);
+    assertEquals("Banana", resultPantry[0].name);
+  }
+
+  @Test
+  public void sortsThatNeedAMissingIndexAreBadRequests() {
+    mockReq.setQueryString("name=b&prodID=6f992bf&sortby=name");
+    Context ctx = mockContext("api/pantry");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      pantryController.getPantrys(ctx);
+    });
+  }
+
+  @Test
+  public void canGetPantryBoughtSinceADate() throws IOException {
+    mockReq.setQueryString("from=2022-01-21&prodID=6f992bf");
+    Context ctx = mockContext("api/pantry");
+
+    pantryController.getPantrys(ctx);
+
+    Pantry[] resultPantry = returnedPantry(ctx);
+    assertEquals(1, resultPantry.length);
+    assertEquals("Banana", resultPantry[0].name);
+  }
+
+  @Test
+  public void illegalDatesAreBadRequests() {
+    mockReq.setQueryString("to=yesterday");
+    Context ctx = mockContext("api/pantry");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      pantryController.getPantrys(ctx);
+    });
+  }
+
+  @Test
+  public void canPatchThePurchaseDate() throws IOException {
+    mockReq.setBodyContent("{\"date\": \"2021-12-25\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/pantry/{id}", Map.of("id", samsId.toHexString()));
+
+    pantryController.updatePantry(ctx);
+
+    assertEquals("2021-12-25", javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class)
+        .get("date").asText());
+    assertEquals(PurchaseDates.parse("2021-12-25"),
+        db.getCollection("pantry").find(eq("_id", samsId)).first().getDate("date"));
+
+    mockReq.setBodyContent("{\"date\": \"Christmas\"}");
+    Context badCtx = mockContext("api/pantry/{id}", Map.of("id", samsId.toHexString()));
+    assertThrows(ValidationException.class, () -> {
+      pantryController.updatePantry(badCtx);
+    });
+  }
+
+  private ObjectId addProductWithLifespan(int lifespan) {
+    ObjectId id = addProduct("Milk", "Dairy Co");
+    db.getCollection("products").updateOne(eq("_id", id), Updates.set("lifespan", lifespan));
+    return id;
+  }
+
+  private static Date daysFromToday(int days) {
+    return Date.from(LocalDate.now(ZoneOffset.UTC).plusDays(days).atStartOfDay(ZoneOffset.UTC).toInstant());
+  }
+
+  @Test
+  public void newPantryItemsGetAnExpiryDate() throws IOException {
+    db.getCollection("products").drop();
+    ObjectId milk = addProductWithLifespan(10);
+    mockReq.setBodyContent("{\"name\": \"milk\", \"prodID\": \"" + milk.toHexString()
+        + "\", \"date\": \"2022-01-01\"}");
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/pantry");
+
+    pantryController.addNewPantry(ctx);
+
+    String id = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("id").asText();
+    Document added = db.getCollection("pantry").find(eq("_id", new ObjectId(id))).first();
+    assertEquals(PurchaseDates.parse("2022-01-11"), added.getDate("expiresAt"));
+  }
+
+  @Test
+  public void canGetPantryItemsThatExpireSoon() throws IOException {
+    db.getCollection("products").drop();
+    ObjectId milk = addProductWithLifespan(5);
+    MongoCollection<Document> pantry = db.getCollection("pantry");
+    pantry.drop();
+    pantry.insertMany(List.of(
+        new Document("name", "fresh milk").append("prodID", milk.toHexString()).append("date", daysFromToday(-1)),
+        new Document("name", "older milk").append("prodID", milk.toHexString()).append("date", daysFromToday(-3)),
+        new Document("name", "sour milk").append("prodID", milk.toHexString()).append("date", daysFromToday(-10)),
+        new Document("name", "mystery").append("prodID", "f992bf8f37c01").append("date", daysFromToday(-10))));
+    assertEquals(4, PantryController.backfillExpiryDates(db));
+    assertEquals(0, PantryController.backfillExpiryDates(db));
+
+    mockReq.setQueryString("withinDays=7");
+    Context ctx = mockContext("api/pantry/expiring");
+    pantryController.getExpiringPantrys(ctx);
+    Pantry[] expiring = returnedPantry(ctx);
+    assertEquals(2, expiring.length);
+    assertEquals("older milk", expiring[0].name);
+    assertEquals("fresh milk", expiring[1].name);
+    assertEquals(daysFromToday(4), expiring[1].expiresAt);
+
+    mockReq.setQueryString("withinDays=3");
+    Context soonerCtx = mockContext("api/pantry/expiring");
+    pantryController.getExpiringPantrys(soonerCtx);
+    assertEquals(1, returnedPantry(soonerCtx).length);
+
+    mockReq.setQueryString("withinDays=3&includeExpired=true");
+    Context expiredCtx = mockContext("api/pantry/expiring");
+    pantryController.getExpiringPantrys(expiredCtx);
+    Pantry[] withExpired = returnedPantry(expiredCtx);
+    assertEquals(2, withExpired.length);
+    assertEquals("sour milk", withExpired[0].name);
+  }
+
+  @Test
+  public void expiryDatesFollowProductLifespans() throws IOException {
+    db.getCollection("products").drop();
+    ChangeBus changes = new ChangeBus();
+    pantryController = new PantryController(db, changes);
+    ObjectId milk = addProductWithLifespan(5);
+    MongoCollection<Document> pantry = db.getCollection("pantry");
+    pantry.updateOne(eq("_id", samsId), Updates.set("prodID", milk.toHexString()));
+    PantryController.backfillExpiryDates(db);
+    assertEquals(PurchaseDates.parse("2020-05-25"), pantry.find(eq("_id", samsId)).first().getDate("expiresAt"));
+
+    // Have the item cached, with its old expiry date
+    pantryController.getPantry(mockContext("api/pantry/{id}", Map.of("id", samsId.toHexString())));
+    List<ChangeEvent> pantryEvents = new ArrayList<>();
+    changes.subscribe(event -> {
+      if (event.getCollection().equals("pantry")) {
+        pantryEvents.add(event);
+      }
+    });
+
+    Product before = new Product();
+    before.lifespan = 5;
+    Product after = new Product();
+    after.lifespan = 30;
+    long version = changes.version("pantry");
+    changes.publish(ChangeEvent.updated("products", milk.toHexString(), before, after));
+    assertEquals(PurchaseDates.parse("2020-06-19"), pantry.find(eq("_id", samsId)).first().getDate("expiresAt"));
+    assertEquals(version + 1, changes.version("pantry"));
+    // The change is announced, and the cached copy isn't served any more
+    assertEquals(1, pantryEvents.size());
+    assertEquals(ChangeEvent.Type.UPDATED, pantryEvents.get(0).getType());
+    assertEquals(samsId.toHexString(), pantryEvents.get(0).getId());
+    assertEquals(PurchaseDates.parse("2020-06-19"), ((Pantry) pantryEvents.get(0).getDocument()).expiresAt);
+    Context cachedCtx = mockContext("api/pantry/{id}", Map.of("id", samsId.toHexString()));
+    pantryController.getPantry(cachedCtx);
+    assertEquals(PurchaseDates.parse("2020-06-19"), returnedSinglePantryItem(cachedCtx).expiresAt);
+
+    changes.publish(ChangeEvent.deleted("products", milk.toHexString(), after));
+    assertNull(pantry.find(eq("_id", samsId)).first().getDate("expiresAt"));
+
+    // A new purchase date moves the expiry date too
+    changes.publish(ChangeEvent.inserted("products", milk.toHexString(), after));
+    mockReq.setBodyContent("{\"date\": \"2020-06-01\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/pantry/{id}", Map.of("id", samsId.toHexString()));
+    pantryController.updatePantry(ctx);
+    assertEquals(PurchaseDates.parse("2020-07-01"), pantry.find(eq("_id", samsId)).first().getDate("expiresAt"));
+    assertEquals("2020-07-01", javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class)
+        .get("expiresAt").asText());
+  }
+
+  @Test
+  public void expiringNeedsALegalNumberOfDays() {
+    mockReq.setQueryString("withinDays=-1");
+    Context ctx = mockContext("api/pantry/expiring");
+
+    assertThrows(ValidationException.class, () -> {
+      pantryController.getExpiringPantrys(ctx);
+    });
+  }
+
+  private long inventoryCount(String prodID) throws IOException {
+    Context ctx = mockContext("api/inventory/{prodID}", Map.of("prodID", prodID));
+    pantryController.getInventoryCount(ctx);
+    return javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("count").asLong();
+  }
+
+  @Test
+  public void canGetTheInventory() throws IOException {
+    Context ctx = mockContext("api/inventory");
+    pantryController.getInventory(ctx);
+
+    ObjectNode[] inventory = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode[].class);
+    assertEquals(4, inventory.length);
+    assertEquals("588935f5", inventory[0].get("prodID").asText());
+    assertEquals(1, inventory[0].get("count").asLong());
+    assertEquals(0, inventoryCount("no such product"));
+  }
+
+  @Test
+  public void inventoryFollowsAddsPatchesAndDeletes() throws IOException {
+    for (int i = 0; i < 2; i++) {
+      mockReq.setBodyContent("{\"name\": \"apple\", \"prodID\": \"588935f5\", \"date\": \"2022-01-01\"}");
+      mockReq.setMethod("POST");
+      pantryController.addNewPantry(mockContext("api/pantry"));
+    }
+    assertEquals(3, inventoryCount("588935f5"));
+
+    // Sam's corn flakes become apples
+    mockReq.setBodyContent("{\"prodID\": \"588935f5\"}");
+    mockReq.setMethod("PATCH");
+    pantryController.updatePantry(mockContext("api/pantry/{id}", Map.of("id", samsId.toHexString())));
+    assertEquals(4, inventoryCount("588935f5"));
+    assertEquals(0, inventoryCount("f992bf8f37c01"));
+
+    pantryController.deletePantry(mockContext("api/pantry/{id}", Map.of("id", samsId.toHexString())));
+    assertEquals(3, inventoryCount("588935f5"));
+
+    // Products we have none of aren't listed
+    assertEquals(0, db.getCollection("inventory").countDocuments(eq("_id", "f992bf8f37c01")));
+  }
+
+  @Test
+  public void concurrentChangesDontLoseCounts() throws Exception {
+    InventoryCounts counts = new InventoryCounts(db);
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    List<Future<?>> writes = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      int delta = i % 4 == 0 ? -1 : 1;
+      writes.add(pool.submit(() -> counts.add("8f37c", delta)));
+    }
+    for (Future<?> write : writes) {
+      write.get();
+    }
+    pool.shutdown();
+    // 1 to start with, plus 150 added and 50 taken away
+    assertEquals(101, counts.count("8f37c"));
+    assertEquals(4, PantryController.rebuildInventory(db));
+    assertEquals(1, counts.count("8f37c"));
+  }
 }
@@ -0,0 +1,50 @@
+package umm3601.pantry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.Date;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.plugin.json.JavalinJackson;
+
+/**
+ * Tests reading and writing pantry purchase dates, without a database.
+ */
+public class PurchaseDatesSpec {
+
+  private static final Date CHRISTMAS = Date.from(Instant.parse("2021-12-25T00:00:00Z"));
+
+  private final JavalinJackson javalinJackson = new JavalinJackson();
+
+  @Test
+  public void readsBothForms() {
+    assertEquals(CHRISTMAS, PurchaseDates.parse("2021-12-25"));
+    assertEquals(CHRISTMAS, PurchaseDates.parse("12/25/2021"));
+    assertEquals(CHRISTMAS, PurchaseDates.parse(" 12/25/2021 "));
+  }
+
+  @Test
+  public void rejectsThingsThatArentDates() {
+    assertThrows(IllegalArgumentException.class, () -> PurchaseDates.parse("Christmas"));
+    assertThrows(IllegalArgumentException.class, () -> PurchaseDates.parse("13/25/2021"));
+    assertThrows(IllegalArgumentException.class, () -> PurchaseDates.parse("2021-02-30"));
+  }
+
+  @Test
+  public void pantryDatesAreDaysInJson() {
+    Pantry pantry = javalinJackson.fromJsonString("{\"name\": \"chips\", \"date\": \"12/25/2021\"}", Pantry.class);
+    assertEquals(CHRISTMAS, pantry.date);
+
+    String json = javalinJackson.toJsonString(pantry);
+    assertTrue(json.contains("\"date\":\"2021-12-25\""));
+    assertEquals(CHRISTMAS, javalinJackson.fromJsonString(json, Pantry.class).date);
+
+    // Millisecond timestamps are dates too
+    assertEquals(CHRISTMAS,
+        javalinJackson.fromJsonString("{\"date\": " + CHRISTMAS.getTime() + "}", Pantry.class).date);
+  }
+}
@@ -0,0 +1,209 @@
+package umm3601.patch;
+
+import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
+import static java.util.Map.entry;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mongodb.MongoClientSettings;
+
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.core.validation.ValidationException;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.product.Product;
+
+/**
+ * Tests reading and checking `PATCH` bodies, without a database.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class PatchRulesSpec {
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+
+  private final PatchRules rules = new PatchRules()
+      .text("productName", name -> name.length() > 0, "Product must have a non-empty product name")
+      .derive("productName", "productNameNormalized", name -> ((String) name).toLowerCase())
+      .number("threshold", 0, "Product's threshold must be greater than or equal to zero")
+      .optionalText("notes", "Product's notes must not be empty");
+
+  @BeforeEach
+  public void setupEach() {
+    mockReq.resetAll();
+    mockRes.resetAll();
+  }
+
+  private Context mockContext() {
+    mockReq.setMethod("PATCH");
+    return ContextUtil.init(mockReq, mockRes, "api/products/{id}", Collections.emptyMap(),
+        HandlerType.INVALID, Map.ofEntries(
+            entry(JSON_MAPPER_KEY, new JavalinJackson()),
+            entry(ContextUtil.maxRequestSizeKey, new JavalinConfig().maxRequestSize)));
+  }
+
+  private PartialUpdate parse(String body) {
+    mockReq.setBodyContent(body);
+    return rules.parse(mockContext());
+  }
+
+  private static BsonDocument render(Bson bson) {
+    return bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+  }
+
+  private static Product sam() {
+    Product sam = new Product();
+    sam._id = "588935f57546a2daea44de7c";
+    sam.productName = "Sam";
+    sam.productNameNormalized = "sam";
+    sam.threshold = 25;
+    sam.notes = "nice";
+    sam.store = "coop";
+    return sam;
+  }
+
+  @Test
+  public void setsOnlyTheFieldsInTheBody() {
+    PartialUpdate update = parse("{\"productName\": \"Spam\"}");
+
+    assertEquals(BsonDocument.parse(
+        "{$set: {productName: 'Spam', productNameNormalized: 'spam'}}"), render(update.getUpdate()));
+    assertFalse(update.isGuarded());
+
+    Product after = update.applyTo(sam(), Product.class);
+    assertEquals("Spam", after.productName);
+    assertEquals("spam", after.productNameNormalized);
+    assertEquals(25, after.threshold);
+    assertEquals("coop", after.store);
+  }
+
+  @Test
+  public void nullRemovesAnOptionalField() {
+    PartialUpdate update = parse("{\"notes\": null}");
+
+    assertEquals(BsonDocument.parse("{$unset: {notes: ''}}"), render(update.getUpdate()));
+    assertNull(update.applyTo(sam(), Product.class).notes);
+  }
+
+  @Test
+  public void decrementsAreGuardedByTheMinimum() {
+    PartialUpdate update = parse("{\"$inc\": {\"threshold\": -5}}");
+
+    assertEquals(BsonDocument.parse("{$inc: {threshold: -5}}"), render(update.getUpdate()));
+    assertTrue(update.isGuarded());
+    Bson id = new BsonDocument("_id", new BsonString("x"));
+    assertEquals(BsonDocument.parse("{$and: [{_id: 'x'}, {threshold: {$gte: 5}}]}"),
+        render(update.getFilter(id)));
+    assertEquals(20, update.applyTo(sam(), Product.class).threshold);
+  }
+
+  @Test
+  public void incrementsAreNotGuarded() {
+    PartialUpdate update = parse("{\"$inc\": {\"threshold\": 3}, \"notes\": \"nicer\"}");
+
+    assertFalse(update.isGuarded());
+    assertEquals(BsonDocument.parse("{$set: {notes: 'nicer'}, $inc: {threshold: 3}}"),
+        render(update.getUpdate()));
+  }
+
+  @Test
+  public void datesAreReadWithTheirParser() {
+    PatchRules dates = new PatchRules().optionalDate("date", text -> {
+      if (!text.equals("today")) {
+        throw new IllegalArgumentException(text);
+      }
+      return new Date(0);
+    });
+
+    mockReq.setBodyContent("{\"date\": \"today\"}");
+    PartialUpdate update = dates.parse(mockContext());
+    assertEquals(new BsonDocument("$set", new BsonDocument("date", new BsonDateTime(0))), render(update.getUpdate()));
+
+    mockReq.setBodyContent("{\"date\": \"tomorrow\"}");
+    ValidationException e = assertThrows(ValidationException.class, () -> dates.parse(mockContext()));
+    assertEquals("date must be a date like 2022-01-20", e.getErrors().get("date").get(0).getMessage());
+  }
+
+  @Test
+  public void reportsEveryBrokenRule() {
+    ValidationException e = assertThrows(ValidationException.class, () -> {
+      parse("{\"productName\": \"\", \"threshold\": -1, \"notes\": 7}");
+    });
+
+    assertEquals(3, e.getErrors().size());
+    assertEquals("Product must have a non-empty product name",
+        e.getErrors().get("productName").get(0).getMessage());
+    assertTrue(e.getErrors().containsKey("threshold"));
+    assertTrue(e.getErrors().containsKey("notes"));
+  }
+
+  @Test
+  public void requiredFieldsCantBeRemoved() {
+    ValidationException e = assertThrows(ValidationException.class, () -> {
+      parse("{\"productName\": null}");
+    });
+
+    assertTrue(e.getErrors().containsKey("productName"));
+  }
+
+  @Test
+  public void onlyNumbersCanBeIncremented() {
+    assertThrows(ValidationException.class, () -> {
+      parse("{\"$inc\": {\"notes\": 1}}");
+    });
+    assertThrows(ValidationException.class, () -> {
+      parse("{\"$inc\": {\"threshold\": 1.5}}");
+    });
+    assertThrows(ValidationException.class, () -> {
+      parse("{\"threshold\": 3, \"$inc\": {\"threshold\": 1}}");
+    });
+    assertThrows(ValidationException.class, () -> {
+      parse("{\"$inc\": {\"threshold\": 1}, \"threshold\": 3}");
+    });
+  }
+
+  @Test
+  public void rejectsFieldsThatCantBeChanged() {
+    assertThrows(BadRequestResponse.class, () -> {
+      parse("{\"_id\": \"588935f57546a2daea44de7c\"}");
+    });
+    assertThrows(BadRequestResponse.class, () -> {
+      parse("{\"productNameNormalized\": \"spam\"}");
+    });
+    assertThrows(BadRequestResponse.class, () -> {
+      parse("{\"color\": \"red\"}");
+    });
+  }
+
+  @Test
+  public void rejectsBodiesThatChangeNothing() {
+    assertThrows(BadRequestResponse.class, () -> {
+      parse("{}");
+    });
+    assertThrows(BadRequestResponse.class, () -> {
+      parse("[{\"notes\": \"nicer\"}]");
+    });
+    assertThrows(BadRequestResponse.class, () -> {
+      parse("{\"notes\": ");
+    });
+  }
+}
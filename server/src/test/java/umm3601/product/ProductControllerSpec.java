@@ -4,9 +4,12 @@ import static com.mongodb.client.model.Filters.eq;
 import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
 import static java.util.Map.entry;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
@@ -168,6 +171,8 @@ public class ProductControllerSpec {
     productDocuments.insertMany(testProducts);
     productDocuments.insertOne(sam);
 
+    ProductController.backfillNormalizedFields(db);
+
     productController = new ProductController(db);
   }
 
@@ -257,6 +262,36 @@ public class ProductControllerSpec {
     );
   }
 
+  @Test
+  public void canStreamAllProducts() throws IOException {
+    mockReq.setQueryString("stream=true");
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    Product[] streamedProducts = javalinJackson.fromJsonString(mockRes.getOutputStreamContent(), Product[].class);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    assertEquals("application/json", mockRes.getContentType());
+    assertEquals(
+      db.getCollection("products").countDocuments(),
+      streamedProducts.length
+    );
+  }
+
+  @Test
+  public void streamingRespectsFilters() throws IOException {
+    mockReq.setQueryString("stream=true&store=coop");
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    Product[] streamedProducts = javalinJackson.fromJsonString(mockRes.getOutputStreamContent(), Product[].class);
+
+    assertEquals(2, streamedProducts.length);
+    for (Product product : streamedProducts) {
+      assertEquals("coop", product.store);
+    }
+  }
+
   /**
    * Test that if the product sends a request with an illegal value in
    * the age field (i.e., something that can't be parsed to a number)
@@ -290,6 +325,64 @@ public class ProductControllerSpec {
     }
   }
 
+  @Test
+  public void productNameSearchIsAPrefixSearch() throws IOException {
+    mockReq.setQueryString("productName=syrup");
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+
+    assertEquals(0, returnedProducts(ctx).length);
+  }
+
+  @Test
+  public void productNameSearchIgnoresCaseAndAccents() throws IOException {
+    String testNewProduct = "{"
+        + "\"productName\": \"Crème Brûlée\","
+        + "\"threshold\": 2,"
+        + "\"store\": \"coop\","
+        + "\"lifespan\": 3"
+        + "}";
+    mockReq.setBodyContent(testNewProduct);
+    mockReq.setMethod("POST");
+    productController.addNewProduct(mockContext("api/products"));
+
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("productName=CREME b");
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    Product[] resultProducts = returnedProducts(ctx);
+
+    assertEquals(1, resultProducts.length);
+    assertEquals("Crème Brûlée", resultProducts[0].productName);
+  }
+
+  @Test
+  public void addProductStoresNormalizedName() throws IOException {
+    String testNewProduct = "{"
+        + "\"productName\": \"  Jalapeño   Chips \","
+        + "\"threshold\": 2,"
+        + "\"store\": \"willies\","
+        + "\"lifespan\": 3"
+        + "}";
+    mockReq.setBodyContent(testNewProduct);
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/products");
+
+    productController.addNewProduct(ctx);
+    String id = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("id").asText();
+
+    Document addedProduct = db.getCollection("products").find(eq("_id", new ObjectId(id))).first();
+    assertEquals("jalapeno chips", addedProduct.getString("productNameNormalized"));
+  }
+
+  @Test
+  public void backfillSkipsProductsThatAreAlreadyNormalized() {
+    assertEquals(0, ProductController.backfillNormalizedFields(db));
+  }
+
   @Test
   public void getProductsByStore() throws IOException {
     mockReq.setQueryString("store=willies");
@@ -321,6 +414,321 @@ public class ProductControllerSpec {
     }
   }
 
+  @Test
+  public void getProductsByNameAndStore() throws IOException {
+    mockReq.setQueryString("productName=s&store=willies");
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    Product[] resultProducts = returnedProducts(ctx);
+
+    assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+    assertEquals(1, resultProducts.length);
+    assertEquals("STUFF", resultProducts[0].productName);
+  }
+
+  @Test
+  public void getProductsByStoreAndThreshold() throws IOException {
+    mockReq.setQueryString("store=willies&threshold=25");
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    Product[] resultProducts = returnedProducts(ctx);
+
+    assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+    assertEquals(1, resultProducts.length);
+    assertEquals("Corn syrup", resultProducts[0].productName);
+  }
+
+  @Test
+  public void sortsThatNeedAMissingIndexAreBadRequests() {
+    // Without a `sortby` that's sorted some other way, but there's no
+    // index to sort products of one store and threshold by name.
+    mockReq.setQueryString("store=willies&threshold=25&sortby=productName");
+    Context ctx = mockContext("api/products");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      productController.getProducts(ctx);
+    });
+  }
+
+  /**
+   * A little helper method that assumes that the given context body
+   * contains a page of products (from a request with a `limit`), and
+   * extracts and returns that page.
+   *
+   * @param ctx the `Context` whose body is assumed to contain a page
+   * @return the page as a JSON object with `products` and `next`
+   */
+  private ObjectNode returnedPage(Context ctx) {
+    return javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+  }
+
+  private Product[] pageProducts(ObjectNode page) {
+    return javalinJackson.fromJsonString(page.get("products").toString(), Product[].class);
+  }
+
+  @Test
+  public void canPageThroughProducts() throws IOException {
+    mockReq.setQueryString("limit=2");
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    ObjectNode firstPage = returnedPage(ctx);
+    Product[] firstProducts = pageProducts(firstPage);
+
+    assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+    assertEquals(2, firstProducts.length);
+    assertEquals("Corn syrup", firstProducts[0].productName);
+    assertEquals("Peas Snow", firstProducts[1].productName);
+    assertFalse(firstPage.get("next").isNull());
+
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("limit=2&after=" + firstPage.get("next").asText());
+    ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    ObjectNode secondPage = returnedPage(ctx);
+    Product[] secondProducts = pageProducts(secondPage);
+
+    assertEquals(2, secondProducts.length);
+    assertEquals("STUFF", secondProducts[0].productName);
+    assertEquals("Sam", secondProducts[1].productName);
+    assertTrue(secondPage.get("next").isNull());
+  }
+
+  @Test
+  public void canPageProductsDescendingByThreshold() throws IOException {
+    mockReq.setQueryString("limit=3&sortby=threshold&sortorder=desc");
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    ObjectNode firstPage = returnedPage(ctx);
+    Product[] firstProducts = pageProducts(firstPage);
+
+    assertEquals(3, firstProducts.length);
+    assertEquals(25, firstProducts[0].threshold);
+    assertEquals(25, firstProducts[1].threshold);
+    assertEquals(5, firstProducts[2].threshold);
+
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("limit=3&sortby=threshold&sortorder=desc&after=" + firstPage.get("next").asText());
+    ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    ObjectNode secondPage = returnedPage(ctx);
+    Product[] secondProducts = pageProducts(secondPage);
+
+    assertEquals(1, secondProducts.length);
+    assertEquals("Peas Snow", secondProducts[0].productName);
+    assertTrue(secondPage.get("next").isNull());
+  }
+
+  @Test
+  public void pagingRespectsFilters() throws IOException {
+    mockReq.setQueryString("store=willies&limit=1");
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    ObjectNode page = returnedPage(ctx);
+    Product[] products = pageProducts(page);
+
+    assertEquals(1, products.length);
+    assertEquals("Corn syrup", products[0].productName);
+
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("store=willies&limit=1&after=" + page.get("next").asText());
+    ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    page = returnedPage(ctx);
+    products = pageProducts(page);
+
+    assertEquals(1, products.length);
+    assertEquals("STUFF", products[0].productName);
+    assertTrue(page.get("next").isNull());
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalLimit() {
+    mockReq.setQueryString("limit=0");
+    Context ctx = mockContext("api/products");
+
+    assertThrows(ValidationException.class, () -> {
+      productController.getProducts(ctx);
+    });
+  }
+
+  @Test
+  public void respondsAppropriatelyToBadCursor() {
+    mockReq.setQueryString("limit=2&after=not-a-cursor");
+    Context ctx = mockContext("api/products");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      productController.getProducts(ctx);
+    });
+  }
+
+  @Test
+  public void respondsAppropriatelyToUnpageableSortField() {
+    mockReq.setQueryString("limit=2&sortby=name");
+    Context ctx = mockContext("api/products");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      productController.getProducts(ctx);
+    });
+  }
+
+  @Test
+  public void listLeavesOutLongTextByDefault() throws IOException {
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    Product[] resultProducts = returnedProducts(ctx);
+
+    assertEquals(4, resultProducts.length);
+    for (Product product : resultProducts) {
+      assertNotNull(product._id);
+      assertNotNull(product.productName);
+      assertNotNull(product.store);
+      assertNull(product.description);
+      assertNull(product.notes);
+    }
+  }
+
+  @Test
+  public void canGetAllFieldsInList() throws IOException {
+    mockReq.setQueryString("fields=all&productName=Sam");
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    Product[] resultProducts = returnedProducts(ctx);
+
+    assertEquals(1, resultProducts.length);
+    assertEquals("hi", resultProducts[0].description);
+    assertEquals("nice", resultProducts[0].notes);
+  }
+
+  @Test
+  public void canPickProductFields() throws IOException {
+    mockReq.setQueryString("fields=productName,brand");
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    Product[] resultProducts = returnedProducts(ctx);
+
+    assertEquals(4, resultProducts.length);
+    for (Product product : resultProducts) {
+      assertNotNull(product._id);
+      assertNotNull(product.productName);
+      assertNotNull(product.brand);
+      assertNull(product.store);
+      assertNull(product.category);
+      assertNull(product.threshold);
+    }
+    // Numbers that weren't asked for are left out, rather than sent as 0
+    assertFalse(ctx.resultString().contains("\"threshold\""));
+  }
+
+  @Test
+  public void rejectsUnknownFields() {
+    mockReq.setQueryString("fields=productName,secret");
+    Context ctx = mockContext("api/products");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      productController.getProducts(ctx);
+    });
+  }
+
+  @Test
+  public void pagingKeepsTheSortFieldWhenPickingFields() throws IOException {
+    mockReq.setQueryString("limit=3&sortby=threshold&fields=productName");
+    Context ctx = mockContext("api/products");
+
+    productController.getProducts(ctx);
+    ObjectNode page = returnedPage(ctx);
+
+    assertTrue(page.get("products").get(0).has("threshold"));
+    assertFalse(page.get("next").isNull());
+  }
+
+  @Test
+  public void getProductWithPickedFields() throws IOException {
+    mockReq.setQueryString("fields=productName");
+    String testID = samsId.toHexString();
+    Context ctx = mockContext("api/products/{id}", Map.of("id", testID));
+
+    productController.getProduct(ctx);
+    Product resultProduct = returnedSingleProduct(ctx);
+
+    assertEquals(testID, resultProduct._id);
+    assertEquals("Sam", resultProduct.productName);
+    assertNull(resultProduct.brand);
+  }
+
+  @Test
+  public void canSearchProducts() throws IOException {
+    mockReq.setQueryString("q=cool");
+    Context ctx = mockContext("api/products/search");
+
+    productController.searchProducts(ctx);
+    Product[] resultProducts = returnedProducts(ctx);
+
+    assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+    assertEquals(1, resultProducts.length);
+    assertEquals("Corn syrup", resultProducts[0].productName);
+  }
+
+  @Test
+  public void searchFindsNewlyAddedProducts() throws IOException {
+    String testNewProduct = "{"
+        + "\"productName\": \"Quinoa\","
+        + "\"threshold\": 2,"
+        + "\"store\": \"coop\","
+        + "\"description\": \"Ancient grain\","
+        + "\"lifespan\": 3"
+        + "}";
+    mockReq.setBodyContent(testNewProduct);
+    mockReq.setMethod("POST");
+    productController.addNewProduct(mockContext("api/products"));
+
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("q=grain");
+    Context ctx = mockContext("api/products/search");
+
+    productController.searchProducts(ctx);
+    Product[] resultProducts = returnedProducts(ctx);
+
+    assertEquals(1, resultProducts.length);
+    assertEquals("Quinoa", resultProducts[0].productName);
+  }
+
+  @Test
+  public void searchForgetsDeletedProducts() throws IOException {
+    productController.deleteProduct(mockContext("api/products/{id}", Map.of("id", samsId.toHexString())));
+
+    mockReq.setQueryString("q=sam");
+    Context ctx = mockContext("api/products/search");
+
+    productController.searchProducts(ctx);
+
+    assertEquals(0, returnedProducts(ctx).length);
+  }
+
+  @Test
+  public void searchNeedsAQuery() {
+    mockReq.setQueryString("q=");
+    Context ctx = mockContext("api/products/search");
+
+    assertThrows(ValidationException.class, () -> {
+      productController.searchProducts(ctx);
+    });
+  }
+
   @Test
   public void getProductWithExistentId() throws IOException {
     String testID = samsId.toHexString();
@@ -334,6 +742,34 @@ public class ProductControllerSpec {
     assertEquals("Sam", resultProduct.productName);
   }
 
+  @Test
+  public void repeatedGetsAreServedFromTheCache() throws IOException {
+    String testID = samsId.toHexString();
+
+    productController.getProduct(mockContext("api/products/{id}", Map.of("id", testID)));
+    mockRes.resetAll();
+    Context ctx = mockContext("api/products/{id}", Map.of("id", testID));
+    productController.getProduct(ctx);
+
+    assertEquals("Sam", returnedSingleProduct(ctx).productName);
+    Map<String, Object> stats = productController.cacheStats();
+    assertEquals(1L, stats.get("hits"));
+    assertEquals(1L, stats.get("misses"));
+  }
+
+  @Test
+  public void deleteRemovesProductFromTheCache() throws IOException {
+    String testID = samsId.toHexString();
+
+    productController.getProduct(mockContext("api/products/{id}", Map.of("id", testID)));
+    productController.deleteProduct(mockContext("api/products/{id}", Map.of("id", testID)));
+
+    Context ctx = mockContext("api/products/{id}", Map.of("id", testID));
+    assertThrows(NotFoundResponse.class, () -> {
+      productController.getProduct(ctx);
+    });
+  }
+
   @Test
   public void getProductWithBadId() throws IOException {
     Context ctx = mockContext("api/products/{id}", Map.of("id", "bad"));
@@ -352,6 +788,94 @@ public class ProductControllerSpec {
     });
   }
 
+  @Test
+  public void canPatchSomeFieldsOfAProduct() throws IOException {
+    String testID = samsId.toHexString();
+    mockReq.setBodyContent("{\"productName\": \"Spam\", \"notes\": null, \"$inc\": {\"threshold\": -5}}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/products/{id}", Map.of("id", testID));
+
+    productController.updateProduct(ctx);
+
+    assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+    Product returned = returnedSingleProduct(ctx);
+    assertEquals("Spam", returned.productName);
+    assertEquals(20, returned.threshold);
+    assertNull(returned.notes);
+
+    Document patched = db.getCollection("products").find(eq("_id", samsId)).first();
+    assertEquals("Spam", patched.getString("productName"));
+    assertEquals("spam", patched.getString("productNameNormalized"));
+    assertEquals(20, patched.getInteger("threshold"));
+    assertFalse(patched.containsKey("notes"));
+    // The fields the patch didn't mention are untouched
+    assertEquals("UMn", patched.getString("brand"));
+    assertEquals(69, patched.getInteger("lifespan"));
+  }
+
+  @Test
+  public void patchedProductsAreFreshEverywhere() throws IOException {
+    String testID = samsId.toHexString();
+    // Fill the single-product cache
+    productController.getProduct(mockContext("api/products/{id}", Map.of("id", testID)));
+    mockRes.resetAll();
+
+    mockReq.setBodyContent("{\"productName\": \"Spam\"}");
+    mockReq.setMethod("PATCH");
+    productController.updateProduct(mockContext("api/products/{id}", Map.of("id", testID)));
+    mockRes.resetAll();
+
+    Context ctx = mockContext("api/products/{id}", Map.of("id", testID));
+    productController.getProduct(ctx);
+    assertEquals("Spam", returnedSingleProduct(ctx).productName);
+
+    mockRes.resetAll();
+    mockReq.setQueryString("q=spam");
+    Context searchCtx = mockContext("api/products/search");
+    productController.searchProducts(searchCtx);
+    assertEquals(testID, returnedProducts(searchCtx)[0]._id);
+  }
+
+  @Test
+  public void patchChecksOnlyTheChangedFields() throws IOException {
+    mockReq.setBodyContent("{\"store\": \"target\", \"threshold\": -1}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/products/{id}", Map.of("id", samsId.toHexString()));
+
+    ValidationException e = assertThrows(ValidationException.class, () -> {
+      productController.updateProduct(ctx);
+    });
+    assertEquals(2, e.getErrors().size());
+    assertEquals("coop", db.getCollection("products").find(eq("_id", samsId)).first().getString("store"));
+  }
+
+  @Test
+  public void patchCantDecrementBelowTheMinimum() throws IOException {
+    mockReq.setBodyContent("{\"$inc\": {\"threshold\": -26}}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/products/{id}", Map.of("id", samsId.toHexString()));
+
+    assertThrows(BadRequestResponse.class, () -> {
+      productController.updateProduct(ctx);
+    });
+    assertEquals(25, db.getCollection("products").find(eq("_id", samsId)).first().getInteger("threshold"));
+  }
+
+  @Test
+  public void patchOfAMissingProduct() throws IOException {
+    mockReq.setBodyContent("{\"productName\": \"Spam\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/products/{id}", Map.of("id", new ObjectId().toHexString()));
+    assertThrows(NotFoundResponse.class, () -> {
+      productController.updateProduct(ctx);
+    });
+
+    Context badIdCtx = mockContext("api/products/{id}", Map.of("id", "bad"));
+    assertThrows(BadRequestResponse.class, () -> {
+      productController.updateProduct(badIdCtx);
+    });
+  }
+
   @Test
   public void addProduct() throws IOException {
 
@@ -515,6 +1039,189 @@ public class ProductControllerSpec {
     });
   }
 
+  @Test
+  public void addProductsInBulk() throws IOException {
+    long before = db.getCollection("products").countDocuments();
+    String products = "["
+        + "{\"productName\": \"Bulk one\", \"store\": \"coop\", \"threshold\": 1},"
+        + "{\"productName\": \"\", \"store\": \"coop\"},"
+        + "{\"productName\": \"Bulk two\", \"store\": \"coop\", \"threshold\": \"lots\"},"
+        + "{\"productName\": \"Bulk three\", \"store\": \"willies\", \"brand\": \"Acme\"},"
+        + "{\"productName\": \"Bulk four\"},"
+        + "{\"productName\": \"Bulk five\", \"store\": \"willies\"}"
+        + "]";
+    mockReq.setBodyContent(products);
+    mockReq.setMethod("POST");
+    mockReq.setQueryString("batchSize=2");
+    Context ctx = mockContext("api/products/bulk");
+
+    productController.addNewProducts(ctx);
+    ObjectNode response = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+
+    assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+    assertEquals(6, response.get("stats").get("items").asInt());
+    assertEquals(3, response.get("stats").get("inserted").asInt());
+    assertEquals(3, response.get("stats").get("failed").asInt());
+    assertEquals(2, response.get("stats").get("batches").asInt());
+    assertEquals(before + 3, db.getCollection("products").countDocuments());
+
+    // Every item gets a result, in order.
+    assertEquals(6, response.get("results").size());
+    String firstId = response.get("results").get(0).get("id").asText();
+    Document added = db.getCollection("products").find(eq("_id", new ObjectId(firstId))).first();
+    assertNotNull(added);
+    assertEquals("Bulk one", added.getString("productName"));
+    assertEquals("bulk one", added.getString("productNameNormalized"));
+    assertEquals("Product must have a non-empty product name",
+        response.get("results").get(1).get("errors").get(0).asText());
+    assertTrue(response.get("results").get(2).get("errors").get(0).asText().startsWith("Couldn't read a product"));
+    assertTrue(response.get("results").get(3).has("id"));
+    assertEquals("Product must have a legal store",
+        response.get("results").get(4).get("errors").get(0).asText());
+    assertTrue(response.get("results").get(5).has("id"));
+  }
+
+  @Test
+  public void bulkAddReportsDuplicateIds() throws IOException {
+    String products = "["
+        + "{\"_id\": \"" + samsId.toHexString() + "\", \"productName\": \"Sam again\", \"store\": \"coop\"},"
+        + "{\"productName\": \"Not a duplicate\", \"store\": \"coop\"}"
+        + "]";
+    mockReq.setBodyContent(products);
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/products/bulk");
+
+    productController.addNewProducts(ctx);
+    ObjectNode response = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+
+    // The batch is unordered, so the duplicate doesn't stop the second product.
+    assertTrue(response.get("results").get(0).has("errors"));
+    assertTrue(response.get("results").get(1).has("id"));
+    assertEquals(1, response.get("stats").get("inserted").asInt());
+  }
+
+  @Test
+  public void bulkAddNeedsAnArray() throws IOException {
+    mockReq.setBodyContent("{\"productName\": \"Lonely\", \"store\": \"coop\"}");
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/products/bulk");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      productController.addNewProducts(ctx);
+    });
+  }
+
+  @Test
+  public void bulkAddRejectsIllegalBatchSize() throws IOException {
+    mockReq.setBodyContent("[]");
+    mockReq.setMethod("POST");
+    mockReq.setQueryString("batchSize=0");
+    Context ctx = mockContext("api/products/bulk");
+
+    assertThrows(ValidationException.class, () -> {
+      productController.addNewProducts(ctx);
+    });
+  }
+
+  @Test
+  public void unchangedProductsAreNotModified() throws IOException {
+    productController.getProducts(mockContext("api/products"));
+    String etag = mockRes.getHeader("ETag");
+    assertNotNull(etag);
+
+    mockRes.resetAll();
+    mockReq.addHeader("If-None-Match", etag);
+    Context ctx = mockContext("api/products");
+    productController.getProducts(ctx);
+
+    assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, mockRes.getStatus());
+    assertEquals("", ctx.resultString() == null ? "" : ctx.resultString());
+  }
+
+  @Test
+  public void changedProductsGetANewETag() throws IOException {
+    productController.getProduct(mockContext("api/products/{id}", Map.of("id", samsId.toHexString())));
+    String etag = mockRes.getHeader("ETag");
+
+    productController.deleteProduct(mockContext("api/products/{id}", Map.of("id", samsId.toHexString())));
+
+    mockRes.resetAll();
+    mockReq.addHeader("If-None-Match", etag);
+    Context ctx = mockContext("api/products");
+    productController.getProducts(ctx);
+
+    assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+    assertNotEquals(etag, mockRes.getHeader("ETag"));
+    assertEquals(db.getCollection("products").countDocuments(), returnedProducts(ctx).length);
+  }
+
+  private ObjectNode returnedFacets(Context ctx) {
+    return javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+  }
+
+  @Test
+  public void canCountProductFacets() throws IOException {
+    Context ctx = mockContext("api/products/facets");
+    productController.getProductFacets(ctx);
+    ObjectNode facets = returnedFacets(ctx);
+
+    assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+    assertEquals(4, facets.get("category").size());
+    assertEquals(2, facets.get("store").size());
+    assertEquals(4, facets.get("brand").size());
+    // Most common first; the stores are tied, so check the counts.
+    assertEquals(2, facets.get("store").get(0).get("count").asInt());
+    assertEquals(2, facets.get("store").get(1).get("count").asInt());
+  }
+
+  @Test
+  public void facetsFollowTheFilter() throws IOException {
+    mockReq.setQueryString("store=coop");
+    Context ctx = mockContext("api/products/facets");
+    productController.getProductFacets(ctx);
+    ObjectNode facets = returnedFacets(ctx);
+
+    assertEquals(1, facets.get("store").size());
+    assertEquals("coop", facets.get("store").get(0).get("value").asText());
+    assertEquals(2, facets.get("store").get(0).get("count").asInt());
+    assertEquals(2, facets.get("brand").size());
+  }
+
+  @Test
+  public void facetsAreRememberedUntilProductsChange() throws IOException {
+    productController.getProductFacets(mockContext("api/products/facets"));
+
+    // Changes made behind the controller's back aren't seen...
+    db.getCollection("products").insertOne(new Document("productName", "Sneaky").append("store", "coop"));
+    mockRes.resetAll();
+    Context ctx = mockContext("api/products/facets");
+    productController.getProductFacets(ctx);
+    assertEquals(2, returnedFacets(ctx).get("store").get(0).get("count").asInt());
+
+    // ...but changes through the controller are.
+    productController.deleteProduct(mockContext("api/products/{id}", Map.of("id", samsId.toHexString())));
+    mockRes.resetAll();
+    ctx = mockContext("api/products/facets");
+    productController.getProductFacets(ctx);
+    ObjectNode facets = returnedFacets(ctx);
+    assertEquals(2, facets.get("store").get(0).get("count").asInt());
+    assertEquals(2, facets.get("store").get(1).get("count").asInt());
+    // Sam's brand is gone, and Sneaky has none.
+    assertEquals(4, facets.get("brand").size());
+    assertFalse(facets.get("brand").toString().contains("UMn"));
+  }
+
+  @Test
+  public void canFilterProductsByCategoryAndBrand() throws IOException {
+    mockReq.setQueryString("category=Bad&brand=UMM");
+    Context ctx = mockContext("api/products");
+    productController.getProducts(ctx);
+    Product[] resultProducts = returnedProducts(ctx);
+
+    assertEquals(1, resultProducts.length);
+    assertEquals("Peas Snow", resultProducts[0].productName);
+  }
+
   @Test
   public void deleteProduct() throws IOException {
     String testID = samsId.toHexString();
@@ -0,0 +1,150 @@
+package umm3601.product;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the in-memory product search index on its own, without a
+ * database.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class ProductSearchIndexSpec {
+
+  private ProductSearchIndex index;
+
+  private static Product product(String id, String name, String brand, String description) {
+    Product product = new Product();
+    product._id = id;
+    product.productName = name;
+    product.brand = brand;
+    product.category = "grocery";
+    product.description = description;
+    return product;
+  }
+
+  private List<String> ids(List<ProductSearchIndex.Hit> hits) {
+    return hits.stream().map(ProductSearchIndex.Hit::getId).collect(Collectors.toList());
+  }
+
+  @BeforeEach
+  public void setupEach() {
+    index = new ProductSearchIndex();
+    index.add(product("1", "Corn Syrup", "Karo", "Light corn syrup for baking"));
+    index.add(product("2", "Corn Flakes", "Kellogg's", "Breakfast cereal"));
+    index.add(product("3", "Maple Syrup", "Crème Farms", "Pure maple syrup"));
+    index.add(product("4", "Peas", "Green Giant", "Frozen peas, great with corn"));
+  }
+
+  @Test
+  public void findsProductsContainingAnyQueryWord() {
+    List<String> found = ids(index.search("syrup", 10));
+
+    assertEquals(2, found.size());
+    assertTrue(found.containsAll(List.of("1", "3")));
+  }
+
+  @Test
+  public void nameMatchesOutrankDescriptionMatches() {
+    List<String> found = ids(index.search("corn", 10));
+
+    assertEquals(3, found.size());
+    // "Peas" only mentions corn in its description.
+    assertEquals("4", found.get(2));
+  }
+
+  @Test
+  public void productsMatchingMoreWordsRankHigher() {
+    assertEquals("1", ids(index.search("corn syrup", 10)).get(0));
+    assertEquals("3", ids(index.search("maple syrup", 10)).get(0));
+  }
+
+  @Test
+  public void searchIgnoresCaseAndAccents() {
+    assertEquals(List.of("3"), ids(index.search("CREME", 10)));
+    assertEquals(List.of("2"), ids(index.search("kellogg", 10)));
+  }
+
+  @Test
+  public void respectsTheLimit() {
+    assertEquals(1, index.search("corn", 1).size());
+    assertEquals(0, index.search("corn", 0).size());
+  }
+
+  @Test
+  public void emptyQueriesFindNothing() {
+    assertEquals(0, index.search("  ,, ", 10).size());
+    assertEquals(0, index.search("caviar", 10).size());
+  }
+
+  @Test
+  public void removedProductsAreNotFound() {
+    assertTrue(index.remove("1"));
+    assertFalse(index.remove("1"));
+
+    assertEquals(List.of("3"), ids(index.search("syrup", 10)));
+    assertEquals(3, index.size());
+  }
+
+  @Test
+  public void addingAgainReplacesTheProduct() {
+    index.add(product("1", "Honey", "Bees", "Sweet"));
+
+    assertEquals(List.of("3"), ids(index.search("syrup", 10)));
+    assertEquals(List.of("1"), ids(index.search("honey", 10)));
+    assertEquals(4, index.size());
+  }
+
+  @Test
+  public void replacingProductsDoesntGrowTheIndex() {
+    for (int i = 0; i < 1000; i++) {
+      index.add(product("1", "Corn Syrup " + i, "Karo", "Light corn syrup for baking"));
+    }
+
+    assertEquals(4, index.size());
+    assertTrue(index.slots() <= 8, index.slots() + " product numbers in use");
+    assertEquals(List.of("1"), ids(index.search("999", 10)));
+    assertEquals(0, index.search("998", 10).size());
+  }
+
+  @Test
+  public void updatesThatDontChangeTheTextAreSkipped() {
+    Product before = product("2", "Corn Flakes", "Kellogg's", "Breakfast cereal");
+    Product after = product("2", "Corn Flakes", "Kellogg's", "Breakfast cereal");
+    after.threshold = 5;
+    index.update(before, after);
+    assertEquals(4, index.slots());
+
+    after.description = "Crunchy breakfast cereal";
+    index.update(before, after);
+    assertEquals(5, index.slots());
+    assertEquals(List.of("2"), ids(index.search("crunchy", 10)));
+  }
+
+  @Test
+  public void stillWorksAfterCompacting() {
+    // Removing more than half of the products compacts the index.
+    index.remove("1");
+    index.remove("2");
+    index.remove("4");
+    index.add(product("5", "Syrup Dispenser", "Acme", "Glass"));
+
+    assertEquals(2, index.size());
+    List<String> found = ids(index.search("syrup", 10));
+    assertEquals(2, found.size());
+    assertTrue(found.containsAll(List.of("3", "5")));
+    assertEquals(0, index.search("corn", 10).size());
+  }
+
+  @Test
+  public void splitsTextIntoNormalizedWords() {
+    assertEquals(List.of("jalapeno", "chips", "2", "pack"), ProductSearchIndex.tokenize("Jalapeño-Chips (2 pack)"));
+    assertEquals(List.of(), ProductSearchIndex.tokenize(null));
+  }
+}
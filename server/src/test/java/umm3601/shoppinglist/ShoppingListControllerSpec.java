@@ -7,6 +7,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
@@ -25,6 +26,7 @@ import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexModel;
 
 import org.bson.Document;
 import org.bson.types.ObjectId;
@@ -36,6 +38,7 @@ import org.junit.jupiter.api.Test;
 import io.javalin.core.JavalinConfig;
 import io.javalin.core.validation.ValidationException;
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HandlerType;
 import io.javalin.http.HttpCode;
@@ -144,6 +147,8 @@ public class ShoppingListControllerSpec {
         shoppingListDocuments.insertMany(testShoppingList);
         shoppingListDocuments.insertOne(sam);
 
+        ShoppingListController.backfillNormalizedFields(db);
+
         shoppingListController = new ShoppingListController(db);
     }
 
@@ -244,6 +249,42 @@ public class ShoppingListControllerSpec {
         }
     }
 
+    @Test
+    public void getShoppingListByNameAndStore() throws IOException {
+        mockReq.setQueryString("productName=b&store=coop");
+        Context ctx = mockContext("api/shoppingList");
+
+        shoppingListController.getShoppingLists(ctx);
+        ShoppingList[] resultShoppingList = returnedShoppingList(ctx);
+
+        assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+        assertEquals(1, resultShoppingList.length);
+        assertEquals("Banana", resultShoppingList[0].productName);
+    }
+
+    @Test
+    public void getShoppingListByStoreAndQuantity() throws IOException {
+        mockReq.setQueryString("store=coop&quantity=10");
+        Context ctx = mockContext("api/shoppingList");
+
+        shoppingListController.getShoppingLists(ctx);
+        ShoppingList[] resultShoppingList = returnedShoppingList(ctx);
+
+        assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+        assertEquals(1, resultShoppingList.length);
+        assertEquals("PORK LOIN", resultShoppingList[0].productName);
+    }
+
+    @Test
+    public void sortsThatNeedAMissingIndexAreBadRequests() {
+        mockReq.setQueryString("store=coop&quantity=10&sortby=productName");
+        Context ctx = mockContext("api/shoppingList");
+
+        assertThrows(BadRequestResponse.class, () -> {
+            shoppingListController.getShoppingLists(ctx);
+        });
+    }
+
     @Test
     public void getShoppingListByNameAndNotes() throws IOException {
         mockReq.setQueryString("name=corn FLAKEs&quantity=5");
@@ -428,6 +469,109 @@ public class ShoppingListControllerSpec {
         });
     }
 
+    @Test
+    public void mergingAddsToAnExistingItem() throws IOException {
+        long before = db.getCollection("shoppingList").countDocuments();
+        mockReq.setBodyContent("{\"productName\": \"Corn Flakes\", \"store\": \"willies\", \"quantity\": 2}");
+        mockReq.setMethod("POST");
+        mockReq.setQueryString("merge=true");
+        Context ctx = mockContext("api/shoppingList");
+
+        shoppingListController.addNewShoppingList(ctx);
+
+        assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+        ObjectNode result = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+        assertEquals(samsId.toHexString(), result.get("id").asText());
+        assertEquals(7, result.get("quantity").asInt());
+        assertTrue(result.get("merged").asBoolean());
+
+        assertEquals(before, db.getCollection("shoppingList").countDocuments());
+        Document merged = db.getCollection("shoppingList").find(eq("_id", samsId)).first();
+        assertEquals(7, merged.getInteger("quantity"));
+        // The item keeps its original name
+        assertEquals("corn FLAKEs", merged.getString("productName"));
+    }
+
+    @Test
+    public void mergingANewItemAddsIt() throws IOException {
+        mockReq.setBodyContent("{\"productName\": \"Bread\", \"store\": \"willies\", \"quantity\": 1}");
+        mockReq.setMethod("POST");
+        mockReq.setQueryString("merge=true");
+
+        Context ctx = mockContext("api/shoppingList");
+        shoppingListController.addNewShoppingList(ctx);
+
+        assertEquals(HttpURLConnection.HTTP_CREATED, mockRes.getStatus());
+        String id = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("id").asText();
+        Document added = db.getCollection("shoppingList").find(eq("_id", new ObjectId(id))).first();
+        assertNotNull(added);
+        assertEquals("bread", added.getString("productNameNormalized"));
+        assertEquals(1, added.getInteger("quantity"));
+
+        // A second add of the same item (at the same store) merges into it
+        mockRes.resetAll();
+        shoppingListController.addNewShoppingList(mockContext("api/shoppingList"));
+        assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+        assertEquals(1, db.getCollection("shoppingList").countDocuments(eq("productNameNormalized", "bread")));
+        assertEquals(2, db.getCollection("shoppingList").find(eq("_id", new ObjectId(id))).first()
+            .getInteger("quantity"));
+    }
+
+    @Test
+    public void addingADuplicateWithoutMergingIsAConflict() throws IOException {
+        for (IndexModel index : ShoppingListController.INDEXES) {
+            db.getCollection("shoppingList").createIndex(index.getKeys(), index.getOptions());
+        }
+        mockReq.setBodyContent("{\"productName\": \"CORN flakes\", \"store\": \"willies\", \"quantity\": 2}");
+        mockReq.setMethod("POST");
+        Context ctx = mockContext("api/shoppingList");
+
+        assertThrows(ConflictResponse.class, () -> {
+            shoppingListController.addNewShoppingList(ctx);
+        });
+        assertEquals(5, db.getCollection("shoppingList").find(eq("_id", samsId)).first().getInteger("quantity"));
+    }
+
+    @Test
+    public void canMergeDuplicateItems() {
+        MongoCollection<Document> shoppingList = db.getCollection("shoppingList");
+        ObjectId duplicateId = new ObjectId();
+        shoppingList.insertOne(new Document()
+                .append("_id", duplicateId)
+                .append("store", "willies")
+                .append("productName", "Corn Flakes")
+                .append("productNameNormalized", "corn flakes")
+                .append("quantity", 3));
+        long before = shoppingList.countDocuments();
+
+        assertEquals(1, ShoppingListController.mergeDuplicateItems(db));
+
+        assertEquals(before - 1, shoppingList.countDocuments());
+        assertEquals(0, shoppingList.countDocuments(eq("_id", duplicateId)));
+        assertEquals(8, shoppingList.find(eq("_id", samsId)).first().getInteger("quantity"));
+        assertEquals(0, ShoppingListController.mergeDuplicateItems(db));
+    }
+
+    @Test
+    public void canIncrementAShoppingListQuantity() throws IOException {
+        mockReq.setBodyContent("{\"$inc\": {\"quantity\": -4}}");
+        mockReq.setMethod("PATCH");
+        Context ctx = mockContext("api/shoppingList/{id}", Map.of("id", samsId.toHexString()));
+
+        shoppingListController.updateShoppingList(ctx);
+
+        assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+        assertEquals(1, javalinJackson.fromJsonString(ctx.resultString(), ShoppingList.class).quantity);
+        assertEquals(1, db.getCollection("shoppingList").find(eq("_id", samsId)).first().getInteger("quantity"));
+
+        // Quantities must stay above zero
+        Context again = mockContext("api/shoppingList/{id}", Map.of("id", samsId.toHexString()));
+        assertThrows(BadRequestResponse.class, () -> {
+            shoppingListController.updateShoppingList(again);
+        });
+        assertEquals(1, db.getCollection("shoppingList").find(eq("_id", samsId)).first().getInteger("quantity"));
+    }
+
     @Test
     public void deleteShoppingList() throws IOException {
         String testID = samsId.toHexString();
@@ -445,4 +589,83 @@ public class ShoppingListControllerSpec {
         assertEquals(0, db.getCollection("shoppingList").countDocuments(eq("_id", new ObjectId(testID))));
     }
 
+    private ObjectId addProduct(String name, String store, int threshold, int inPantry) {
+        ObjectId id = new ObjectId();
+        db.getCollection("products").insertOne(new Document()
+                .append("_id", id)
+                .append("productName", name)
+                .append("store", store)
+                .append("threshold", threshold));
+        if (inPantry > 0) {
+            db.getCollection("inventory").insertOne(new Document("_id", id.toHexString()).append("count", inPantry));
+        }
+        return id;
+    }
+
+    @Test
+    public void canGenerateLowStockItems() throws IOException {
+        db.getCollection("products").drop();
+        db.getCollection("inventory").drop();
+        addProduct("Corn Flakes", "willies", 8, 1);
+        addProduct("Bread", "coop", 3, 0);
+        addProduct("Milk", "coop", 2, 5);
+        addProduct("Soap", "coop", 0, 0);
+        long before = db.getCollection("shoppingList").countDocuments();
+
+        mockReq.setMethod("POST");
+        Context ctx = mockContext("api/shoppingList/generate");
+        shoppingListController.generateShoppingList(ctx);
+
+        ObjectNode result = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+        assertEquals(3, result.get("checked").asInt());
+        assertEquals(1, result.get("added").asInt());
+        assertEquals(1, result.get("raised").asInt());
+        assertEquals(1, result.get("stores").get("coop").get("added").asInt());
+        assertEquals(1, result.get("stores").get("willies").get("raised").asInt());
+
+        // Sam's corn flakes go up from 5 to the 7 we're short
+        assertEquals(7, db.getCollection("shoppingList").find(eq("_id", samsId)).first().getInteger("quantity"));
+        Document bread = db.getCollection("shoppingList").find(eq("productNameNormalized", "bread")).first();
+        assertEquals("coop", bread.getString("store"));
+        assertEquals(3, bread.getInteger("quantity"));
+        assertEquals(before + 1, db.getCollection("shoppingList").countDocuments());
+
+        // Running it again changes nothing
+        Map<String, Object> again = shoppingListController.generateLowStockItems();
+        assertEquals(0, again.get("added"));
+        assertEquals(0, again.get("raised"));
+        assertEquals(7, db.getCollection("shoppingList").find(eq("_id", samsId)).first().getInteger("quantity"));
+        assertEquals(before + 1, db.getCollection("shoppingList").countDocuments());
+    }
+
+    @Test
+    public void generatingNeverLowersAQuantity() {
+        db.getCollection("products").drop();
+        db.getCollection("inventory").drop();
+        addProduct("PORK LOIN", "coop", 4, 0);
+
+        Map<String, Object> result = shoppingListController.generateLowStockItems();
+
+        assertEquals(0, result.get("raised"));
+        assertEquals(10, db.getCollection("shoppingList").find(eq("productNameNormalized", "pork loin")).first()
+                .getInteger("quantity"));
+    }
+
+    @Test
+    public void itemsWithoutAQuantityCountAsNone() {
+        db.getCollection("products").drop();
+        db.getCollection("inventory").drop();
+        db.getCollection("shoppingList").insertOne(new Document()
+                .append("productName", "Eggs")
+                .append("productNameNormalized", "eggs")
+                .append("store", "coop"));
+        addProduct("Eggs", "coop", 6, 2);
+
+        Map<String, Object> result = shoppingListController.generateLowStockItems();
+
+        assertEquals(1, result.get("raised"));
+        assertEquals(4, db.getCollection("shoppingList").find(eq("productNameNormalized", "eggs")).first()
+                .getInteger("quantity"));
+    }
+
 }
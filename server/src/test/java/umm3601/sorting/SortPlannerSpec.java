@@ -0,0 +1,158 @@
+package umm3601.sorting;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
+import static java.util.Map.entry;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.Indexes;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.text.TextNormalizer;
+
+/**
+ * Tests the sort planner the list endpoints share.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class SortPlannerSpec {
+
+  private static final List<IndexModel> INDEXES = List.of(
+      new IndexModel(Indexes.ascending("name", "_id")),
+      new IndexModel(Indexes.descending("age", "_id")),
+      new IndexModel(Indexes.ascending("role")),
+      new IndexModel(Indexes.ascending("role", "name", "_id")),
+      new IndexModel(Indexes.ascending("companyNormalized", "_id")),
+      new IndexModel(Indexes.compoundIndex(Indexes.ascending("company"), Indexes.descending("_id"))));
+
+  private static final Bson NO_FILTER = new Document();
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+
+  private SortPlanner planner = new SortPlanner(INDEXES, "name", "age").searchedBy("company", "companyNormalized");
+
+  @BeforeEach
+  public void setupEach() {
+    mockReq.resetAll();
+    mockRes.resetAll();
+  }
+
+  private Context mockContext(String queryString) {
+    mockReq.setQueryString(queryString);
+    return ContextUtil.init(
+        mockReq, mockRes,
+        "api/users",
+        Collections.emptyMap(),
+        HandlerType.INVALID,
+        Map.ofEntries(
+          entry(JSON_MAPPER_KEY, new JavalinJackson()),
+          entry(ContextUtil.maxRequestSizeKey,
+                new JavalinConfig().maxRequestSize
+          )
+        )
+      );
+  }
+
+  private static String json(Bson sort) {
+    return sort.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()).toJson();
+  }
+
+  @Test
+  public void sortsEndWithTheId() {
+    assertEquals("{\"name\": 1, \"_id\": 1}", json(planner.plan(mockContext(""), NO_FILTER)));
+    assertEquals("{\"age\": -1, \"_id\": -1}",
+        json(planner.plan(mockContext("sortby=age&sortorder=desc"), NO_FILTER)));
+    assertEquals("{\"_id\": 1}", json(planner.plan(mockContext("sortby=_id&sortorder=asc"), NO_FILTER)));
+  }
+
+  @Test
+  public void onlyDeclaredFieldsCanBeSortedBy() {
+    assertThrows(BadRequestResponse.class, () -> {
+      planner.plan(mockContext("sortby=email"), NO_FILTER);
+    });
+    assertThrows(BadRequestResponse.class, () -> {
+      planner.plan(mockContext("sortby=name&sortorder=sideways"), NO_FILTER);
+    });
+  }
+
+  @Test
+  public void sortableFieldsNeedAnIndexWithTheId() {
+    // An index on the field alone would still leave ties to sort in memory
+    assertThrows(IllegalArgumentException.class, () -> new SortPlanner(INDEXES, "name", "role"));
+    // And one that reads `_id` the other way can't serve either direction
+    assertThrows(IllegalArgumentException.class, () -> new SortPlanner(INDEXES, "company"));
+    assertThrows(IllegalArgumentException.class, () -> new SortPlanner(INDEXES, "email"));
+    assertEquals(List.of("name", "age", "_id"), List.copyOf(planner.fields()));
+    assertThrows(IllegalArgumentException.class, () -> planner.searchedBy("role", "roleNormalized"));
+  }
+
+  @Test
+  public void filteredFieldsComeBeforeTheSortField() {
+    Bson viewers = eq("role", "viewer");
+    assertEquals("{\"name\": -1, \"_id\": -1}", json(planner.plan(mockContext("sortorder=desc"), viewers)));
+    // There's no index on (role, age, _id), so MongoDB would have to
+    // sort the viewers it finds with the (role) index in memory.
+    assertThrows(BadRequestResponse.class, () -> {
+      planner.plan(mockContext("sortby=age"), viewers);
+    });
+    // Sorting by a field that's also matched exactly doesn't need one.
+    assertEquals("{\"age\": 1, \"_id\": 1}", json(planner.plan(mockContext("sortby=age"), eq("age", 37))));
+    // No index starts with `email`, so filtering on it can't change the plan.
+    assertEquals("{\"age\": 1, \"_id\": 1}",
+        json(planner.plan(mockContext("sortby=age"), and(eq("email", "a@b.c"), eq("age", 37)))));
+  }
+
+  @Test
+  public void listsWithoutASortByAreNeverRefused() {
+    Bson viewersAged37 = and(eq("role", "viewer"), eq("age", 37));
+    // There's no index on (role, age, _id) or (age, role, _id), so that
+    // can't be asked for...
+    assertThrows(BadRequestResponse.class, () -> {
+      planner.plan(mockContext("sortby=age"), viewersAged37);
+    });
+    // ...but without a `sortby`, it's sorted by what the age's own index gives.
+    assertEquals("{\"age\": 1, \"_id\": 1}", json(planner.plan(mockContext(""), viewersAged37)));
+    // A search along with an exact match sorts by the search.
+    assertEquals("{\"companyNormalized\": 1, \"_id\": 1}",
+        json(planner.plan(mockContext(""), and(TextNormalizer.prefixFilter("companyNormalized", "OHM"),
+            eq("role", "viewer")))));
+  }
+
+  @Test
+  public void rangesAreOnlyAllowedOnTheSortField() {
+    Bson search = TextNormalizer.prefixFilter("companyNormalized", "OHM");
+    // A search sorts by the field it searches, with or without asking.
+    assertEquals("{\"companyNormalized\": 1, \"_id\": 1}", json(planner.plan(mockContext(""), search)));
+    assertEquals("{\"companyNormalized\": -1, \"_id\": -1}",
+        json(planner.plan(mockContext("sortorder=desc"), search)));
+    assertEquals("{\"age\": 1, \"_id\": 1}", json(planner.plan(mockContext(""), gte("age", 21))));
+    assertThrows(BadRequestResponse.class, () -> {
+      planner.plan(mockContext("sortby=age"), search);
+    });
+    assertThrows(BadRequestResponse.class, () -> {
+      planner.plan(mockContext("sortby=name"), gte("age", 21));
+    });
+  }
+}
@@ -0,0 +1,226 @@
+package umm3601.sync;
+
+import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
+import static java.util.Map.entry;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.core.validation.ValidationException;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.events.ChangeBus;
+import umm3601.events.ChangeEvent;
+
+/**
+ * Tests the SyncController and the ChangeLog behind it.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SyncControllerSpec {
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+
+  private ChangeBus changes;
+  private ChangeLog changeLog;
+  private SyncController syncController;
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private static JavalinJackson javalinJackson = new JavalinJackson();
+
+  @BeforeAll
+  public static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build()
+    );
+    db = mongoClient.getDatabase("test");
+  }
+
+  @AfterAll
+  public static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  public void setupEach() {
+    mockReq.resetAll();
+    mockRes.resetAll();
+
+    db.getCollection("changeLog").drop();
+    db.getCollection("changeLogState").drop();
+    changes = new ChangeBus();
+    changeLog = new ChangeLog(db, changes);
+    syncController = new SyncController(changeLog);
+  }
+
+  private Context mockContext(String path) {
+    return ContextUtil.init(
+        mockReq, mockRes,
+        path,
+        Collections.emptyMap(),
+        HandlerType.INVALID,
+        Map.ofEntries(
+          entry(JSON_MAPPER_KEY, javalinJackson),
+          entry(ContextUtil.maxRequestSizeKey,
+                new JavalinConfig().maxRequestSize
+          )
+        )
+      );
+  }
+
+  private ObjectNode sync(String queryString) {
+    mockRes.resetAll();
+    mockReq.setQueryString(queryString);
+    Context ctx = mockContext("api/sync");
+    syncController.getChanges(ctx);
+    return javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+  }
+
+  private void insertPantryItem(String id, String name) {
+    changes.publish(ChangeEvent.inserted("pantry", id, Map.of("_id", id, "name", name)));
+  }
+
+  @Test
+  public void newClientsHaveToStartOver() {
+    insertPantryItem("p1", "milk");
+
+    ObjectNode response = sync("");
+
+    assertTrue(response.get("reset").asBoolean());
+    assertEquals("1", response.get("token").asText());
+    assertEquals(0, response.get("changes").size());
+  }
+
+  @Test
+  public void clientsGetOnlyTheChangesSinceTheirToken() {
+    String token = sync("").get("token").asText();
+    insertPantryItem("p1", "milk");
+    changes.publish(ChangeEvent.deleted("users", "u1", Map.of("_id", "u1")));
+    insertPantryItem("p2", "eggs");
+
+    ObjectNode response = sync("since=" + token);
+
+    assertFalse(response.get("reset").asBoolean());
+    assertFalse(response.get("more").asBoolean());
+    JsonNode changed = response.get("changes");
+    assertEquals(3, changed.size());
+    assertEquals("p1", changed.get(0).get("id").asText());
+    assertEquals("milk", changed.get(0).get("document").get("name").asText());
+    // A delete is a tombstone, with no document
+    assertEquals("deleted", changed.get(1).get("type").asText());
+    assertTrue(changed.get(1).get("document").isNull());
+    assertEquals("3", response.get("token").asText());
+
+    // Nothing new since then
+    assertEquals(0, sync("since=3").get("changes").size());
+
+    // Just the pantry
+    JsonNode pantryOnly = sync("since=" + token + "&collections=pantry").get("changes");
+    assertEquals(2, pantryOnly.size());
+  }
+
+  @Test
+  public void clientsCanCatchUpInPages() {
+    for (int i = 0; i < 5; i++) {
+      insertPantryItem("p" + i, "item " + i);
+    }
+
+    ObjectNode first = sync("since=0&limit=2");
+    assertTrue(first.get("more").asBoolean());
+    assertEquals("2", first.get("token").asText());
+
+    ObjectNode rest = sync("since=2&limit=10");
+    assertFalse(rest.get("more").asBoolean());
+    assertEquals(3, rest.get("changes").size());
+    assertEquals("p2", rest.get("changes").get(0).get("id").asText());
+  }
+
+  @Test
+  public void tokensFromTheFutureMeanStartingOver() {
+    assertTrue(sync("since=42").get("reset").asBoolean());
+  }
+
+  @Test
+  public void limitsMustBeLegal() {
+    mockReq.setQueryString("since=0&limit=0");
+    Context ctx = mockContext("api/sync");
+
+    assertThrows(ValidationException.class, () -> {
+      syncController.getChanges(ctx);
+    });
+  }
+
+  @Test
+  public void compactionKeepsOnlyTheLatestChangeToEachDocument() {
+    insertPantryItem("p1", "milk");
+    changes.publish(ChangeEvent.updated("pantry", "p1", null, Map.of("_id", "p1", "name", "oat milk")));
+    insertPantryItem("p2", "eggs");
+    changes.publish(ChangeEvent.deleted("pantry", "p2", Map.of("_id", "p2")));
+
+    Instant later = Instant.now().plus(Duration.ofMinutes(1));
+    // Compacting without dropping tombstones
+    assertEquals(2, changeLog.compact(later, Instant.EPOCH));
+    JsonNode changed = sync("since=0").get("changes");
+    assertEquals(2, changed.size());
+    assertEquals("oat milk", changed.get(0).get("document").get("name").asText());
+    assertEquals("deleted", changed.get(1).get("type").asText());
+    // Compacting again has nothing to do
+    assertEquals(0, changeLog.compact(later, Instant.EPOCH));
+
+    // Once the tombstone's gone, clients from before it start over
+    assertEquals(1, changeLog.compact(later, later));
+    assertEquals(4, changeLog.floor());
+    assertTrue(sync("since=0").get("reset").asBoolean());
+    assertFalse(sync("since=4").get("reset").asBoolean());
+  }
+
+  @Test
+  public void clientsFromBeforeAChangeThatWasNeverLoggedStartOver() {
+    insertPantryItem("p1", "milk");
+    // Something else already has the next number, so logging p2 fails
+    db.getCollection("changeLog").insertOne(new Document("_id", 2L));
+    insertPantryItem("p2", "eggs");
+    insertPantryItem("p3", "bread");
+
+    assertEquals(2, changeLog.floor());
+    assertTrue(sync("since=1").get("reset").asBoolean());
+    ObjectNode response = sync("since=2");
+    assertFalse(response.get("reset").asBoolean());
+    assertEquals("p3", response.get("changes").get(0).get("id").asText());
+    // The next server knows about the hole too
+    assertEquals(2, new ChangeLog(db, new ChangeBus()).floor());
+  }
+}
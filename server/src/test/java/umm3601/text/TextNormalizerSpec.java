@@ -0,0 +1,60 @@
+package umm3601.text;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.mongodb.MongoClientSettings;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the text normalization and prefix range queries used for
+ * name searches.
+ */
+public class TextNormalizerSpec {
+
+  private String json(Bson filter) {
+    return filter.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()).toJson();
+  }
+
+  @Test
+  public void lowercasesAndStripsAccents() {
+    assertEquals("creme brulee", TextNormalizer.normalize("Crème BRÛLÉE"));
+    assertEquals("jalapeno", TextNormalizer.normalize("JALAPEÑO"));
+  }
+
+  @Test
+  public void collapsesWhitespace() {
+    assertEquals("corn flakes", TextNormalizer.normalize("  corn \t  FLAKEs\n"));
+  }
+
+  @Test
+  public void normalizingNullGivesNull() {
+    assertNull(TextNormalizer.normalize(null));
+  }
+
+  @Test
+  public void prefixFilterIsARangeOnTheNormalizedField() {
+    assertEquals(
+        "{\"$and\": [{\"nameNormalized\": {\"$gte\": \"creme\"}}, {\"nameNormalized\": {\"$lt\": \"cremf\"}}]}",
+        json(TextNormalizer.prefixFilter("nameNormalized", "Crème")));
+  }
+
+  @Test
+  public void emptyPrefixMatchesEverything() {
+    assertEquals("{}", json(TextNormalizer.prefixFilter("nameNormalized", "   ")));
+  }
+
+  @Test
+  public void upperBoundWorksInCodePoints() {
+    assertEquals("ab", TextNormalizer.prefixUpperBound("aa"));
+    // The character after U+D7FF is U+E000, since the surrogates in
+    // between aren't characters on their own.
+    assertEquals("a\uE000", TextNormalizer.prefixUpperBound("a\uD7FF"));
+    // The last code point can't be incremented, so we carry.
+    assertEquals("b", TextNormalizer.prefixUpperBound("a" + new String(Character.toChars(Character.MAX_CODE_POINT))));
+    assertNull(TextNormalizer.prefixUpperBound(new String(Character.toChars(Character.MAX_CODE_POINT))));
+  }
+}
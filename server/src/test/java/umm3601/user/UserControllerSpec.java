@@ -4,8 +4,10 @@ import static com.mongodb.client.model.Filters.eq;
 import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
 import static java.util.Map.entry;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -158,6 +160,8 @@ public class UserControllerSpec {
     userDocuments.insertMany(testUsers);
     userDocuments.insertOne(sam);
 
+    UserController.backfillNormalizedFields(db);
+
     userController = new UserController(db);
   }
 
@@ -282,6 +286,29 @@ public class UserControllerSpec {
     });
   }
 
+  @Test
+  public void canSortUsersByAge() throws IOException {
+    mockReq.setQueryString("sortby=age&sortorder=desc");
+    Context ctx = mockContext("api/users");
+
+    userController.getUsers(ctx);
+    User[] resultUsers = returnedUsers(ctx);
+
+    for (int i = 1; i < resultUsers.length; i++) {
+      assertTrue(resultUsers[i - 1].age >= resultUsers[i].age);
+    }
+  }
+
+  @Test
+  public void respondsAppropriatelyToUnsortableField() {
+    mockReq.setQueryString("sortby=email");
+    Context ctx = mockContext("api/users");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+  }
+
   @Test
   public void canGetUsersWithCompany() throws IOException {
     mockReq.setQueryString("company=OHMNET");
@@ -312,6 +339,45 @@ public class UserControllerSpec {
     }
   }
 
+  @Test
+  public void getUsersByRoleAndAge() throws IOException {
+    mockReq.setQueryString("role=viewer&age=37");
+    Context ctx = mockContext("api/users");
+
+    userController.getUsers(ctx);
+    User[] resultUsers = returnedUsers(ctx);
+
+    assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+    assertEquals(1, resultUsers.length);
+    assertEquals("Jamie", resultUsers[0].name);
+  }
+
+  @Test
+  public void getUsersByRoleAndCompany() throws IOException {
+    mockReq.setQueryString("role=viewer&company=ohm");
+    Context ctx = mockContext("api/users");
+
+    userController.getUsers(ctx);
+    User[] resultUsers = returnedUsers(ctx);
+
+    assertEquals(HttpURLConnection.HTTP_OK, mockRes.getStatus());
+    assertEquals(2, resultUsers.length);
+    for (User user : resultUsers) {
+      assertEquals("viewer", user.role);
+      assertEquals("OHMNET", user.company);
+    }
+  }
+
+  @Test
+  public void sortsThatNeedAMissingIndexAreBadRequests() {
+    mockReq.setQueryString("role=viewer&age=37&sortby=name");
+    Context ctx = mockContext("api/users");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+  }
+
   @Test
   public void getUsersByCompanyAndAge() throws IOException {
     mockReq.setQueryString("company=OHMNET&age=37");
@@ -328,6 +394,26 @@ public class UserControllerSpec {
     }
   }
 
+  @Test
+  public void canPickUserFields() throws IOException {
+    mockReq.setQueryString("fields=name,email&role=viewer");
+    Context ctx = mockContext("api/users");
+
+    userController.getUsers(ctx);
+    User[] resultUsers = returnedUsers(ctx);
+
+    assertEquals(2, resultUsers.length);
+    for (User user : resultUsers) {
+      assertNotNull(user.name);
+      assertNotNull(user.email);
+      assertNull(user.company);
+      assertNull(user.role);
+      assertNull(user.age);
+    }
+    // Numbers that weren't asked for are left out, rather than sent as 0
+    assertFalse(ctx.resultString().contains("\"age\""));
+  }
+
   @Test
   public void getUserWithExistentId() throws IOException {
     String testID = samsId.toHexString();
@@ -0,0 +1,68 @@
+package umm3601.validation;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import io.javalin.core.validation.BodyValidator;
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.benchmark.AllocationMeter;
+import umm3601.user.User;
+import umm3601.user.UserController;
+
+/**
+ * A (rough) benchmark of the bytes allocated per validation: the
+ * `bodyValidator` chain `UserController.addNewUser` used to build for
+ * every request, against reading and checking with a schema, and
+ * against just checking an already-read document. Run it with
+ * `./gradlew benchmark`; it isn't part of the unit tests.
+ */
+@Tag(AllocationMeter.TAG)
+public class BodySchemaBenchmark {
+
+  private static final Pattern EMAIL = Pattern.compile(UserController.EMAIL_REGEX);
+
+  private static final BodySchema<User> SCHEMA = BodySchema.of(User.class)
+      .text("name", usr -> usr.name, "User must have a non-empty user name")
+      .text("email", usr -> usr.email, EMAIL, "User must have a legal email")
+      .number("age", usr -> usr.age, 1, "User's age must be greater than zero")
+      .oneOf("role", usr -> usr.role, Set.of("admin", "editor", "viewer"), "User must have a legal user role")
+      .text("company", usr -> usr.company, "User must have a non-empty company name")
+      .optionalText("avatar", usr -> usr.avatar, "User's avatar must not be empty");
+
+  private static final String GOOD_USER = "{"
+      + "\"name\": \"Test User\","
+      + "\"age\": 25,"
+      + "\"company\": \"testers\","
+      + "\"email\": \"test@example.com\","
+      + "\"role\": \"viewer\""
+      + "}";
+
+  @Test
+  public void schemasAllocateLessThanValidatorChains(TestReporter reporter) {
+    JavalinJackson jsonMapper = new JavalinJackson();
+    User parsed = SCHEMA.read(GOOD_USER);
+
+    long chain = AllocationMeter.bytesPerCall(() -> new BodyValidator<>(GOOD_USER, User.class, jsonMapper)
+        .check(usr -> usr.name != null && usr.name.length() > 0, "User must have a non-empty user name")
+        .check(usr -> usr.email.matches(UserController.EMAIL_REGEX), "User must have a legal email")
+        .check(usr -> usr.age > 0, "User's age must be greater than zero")
+        .check(usr -> usr.role.matches("^(admin|editor|viewer)$"), "User must have a legal user role")
+        .check(usr -> usr.company != null && usr.company.length() > 0, "User must have a non-empty company name")
+        .get());
+    long schema = AllocationMeter.bytesPerCall(() -> SCHEMA.read(GOOD_USER));
+    long checkOnly = AllocationMeter.bytesPerCall(() -> SCHEMA.check(parsed));
+
+    reporter.publishEntry(Map.of(
+        "bodyValidatorChainBytes", Long.toString(chain),
+        "schemaBytes", Long.toString(schema),
+        "checkOnlyBytes", Long.toString(checkOnly)));
+    assertTrue(schema < chain, "schema " + schema + " vs chain " + chain);
+  }
+}
@@ -0,0 +1,97 @@
+package umm3601.validation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.validation.ValidationException;
+import umm3601.user.User;
+import umm3601.user.UserController;
+
+/**
+ * Tests the schemas new documents are checked against. (What checking
+ * one costs is measured in `BodySchemaBenchmark`.)
+ */
+@SuppressWarnings({"MagicNumber"})
+public class BodySchemaSpec {
+
+  private static final Pattern EMAIL = Pattern.compile(UserController.EMAIL_REGEX);
+
+  private static final BodySchema<User> SCHEMA = BodySchema.of(User.class)
+      .text("name", usr -> usr.name, "User must have a non-empty user name")
+      .text("email", usr -> usr.email, EMAIL, "User must have a legal email")
+      .number("age", usr -> usr.age, 1, "User's age must be greater than zero")
+      .oneOf("role", usr -> usr.role, Set.of("admin", "editor", "viewer"), "User must have a legal user role")
+      .text("company", usr -> usr.company, "User must have a non-empty company name")
+      .optionalText("avatar", usr -> usr.avatar, "User's avatar must not be empty");
+
+  private static final String GOOD_USER = "{"
+      + "\"name\": \"Test User\","
+      + "\"age\": 25,"
+      + "\"company\": \"testers\","
+      + "\"email\": \"test@example.com\","
+      + "\"role\": \"viewer\""
+      + "}";
+
+  @Test
+  public void legalDocumentsPass() {
+    User user = SCHEMA.read(GOOD_USER);
+
+    assertEquals("Test User", user.name);
+    assertEquals(List.of(), SCHEMA.violations(user));
+  }
+
+  @Test
+  public void everyBrokenRuleIsReportedAtOnce() {
+    String badUser = "{"
+        + "\"name\": \"\","
+        + "\"age\": 0,"
+        + "\"company\": \"testers\","
+        + "\"email\": \"invalidemail\""
+        + "}";
+
+    ValidationException e = assertThrows(ValidationException.class, () -> {
+      SCHEMA.read(badUser);
+    });
+
+    assertEquals(Set.of("name", "email", "age", "role"), e.getErrors().keySet());
+    assertEquals("User must have a legal user role", e.getErrors().get("role").get(0).getMessage());
+  }
+
+  @Test
+  public void violationsAreListedInOrder() {
+    User user = SCHEMA.read(GOOD_USER);
+    user.role = "owner";
+    user.avatar = "";
+    user.name = null;
+
+    assertEquals(List.of(
+        "User must have a non-empty user name",
+        "User must have a legal user role",
+        "User's avatar must not be empty"), SCHEMA.violations(user));
+  }
+
+  @Test
+  public void unreadableBodiesAreReported() {
+    ValidationException notJson = assertThrows(ValidationException.class, () -> {
+      SCHEMA.read("{\"name\": ");
+    });
+    assertTrue(notJson.getErrors().get(BodySchema.REQUEST_BODY).get(0).getMessage().startsWith("Couldn't read a User"));
+
+    ValidationException wrongType = assertThrows(ValidationException.class, () -> {
+      SCHEMA.read(GOOD_USER.replace("25", "\"notanumber\""));
+    });
+    assertTrue(wrongType.getErrors().containsKey(BodySchema.REQUEST_BODY));
+
+    ValidationException nothing = assertThrows(ValidationException.class, () -> {
+      SCHEMA.read("null");
+    });
+    assertTrue(nothing.getErrors().containsKey(BodySchema.REQUEST_BODY));
+  }
+}